@@ -0,0 +1,427 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.util.cli.CommandBuilder;
+import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
+import ij.Prefs;
+
+/**
+ * Resolves conda environments once, so that executables can be launched
+ * directly instead of through conda activation, which can take seconds on
+ * large conda installations.
+ * <p>
+ * The first time an environment is needed, a small script is run in it
+ * through conda activation. It reports the interpreter path, the location of
+ * the <code>yolo</code> entry point and the activated environment variables.
+ * Only what activation changed is kept: the variables it sets or changes,
+ * the entries it prepends to path lists such as <code>PATH</code>, and the
+ * variables it removes. This delta is kept for the session, and saved in the
+ * ImageJ preferences folder. A saved environment is reused in later sessions
+ * as long as the modification time of its <code>conda-meta</code> folder,
+ * which changes whenever packages are installed or removed, is unchanged.
+ * Executables are launched with the delta applied on top of the current
+ * environment, so that variables of the session, such as
+ * <code>CUDA_VISIBLE_DEVICES</code> or <code>TMPDIR</code>, are kept.
+ */
+public class CondaEnvironmentCache
+{
+
+	private static final String SCRIPT_NAME = "trackmate_yolo_env.py";
+
+	private static final String CACHE_FOLDER = "TrackMate-YOLO";
+
+	/** Version of the saved files. Files of other versions are ignored. */
+	private static final String FORMAT = "2";
+
+	private static final String ENV_PREFIX = "env.";
+
+	private static final String PREPEND_PREFIX = "prepend.";
+
+	private static final String UNSET_PREFIX = "unset.";
+
+	private static final String KEEP_PREFIX = "keep.";
+
+	private static final Map< String, ResolvedEnvironment > ENVIRONMENTS = new HashMap<>();
+
+	private CondaEnvironmentCache()
+	{}
+
+	/**
+	 * Returns the resolved environment for the specified conda environment
+	 * name, resolving it if needed.
+	 *
+	 * @param condaEnv
+	 *            the conda environment name.
+	 * @param logger
+	 *            a logger to report resolution.
+	 * @return the resolved environment, or <code>null</code> if it could not
+	 *         be resolved. In that case, executables should be launched
+	 *         through conda activation.
+	 */
+	public static synchronized ResolvedEnvironment get( final String condaEnv, final Logger logger )
+	{
+		if ( condaEnv == null || condaEnv.isEmpty() )
+			return null;
+
+		final ResolvedEnvironment inSession = ENVIRONMENTS.get( condaEnv );
+		if ( inSession != null )
+			return inSession;
+
+		final Path cacheFile = cacheFile( condaEnv );
+		ResolvedEnvironment env = load( cacheFile );
+		if ( env == null || !env.isValid() )
+		{
+			logger.log( "Resolving the conda environment " + condaEnv + ".\n" );
+			try
+			{
+				env = resolve( condaEnv );
+				save( env, cacheFile );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not resolve the conda environment " + condaEnv + ", "
+						+ "will use conda activation:\n" + e.getMessage() + '\n' );
+				return null;
+			}
+		}
+		ENVIRONMENTS.put( condaEnv, env );
+		return env;
+	}
+
+	/**
+	 * Forgets all the resolved environments, in memory and on disk.
+	 */
+	public static synchronized void clear()
+	{
+		for ( final String condaEnv : ENVIRONMENTS.keySet() )
+			cacheFile( condaEnv ).toFile().delete();
+		ENVIRONMENTS.clear();
+	}
+
+	private static ResolvedEnvironment resolve( final String condaEnv ) throws IOException
+	{
+		final CondaPythonScriptCLI cli = new CondaPythonScriptCLI( YOLOUtils.extractScript( SCRIPT_NAME ).toString() );
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( KEY_CONDA_ENV, condaEnv );
+		TrackMateSettingsBuilder.fromTrackMateSettings( settings, cli );
+
+		final List< String > cmd = CommandBuilder.build( cli );
+		final Process process = new ProcessBuilder( cmd ).redirectErrorStream( true ).start();
+		final Properties properties = new Properties();
+		final List< String > output = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ))
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				output.add( line );
+				final int sep = line.indexOf( '=' );
+				if ( sep > 0 )
+					properties.setProperty( line.substring( 0, sep ), line.substring( sep + 1 ) );
+			}
+		}
+		try
+		{
+			process.waitFor();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while resolving the conda environment." );
+		}
+
+		final String python = properties.getProperty( "executable" );
+		if ( process.exitValue() != 0 || python == null || python.isEmpty() )
+			throw new IOException( String.join( "\n", output ) );
+
+		// Keep only what activation changed in the environment of this process.
+		final Map< String, String > parent = System.getenv();
+		final Map< String, String > vars = new HashMap<>();
+		final Map< String, String > prepends = new HashMap<>();
+		// Names are case-insensitive on Windows.
+		final Set< String > activated = new TreeSet<>( String.CASE_INSENSITIVE_ORDER );
+		for ( final String key : properties.stringPropertyNames() )
+		{
+			// Variables the script could not print are left as they are.
+			if ( key.startsWith( KEEP_PREFIX ) )
+				activated.add( key.substring( KEEP_PREFIX.length() ) );
+			if ( !key.startsWith( ENV_PREFIX ) )
+				continue;
+			final String name = key.substring( ENV_PREFIX.length() );
+			final String value = properties.getProperty( key );
+			if ( name.isEmpty() )
+				continue;
+			activated.add( name );
+			final String before = parent.get( name );
+			if ( value.equals( before ) )
+				continue;
+			if ( before != null && !before.isEmpty() && value.endsWith( File.pathSeparator + before ) )
+				prepends.put( name, value.substring( 0, value.length() - before.length() ) );
+			else
+				vars.put( name, value );
+		}
+		final Set< String > unset = new HashSet<>();
+		for ( final String name : parent.keySet() )
+			if ( !activated.contains( name ) )
+				unset.add( name );
+
+		// The environment prefix is the folder containing conda-meta.
+		Path prefix = Paths.get( python ).getParent();
+		while ( prefix != null && !Files.isDirectory( prefix.resolve( "conda-meta" ) ) )
+			prefix = prefix.getParent();
+		if ( prefix == null )
+			throw new IOException( "Could not find the conda-meta folder of the environment of " + python );
+
+		final String yolo = properties.getProperty( "yolo", "" );
+		final boolean cuda = Boolean.parseBoolean( properties.getProperty( "cuda" ) );
+		return new ResolvedEnvironment( condaEnv, prefix.toString(), python, yolo, cuda, vars, prepends, unset, condaMetaTime( prefix.toString() ) );
+	}
+
+	private static long condaMetaTime( final String prefix )
+	{
+		return new File( prefix, "conda-meta" ).lastModified();
+	}
+
+	private static Path cacheFile( final String condaEnv )
+	{
+		final String name = "conda-env-" + condaEnv.replaceAll( "[^A-Za-z0-9._-]", "_" ) + ".properties";
+		return Paths.get( Prefs.getPrefsDir(), CACHE_FOLDER, name );
+	}
+
+	private static ResolvedEnvironment load( final Path file )
+	{
+		if ( !Files.isRegularFile( file ) )
+			return null;
+
+		final Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ))
+		{
+			properties.load( reader );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+
+		if ( !FORMAT.equals( properties.getProperty( "format" ) ) )
+			return null;
+
+		final Map< String, String > vars = new HashMap<>();
+		final Map< String, String > prepends = new HashMap<>();
+		final Set< String > unset = new HashSet<>();
+		for ( final String name : properties.stringPropertyNames() )
+		{
+			if ( name.startsWith( ENV_PREFIX ) )
+				vars.put( name.substring( ENV_PREFIX.length() ), properties.getProperty( name ) );
+			else if ( name.startsWith( PREPEND_PREFIX ) )
+				prepends.put( name.substring( PREPEND_PREFIX.length() ), properties.getProperty( name ) );
+			else if ( name.startsWith( UNSET_PREFIX ) )
+				unset.add( name.substring( UNSET_PREFIX.length() ) );
+		}
+		try
+		{
+			return new ResolvedEnvironment(
+					properties.getProperty( "name" ),
+					properties.getProperty( "prefix" ),
+					properties.getProperty( "python" ),
+					properties.getProperty( "yolo", "" ),
+					Boolean.parseBoolean( properties.getProperty( "cuda" ) ),
+					vars,
+					prepends,
+					unset,
+					Long.parseLong( properties.getProperty( "condaMetaTime" ) ) );
+		}
+		catch ( final NumberFormatException | NullPointerException e )
+		{
+			return null;
+		}
+	}
+
+	private static void save( final ResolvedEnvironment env, final Path file )
+	{
+		final Properties properties = new Properties();
+		properties.setProperty( "format", FORMAT );
+		properties.setProperty( "name", env.name );
+		properties.setProperty( "prefix", env.prefix );
+		properties.setProperty( "python", env.python );
+		properties.setProperty( "yolo", env.yolo );
+		properties.setProperty( "cuda", Boolean.toString( env.cuda ) );
+		properties.setProperty( "condaMetaTime", Long.toString( env.condaMetaTime ) );
+		env.vars.forEach( ( k, v ) -> properties.setProperty( ENV_PREFIX + k, v ) );
+		env.prepends.forEach( ( k, v ) -> properties.setProperty( PREPEND_PREFIX + k, v ) );
+		env.unset.forEach( k -> properties.setProperty( UNSET_PREFIX + k, "" ) );
+		try
+		{
+			Files.createDirectories( file.getParent() );
+			try (Writer writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 ))
+			{
+				properties.store( writer, "TrackMate-YOLO resolved conda environment" );
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Not critical, we will resolve again next session.
+		}
+	}
+
+	/**
+	 * A conda environment resolved to the paths and environment variables
+	 * needed to launch its executables directly.
+	 */
+	public static class ResolvedEnvironment
+	{
+
+		private final String name;
+
+		private final String prefix;
+
+		private final String python;
+
+		private final String yolo;
+
+		private final boolean cuda;
+
+		/** Variables set or changed by activation. */
+		private final Map< String, String > vars;
+
+		/** Entries prepended by activation to path lists. */
+		private final Map< String, String > prepends;
+
+		/** Variables removed by activation. */
+		private final Set< String > unset;
+
+		private final long condaMetaTime;
+
+		private ResolvedEnvironment(
+				final String name,
+				final String prefix,
+				final String python,
+				final String yolo,
+				final boolean cuda,
+				final Map< String, String > vars,
+				final Map< String, String > prepends,
+				final Set< String > unset,
+				final long condaMetaTime )
+		{
+			this.name = name;
+			this.prefix = prefix;
+			this.python = python;
+			this.yolo = yolo;
+			this.cuda = cuda;
+			this.vars = Collections.unmodifiableMap( vars );
+			this.prepends = Collections.unmodifiableMap( prepends );
+			this.unset = Collections.unmodifiableSet( unset );
+			this.condaMetaTime = condaMetaTime;
+		}
+
+		private boolean isValid()
+		{
+			return new File( python ).canExecute()
+					&& condaMetaTime( prefix ) == condaMetaTime;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Returns the path to the Python interpreter of this environment.
+		 *
+		 * @return the interpreter path.
+		 */
+		public String getPython()
+		{
+			return python;
+		}
+
+		/**
+		 * Returns the path to the <code>yolo</code> entry point of this
+		 * environment.
+		 *
+		 * @return the entry point path, or <code>null</code> if YOLO is not
+		 *         installed in this environment.
+		 */
+		public String getYolo()
+		{
+			return yolo.isEmpty() ? null : yolo;
+		}
+
+		/**
+		 * Returns whether PyTorch can run on a CUDA device in this
+		 * environment.
+		 *
+		 * @return <code>true</code> if a CUDA device is available.
+		 */
+		public boolean hasCuda()
+		{
+			return cuda;
+		}
+
+		/**
+		 * Returns a process builder for the specified command, with the
+		 * changes conda activation makes applied to the environment of this
+		 * process.
+		 *
+		 * @param cmd
+		 *            the command, starting with an executable of this
+		 *            environment.
+		 * @return a new process builder.
+		 */
+		public ProcessBuilder processBuilder( final List< String > cmd )
+		{
+			final ProcessBuilder pb = new ProcessBuilder( cmd );
+			final Map< String, String > environment = pb.environment();
+			unset.forEach( environment::remove );
+			prepends.forEach( ( k, v ) -> {
+				final String current = environment.get( k );
+				environment.put( k, ( current == null || current.isEmpty() ) ? v.substring( 0, v.length() - 1 ) : v + current );
+			} );
+			environment.putAll( vars );
+			return pb;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import fiji.plugin.trackmate.util.cli.CondaExecutableCLIConfigurator;
+
+/**
+ * Command line to run a Python script in a conda environment.
+ */
+public class CondaPythonScriptCLI extends CondaExecutableCLIConfigurator
+{
+
+	private final String scriptPath;
+
+	public CondaPythonScriptCLI( final String scriptPath )
+	{
+		this.scriptPath = scriptPath;
+	}
+
+	/**
+	 * Returns the command that runs the script. The script path is quoted if
+	 * it contains spaces, as the command is run by a shell after conda
+	 * activation.
+	 */
+	@Override
+	protected String getCommand()
+	{
+		if ( scriptPath.indexOf( ' ' ) < 0 )
+			return "python " + scriptPath;
+		return "python \"" + scriptPath + "\"";
+	}
+
+	public String getScriptPath()
+	{
+		return scriptPath;
+	}
+}
@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_MODELS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IMGSZ;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MOTION_THRESHOLD;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_PYRAMID_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_COARSE_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_MARGIN;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SEGMENTATION;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SIMPLIFY_TOLERANCE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import ij.Prefs;
+
+/**
+ * An on-disk checkpoint of the detections of a YOLO run, saved frame by frame
+ * as they are produced.
+ * <p>
+ * The checkpoint file is named after a hash of the source image, the
+ * detection interval and the detector settings that change the raw
+ * detections (see {@link #key(ImageFingerprint, Map)}), so that a later run
+ * with the same inputs finds it and only has to process the frames that are
+ * missing. Settings that only change how fast YOLO runs, such as the number
+ * of threads or the stall timeout, are not part of the hash. The confidence
+ * threshold is not either: it is stored in the file, and a checkpoint made
+ * with a lower threshold is resumed by filtering its detections.
+ * <p>
+ * Frames are appended as records made of the frame index followed by the
+ * detection table in binary form (see {@link DetectionTable#write}). A
+ * record that was cut short by a crash is discarded when the checkpoint is
+ * reopened. Checkpoints of runs that are not resumed are deleted after a
+ * while.
+ */
+public class DetectionCheckpoint implements AutoCloseable
+{
+
+	private static final int MAGIC = 0x544d5943; // "TMYC"
+
+	private static final int VERSION = 4;
+
+	private static final String CHECKPOINT_FOLDER = "TrackMate-YOLO" + File.separator + "checkpoints";
+
+	private static final String EXTENSION = ".ckpt";
+
+	/** Magic number, version and confidence threshold. */
+	private static final int HEADER_SIZE = 16;
+
+	/** Number of days after which an abandoned checkpoint is deleted. */
+	private static final int MAX_AGE_DAYS = 14;
+
+	/** The detector settings that change the raw detections of a run. */
+	private static final List< String > DETECTION_KEYS = Arrays.asList(
+			KEY_YOLO_MODEL_FILEPATH,
+			KEY_YOLO_MODEL_FORMAT,
+			KEY_YOLO_INT8,
+			KEY_YOLO_IOU,
+			KEY_YOLO_IMGSZ,
+			KEY_YOLO_SEGMENTATION,
+			KEY_YOLO_SIMPLIFY_TOLERANCE,
+			KEY_YOLO_PYRAMID_FACTOR,
+			KEY_YOLO_ROI_KEYFRAME_INTERVAL,
+			KEY_YOLO_ROI_MARGIN,
+			KEY_YOLO_ROI_COARSE_FACTOR,
+			KEY_YOLO_MOTION_THRESHOLD,
+			KEY_YOLO_ENSEMBLE_MODELS,
+			KEY_YOLO_ENSEMBLE_IOU );
+
+	private final Path file;
+
+	private final Map< Integer, DetectionTable > tables;
+
+	private final OutputStream out;
+
+	private DetectionCheckpoint( final Path file, final Map< Integer, DetectionTable > tables, final OutputStream out )
+	{
+		this.file = file;
+		this.tables = tables;
+		this.out = out;
+	}
+
+	/**
+	 * Opens the checkpoint of a run, loading the frames it already contains,
+	 * or creates a new one. A checkpoint made with a lower confidence
+	 * threshold is resumed with its detections filtered, and rewritten with
+	 * the new threshold. One made with a higher threshold misses detections,
+	 * and is started over.
+	 *
+	 * @param key
+	 *            the hash of the run, as returned by
+	 *            {@link #key(ImageFingerprint, Map)}.
+	 * @param conf
+	 *            the confidence threshold of the run.
+	 * @return the checkpoint.
+	 * @throws IOException
+	 *             if the checkpoint file cannot be read or created.
+	 */
+	public static DetectionCheckpoint open( final String key, final double conf ) throws IOException
+	{
+		final Path folder = Paths.get( Prefs.getPrefsDir(), CHECKPOINT_FOLDER );
+		Files.createDirectories( folder );
+		prune( folder );
+		final Path file = folder.resolve( key + EXTENSION );
+
+		final Map< Integer, DetectionTable > tables = new TreeMap<>();
+		double storedConf = Double.NaN;
+		long validLength = 0;
+		if ( Files.exists( file ) )
+		{
+			final long length = Files.size( file );
+			try (InputStream is = new BufferedInputStream( Files.newInputStream( file ) ))
+			{
+				final DataInputStream in = new DataInputStream( is );
+				if ( in.readInt() == MAGIC && in.readInt() == VERSION )
+				{
+					storedConf = in.readDouble();
+					validLength = HEADER_SIZE;
+					while ( true )
+					{
+						final int t = in.readInt();
+						final DetectionTable table = DetectionTable.read( in, length - validLength - 4 );
+						tables.put( t, table );
+						validLength += 4 + table.sizeInBytes();
+					}
+				}
+			}
+			catch ( final EOFException e )
+			{
+				// End of file, or last record cut short.
+			}
+			catch ( final IOException e )
+			{
+				// Corrupt record: keep the records before it.
+			}
+		}
+
+		if ( validLength == 0 || storedConf > conf )
+		{
+			// New, unreadable, or missing detections: start over.
+			tables.clear();
+			rewrite( file, conf, tables );
+		}
+		else if ( storedConf < conf )
+		{
+			// Keep the detections this run would have made.
+			tables.replaceAll( ( t, table ) -> table.filter( conf ) );
+			rewrite( file, conf, tables );
+		}
+		else
+		{
+			// Drop a possibly incomplete last record.
+			try (FileChannel channel = FileChannel.open( file, StandardOpenOption.WRITE ))
+			{
+				channel.truncate( validLength );
+			}
+		}
+		final OutputStream out = new FileOutputStream( file.toFile(), true );
+		return new DetectionCheckpoint( file, tables, out );
+	}
+
+	/**
+	 * Writes a whole checkpoint file, through a temporary file so that the
+	 * old one is kept if writing fails.
+	 */
+	private static void rewrite( final Path file, final double conf, final Map< Integer, DetectionTable > tables ) throws IOException
+	{
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeDouble( conf );
+			for ( final Map.Entry< Integer, DetectionTable > entry : tables.entrySet() )
+			{
+				out.writeInt( entry.getKey().intValue() );
+				entry.getValue().write( out );
+			}
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Deletes the checkpoints left by runs that did not complete and were
+	 * not resumed for {@value #MAX_AGE_DAYS} days. Errors are ignored.
+	 */
+	private static void prune( final Path folder )
+	{
+		final long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis( MAX_AGE_DAYS );
+		try (Stream< Path > files = Files.list( folder ))
+		{
+			files.filter( f -> f.toString().endsWith( EXTENSION ) )
+					.filter( f -> f.toFile().lastModified() < oldest )
+					.forEach( f -> f.toFile().delete() );
+		}
+		catch ( final IOException e )
+		{
+			// Will be tried again on the next run.
+		}
+	}
+
+	/**
+	 * Returns whether the specified frame was already processed.
+	 *
+	 * @param t
+	 *            the frame.
+	 * @return <code>true</code> if the checkpoint contains this frame.
+	 */
+	public synchronized boolean isDone( final int t )
+	{
+		return tables.containsKey( t );
+	}
+
+	/**
+	 * Returns the number of frames in this checkpoint.
+	 *
+	 * @return the number of frames.
+	 */
+	public synchronized int size()
+	{
+		return tables.size();
+	}
+
+	/**
+	 * Saves the detections of a frame to the checkpoint.
+	 *
+	 * @param t
+	 *            the frame.
+	 * @param table
+	 *            the detections in this frame. Can be empty.
+	 * @throws IOException
+	 *             if writing the checkpoint fails.
+	 */
+	public synchronized void append( final int t, final DetectionTable table ) throws IOException
+	{
+		if ( tables.containsKey( t ) )
+			return;
+
+		// Write each record at once, so a crash is less likely to cut it.
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( ( int ) ( 4 + table.sizeInBytes() ) );
+		final DataOutputStream record = new DataOutputStream( bytes );
+		record.writeInt( t );
+		table.write( record );
+		record.flush();
+		bytes.writeTo( out );
+		out.flush();
+		tables.put( t, table );
+	}
+
+	/**
+	 * Returns the detections saved in this checkpoint, mapped by frame.
+	 *
+	 * @return a new map.
+	 */
+	public synchronized Map< Integer, DetectionTable > getTables()
+	{
+		return new TreeMap<>( tables );
+	}
+
+	/**
+	 * Closes and deletes the checkpoint file. To call once the run it
+	 * protects has completed.
+	 */
+	public void delete()
+	{
+		close();
+		try
+		{
+			Files.deleteIfExists( file );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		try
+		{
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a hash that identifies the raw detections of a run: the image
+	 * and its pixels in the detection interval, as identified by their
+	 * fingerprint, the model file, and the detector settings that change the
+	 * detections YOLO makes.
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the source image in the detection
+	 *            interval.
+	 * @param settings
+	 *            the detector settings.
+	 * @return the hash, as 32 hexadecimal characters.
+	 */
+	public static String key( final ImageFingerprint fingerprint, final Map< String, Object > settings )
+	{
+		final StringBuilder str = new StringBuilder( fingerprint.getKey() ).append( '\n' );
+		for ( final String k : DETECTION_KEYS )
+			str.append( k ).append( '=' ).append( settings.get( k ) ).append( '\n' );
+		// A model retrained in place is a different model.
+		final Object modelPath = settings.get( KEY_YOLO_MODEL_FILEPATH );
+		if ( modelPath != null )
+		{
+			final File modelFile = new File( modelPath.toString() );
+			str.append( modelFile.length() ).append( ',' ).append( modelFile.lastModified() ).append( '\n' );
+		}
+		return ImageFingerprint.digest( str );
+	}
+}
@@ -0,0 +1,457 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * A binary file that stores the raw detections of a complete YOLO run, so
+ * that they can be reloaded with a project instead of running YOLO again.
+ * <p>
+ * The file is saved next to the source image, where TrackMate saves the
+ * project by default, and named after the image and the same hash of the
+ * source image, detection interval and detector settings as the
+ * {@link DetectionCheckpoint}. It stores this hash, so that it is only used
+ * for the run it was made by, and the confidence threshold of the run, so
+ * that it is also used by runs with a higher threshold. Its path is saved in
+ * the detector settings of the TrackMate XML file. Sidecar files are never
+ * deleted by TrackMate, since saved projects may reference them.
+ * <p>
+ * Layout, all values big-endian:
+ * <ul>
+ * <li>a magic number and a version, as 32-bit integers;
+ * <li>the hash of the run, as 32 ASCII characters;
+ * <li>the confidence threshold of the run, as a 64-bit float;
+ * <li>the number of frames, as a 32-bit integer;
+ * <li>for each frame, the frame index and the number of detections as
+ * 32-bit integers, followed by the detections in the layout of
+ * {@link DetectionTable#write}, without its count.
+ * </ul>
+ * The file is memory-mapped when read, and a frame is only decoded when its
+ * detections are requested. The mapping is released before the file is
+ * replaced, since a mapped file cannot be replaced on Windows.
+ */
+public class DetectionSidecar
+{
+
+	public static final int MAGIC = 0x544d5944; // "TMYD"
+
+	public static final int VERSION = 4;
+
+	private static final String EXTENSION = ".tmyd";
+
+	/** Number of characters of the hash in the file name. */
+	private static final int NAME_KEY_LENGTH = 12;
+
+	private static final int KEY_LENGTH = 32;
+
+	private static final int DETECTION_SIZE = DetectionTable.DETECTION_SIZE;
+
+	private static final int VERTEX_SIZE = DetectionTable.VERTEX_SIZE;
+
+	/** Max number of sidecar files kept mapped. */
+	private static final int MAX_OPEN = 8;
+
+	private static final Map< Path, DetectionSidecar > OPEN = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private final Path path;
+
+	private final String key;
+
+	private final double conf;
+
+	/** The mapped file, or <code>null</code> once closed. */
+	private MappedByteBuffer buffer;
+
+	/** Frame index to the position of its detection count in the buffer. */
+	private final Map< Integer, Integer > index;
+
+	private DetectionSidecar( final Path path, final String key, final double conf, final MappedByteBuffer buffer, final Map< Integer, Integer > index )
+	{
+		this.path = path;
+		this.key = key;
+		this.conf = conf;
+		this.buffer = buffer;
+		this.index = index;
+	}
+
+	/**
+	 * Returns the path of the sidecar file for a run, next to the source
+	 * image.
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the source image.
+	 * @param key
+	 *            the hash of the run, as used to name its
+	 *            {@link DetectionCheckpoint}.
+	 * @return the path of the sidecar file, or <code>null</code> if the
+	 *         source image is not saved to a file.
+	 */
+	public static Path pathFor( final ImageFingerprint fingerprint, final String key )
+	{
+		final Path source = fingerprint.getSourceFile();
+		if ( source == null || source.getParent() == null )
+			return null;
+		String name = source.getFileName().toString();
+		final int dot = name.lastIndexOf( '.' );
+		if ( dot > 0 )
+			name = name.substring( 0, dot );
+		return source.resolveSibling( name + "-yolo-" + key.substring( 0, NAME_KEY_LENGTH ) + EXTENSION );
+	}
+
+	/**
+	 * Writes the detections of a complete run to a sidecar file, replacing
+	 * the file if it exists.
+	 *
+	 * @param file
+	 *            the path of the file to write.
+	 * @param key
+	 *            the hash of the run.
+	 * @param conf
+	 *            the confidence threshold of the run.
+	 * @param tables
+	 *            the detections, mapped by frame. Frames without detections
+	 *            must be present with an empty table.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final Path file, final String key, final double conf, final Map< Integer, DetectionTable > tables ) throws IOException
+	{
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.write( key.getBytes( StandardCharsets.US_ASCII ) );
+			out.writeDouble( conf );
+			out.writeInt( tables.size() );
+			for ( final Map.Entry< Integer, DetectionTable > entry : tables.entrySet() )
+			{
+				out.writeInt( entry.getKey().intValue() );
+				entry.getValue().write( out );
+			}
+		}
+		evict( file );
+		try
+		{
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Returns the sidecar file at the specified path, mapping it if it is not
+	 * mapped yet.
+	 *
+	 * @param path
+	 *            the path to the sidecar file.
+	 * @return the sidecar, or <code>null</code> if the file does not exist.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a sidecar file.
+	 */
+	public static DetectionSidecar open( final Path path ) throws IOException
+	{
+		synchronized ( OPEN )
+		{
+			final DetectionSidecar open = OPEN.get( path );
+			if ( open != null )
+				return open;
+		}
+		if ( !Files.isRegularFile( path ) )
+			return null;
+
+		final MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			if ( channel.size() > Integer.MAX_VALUE )
+				throw new IOException( "Sidecar file too large: " + path );
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		final byte[] keyBytes = new byte[ KEY_LENGTH ];
+		final double conf;
+		final Map< Integer, Integer > index;
+		try
+		{
+			if ( buffer.remaining() < 20 + KEY_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				throw new IOException( "Not a detection sidecar file, or an unsupported version: " + path );
+			buffer.get( keyBytes );
+			conf = buffer.getDouble();
+			index = index( buffer, path );
+		}
+		catch ( final IOException e )
+		{
+			unmap( buffer );
+			throw e;
+		}
+
+		final DetectionSidecar sidecar = new DetectionSidecar( path, new String( keyBytes, StandardCharsets.US_ASCII ), conf, buffer, index );
+		synchronized ( OPEN )
+		{
+			OPEN.put( path, sidecar );
+			final Iterator< DetectionSidecar > it = OPEN.values().iterator();
+			while ( OPEN.size() > MAX_OPEN )
+			{
+				it.next().close();
+				it.remove();
+			}
+		}
+		return sidecar;
+	}
+
+	/**
+	 * Returns the position of the detection count of each frame, reading
+	 * from the current position of the buffer.
+	 */
+	private static Map< Integer, Integer > index( final MappedByteBuffer buffer, final Path path ) throws IOException
+	{
+		final int nFrames = buffer.getInt();
+		final Map< Integer, Integer > index = new TreeMap<>();
+		for ( int i = 0; i < nFrames; i++ )
+		{
+			if ( buffer.remaining() < 8 )
+				throw new IOException( "Truncated sidecar file: " + path );
+			final int t = buffer.getInt();
+			final int position = buffer.position();
+			final int n = buffer.getInt();
+			if ( n < 0 )
+				throw new IOException( "Truncated sidecar file: " + path );
+			// Skip the detections and their contours.
+			for ( int j = 0; j < n; j++ )
+			{
+				if ( buffer.remaining() < DETECTION_SIZE )
+					throw new IOException( "Truncated sidecar file: " + path );
+				final int nVertices = buffer.getInt( buffer.position() + DETECTION_SIZE - 4 );
+				if ( nVertices < 0 || buffer.remaining() < DETECTION_SIZE + ( long ) nVertices * VERTEX_SIZE )
+					throw new IOException( "Truncated sidecar file: " + path );
+				buffer.position( buffer.position() + DETECTION_SIZE + nVertices * VERTEX_SIZE );
+			}
+			index.put( t, position );
+		}
+		return index;
+	}
+
+	public Path getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Returns the hash of the run that wrote this file.
+	 *
+	 * @return the hash.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Returns the confidence threshold of the run that wrote this file. The
+	 * file holds all the detections of a run with a higher threshold.
+	 *
+	 * @return the confidence threshold.
+	 */
+	public double getConf()
+	{
+		return conf;
+	}
+
+	/**
+	 * Returns whether this file contains all the specified frames.
+	 *
+	 * @param frames
+	 *            the frames.
+	 * @return <code>true</code> if no frame is missing.
+	 */
+	public boolean covers( final long[] frames )
+	{
+		for ( final long t : frames )
+			if ( !index.containsKey( ( int ) t ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Decodes the detections of a frame.
+	 *
+	 * @param t
+	 *            the frame.
+	 * @return a new table, or <code>null</code> if this file does not contain
+	 *         this frame, or was closed.
+	 */
+	public synchronized DetectionTable getTable( final int t )
+	{
+		final Integer position = index.get( t );
+		if ( position == null || buffer == null )
+			return null;
+
+		// Absolute reads, so that the buffer position is never shared.
+		int p = position.intValue();
+		final int n = buffer.getInt( p );
+		p += 4;
+		final DetectionTable table = new DetectionTable( n );
+		double[] xp = new double[ 0 ];
+		double[] yp = new double[ 0 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int nVertices = buffer.getInt( p + 28 );
+			if ( nVertices == 0 )
+			{
+				table.add(
+						buffer.getInt( p ),
+						buffer.getFloat( p + 4 ),
+						buffer.getFloat( p + 8 ),
+						buffer.getFloat( p + 12 ),
+						buffer.getFloat( p + 16 ),
+						buffer.getFloat( p + 20 ),
+						buffer.getInt( p + 24 ) );
+				p += DETECTION_SIZE;
+				continue;
+			}
+
+			// The box is the bounding box of the contour.
+			if ( xp.length < nVertices )
+			{
+				xp = new double[ nVertices ];
+				yp = new double[ nVertices ];
+			}
+			int q = p + DETECTION_SIZE;
+			for ( int k = 0; k < nVertices; k++ )
+			{
+				xp[ k ] = buffer.getFloat( q );
+				yp[ k ] = buffer.getFloat( q + 4 );
+				q += VERTEX_SIZE;
+			}
+			table.addPolygon( buffer.getInt( p ), xp, yp, nVertices, buffer.getFloat( p + 20 ), buffer.getInt( p + 24 ) );
+			p = q;
+		}
+		return table;
+	}
+
+	/**
+	 * Decodes the detections of all the frames of this file.
+	 *
+	 * @return a new map of detection tables, mapped by frame.
+	 */
+	public Map< Integer, DetectionTable > getTables()
+	{
+		final Map< Integer, DetectionTable > tables = new TreeMap<>();
+		for ( final Integer t : index.keySet() )
+			tables.put( t, getTable( t.intValue() ) );
+		return tables;
+	}
+
+	/**
+	 * Converts the detections of this file to a new spot collection.
+	 *
+	 * @return a new spot collection.
+	 */
+	public SpotCollection toSpotCollection()
+	{
+		return DetectionTable.toSpotCollection( getTables() );
+	}
+
+	/**
+	 * Releases the mapping of this file. Tables cannot be decoded afterwards.
+	 */
+	public synchronized void close()
+	{
+		if ( buffer == null )
+			return;
+		unmap( buffer );
+		buffer = null;
+	}
+
+	/**
+	 * Removes the file at the specified path from the open files, and
+	 * releases its mapping, so that the file can be replaced or deleted.
+	 *
+	 * @param path
+	 *            the path to the sidecar file.
+	 */
+	public static void evict( final Path path )
+	{
+		final DetectionSidecar open;
+		synchronized ( OPEN )
+		{
+			open = OPEN.remove( path );
+		}
+		if ( open != null )
+			open.close();
+	}
+
+	/**
+	 * Releases a mapped buffer now rather than when it is garbage-collected.
+	 * There is no public API for this before Java 19, so the cleaner is
+	 * called by reflection. If that fails, the buffer is left to the GC.
+	 */
+	private static void unmap( final MappedByteBuffer buffer )
+	{
+		try
+		{
+			// Java 9 and later.
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+			return;
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Try the Java 8 way.
+		}
+		try
+		{
+			final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( buffer );
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Left to the GC.
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.imglib2.Interval;
+
+/**
+ * Reads the single binary file in which the YOLO worker appends the
+ * detections of all frames, instead of writing one label file per frame.
+ * <p>
+ * The file starts with a header made of a magic number and a version, both
+ * 32-bit integers. Then comes one record per image YOLO processed:
+ * <ul>
+ * <li>the time-point, as a 32-bit integer;
+ * <li>the number of detections, as a 32-bit integer;
+ * <li>for each detection, the class ID as a 32-bit integer, then the
+ * normalized center X, center Y, width and height, and the confidence, as
+ * 32-bit floats.
+ * </ul>
+ * All values are big-endian. Coordinates are normalized to the image size,
+ * as in YOLO label files, and are converted to global, calibrated
+ * coordinates like
+ * {@link YOLOUtils#importResultFile(String, Interval, double[], DetectionTable, fiji.plugin.trackmate.Logger)}
+ * does.
+ * <p>
+ * The file can be read while the worker is still writing it: each call to
+ * {@link #readNew()} returns the records completed since the last call.
+ */
+public class DetectionStream
+{
+
+	/** The file name of the stream, in the YOLO output folder. */
+	public static final String FILE_NAME = "detections.bin";
+
+	public static final int MAGIC = 0x544d5953;
+
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final int DETECTION_SIZE = 24;
+
+	private final Path path;
+
+	private final Interval interval;
+
+	private final double[] calibration;
+
+	private long offset = 0;
+
+	/**
+	 * Creates a reader for a detection stream.
+	 *
+	 * @param path
+	 *            the path to the stream file. It does not need to exist yet.
+	 * @param interval
+	 *            the interval in the input image that was passed to YOLO.
+	 * @param calibration
+	 *            the physical calibration of the input image.
+	 */
+	public DetectionStream( final Path path, final Interval interval, final double[] calibration )
+	{
+		this.path = path;
+		this.interval = interval;
+		this.calibration = calibration;
+	}
+
+	/**
+	 * Returns whether the stream file exists.
+	 *
+	 * @return <code>true</code> if the worker wrote the stream file.
+	 */
+	public boolean exists()
+	{
+		return Files.exists( path );
+	}
+
+	/**
+	 * Reads the records completed since the last call. A record that is not
+	 * completely written yet is left for the next call.
+	 *
+	 * @return the detections of the new records, mapped by time-point.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a detection stream.
+	 */
+	public synchronized Map< Integer, DetectionTable > readNew() throws IOException
+	{
+		final Map< Integer, DetectionTable > tables = new TreeMap<>();
+		if ( !exists() )
+			return tables;
+
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			if ( offset == 0 )
+			{
+				if ( size < HEADER_SIZE )
+					return tables;
+				final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+				channel.read( header, 0 );
+				header.flip();
+				final int magic = header.getInt();
+				final int version = header.getInt();
+				if ( magic != MAGIC || version != VERSION )
+					throw new IOException( "Not a detection stream, or an unsupported version: " + path );
+				offset = HEADER_SIZE;
+			}
+			if ( size <= offset )
+				return tables;
+
+			final long length = Math.min( size - offset, Integer.MAX_VALUE );
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, offset, length );
+			final long width = interval.dimension( 0 );
+			final long height = interval.dimension( 1 );
+			while ( buffer.remaining() >= RECORD_HEADER_SIZE )
+			{
+				final int start = buffer.position();
+				final int t = buffer.getInt();
+				final int n = buffer.getInt();
+				if ( n < 0 )
+					throw new IOException( "Invalid number of detections in " + path + " at " + ( offset + start ) );
+				if ( buffer.remaining() < ( long ) n * DETECTION_SIZE )
+				{
+					// Not written completely yet.
+					buffer.position( start );
+					break;
+				}
+
+				final DetectionTable table = tables.computeIfAbsent( t, k -> new DetectionTable( n ) );
+				for ( int i = 0; i < n; i++ )
+				{
+					final int cls = buffer.getInt();
+					final double xr = buffer.getFloat();
+					final double yr = buffer.getFloat();
+					final double wr = buffer.getFloat();
+					final double hr = buffer.getFloat();
+					final double conf = buffer.getFloat();
+					YOLOUtils.addDetection( table, interval, calibration, width, height, cls, xr, yr, wr, hr, conf );
+				}
+			}
+			offset += buffer.position();
+		}
+		return tables;
+	}
+
+	/**
+	 * Drops the record the writer was writing when it died, if any, so that
+	 * a new writer can append its records to the file. The records read so
+	 * far with {@link #readNew()} are not affected.
+	 *
+	 * @return the time-points of the complete records left in the file.
+	 * @throws IOException
+	 *             if the file cannot be read or truncated, or is not a
+	 *             detection stream.
+	 */
+	public synchronized Set< Integer > truncateIncomplete() throws IOException
+	{
+		if ( !exists() )
+			return Collections.emptySet();
+
+		final DetectionStream reader = new DetectionStream( path, interval, calibration );
+		final Set< Integer > timePoints = reader.readNew().keySet();
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.WRITE ))
+		{
+			channel.truncate( reader.offset );
+		}
+		return timePoints;
+	}
+}
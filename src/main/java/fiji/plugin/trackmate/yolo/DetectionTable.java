@@ -0,0 +1,540 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_BOX_HEIGHT;
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_BOX_WIDTH;
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_CLASS_ID;
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_CONFIDENCE;
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_MODEL_ID;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * Stores the YOLO detections of a single frame in primitive arrays, one
+ * column per quantity.
+ * <p>
+ * Positions and box sizes are stored in physical units, in the global
+ * coordinates of the source image. Detections are kept in this compact form
+ * while results are imported, and converted to {@link Spot}s only once all
+ * of them are read.
+ * <p>
+ * Each detection also stores the index of the model that made it, when
+ * several models are run on the same frames. It is 0 for a single model.
+ * <p>
+ * Detections of segmentation models also have a polygon contour. The
+ * vertices of all contours are packed in two shared coordinate arrays, so
+ * that thousands of contours per frame do not create thousands of objects.
+ * Their box is the bounding box of the contour.
+ */
+public class DetectionTable
+{
+
+	/**
+	 * Size of a detection written by {@link #write(DataOutput)}, without its
+	 * contour, in bytes.
+	 */
+	public static final int DETECTION_SIZE = 32;
+
+	/** Size of a contour vertex written by {@link #write(DataOutput)}. */
+	public static final int VERTEX_SIZE = 8;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int size;
+
+	private int[] classId;
+
+	private float[] x;
+
+	private float[] y;
+
+	private float[] width;
+
+	private float[] height;
+
+	private float[] confidence;
+
+	private int[] modelId;
+
+	/** Index of the first vertex of each detection in the vertex arrays. */
+	private int[] vertexStart;
+
+	private int[] vertexCount;
+
+	private float[] vx;
+
+	private float[] vy;
+
+	private int nVertices;
+
+	public DetectionTable()
+	{
+		this( INITIAL_CAPACITY );
+	}
+
+	public DetectionTable( final int capacity )
+	{
+		final int c = Math.max( 1, capacity );
+		this.classId = new int[ c ];
+		this.x = new float[ c ];
+		this.y = new float[ c ];
+		this.width = new float[ c ];
+		this.height = new float[ c ];
+		this.confidence = new float[ c ];
+		this.modelId = new int[ c ];
+		this.vertexStart = new int[ c ];
+		this.vertexCount = new int[ c ];
+		this.vx = new float[ 0 ];
+		this.vy = new float[ 0 ];
+		this.size = 0;
+		this.nVertices = 0;
+	}
+
+	/**
+	 * Appends a detection to this table.
+	 *
+	 * @param cls
+	 *            the class identifier.
+	 * @param xc
+	 *            the X coordinate of the box center, in physical units.
+	 * @param yc
+	 *            the Y coordinate of the box center, in physical units.
+	 * @param w
+	 *            the box width, in physical units.
+	 * @param h
+	 *            the box height, in physical units.
+	 * @param conf
+	 *            the detection confidence.
+	 */
+	public void add( final int cls, final double xc, final double yc, final double w, final double h, final double conf )
+	{
+		add( cls, xc, yc, w, h, conf, 0 );
+	}
+
+	/**
+	 * Appends a detection made by the specified model to this table.
+	 *
+	 * @param cls
+	 *            the class identifier.
+	 * @param xc
+	 *            the X coordinate of the box center, in physical units.
+	 * @param yc
+	 *            the Y coordinate of the box center, in physical units.
+	 * @param w
+	 *            the box width, in physical units.
+	 * @param h
+	 *            the box height, in physical units.
+	 * @param conf
+	 *            the detection confidence.
+	 * @param model
+	 *            the index of the model.
+	 */
+	public void add( final int cls, final double xc, final double yc, final double w, final double h, final double conf, final int model )
+	{
+		if ( size == x.length )
+			grow();
+		classId[ size ] = cls;
+		x[ size ] = ( float ) xc;
+		y[ size ] = ( float ) yc;
+		width[ size ] = ( float ) w;
+		height[ size ] = ( float ) h;
+		confidence[ size ] = ( float ) conf;
+		modelId[ size ] = model;
+		vertexStart[ size ] = nVertices;
+		vertexCount[ size ] = 0;
+		size++;
+	}
+
+	/**
+	 * Appends a detection with a polygon contour to this table. Its box is
+	 * the bounding box of the contour.
+	 *
+	 * @param cls
+	 *            the class identifier.
+	 * @param xp
+	 *            the X coordinates of the contour vertices, in physical
+	 *            units.
+	 * @param yp
+	 *            the Y coordinates of the contour vertices, in physical
+	 *            units.
+	 * @param n
+	 *            the number of vertices to read from the coordinate arrays.
+	 * @param conf
+	 *            the detection confidence.
+	 * @param model
+	 *            the index of the model.
+	 */
+	public void addPolygon( final int cls, final double[] xp, final double[] yp, final int n, final double conf, final int model )
+	{
+		double xmin = Double.POSITIVE_INFINITY;
+		double xmax = Double.NEGATIVE_INFINITY;
+		double ymin = Double.POSITIVE_INFINITY;
+		double ymax = Double.NEGATIVE_INFINITY;
+		for ( int k = 0; k < n; k++ )
+		{
+			xmin = Math.min( xmin, xp[ k ] );
+			xmax = Math.max( xmax, xp[ k ] );
+			ymin = Math.min( ymin, yp[ k ] );
+			ymax = Math.max( ymax, yp[ k ] );
+		}
+		add( cls, 0.5 * ( xmin + xmax ), 0.5 * ( ymin + ymax ), xmax - xmin, ymax - ymin, conf, model );
+		ensureVertexCapacity( nVertices + n );
+		for ( int k = 0; k < n; k++ )
+		{
+			vx[ nVertices + k ] = ( float ) xp[ k ];
+			vy[ nVertices + k ] = ( float ) yp[ k ];
+		}
+		vertexCount[ size - 1 ] = n;
+		nVertices += n;
+	}
+
+	/**
+	 * Appends a detection of another table to this table, with its contour
+	 * if it has one, as made by the specified model.
+	 *
+	 * @param other
+	 *            the table to copy the detection from.
+	 * @param i
+	 *            the index of the detection in the other table.
+	 * @param model
+	 *            the index of the model that made it.
+	 */
+	public void add( final DetectionTable other, final int i, final int model )
+	{
+		add( other.classId[ i ], other.x[ i ], other.y[ i ], other.width[ i ], other.height[ i ], other.confidence[ i ], model );
+		final int n = other.vertexCount[ i ];
+		if ( n == 0 )
+			return;
+		ensureVertexCapacity( nVertices + n );
+		System.arraycopy( other.vx, other.vertexStart[ i ], vx, nVertices, n );
+		System.arraycopy( other.vy, other.vertexStart[ i ], vy, nVertices, n );
+		vertexCount[ size - 1 ] = n;
+		nVertices += n;
+	}
+
+	private void ensureVertexCapacity( final int capacity )
+	{
+		if ( capacity <= vx.length )
+			return;
+		final int c = Math.max( capacity, vx.length + ( vx.length >> 1 ) + 16 );
+		vx = Arrays.copyOf( vx, c );
+		vy = Arrays.copyOf( vy, c );
+	}
+
+	/**
+	 * Appends all the detections of another table to this table, as made by
+	 * the specified model.
+	 *
+	 * @param other
+	 *            the table to copy detections from.
+	 * @param model
+	 *            the index of the model that made them.
+	 */
+	public void addAll( final DetectionTable other, final int model )
+	{
+		for ( int i = 0; i < other.size; i++ )
+			add( other, i, model );
+	}
+
+	/**
+	 * Returns the detections of this table with a confidence at least equal
+	 * to the specified threshold, as YOLO would have returned them had it run
+	 * with this confidence threshold.
+	 *
+	 * @param minConfidence
+	 *            the confidence threshold.
+	 * @return a new table, or this table if all its detections pass.
+	 */
+	public DetectionTable filter( final double minConfidence )
+	{
+		// Compared as floats, as confidences are stored.
+		final float min = ( float ) minConfidence;
+		int n = 0;
+		for ( int i = 0; i < size; i++ )
+			if ( confidence[ i ] >= min )
+				n++;
+		if ( n == size )
+			return this;
+
+		final DetectionTable filtered = new DetectionTable( n );
+		for ( int i = 0; i < size; i++ )
+			if ( confidence[ i ] >= min )
+				filtered.add( this, i, modelId[ i ] );
+		return filtered;
+	}
+
+	private void grow()
+	{
+		final int c = x.length + ( x.length >> 1 ) + 1;
+		classId = Arrays.copyOf( classId, c );
+		x = Arrays.copyOf( x, c );
+		y = Arrays.copyOf( y, c );
+		width = Arrays.copyOf( width, c );
+		height = Arrays.copyOf( height, c );
+		confidence = Arrays.copyOf( confidence, c );
+		modelId = Arrays.copyOf( modelId, c );
+		vertexStart = Arrays.copyOf( vertexStart, c );
+		vertexCount = Arrays.copyOf( vertexCount, c );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int classId( final int i )
+	{
+		return classId[ i ];
+	}
+
+	public double x( final int i )
+	{
+		return x[ i ];
+	}
+
+	public double y( final int i )
+	{
+		return y[ i ];
+	}
+
+	public double width( final int i )
+	{
+		return width[ i ];
+	}
+
+	public double height( final int i )
+	{
+		return height[ i ];
+	}
+
+	public double confidence( final int i )
+	{
+		return confidence[ i ];
+	}
+
+	public int modelId( final int i )
+	{
+		return modelId[ i ];
+	}
+
+	/**
+	 * Returns the number of vertices of the contour of a detection.
+	 *
+	 * @param i
+	 *            the index of the detection.
+	 * @return the number of vertices, 0 if the detection has no contour.
+	 */
+	public int nVertices( final int i )
+	{
+		return vertexCount[ i ];
+	}
+
+	public double vertexX( final int i, final int k )
+	{
+		return vx[ vertexStart[ i ] + k ];
+	}
+
+	public double vertexY( final int i, final int k )
+	{
+		return vy[ vertexStart[ i ] + k ];
+	}
+
+	/**
+	 * Returns the number of bytes {@link #write(DataOutput)} writes for this
+	 * table.
+	 *
+	 * @return the size in bytes.
+	 */
+	public long sizeInBytes()
+	{
+		long n = 0;
+		for ( int i = 0; i < size; i++ )
+			n += vertexCount[ i ];
+		return 4 + ( long ) DETECTION_SIZE * size + VERTEX_SIZE * n;
+	}
+
+	/**
+	 * Writes this table in binary form: the number of detections, followed by
+	 * one packed record per detection (class ID as an int, then X, Y, width,
+	 * height and confidence as floats, then the model index and the number of
+	 * contour vertices as ints, then the X and Y coordinates of each vertex
+	 * as floats).
+	 *
+	 * @param out
+	 *            the output to write to.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void write( final DataOutput out ) throws IOException
+	{
+		out.writeInt( size );
+		for ( int i = 0; i < size; i++ )
+		{
+			out.writeInt( classId[ i ] );
+			out.writeFloat( x[ i ] );
+			out.writeFloat( y[ i ] );
+			out.writeFloat( width[ i ] );
+			out.writeFloat( height[ i ] );
+			out.writeFloat( confidence[ i ] );
+			out.writeInt( modelId[ i ] );
+			out.writeInt( vertexCount[ i ] );
+			for ( int k = vertexStart[ i ]; k < vertexStart[ i ] + vertexCount[ i ]; k++ )
+			{
+				out.writeFloat( vx[ k ] );
+				out.writeFloat( vy[ k ] );
+			}
+		}
+	}
+
+	/**
+	 * Reads a table written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 * @return a new table.
+	 * @throws IOException
+	 *             if reading fails, or if the input ends before the table.
+	 */
+	public static DetectionTable read( final DataInput in ) throws IOException
+	{
+		return read( in, Long.MAX_VALUE );
+	}
+
+	/**
+	 * Reads a table written by {@link #write(DataOutput)}, checking the
+	 * counts it contains against the number of bytes left in the input, so
+	 * that a corrupt count fails instead of sizing a huge allocation.
+	 *
+	 * @param in
+	 *            the input to read from.
+	 * @param maxBytes
+	 *            the number of bytes left in the input.
+	 * @return a new table.
+	 * @throws IOException
+	 *             if reading fails, or if the table does not fit in the
+	 *             input.
+	 */
+	public static DetectionTable read( final DataInput in, final long maxBytes ) throws IOException
+	{
+		final int n = in.readInt();
+		long remaining = maxBytes - 4;
+		if ( n < 0 || ( long ) n * DETECTION_SIZE > remaining )
+			throw new IOException( "Invalid number of detections: " + n );
+		remaining -= ( long ) n * DETECTION_SIZE;
+		final DetectionTable table = new DetectionTable( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			table.classId[ i ] = in.readInt();
+			table.x[ i ] = in.readFloat();
+			table.y[ i ] = in.readFloat();
+			table.width[ i ] = in.readFloat();
+			table.height[ i ] = in.readFloat();
+			table.confidence[ i ] = in.readFloat();
+			table.modelId[ i ] = in.readInt();
+			final int nv = in.readInt();
+			if ( nv < 0 || ( long ) nv * VERTEX_SIZE > remaining )
+				throw new IOException( "Invalid number of contour vertices: " + nv );
+			remaining -= ( long ) nv * VERTEX_SIZE;
+			table.vertexStart[ i ] = table.nVertices;
+			table.vertexCount[ i ] = nv;
+			table.ensureVertexCapacity( table.nVertices + nv );
+			for ( int k = 0; k < nv; k++ )
+			{
+				table.vx[ table.nVertices + k ] = in.readFloat();
+				table.vy[ table.nVertices + k ] = in.readFloat();
+			}
+			table.nVertices += nv;
+		}
+		table.size = n;
+		return table;
+	}
+
+	/**
+	 * Creates one spot per detection in this table. Detections with a contour
+	 * become spots with this polygon as their ROI. For the others, the spot
+	 * radius is the mean of half the box width and half the box height. The
+	 * spot quality is the detection confidence. The class ID, box width, box
+	 * height, confidence and model index are stored as spot features.
+	 *
+	 * @return a new list of spots.
+	 */
+	public List< Spot > toSpots()
+	{
+		final List< Spot > spots = new ArrayList<>( size );
+		for ( int i = 0; i < size; i++ )
+		{
+			final double w = width[ i ];
+			final double h = height[ i ];
+			final Spot spot;
+			if ( vertexCount[ i ] >= 3 )
+			{
+				final double[] xp = new double[ vertexCount[ i ] ];
+				final double[] yp = new double[ vertexCount[ i ] ];
+				for ( int k = 0; k < xp.length; k++ )
+				{
+					xp[ k ] = vx[ vertexStart[ i ] + k ];
+					yp[ k ] = vy[ vertexStart[ i ] + k ];
+				}
+				spot = SpotRoi.createSpot( xp, yp, confidence[ i ] );
+			}
+			else
+			{
+				final double r = 0.5 * ( w + h ) / 2.;
+				spot = new Spot( x[ i ], y[ i ], 0., r, confidence[ i ] );
+			}
+			spot.putFeature( YOLO_CLASS_ID, Double.valueOf( classId[ i ] ) );
+			spot.putFeature( YOLO_BOX_WIDTH, Double.valueOf( w ) );
+			spot.putFeature( YOLO_BOX_HEIGHT, Double.valueOf( h ) );
+			spot.putFeature( YOLO_CONFIDENCE, Double.valueOf( confidence[ i ] ) );
+			spot.putFeature( YOLO_MODEL_ID, Double.valueOf( modelId[ i ] ) );
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	/**
+	 * Converts a collection of per-frame detection tables to a new spot
+	 * collection.
+	 *
+	 * @param tables
+	 *            the detection tables, mapped by frame.
+	 * @return a new spot collection.
+	 */
+	public static SpotCollection toSpotCollection( final Map< Integer, DetectionTable > tables )
+	{
+		final SpotCollection spots = new SpotCollection();
+		for ( final Map.Entry< Integer, DetectionTable > entry : tables.entrySet() )
+			spots.put( entry.getKey().intValue(), entry.getValue().toSpots() );
+		return spots;
+	}
+}
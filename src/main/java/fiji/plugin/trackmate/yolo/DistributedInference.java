@@ -0,0 +1,514 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Runs YOLO on the frames of a folder with several workers, possibly on
+ * other machines, that serve the worker protocol over TCP.
+ * <p>
+ * The frames are split into contiguous shards, a few per worker, that
+ * workers take from a shared queue as they become free, so that faster
+ * workers process more shards. Once the queue is empty, an idle worker also
+ * runs a copy of a shard still running on another worker, and the first
+ * copy to complete is kept. A shard whose worker fails goes back to the
+ * queue, up to {@link #MAX_ATTEMPTS} times, and a worker that failed is
+ * reconnected once before it is dropped. The results of all shards are
+ * merged in frame order into a single {@link DetectionStream} file.
+ * <p>
+ * A worker must have loaded the same model file as this machine, as checked
+ * with the hash it reports when it connects. Workers serving another model
+ * are dropped. A worker that sends nothing for
+ * {@link YOLOWorker#REMOTE_READ_TIMEOUT} is considered failed. Once all
+ * shards are done, workers still running a copy are disconnected.
+ * <p>
+ * Workers are started with
+ * <code>python trackmate_yolo_worker.py model=... port=...</code>. They must
+ * see the frames and the output folder at the same paths as this machine,
+ * for instance on a shared file system. For testing, workers can be started
+ * on localhost with {@link YOLOWorker#startServer(String, String, int)}.
+ */
+public class DistributedInference
+{
+
+	/** Number of shards per worker the frames are split into. */
+	public static final int SHARDS_PER_WORKER = 4;
+
+	/** Max number of times a shard is sent to a worker. */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private static final String SHARDS_FOLDER_NAME = "shards";
+
+	private final List< InetSocketAddress > hosts;
+
+	private final List< String > modelPaths;
+
+	private final Logger logger;
+
+	/** Workers currently connected, to disconnect when the run ends. */
+	private final Set< YOLOWorker > connected = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Creates a distributed inference.
+	 *
+	 * @param hosts
+	 *            the addresses of the workers.
+	 * @param modelPaths
+	 *            the model files a worker may serve: typically the model set
+	 *            in the settings and its converted version. Workers that
+	 *            report another model are rejected.
+	 * @param logger
+	 *            a logger to report progress and failures.
+	 */
+	public DistributedInference( final List< InetSocketAddress > hosts, final List< String > modelPaths, final Logger logger )
+	{
+		this.hosts = hosts;
+		this.modelPaths = modelPaths;
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	/**
+	 * Parses a list of worker addresses.
+	 *
+	 * @param str
+	 *            the addresses, as <code>host:port</code> separated by
+	 *            commas.
+	 * @return a new list of addresses. Empty if the string is
+	 *         <code>null</code> or blank.
+	 * @throws IllegalArgumentException
+	 *             if an address is not valid.
+	 */
+	public static List< InetSocketAddress > parseHosts( final String str )
+	{
+		final List< InetSocketAddress > hosts = new ArrayList<>();
+		if ( str == null || str.trim().isEmpty() )
+			return hosts;
+		for ( final String token : str.split( "," ) )
+		{
+			final String s = token.trim();
+			final int colon = s.lastIndexOf( ':' );
+			if ( colon <= 0 || colon == s.length() - 1 )
+				throw new IllegalArgumentException( "Expected host:port, got '" + s + "'." );
+			final int port;
+			try
+			{
+				port = Integer.parseInt( s.substring( colon + 1 ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				throw new IllegalArgumentException( "Invalid port in '" + s + "'." );
+			}
+			if ( port <= 0 || port > 65535 )
+				throw new IllegalArgumentException( "Invalid port in '" + s + "'." );
+			hosts.add( InetSocketAddress.createUnresolved( s.substring( 0, colon ), port ) );
+		}
+		return hosts;
+	}
+
+	/**
+	 * Runs YOLO on all the frames of a folder, and writes the detections of
+	 * all the frames to a single detection stream file.
+	 *
+	 * @param imgFolder
+	 *            the folder containing the frames. Frames are moved to shard
+	 *            subfolders.
+	 * @param outputFolder
+	 *            the folder to write shard results to.
+	 * @param streamPath
+	 *            the path of the merged detection stream file.
+	 * @param conf
+	 *            the confidence threshold.
+	 * @param iou
+	 *            the IoU threshold for non-maximum suppression.
+	 * @param profile
+	 *            the inference parameters.
+	 * @throws IOException
+	 *             if the model files cannot be read, if frames cannot be
+	 *             moved, if a shard failed on all its attempts, or if all
+	 *             workers failed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the workers.
+	 */
+	public void run(
+			final Path imgFolder,
+			final Path outputFolder,
+			final Path streamPath,
+			final double conf,
+			final double iou,
+			final InferenceProfile profile ) throws IOException, InterruptedException
+	{
+		if ( hosts.isEmpty() )
+			throw new IOException( "No inference workers configured." );
+		final Set< String > modelHashes = new HashSet<>();
+		for ( final String modelPath : modelPaths )
+		{
+			final String hash = ModelConverter.hash( modelPath );
+			if ( hash != null )
+				modelHashes.add( hash );
+		}
+		if ( modelHashes.isEmpty() )
+			throw new IOException( "Cannot read the model files " + modelPaths + " to check the workers against." );
+
+		final List< Shard > shards = split( imgFolder, outputFolder, SHARDS_PER_WORKER * hosts.size() );
+		logger.log( "Distributing " + shards.size() + " shards over " + hosts.size() + " workers.\n" );
+
+		final LinkedBlockingDeque< Shard > queue = new LinkedBlockingDeque<>( shards );
+		final AtomicInteger nDone = new AtomicInteger();
+		final List< String > errors = new ArrayList<>();
+		final ExecutorService executor = Executors.newFixedThreadPool( hosts.size() );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( final InetSocketAddress host : hosts )
+			futures.add( executor.submit( () -> serve( host, modelHashes, queue, shards, nDone, errors, conf, iou, profile ) ) );
+		executor.shutdown();
+		try
+		{
+			// Do not wait for copies of shards another worker completed.
+			while ( !executor.awaitTermination( 250, TimeUnit.MILLISECONDS ) && nDone.get() < shards.size() )
+				logger.setProgress( ( double ) nDone.get() / shards.size() );
+		}
+		finally
+		{
+			futures.forEach( f -> f.cancel( true ) );
+			// Blocked socket reads ignore interrupts.
+			connected.forEach( YOLOWorker::kill );
+		}
+
+		final List< Shard > failed = shards.stream().filter( s -> s.result == null ).collect( Collectors.toList() );
+		if ( !failed.isEmpty() )
+			throw new IOException( failed.size() + " of " + shards.size() + " shards could not be processed:\n"
+					+ String.join( "\n", errors ) );
+
+		merge( shards, streamPath );
+	}
+
+	/**
+	 * Sends shards to one worker until all shards are done.
+	 */
+	private void serve(
+			final InetSocketAddress host,
+			final Set< String > modelHashes,
+			final LinkedBlockingDeque< Shard > queue,
+			final List< Shard > shards,
+			final AtomicInteger nDone,
+			final List< String > errors,
+			final double conf,
+			final double iou,
+			final InferenceProfile profile )
+	{
+		final String name = host.getHostString() + ':' + host.getPort();
+		YOLOWorker worker = null;
+		boolean reconnected = false;
+		try
+		{
+			while ( nDone.get() < shards.size() && !Thread.currentThread().isInterrupted() )
+			{
+				if ( worker == null || !worker.isAlive() )
+				{
+					if ( worker != null )
+					{
+						if ( reconnected )
+						{
+							logger.log( "Dropping worker " + name + ".\n" );
+							return;
+						}
+						reconnected = true;
+					}
+					if ( worker != null )
+						connected.remove( worker );
+					try
+					{
+						worker = YOLOWorker.connect( new InetSocketAddress( host.getHostString(), host.getPort() ), CONNECT_TIMEOUT );
+					}
+					catch ( final IOException e )
+					{
+						logger.log( "Could not connect to worker " + name + ": " + e.getMessage() + '\n' );
+						return;
+					}
+					connected.add( worker );
+					if ( !modelHashes.contains( worker.getModelHash() ) )
+					{
+						final String error = "Worker " + name + " serves another model than " + modelPaths + ". Dropping it.";
+						logger.log( error + '\n' );
+						synchronized ( errors )
+						{
+							errors.add( error );
+						}
+						return;
+					}
+				}
+
+				// Take the next shard, or else run a copy of the oldest
+				// shard running on another worker.
+				Shard shard = queue.poll( 100, TimeUnit.MILLISECONDS );
+				final boolean backup = ( shard == null );
+				if ( backup )
+				{
+					shard = shards.stream()
+							.filter( s -> s.result == null && s.primary != null && s.nCopies.get() == 1 )
+							.min( Comparator.comparingLong( s -> s.startTime ) )
+							.orElse( null );
+					if ( shard == null || !shard.nCopies.compareAndSet( 1, 2 ) )
+						continue;
+				}
+				else
+				{
+					shard.nCopies.set( 1 );
+					shard.startTime = System.currentTimeMillis();
+				}
+
+				final Path project = shard.outputFolder.resolve( ( backup ? "backup-" : "attempt-" ) + shard.attempts.incrementAndGet() );
+				final Copy copy = new Copy( worker, project );
+				if ( backup )
+					shard.backup = copy;
+				else
+					shard.primary = copy;
+				try
+				{
+					Files.createDirectories( project );
+					final Path stream = project.resolve( DetectionStream.FILE_NAME );
+					worker.predict( shard.imgFolder, project, conf, iou, profile, stream, null );
+					if ( shard.complete( stream ) )
+					{
+						if ( shard.finish() )
+							nDone.incrementAndGet();
+						// Stop the other copy, if any.
+						final Copy other = backup ? shard.primary : shard.backup;
+						if ( other != null && other != copy )
+							other.worker.cancel( other.project );
+						logger.log( "Shard " + shard.index + " done on " + name + ( backup ? " (backup copy).\n" : ".\n" ) );
+					}
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					if ( shard.result != null )
+						continue; // The other copy completed first.
+					if ( backup )
+					{
+						shard.nCopies.decrementAndGet();
+						worker.close();
+						continue;
+					}
+					final String error = "Shard " + shard.index + " failed on " + name + ": " + e.getMessage();
+					logger.log( error + '\n' );
+					if ( shard.attempts.get() < MAX_ATTEMPTS )
+					{
+						queue.addFirst( shard );
+					}
+					else
+					{
+						synchronized ( errors )
+						{
+							errors.add( error );
+						}
+						if ( shard.finish() )
+							nDone.incrementAndGet();
+					}
+					worker.close();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final RuntimeException e )
+		{
+			final String error = "Worker " + name + " failed: " + e;
+			logger.log( error + '\n' );
+			synchronized ( errors )
+			{
+				errors.add( error );
+			}
+		}
+		finally
+		{
+			if ( worker != null )
+			{
+				connected.remove( worker );
+				worker.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the frames of the folder to shard subfolders, in contiguous
+	 * ranges of frames.
+	 */
+	private static List< Shard > split( final Path imgFolder, final Path outputFolder, final int maxShards ) throws IOException
+	{
+		final List< Path > frames;
+		try (Stream< Path > files = Files.list( imgFolder ))
+		{
+			frames = files
+					.filter( Files::isRegularFile )
+					.filter( p -> YOLOUtils.TIME_POINT_PATTERN.matcher( p.getFileName().toString() ).find() )
+					.sorted( Comparator.comparingLong( DistributedInference::timePoint ) )
+					.collect( Collectors.toList() );
+		}
+		final int nShards = Math.max( 1, Math.min( frames.size(), maxShards ) );
+		final List< Shard > shards = new ArrayList<>( nShards );
+		for ( int i = 0; i < nShards; i++ )
+		{
+			final int from = ( int ) ( ( long ) frames.size() * i / nShards );
+			final int to = ( int ) ( ( long ) frames.size() * ( i + 1 ) / nShards );
+			final String name = String.format( "shard-%04d", i );
+			final Path folder = imgFolder.resolve( SHARDS_FOLDER_NAME ).resolve( name );
+			Files.createDirectories( folder );
+			for ( final Path frame : frames.subList( from, to ) )
+				Files.move( frame, folder.resolve( frame.getFileName() ) );
+			shards.add( new Shard( i, folder, outputFolder.resolve( SHARDS_FOLDER_NAME ).resolve( name ) ) );
+		}
+		return shards;
+	}
+
+	private static long timePoint( final Path path )
+	{
+		final Matcher matcher = YOLOUtils.TIME_POINT_PATTERN.matcher( path.getFileName().toString() );
+		return matcher.find() ? Long.parseLong( matcher.group( 1 ) ) : -1l;
+	}
+
+	/**
+	 * Concatenates the records of the shard streams, in shard order, into a
+	 * single stream file.
+	 */
+	private static void merge( final List< Shard > shards, final Path streamPath ) throws IOException
+	{
+		Files.createDirectories( streamPath.getParent() );
+		try (FileChannel out = FileChannel.open( streamPath,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ))
+		{
+			final ByteBuffer header = ByteBuffer.allocate( 8 );
+			header.putInt( DetectionStream.MAGIC ).putInt( DetectionStream.VERSION ).flip();
+			out.write( header );
+			for ( final Shard shard : shards )
+			{
+				try (FileChannel in = FileChannel.open( shard.result, StandardOpenOption.READ ))
+				{
+					final long size = in.size();
+					long position = 8;
+					while ( position < size )
+						position += in.transferTo( position, size - position, out );
+				}
+			}
+		}
+	}
+
+	/**
+	 * A contiguous range of frames, sent to one worker at a time, plus
+	 * possibly a backup copy.
+	 */
+	private static final class Shard
+	{
+
+		private final int index;
+
+		private final Path imgFolder;
+
+		private final Path outputFolder;
+
+		private final AtomicInteger attempts = new AtomicInteger();
+
+		private final AtomicInteger nCopies = new AtomicInteger();
+
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		private volatile long startTime;
+
+		private volatile Copy primary;
+
+		private volatile Copy backup;
+
+		private volatile Path result;
+
+		private Shard( final int index, final Path imgFolder, final Path outputFolder )
+		{
+			this.index = index;
+			this.imgFolder = imgFolder;
+			this.outputFolder = outputFolder;
+		}
+
+		/**
+		 * Records the result of a copy of this shard, if it is the first one
+		 * to complete.
+		 */
+		private synchronized boolean complete( final Path stream )
+		{
+			if ( result != null )
+				return false;
+			result = stream;
+			return true;
+		}
+
+		/**
+		 * Marks this shard as finished, with a result or after its last
+		 * attempt, and returns whether it was not already.
+		 */
+		private boolean finish()
+		{
+			return finished.compareAndSet( false, true );
+		}
+	}
+
+	/**
+	 * A copy of a shard running on a worker.
+	 */
+	private static final class Copy
+	{
+
+		private final YOLOWorker worker;
+
+		private final Path project;
+
+		private Copy( final YOLOWorker worker, final Path project )
+		{
+			this.worker = worker;
+			this.project = project;
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.Logger;
+import ij.Prefs;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Keeps the frames exported for YOLO during the session, so that running
+ * the detection again on the same image and interval, for instance with
+ * another confidence threshold, does not write every frame again.
+ * <p>
+ * Frames are cached in one folder per source image and interval, under a
+ * root folder that can be set to a fast file system such as a tmpfs. Each
+ * run gets its own folder of hard links to the cached frames, which it can
+ * modify freely and must delete when it is done with
+ * {@link #delete(Path)}. When the cached frames take more space than the
+ * cache size, the least recently used images are removed. The root folder
+ * and the cache size are stored in the ImageJ preferences.
+ * <p>
+ * A cached frame is checked against the {@link ImageFingerprint} of the
+ * run before it is reused, so that an image edited in place is exported
+ * again. A frame exported again replaces the cached file instead of
+ * rewriting it, so that the run folders linked to the old file keep it. The
+ * decisions of the motion gate are cached too, with the fingerprints of the
+ * frames they were made on, so that a run on unchanged frames does not read
+ * them at all.
+ */
+public class FrameExportCache
+{
+
+	private static final String FOLDER_PREF_KEY = "trackmate.yolo.exportFolder";
+
+	private static final String SIZE_PREF_KEY = "trackmate.yolo.exportCacheSize";
+
+	/** Default cache size, in MB. */
+	public static final int DEFAULT_CACHE_SIZE = 2048;
+
+	private static final String ENTRY_PREFIX = "TrackMate-YOLO-frames_";
+
+	private static final String RUN_PREFIX = "TrackMate-YOLO-imgs_";
+
+	/** Max number of motion gate decisions cached per image. */
+	private static final int MAX_GATE_RESULTS = 8;
+
+	/** Cached images, in LRU order. */
+	private static final Map< String, Entry > ENTRIES = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** Folders to delete on JVM exit, if they still exist. */
+	private static final Set< Path > TO_DELETE = new HashSet<>();
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+			final List< Path > folders;
+			synchronized ( TO_DELETE )
+			{
+				folders = new ArrayList<>( TO_DELETE );
+			}
+			folders.forEach( FrameExportCache::delete );
+		}, "TrackMate-YOLO-export-cleanup" ) );
+	}
+
+	private FrameExportCache()
+	{}
+
+	/**
+	 * Returns the folder in which frames are exported. Defaults to the
+	 * system temporary folder.
+	 *
+	 * @return the root folder.
+	 */
+	public static Path getFolder()
+	{
+		final String folder = Prefs.get( FOLDER_PREF_KEY, "" );
+		if ( folder.trim().isEmpty() )
+			return Paths.get( System.getProperty( "java.io.tmpdir" ) );
+		return Paths.get( folder.trim() );
+	}
+
+	/**
+	 * Sets the folder in which frames are exported, and saves it in the
+	 * ImageJ preferences. Frames already cached stay where they are until
+	 * they are evicted.
+	 *
+	 * @param folder
+	 *            the root folder, or an empty string for the system
+	 *            temporary folder.
+	 */
+	public static void setFolder( final String folder )
+	{
+		Prefs.set( FOLDER_PREF_KEY, folder );
+	}
+
+	/**
+	 * Returns the max space the cached frames may take.
+	 *
+	 * @return the cache size, in MB.
+	 */
+	public static int getCacheSize()
+	{
+		return Prefs.getInt( SIZE_PREF_KEY, DEFAULT_CACHE_SIZE );
+	}
+
+	/**
+	 * Sets the max space the cached frames may take, and saves it in the
+	 * ImageJ preferences.
+	 *
+	 * @param mb
+	 *            the cache size, in MB. 0 keeps only the frames of the last
+	 *            image.
+	 */
+	public static void setCacheSize( final int mb )
+	{
+		Prefs.set( SIZE_PREF_KEY, mb );
+		trim( null );
+	}
+
+	/**
+	 * Creates a new folder for a run in the root folder. It is deleted on
+	 * JVM exit if the run did not delete it before.
+	 *
+	 * @return the path to the new folder.
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public static Path createRunFolder() throws IOException
+	{
+		final Path root = getFolder();
+		Files.createDirectories( root );
+		final Path folder = Files.createTempDirectory( root, RUN_PREFIX );
+		deleteOnExit( folder );
+		return folder;
+	}
+
+	/**
+	 * Exports the specified time-points of an image to a run folder. Frames
+	 * cached by a previous run are linked, the others are saved to the
+	 * cache first.
+	 *
+	 * @param img
+	 *            the image to export.
+	 * @param interval
+	 *            the interval that specifies how to crop the image.
+	 * @param frames
+	 *            the time-points to export, in increasing order.
+	 * @param target
+	 *            the run folder.
+	 * @param gate
+	 *            the motion gate that decides which frames are exported.
+	 *            If <code>null</code>, all frames are exported.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if exporting happened without issues.
+	 * @throws IOException
+	 *             if the frames cannot be linked to the run folder.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean export(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final Path target,
+			final MotionGate gate,
+			final Logger logger ) throws IOException
+	{
+		return export( img, interval, ImageFingerprint.of( img, interval ), frames, target, gate, null, logger );
+	}
+
+	/**
+	 * Exports the specified time-points of an image to a run folder, with a
+	 * prefetch depth adapted to the free memory.
+	 *
+	 * @param img
+	 *            the image to export.
+	 * @param interval
+	 *            the interval that specifies how to crop the image.
+	 * @param frames
+	 *            the time-points to export, in increasing order.
+	 * @param target
+	 *            the run folder.
+	 * @param gate
+	 *            the motion gate that decides which frames are exported.
+	 *            If <code>null</code>, all frames are exported.
+	 * @param governor
+	 *            the governor that sets the prefetch depth of the frames
+	 *            saved to the cache. Can be <code>null</code>.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if exporting happened without issues.
+	 * @throws IOException
+	 *             if the frames cannot be linked to the run folder.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean export(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final Path target,
+			final MotionGate gate,
+			final ResourceGovernor governor,
+			final Logger logger ) throws IOException
+	{
+		return export( img, interval, ImageFingerprint.of( img, interval ), frames, target, gate, governor, logger );
+	}
+
+	/**
+	 * Exports the specified time-points of an image to a run folder, with the
+	 * fingerprint of the image computed by the caller.
+	 *
+	 * @param img
+	 *            the image to export.
+	 * @param interval
+	 *            the interval that specifies how to crop the image.
+	 * @param fingerprint
+	 *            the fingerprint of the image in this interval.
+	 * @param frames
+	 *            the time-points to export, in increasing order.
+	 * @param target
+	 *            the run folder.
+	 * @param gate
+	 *            the motion gate that decides which frames are exported.
+	 *            If <code>null</code>, all frames are exported.
+	 * @param governor
+	 *            the governor that sets the prefetch depth of the frames
+	 *            saved to the cache. Can be <code>null</code>.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if exporting happened without issues.
+	 * @throws IOException
+	 *             if the frames cannot be linked to the run folder.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean export(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final ImageFingerprint fingerprint,
+			final long[] frames,
+			final Path target,
+			final MotionGate gate,
+			final ResourceGovernor governor,
+			final Logger logger ) throws IOException
+	{
+		final Entry entry;
+		synchronized ( ENTRIES )
+		{
+			entry = ENTRIES.computeIfAbsent( fingerprint.getImageKey(), k -> new Entry( getFolder().resolve( ENTRY_PREFIX + k ) ) );
+		}
+
+		final long[] accepted;
+		synchronized ( entry )
+		{
+			if ( !Files.isDirectory( entry.folder ) )
+			{
+				entry.fingerprints.clear();
+				Files.createDirectories( entry.folder );
+				deleteOnExit( entry.folder );
+			}
+
+			final String gateKey = ( gate == null ) ? null : gateKey( gate, fingerprint, frames );
+			final Map< Long, Long > reused = ( gate == null ) ? null : entry.gateResults.get( gateKey );
+			if ( gate != null && reused == null )
+			{
+				// Gate and save the frames in a single pass.
+				logger.log( "Comparing and saving " + frames.length + " frames to " + entry.folder + "\n" );
+				for ( final long t : frames )
+					entry.fingerprints.remove( t );
+				if ( !YOLOUtils.resaveSingleTimePoints( img, interval, frames, entry.folder.toString(), gate, governor, logger ) )
+					return false;
+				entry.gateResults.put( gateKey, new TreeMap<>( gate.getReused() ) );
+				accepted = accepted( frames, gate.getReused() );
+				for ( final long t : accepted )
+					entry.fingerprints.put( t, fingerprint.getFrame( t ) );
+				entry.bytes = folderSize( entry.folder );
+			}
+			else
+			{
+				if ( gate != null )
+				{
+					logger.log( "Reusing the motion gating of a previous run.\n" );
+					gate.replay( frames, reused );
+					accepted = accepted( frames, reused );
+				}
+				else
+				{
+					accepted = frames;
+				}
+
+				final List< Long > missing = new ArrayList<>();
+				for ( final long t : accepted )
+				{
+					final Long cached = entry.fingerprints.get( t );
+					if ( cached == null || cached.longValue() != fingerprint.getFrame( t ) )
+						missing.add( t );
+				}
+
+				if ( missing.size() < accepted.length )
+					logger.log( "Reusing " + ( accepted.length - missing.size() ) + " frames exported by a previous run.\n" );
+				if ( !missing.isEmpty() )
+				{
+					logger.log( "Saving " + missing.size() + " frames to " + entry.folder + "\n" );
+					for ( final Long t : missing )
+						entry.fingerprints.remove( t );
+					final long[] toSave = missing.stream().mapToLong( Long::longValue ).toArray();
+					if ( !YOLOUtils.resaveSingleTimePoints( img, interval, toSave, entry.folder.toString(), null, governor, logger ) )
+						return false;
+					for ( final Long t : missing )
+						entry.fingerprints.put( t, fingerprint.getFrame( t ) );
+					entry.bytes = folderSize( entry.folder );
+				}
+			}
+
+			for ( final long t : accepted )
+			{
+				final String name = YOLOUtils.nameGen.apply( t ) + ".tif";
+				final Path link = target.resolve( name );
+				try
+				{
+					Files.createLink( link, entry.folder.resolve( name ) );
+				}
+				catch ( final IOException | UnsupportedOperationException e )
+				{
+					Files.copy( entry.folder.resolve( name ), link );
+				}
+			}
+		}
+		trim( entry );
+		return true;
+	}
+
+	/**
+	 * Deletes a run folder and all its content. Errors are ignored.
+	 *
+	 * @param folder
+	 *            the folder to delete.
+	 */
+	public static void delete( final Path folder )
+	{
+		if ( folder == null )
+			return;
+		synchronized ( TO_DELETE )
+		{
+			TO_DELETE.remove( folder );
+		}
+		if ( !Files.exists( folder ) )
+			return;
+		try (Stream< Path > files = Files.walk( folder ))
+		{
+			files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		}
+		catch ( final IOException e )
+		{
+			// Will be deleted on exit.
+		}
+	}
+
+	/**
+	 * Registers a folder to delete on JVM exit. A single shutdown hook
+	 * deletes all the folders registered and not deleted yet.
+	 */
+	private static void deleteOnExit( final Path folder )
+	{
+		synchronized ( TO_DELETE )
+		{
+			TO_DELETE.add( folder );
+		}
+	}
+
+	/**
+	 * Removes all the cached frames.
+	 */
+	public static void clear()
+	{
+		synchronized ( ENTRIES )
+		{
+			for ( final Entry entry : ENTRIES.values() )
+				synchronized ( entry )
+				{
+					delete( entry.folder );
+				}
+			ENTRIES.clear();
+		}
+	}
+
+	/**
+	 * Removes the least recently used images until the cache fits in its
+	 * size, except for the specified one.
+	 */
+	private static void trim( final Entry keep )
+	{
+		final long budget = getCacheSize() * 1024l * 1024l;
+		synchronized ( ENTRIES )
+		{
+			long total = 0;
+			for ( final Entry entry : ENTRIES.values() )
+				total += entry.bytes;
+
+			final Iterator< Entry > it = ENTRIES.values().iterator();
+			while ( total > budget && it.hasNext() )
+			{
+				final Entry entry = it.next();
+				if ( entry == keep )
+					continue;
+				synchronized ( entry )
+				{
+					delete( entry.folder );
+					entry.fingerprints.clear();
+					total -= entry.bytes;
+					entry.bytes = 0;
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns a hash that identifies the decisions of a motion gate: its
+	 * threshold, and the frames it compared with their fingerprints.
+	 */
+	private static String gateKey( final MotionGate gate, final ImageFingerprint fingerprint, final long[] frames )
+	{
+		final StringBuilder str = new StringBuilder().append( gate.getThreshold() ).append( '\n' );
+		for ( final long t : frames )
+			str.append( t ).append( ':' ).append( Long.toHexString( fingerprint.getFrame( t ) ) ).append( ',' );
+		return ImageFingerprint.digest( str );
+	}
+
+	/**
+	 * Returns the frames that do not reuse the detections of another frame.
+	 */
+	private static long[] accepted( final long[] frames, final Map< Long, Long > reused )
+	{
+		return Arrays.stream( frames ).filter( t -> !reused.containsKey( t ) ).toArray();
+	}
+
+	private static long folderSize( final Path folder )
+	{
+		try (Stream< Path > files = Files.list( folder ))
+		{
+			return files.filter( Files::isRegularFile ).mapToLong( f -> f.toFile().length() ).sum();
+		}
+		catch ( final IOException e )
+		{
+			return 0l;
+		}
+	}
+
+	/**
+	 * The frames of one image and interval.
+	 */
+	private static final class Entry
+	{
+
+		private final Path folder;
+
+		/** Fingerprint of each cached frame, by time-point. */
+		private final Map< Long, Long > fingerprints = new HashMap<>();
+
+		/** Frames reused by the motion gate, by gate key, in LRU order. */
+		private final Map< String, Map< Long, Long > > gateResults = new LinkedHashMap< String, Map< Long, Long > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, Map< Long, Long > > eldest )
+			{
+				return size() > MAX_GATE_RESULTS;
+			}
+		};
+
+		private long bytes;
+
+		private Entry( final Path folder )
+		{
+			this.folder = folder;
+		}
+	}
+}
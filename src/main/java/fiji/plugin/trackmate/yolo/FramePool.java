@@ -0,0 +1,399 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ij.Prefs;
+
+/**
+ * Reusable direct buffers, each holding the pixels of one exported frame.
+ * <p>
+ * All the buffers of a pool have the size of the crop of a frame, in the
+ * pixel format it is written to disk with: planes of
+ * <code>width x height</code> pixels one after the other, in little-endian
+ * order. There is one pool per frame size and format, shared by all the
+ * exports of the session, so that exporting the same image again, or the
+ * movies of a batch, reuses the buffers of the previous exports. Frames can
+ * then be exported without allocating pixel arrays on the Java heap for each
+ * of them.
+ * <p>
+ * All the pools together hold at most a fixed amount of direct memory,
+ * stored in the ImageJ preferences. Buffers are allocated on demand within
+ * this budget. When the budget is reached, idle buffers of the other pools
+ * are dropped to make room. Past that, taking a buffer waits until one is
+ * given back, except for a pool with no buffer in use, which can always
+ * allocate one so that its export progresses.
+ */
+public class FramePool
+{
+
+	private static final String SIZE_PREF_KEY = "trackmate.yolo.framePoolSize";
+
+	/** Default direct memory all the pools may hold, in MB. */
+	public static final int DEFAULT_SIZE = 512;
+
+	private static final double MB = 1024. * 1024.;
+
+	/** Shared pools, by frame format, in LRU order. */
+	private static final Map< String, FramePool > POOLS = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** Direct memory held by all the pools, in bytes. Guarded by POOLS. */
+	private static long allocatedBytes;
+
+	private final int width;
+
+	private final int height;
+
+	private final int nPlanes;
+
+	private final int bitsPerSample;
+
+	private final boolean floatSamples;
+
+	private final int bufferSize;
+
+	private final Deque< ByteBuffer > free = new ArrayDeque<>();
+
+	private final Set< ByteBuffer > inUse = Collections.newSetFromMap( new IdentityHashMap<>() );
+
+	private int peakInUse;
+
+	private long nHits;
+
+	private long nRequests;
+
+	private FramePool( final int width, final int height, final int nPlanes, final int bitsPerSample, final boolean floatSamples, final int bufferSize )
+	{
+		this.width = width;
+		this.height = height;
+		this.nPlanes = nPlanes;
+		this.bitsPerSample = bitsPerSample;
+		this.floatSamples = floatSamples;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Returns the shared pool for frames of the specified size and format,
+	 * creating it if needed.
+	 *
+	 * @param dims
+	 *            the size of a frame: width, height, then the other
+	 *            dimensions whose planes are stored one after the other.
+	 * @param bitsPerSample
+	 *            8, 16 or 32.
+	 * @param floatSamples
+	 *            whether 32-bit samples are floats rather than integers.
+	 * @return the pool.
+	 * @throws IllegalArgumentException
+	 *             if a frame does not fit in a single buffer.
+	 */
+	public static FramePool get( final long[] dims, final int bitsPerSample, final boolean floatSamples )
+	{
+		long n = 1;
+		for ( int d = 2; d < dims.length; d++ )
+			n *= dims[ d ];
+		final long planes = n;
+		final long size = dims[ 0 ] * dims[ 1 ] * planes * ( bitsPerSample / 8 );
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Frames of " + size + " bytes do not fit in a buffer." );
+
+		final String key = dims[ 0 ] + "x" + dims[ 1 ] + "x" + planes + "-" + bitsPerSample + ( floatSamples ? "f" : "" );
+		synchronized ( POOLS )
+		{
+			return POOLS.computeIfAbsent( key, k -> new FramePool(
+					( int ) dims[ 0 ], ( int ) dims[ 1 ], ( int ) planes, bitsPerSample, floatSamples, ( int ) size ) );
+		}
+	}
+
+	/**
+	 * Returns the direct memory all the pools may hold.
+	 *
+	 * @return the size, in MB.
+	 */
+	public static int getSize()
+	{
+		return Math.max( 0, Prefs.getInt( SIZE_PREF_KEY, DEFAULT_SIZE ) );
+	}
+
+	/**
+	 * Sets the direct memory all the pools may hold, and saves it in the
+	 * ImageJ preferences. Idle buffers beyond the new size are dropped.
+	 *
+	 * @param mb
+	 *            the size, in MB.
+	 */
+	public static void setSize( final int mb )
+	{
+		Prefs.set( SIZE_PREF_KEY, Math.max( 0, mb ) );
+		synchronized ( POOLS )
+		{
+			makeRoom( null, 0 );
+		}
+	}
+
+	/**
+	 * Returns the direct memory that pools can still use for frames: the
+	 * pool budget minus the buffers currently in use. Idle buffers count as
+	 * available, since they can be reused or dropped.
+	 *
+	 * @return the available direct memory, in bytes.
+	 */
+	public static long getAvailableBytes()
+	{
+		final long budget = getSize() * ( long ) MB;
+		long used = 0;
+		synchronized ( POOLS )
+		{
+			for ( final FramePool pool : POOLS.values() )
+				used += pool.getBytesInUse();
+		}
+		return Math.max( 0, budget - used );
+	}
+
+	/**
+	 * Takes a buffer from the pool, waiting for one to be given back if the
+	 * pool budget is used up.
+	 *
+	 * @return a cleared buffer of {@link #getBufferSize()} bytes.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public ByteBuffer acquire() throws InterruptedException
+	{
+		synchronized ( this )
+		{
+			nRequests++;
+		}
+		while ( true )
+		{
+			final boolean idle;
+			synchronized ( this )
+			{
+				final ByteBuffer buffer = free.pollFirst();
+				if ( buffer != null )
+				{
+					nHits++;
+					return take( buffer );
+				}
+				idle = inUse.isEmpty();
+			}
+
+			// Not while holding the pool lock: POOLS is always locked first.
+			if ( reserve( idle ) )
+			{
+				final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize ).order( ByteOrder.LITTLE_ENDIAN );
+				synchronized ( this )
+				{
+					return take( buffer );
+				}
+			}
+
+			// Wait for a buffer of this pool, or for room in the budget.
+			synchronized ( this )
+			{
+				if ( free.isEmpty() )
+					wait( 100 );
+			}
+		}
+	}
+
+	private ByteBuffer take( final ByteBuffer buffer )
+	{
+		inUse.add( buffer );
+		peakInUse = Math.max( peakInUse, inUse.size() );
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool, once its content is not needed
+	 * anymore. Buffers that are not in use, for instance given back twice,
+	 * are ignored.
+	 *
+	 * @param buffer
+	 *            a buffer taken from this pool.
+	 */
+	public synchronized void release( final ByteBuffer buffer )
+	{
+		if ( !inUse.remove( buffer ) )
+			return;
+		free.addLast( buffer );
+		notifyAll();
+	}
+
+	/**
+	 * Drops the idle buffers of this pool beyond the specified number, so
+	 * that their memory can be reclaimed.
+	 *
+	 * @param maxFree
+	 *            the max number of idle buffers to keep.
+	 */
+	public void trim( final int maxFree )
+	{
+		int dropped = 0;
+		synchronized ( this )
+		{
+			while ( free.size() > Math.max( 0, maxFree ) )
+			{
+				free.pollLast();
+				dropped++;
+			}
+		}
+		synchronized ( POOLS )
+		{
+			allocatedBytes -= ( long ) dropped * bufferSize;
+		}
+	}
+
+	/**
+	 * Counts a new buffer of this pool in the budget, dropping idle buffers
+	 * of the other pools if needed.
+	 *
+	 * @param force
+	 *            whether to count the buffer even if it does not fit.
+	 * @return <code>true</code> if the buffer was counted.
+	 */
+	private boolean reserve( final boolean force )
+	{
+		synchronized ( POOLS )
+		{
+			if ( !makeRoom( this, bufferSize ) && !force )
+				return false;
+			allocatedBytes += bufferSize;
+			return true;
+		}
+	}
+
+	/**
+	 * Drops idle buffers of the least recently used pools other than the
+	 * specified one until the specified number of bytes fits in the budget.
+	 * To call while holding the POOLS lock.
+	 *
+	 * @return <code>true</code> if the bytes fit in the budget.
+	 */
+	private static boolean makeRoom( final FramePool keep, final long bytes )
+	{
+		final long budget = getSize() * ( long ) MB;
+		for ( final FramePool pool : POOLS.values() )
+		{
+			if ( allocatedBytes + bytes <= budget )
+				break;
+			if ( pool == keep )
+				continue;
+			final int dropped = pool.dropIdle( ( allocatedBytes + bytes - budget + pool.bufferSize - 1 ) / pool.bufferSize );
+			allocatedBytes -= ( long ) dropped * pool.bufferSize;
+		}
+		return allocatedBytes + bytes <= budget;
+	}
+
+	private synchronized int dropIdle( final long max )
+	{
+		int dropped = 0;
+		while ( dropped < max && !free.isEmpty() )
+		{
+			free.pollLast();
+			dropped++;
+		}
+		return dropped;
+	}
+
+	private synchronized long getBytesInUse()
+	{
+		return ( long ) inUse.size() * bufferSize;
+	}
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Returns the number of planes in a frame.
+	 *
+	 * @return the number of planes.
+	 */
+	public int getNPlanes()
+	{
+		return nPlanes;
+	}
+
+	public int getBitsPerSample()
+	{
+		return bitsPerSample;
+	}
+
+	public boolean isFloatSamples()
+	{
+		return floatSamples;
+	}
+
+	/**
+	 * Returns the size of a buffer.
+	 *
+	 * @return the size, in bytes.
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the fraction of requests served with a buffer already
+	 * allocated.
+	 *
+	 * @return the hit rate, between 0 and 1.
+	 */
+	public synchronized double getHitRate()
+	{
+		return ( nRequests == 0 ) ? 0. : ( double ) nHits / nRequests;
+	}
+
+	/**
+	 * Returns the max number of buffers that were in use at the same time.
+	 *
+	 * @return the peak usage.
+	 */
+	public synchronized int getPeakUsage()
+	{
+		return peakInUse;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "%d frames from a shared pool of %d buffers of %.1f MB, hit rate %.1f%%, peak usage %d",
+				nRequests, free.size() + inUse.size(), bufferSize / MB, 100. * getHitRate(), peakInUse );
+	}
+}
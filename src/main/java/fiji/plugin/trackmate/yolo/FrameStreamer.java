@@ -0,0 +1,712 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Iterates over the time-points of an image interval and copies each frame
+ * in memory, ahead of the consumer.
+ * <p>
+ * Frames are copied on a background thread, block by block. When the source
+ * image is backed by cells (for instance a cached cell image opened from
+ * N5 or BigDataViewer), the blocks are aligned on the cell grid so that each
+ * cell is loaded once. For other images, the blocks are single planes, which
+ * suits ImageJ virtual stacks. At most <code>prefetch + 1</code> frames are
+ * resident in memory at any time: the one being consumed, and the ones
+ * being copied ahead of it.
+ * <p>
+ * Frames that are only written to disk can instead be copied in the direct
+ * buffers of a {@link FramePool}, in the pixel format of the TIFF files
+ * written by {@link YOLOUtils#saveFrame(Frame, String, String)}. When the
+ * source is a planar image of 8-bit, 16-bit or float pixels, the rows of the
+ * crop are copied in bulk from its plane arrays. Each frame must then be
+ * closed once it is written, to give its buffer back to the pool. Frames
+ * copied ahead and not consumed are closed with the streamer.
+ *
+ * @param <T>
+ *            the pixel type of the source image.
+ */
+public class FrameStreamer< T extends RealType< T > & NativeType< T > > implements AutoCloseable
+{
+
+	/** Default number of frames copied ahead of the consumer. */
+	public static final int DEFAULT_PREFETCH = 1;
+
+	private final ImgPlus< T > img;
+
+	private final Interval cropInterval;
+
+	private final int timeIndex;
+
+	private final long[] frames;
+
+	private final int[] blockSize;
+
+	private int prefetch;
+
+	private final FramePool pool;
+
+	private final ExecutorService executor;
+
+	private final Deque< Future< Frame< T > > > queue = new ArrayDeque<>();
+
+	private int nextToSubmit;
+
+	private int nextToReturn;
+
+	/**
+	 * Creates a streamer over all the time-points of the specified interval.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to crop the image with. Time, if present, is
+	 *            the last dimension.
+	 * @param prefetch
+	 *            the number of frames to copy ahead of the consumer.
+	 */
+	public FrameStreamer( final ImgPlus< T > img, final Interval interval, final int prefetch )
+	{
+		this( img, interval, timePoints( img, interval ), prefetch );
+	}
+
+	/**
+	 * Creates a streamer over the specified time-points of the interval.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to crop the image with. Time, if present, is
+	 *            the last dimension.
+	 * @param frames
+	 *            the time-points to iterate over, in the order they will be
+	 *            returned.
+	 * @param prefetch
+	 *            the number of frames to copy ahead of the consumer.
+	 */
+	public FrameStreamer( final ImgPlus< T > img, final Interval interval, final long[] frames, final int prefetch )
+	{
+		this( img, interval, frames, prefetch, false );
+	}
+
+	/**
+	 * Creates a streamer over the specified time-points of the interval,
+	 * possibly copying the frames in pooled buffers. The buffers are taken
+	 * from the {@link FramePool} shared by all the exports of frames of the
+	 * same size and format. Frames too large for a single buffer are copied
+	 * in images regardless.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to crop the image with. Time, if present, is
+	 *            the last dimension.
+	 * @param frames
+	 *            the time-points to iterate over, in the order they will be
+	 *            returned.
+	 * @param prefetch
+	 *            the number of frames to copy ahead of the consumer.
+	 * @param pooled
+	 *            whether to copy the frames in pooled buffers rather than in
+	 *            images.
+	 */
+	public FrameStreamer( final ImgPlus< T > img, final Interval interval, final long[] frames, final int prefetch, final boolean pooled )
+	{
+		this.img = img;
+		this.cropInterval = cropInterval( img, interval );
+		this.timeIndex = img.dimensionIndex( Axes.TIME );
+		this.frames = frames;
+		this.blockSize = blockSize( img, cropInterval );
+		this.prefetch = Math.max( 0, prefetch );
+		this.pool = pooled ? createPool( img.firstElement(), cropInterval ) : null;
+		this.executor = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "TrackMate-YOLO-frame-prefetch" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.nextToSubmit = 0;
+		this.nextToReturn = 0;
+	}
+
+	/**
+	 * Returns the number of frames this streamer iterates over.
+	 *
+	 * @return the number of frames.
+	 */
+	public int size()
+	{
+		return frames.length;
+	}
+
+	/**
+	 * Sets the number of frames to copy ahead of the consumer, from the next
+	 * call to {@link #next()}. Frames already being copied are kept. When the
+	 * prefetch depth drops, the idle buffers of the pool beyond what this
+	 * depth needs are dropped.
+	 *
+	 * @param prefetch
+	 *            the number of frames.
+	 */
+	public void setPrefetch( final int prefetch )
+	{
+		final int value = Math.max( 0, prefetch );
+		// The frames copied ahead, the one consumed, and one given back.
+		if ( pool != null && value < this.prefetch )
+			pool.trim( value + 2 );
+		this.prefetch = value;
+	}
+
+	/**
+	 * Returns the size of one frame copy in memory: the size of a pooled
+	 * buffer, or of an image copy.
+	 *
+	 * @return the size, in bytes.
+	 */
+	public long getFrameBytes()
+	{
+		if ( pool != null )
+			return pool.getBufferSize();
+		final int bytes = Math.max( 1, img.firstElement().getBitsPerPixel() / 8 );
+		return Intervals.numElements( cropInterval ) * bytes;
+	}
+
+	/**
+	 * Returns the number of frames copied, or being copied, ahead of the
+	 * consumer.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNAhead()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * Returns the pool frames are copied in.
+	 *
+	 * @return the pool, or <code>null</code> if frames are copied in images.
+	 */
+	public FramePool getPool()
+	{
+		return pool;
+	}
+
+	public boolean hasNext()
+	{
+		return nextToReturn < frames.length;
+	}
+
+	/**
+	 * Returns the next frame, waiting for its copy to complete if needed, and
+	 * schedules the copy of the frames that follow it.
+	 *
+	 * @return the next frame.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the copy.
+	 * @throws ExecutionException
+	 *             if the copy failed.
+	 */
+	public Frame< T > next() throws InterruptedException, ExecutionException
+	{
+		// The frame to return plus the ones copied ahead while it is consumed.
+		while ( nextToSubmit < frames.length && queue.size() <= prefetch )
+		{
+			final long t = frames[ nextToSubmit++ ];
+			queue.addLast( executor.submit( () -> copyFrame( t ) ) );
+		}
+		final Future< Frame< T > > future = queue.pollFirst();
+		nextToReturn++;
+		return future.get();
+	}
+
+	@Override
+	public void close()
+	{
+		boolean interrupted = false;
+		for ( final Future< Frame< T > > future : queue )
+		{
+			if ( future.cancel( false ) )
+				continue;
+			// Give the buffers of the frames copied ahead back to the pool.
+			while ( true )
+			{
+				try
+				{
+					future.get().close();
+					break;
+				}
+				catch ( final InterruptedException e )
+				{
+					interrupted = true;
+				}
+				catch ( final ExecutionException | CancellationException e )
+				{
+					break;
+				}
+			}
+		}
+		queue.clear();
+		executor.shutdownNow();
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	private Frame< T > copyFrame( final long t ) throws InterruptedException
+	{
+		final RandomAccessibleInterval< T > crop = Views.interval( frameView( t ), cropInterval );
+		if ( pool != null )
+		{
+			final ByteBuffer buffer = pool.acquire();
+			try
+			{
+				if ( !copyPlanes( t, buffer ) )
+					copyPixels( crop, buffer, pool );
+				buffer.flip();
+			}
+			catch ( final RuntimeException e )
+			{
+				pool.release( buffer );
+				throw e;
+			}
+			return new Frame<>( t, buffer, pool );
+		}
+
+		final T type = img.firstElement().createVariable();
+		final Img< T > target = new PlanarImgFactory<>( type ).create( crop );
+		copyBlockwise( crop, target, blockSize );
+		return new Frame<>( t, target );
+	}
+
+	/**
+	 * Copies the crop of a frame row by row from the plane arrays of the
+	 * source image, if it is a planar image of a type written as is.
+	 *
+	 * @return <code>false</code> if the source image cannot be copied this
+	 *         way.
+	 */
+	private boolean copyPlanes( final long t, final ByteBuffer buffer )
+	{
+		if ( !( img.getImg() instanceof PlanarImg ) || !isRaw( img.firstElement() ) )
+			return false;
+
+		final PlanarImg< ?, ? > planar = ( PlanarImg< ?, ? > ) img.getImg();
+		final int zIndex = img.dimensionIndex( Axes.Z );
+		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
+		// Crop axes: X, Y, possibly Z, then possibly C.
+		final int zCrop = ( zIndex < 0 ) ? -1 : 2;
+		final int cCrop = ( cIndex < 0 ) ? -1 : ( zIndex < 0 ? 2 : 3 );
+
+		final long[] pos = new long[ img.numDimensions() ];
+		if ( timeIndex >= 0 )
+			pos[ timeIndex ] = t;
+		final long minC = ( cCrop < 0 ) ? 0 : cropInterval.min( cCrop );
+		final long maxC = ( cCrop < 0 ) ? 0 : cropInterval.max( cCrop );
+		final long minZ = ( zCrop < 0 ) ? 0 : cropInterval.min( zCrop );
+		final long maxZ = ( zCrop < 0 ) ? 0 : cropInterval.max( zCrop );
+		final int x0 = ( int ) cropInterval.min( 0 );
+		final int width = ( int ) cropInterval.dimension( 0 );
+		final int stride = ( int ) img.dimension( 0 );
+
+		final ShortBuffer shorts = buffer.asShortBuffer();
+		final FloatBuffer floats = buffer.asFloatBuffer();
+		for ( long c = minC; c <= maxC; c++ )
+		{
+			for ( long z = minZ; z <= maxZ; z++ )
+			{
+				if ( cIndex >= 0 )
+					pos[ cIndex ] = c;
+				if ( zIndex >= 0 )
+					pos[ zIndex ] = z;
+				final Object array = ( ( ArrayDataAccess< ? > ) planar.getPlane( planeIndex( planar, pos ) ) ).getCurrentStorageArray();
+				for ( long y = cropInterval.min( 1 ); y <= cropInterval.max( 1 ); y++ )
+				{
+					final int offset = ( int ) y * stride + x0;
+					if ( array instanceof byte[] )
+						buffer.put( ( byte[] ) array, offset, width );
+					else if ( array instanceof short[] )
+						shorts.put( ( short[] ) array, offset, width );
+					else
+						floats.put( ( float[] ) array, offset, width );
+				}
+			}
+		}
+		buffer.position( Math.max( buffer.position(), Math.max( 2 * shorts.position(), 4 * floats.position() ) ) );
+		return true;
+	}
+
+	/**
+	 * Returns the index of the plane containing the specified position in
+	 * a planar image.
+	 */
+	private static int planeIndex( final PlanarImg< ?, ? > planar, final long[] pos )
+	{
+		int index = 0;
+		int step = 1;
+		for ( int d = 2; d < pos.length; d++ )
+		{
+			index += pos[ d ] * step;
+			step *= planar.dimension( d );
+		}
+		return index;
+	}
+
+	/**
+	 * Copies the crop of a frame pixel by pixel, converting them to the
+	 * pixel format of the pool.
+	 */
+	private static < T extends RealType< T > > void copyPixels( final RandomAccessibleInterval< T > crop, final ByteBuffer buffer, final FramePool pool )
+	{
+		switch ( pool.getBitsPerSample() )
+		{
+		case 8:
+			for ( final T p : Views.flatIterable( crop ) )
+				buffer.put( ( byte ) ( int ) p.getRealDouble() );
+			break;
+		case 16:
+			for ( final T p : Views.flatIterable( crop ) )
+				buffer.putShort( ( short ) ( int ) p.getRealDouble() );
+			break;
+		default:
+			for ( final T p : Views.flatIterable( crop ) )
+				buffer.putFloat( p.getRealFloat() );
+			break;
+		}
+	}
+
+	/**
+	 * Whether pixels of this type are written as is: unsigned 8-bit, unsigned
+	 * 16-bit and float pixels. Other types are converted to float.
+	 */
+	private static boolean isRaw( final Object type )
+	{
+		return type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof FloatType;
+	}
+
+	private static FramePool createPool( final Object type, final Interval cropInterval )
+	{
+		final int bits;
+		if ( type instanceof UnsignedByteType )
+			bits = 8;
+		else if ( type instanceof UnsignedShortType )
+			bits = 16;
+		else
+			bits = 32;
+		try
+		{
+			return FramePool.get( Intervals.dimensionsAsLongArray( cropInterval ), bits, bits == 32 );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the view on the specified time-point, with the channel axis, if
+	 * any, moved to the last position.
+	 */
+	private ImgPlus< T > frameView( final long t )
+	{
+		return frameView( img, timeIndex, t );
+	}
+
+	static < T extends RealType< T > > ImgPlus< T > frameView( final ImgPlus< T > img, final int timeIndex, final long t )
+	{
+		if ( timeIndex < 0 )
+			return img;
+
+		final ImgPlus< T > tpTCZ = ImgPlusViews.hyperSlice( img, timeIndex, t );
+		final int chanDim = tpTCZ.dimensionIndex( Axes.CHANNEL );
+		if ( chanDim > 1 )
+			return ImgPlusViews.moveAxis( tpTCZ, chanDim, tpTCZ.numDimensions() - 1 );
+		return tpTCZ;
+	}
+
+	/**
+	 * Copies the source into the zero-min target, one block at a time. The
+	 * blocks are aligned on multiples of the block size in the source
+	 * coordinates.
+	 */
+	private static < T extends RealType< T > > void copyBlockwise(
+			final RandomAccessibleInterval< T > source,
+			final RandomAccessibleInterval< T > target,
+			final int[] blockSize )
+	{
+		final int n = source.numDimensions();
+		final long[] min = Intervals.minAsLongArray( source );
+		final long[] max = Intervals.maxAsLongArray( source );
+		final RandomAccessibleInterval< T > translated = Views.translate( target, min );
+
+		final long[] start = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			start[ d ] = Math.floorDiv( min[ d ], blockSize[ d ] ) * blockSize[ d ];
+
+		final long[] pos = start.clone();
+		final long[] bmin = new long[ n ];
+		final long[] bmax = new long[ n ];
+		while ( true )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				bmin[ d ] = Math.max( min[ d ], pos[ d ] );
+				bmax[ d ] = Math.min( max[ d ], pos[ d ] + blockSize[ d ] - 1 );
+			}
+			final Interval block = Intervals.createMinMax( concat( bmin, bmax ) );
+			LoopBuilder.setImages( Views.interval( source, block ), Views.interval( translated, block ) )
+					.forEachPixel( ( s, o ) -> o.set( s ) );
+
+			// Next block, odometer-style.
+			int d = 0;
+			for ( ; d < n; d++ )
+			{
+				pos[ d ] += blockSize[ d ];
+				if ( pos[ d ] <= max[ d ] )
+					break;
+				pos[ d ] = start[ d ];
+			}
+			if ( d == n )
+				break;
+		}
+	}
+
+	private static long[] concat( final long[] a, final long[] b )
+	{
+		final long[] out = new long[ a.length + b.length ];
+		System.arraycopy( a, 0, out, 0, a.length );
+		System.arraycopy( b, 0, out, a.length, b.length );
+		return out;
+	}
+
+	/**
+	 * Determines the copy block size, in the axes order of a frame view: the
+	 * cell size if the source image is made of cells, a single plane
+	 * otherwise.
+	 */
+	private static int[] blockSize( final ImgPlus< ? > img, final Interval cropInterval )
+	{
+		final int n = cropInterval.numDimensions();
+		final int[] block = new int[ n ];
+		if ( img.getImg() instanceof AbstractCellImg )
+		{
+			final AbstractCellImg< ?, ?, ?, ? > cellImg = ( AbstractCellImg< ?, ?, ?, ? > ) img.getImg();
+			final int[] cellDims = new int[ img.numDimensions() ];
+			cellImg.getCellGrid().cellDimensions( cellDims );
+
+			// Same axis juggling as for the frame view: drop time, then move
+			// channel last.
+			final int timeIndex = img.dimensionIndex( Axes.TIME );
+			final int channelIndex = img.dimensionIndex( Axes.CHANNEL );
+			final List< Integer > dims = new ArrayList<>();
+			for ( int d = 0; d < img.numDimensions(); d++ )
+				if ( d != timeIndex && d != channelIndex )
+					dims.add( cellDims[ d ] );
+			if ( channelIndex >= 0 )
+				dims.add( cellDims[ channelIndex ] );
+			for ( int d = 0; d < n; d++ )
+				block[ d ] = dims.get( d );
+		}
+		else
+		{
+			for ( int d = 0; d < n; d++ )
+				block[ d ] = ( d < 2 ) ? ( int ) Math.min( Integer.MAX_VALUE, cropInterval.max( d ) + 1 ) : 1;
+		}
+		return block;
+	}
+
+	/**
+	 * Returns the interval to crop a single frame with, in the axes order of
+	 * a frame view (X, Y, possibly Z, then possibly all channels).
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval, with time last if present.
+	 * @return a new interval.
+	 */
+	public static Interval cropInterval( final ImgPlus< ? > img, final Interval interval )
+	{
+		final int zIndex = img.dimensionIndex( Axes.Z );
+		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
+		if ( zIndex < 0 )
+		{
+			// 2D
+			if ( cIndex < 0 )
+				return Intervals.createMinMax(
+						interval.min( 0 ), interval.min( 1 ),
+						interval.max( 0 ), interval.max( 1 ) );
+			// Include all channels
+			return Intervals.createMinMax(
+					interval.min( 0 ), interval.min( 1 ), img.min( cIndex ),
+					interval.max( 0 ), interval.max( 1 ), img.max( cIndex ) );
+		}
+
+		if ( cIndex < 0 )
+			return Intervals.createMinMax(
+					interval.min( 0 ), interval.min( 1 ), interval.min( 2 ),
+					interval.max( 0 ), interval.max( 1 ), interval.max( 2 ) );
+		return Intervals.createMinMax(
+				interval.min( 0 ), interval.min( 1 ), interval.min( 2 ), img.min( cIndex ),
+				interval.max( 0 ), interval.max( 1 ), interval.max( 2 ), img.max( cIndex ) );
+	}
+
+	/**
+	 * Returns the time-points covered by the interval, or a single 0
+	 * time-point if the image has no time axis.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval, with time last if present.
+	 * @return a new array of time-points.
+	 */
+	public static long[] timePoints( final ImgPlus< ? > img, final Interval interval )
+	{
+		if ( img.dimensionIndex( Axes.TIME ) < 0 )
+			return new long[] { 0l };
+
+		// In the interval, time is always the last.
+		final long minT = interval.min( interval.numDimensions() - 1 );
+		final long maxT = interval.max( interval.numDimensions() - 1 );
+		final long[] frames = new long[ ( int ) ( maxT - minT + 1 ) ];
+		for ( int i = 0; i < frames.length; i++ )
+			frames[ i ] = minT + i;
+		return frames;
+	}
+
+	/**
+	 * A single frame copied in memory.
+	 */
+	public static class Frame< T > implements AutoCloseable
+	{
+
+		private final long t;
+
+		private final Img< T > img;
+
+		private ByteBuffer buffer;
+
+		private final FramePool pool;
+
+		public Frame( final long t, final Img< T > img )
+		{
+			this.t = t;
+			this.img = img;
+			this.buffer = null;
+			this.pool = null;
+		}
+
+		public Frame( final long t, final ByteBuffer buffer, final FramePool pool )
+		{
+			this.t = t;
+			this.img = null;
+			this.buffer = buffer;
+			this.pool = pool;
+		}
+
+		/**
+		 * Returns the time-point of this frame in the source image.
+		 *
+		 * @return the time-point.
+		 */
+		public long t()
+		{
+			return t;
+		}
+
+		/**
+		 * Returns the zero-min copy of the frame, cropped to the interval.
+		 *
+		 * @return the frame pixels, or <code>null</code> if the frame was
+		 *         copied in a pooled buffer.
+		 */
+		public Img< T > img()
+		{
+			return img;
+		}
+
+		/**
+		 * Returns the pooled buffer the frame was copied in, in the layout
+		 * of its pool.
+		 *
+		 * @return the frame pixels, or <code>null</code> if the frame was
+		 *         copied in an image.
+		 */
+		public synchronized ByteBuffer buffer()
+		{
+			return buffer;
+		}
+
+		/**
+		 * Returns the pool the buffer of this frame belongs to.
+		 *
+		 * @return the pool, or <code>null</code> if the frame was copied in
+		 *         an image.
+		 */
+		public FramePool pool()
+		{
+			return pool;
+		}
+
+		/**
+		 * Gives the buffer of this frame back to its pool. The frame pixels
+		 * must not be used afterwards. Closing a frame twice has no effect.
+		 */
+		@Override
+		public synchronized void close()
+		{
+			if ( pool != null && buffer != null )
+				pool.release( buffer );
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.io.FileInfo;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Identifies the pixels a detection run reads, without reading them all.
+ * <p>
+ * The image is identified by its source file, with the size and the last
+ * modification time of this file, by its name and dimensions, and by the
+ * detection interval. When the image is held in memory, each frame is also
+ * identified by a checksum of a few of its pixels, taken on a fixed grid, so
+ * that an image edited but not saved is most likely told apart. Other
+ * images, for instance images backed by cells, are not sampled, so that no
+ * pixel is loaded: their source file identifies them.
+ * <p>
+ * A fingerprint is computed once per run, and shared by the
+ * {@link DetectionCheckpoint}, the {@link FrameExportCache} and the
+ * {@link MotionGate}.
+ */
+public class ImageFingerprint
+{
+
+	/** Max number of positions sampled along each dimension of a frame. */
+	private static final int GRID = 16;
+
+	private final Path sourceFile;
+
+	private final String imageKey;
+
+	private final Map< Long, Long > frames;
+
+	private final String key;
+
+	private ImageFingerprint( final Path sourceFile, final String imageKey, final Map< Long, Long > frames )
+	{
+		this.sourceFile = sourceFile;
+		this.imageKey = imageKey;
+		this.frames = Collections.unmodifiableMap( frames );
+		final StringBuilder str = new StringBuilder( imageKey ).append( '\n' );
+		frames.forEach( ( t, f ) -> str.append( t ).append( ':' ).append( Long.toHexString( f ) ).append( ',' ) );
+		this.key = digest( str );
+	}
+
+	/**
+	 * Computes the fingerprint of the frames of an image in a detection
+	 * interval.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval.
+	 * @return a new fingerprint.
+	 */
+	public static < T extends RealType< T > > ImageFingerprint of( final ImgPlus< T > img, final Interval interval )
+	{
+		final Path sourceFile = sourceFile( img );
+		final StringBuilder str = new StringBuilder();
+		str.append( img.getName() ).append( '\n' );
+		if ( sourceFile != null )
+		{
+			final File file = sourceFile.toFile();
+			str.append( sourceFile ).append( ',' ).append( file.length() ).append( ',' ).append( file.lastModified() ).append( '\n' );
+		}
+		for ( int d = 0; d < img.numDimensions(); d++ )
+			str.append( img.dimension( d ) ).append( ',' );
+		str.append( '\n' );
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			str.append( interval.min( d ) ).append( '-' ).append( interval.max( d ) ).append( ',' );
+		final String imageKey = digest( str );
+
+		// Images not held in memory are identified by their file, if any.
+		final boolean sampled = sourceFile == null || img.getImg() instanceof PlanarImg || img.getImg() instanceof ArrayImg;
+		final int timeIndex = img.dimensionIndex( Axes.TIME );
+		final Interval cropInterval = FrameStreamer.cropInterval( img, interval );
+		final Map< Long, Long > frames = new TreeMap<>();
+		for ( final long t : FrameStreamer.timePoints( img, interval ) )
+		{
+			final long fingerprint = sampled
+					? sample( Views.interval( FrameStreamer.frameView( img, timeIndex, t ), cropInterval ) )
+					: 0l;
+			frames.put( t, fingerprint );
+		}
+		return new ImageFingerprint( sourceFile, imageKey, frames );
+	}
+
+	/**
+	 * Returns the file the image was opened from, or <code>null</code> if it
+	 * is not known. Images wrapped from an {@link ImagePlus} are looked up
+	 * among the open images, by title and size.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the path to the file, or <code>null</code>.
+	 */
+	public static Path sourceFile( final ImgPlus< ? > img )
+	{
+		final String source = img.getSource();
+		if ( source != null && !source.isEmpty() && new File( source ).isFile() )
+			return Paths.get( source ).toAbsolutePath();
+
+		final int[] ids = WindowManager.getIDList();
+		if ( ids == null )
+			return null;
+		for ( final int id : ids )
+		{
+			final ImagePlus imp = WindowManager.getImage( id );
+			if ( imp == null || !imp.getTitle().equals( img.getName() )
+					|| imp.getWidth() != img.dimension( 0 ) || imp.getHeight() != img.dimension( 1 ) )
+				continue;
+			final FileInfo fi = imp.getOriginalFileInfo();
+			if ( fi == null || fi.directory == null || fi.directory.isEmpty() || fi.fileName == null )
+				continue;
+			final File file = new File( fi.directory, fi.fileName );
+			if ( file.isFile() )
+				return file.toPath().toAbsolutePath();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the file the image was opened from.
+	 *
+	 * @return the path to the file, or <code>null</code> if it is not known.
+	 */
+	public Path getSourceFile()
+	{
+		return sourceFile;
+	}
+
+	/**
+	 * Returns a hash that identifies the image and the detection interval,
+	 * regardless of its pixel values.
+	 *
+	 * @return the hash, as 32 hexadecimal characters.
+	 */
+	public String getImageKey()
+	{
+		return imageKey;
+	}
+
+	/**
+	 * Returns a hash that identifies the image, the detection interval and
+	 * the sampled pixels of all its frames.
+	 *
+	 * @return the hash, as 32 hexadecimal characters.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Returns the fingerprint of a frame. Two frames of the same image with
+	 * the same fingerprint are considered to have the same pixels.
+	 *
+	 * @param t
+	 *            the time-point of the frame.
+	 * @return the fingerprint.
+	 */
+	public long getFrame( final long t )
+	{
+		final Long fingerprint = frames.get( t );
+		return ( fingerprint == null ) ? 0l : fingerprint.longValue();
+	}
+
+	/**
+	 * Mixes the pixels on a grid of at most {@value #GRID} positions along
+	 * each dimension of the frame.
+	 */
+	private static < T extends RealType< T > > long sample( final RandomAccessibleInterval< T > frame )
+	{
+		final int n = frame.numDimensions();
+		final int[] counts = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+			counts[ d ] = ( int ) Math.min( GRID, frame.dimension( d ) );
+		final int[] index = new int[ n ];
+		final RandomAccess< T > ra = frame.randomAccess();
+		long hash = 0x9e3779b97f4a7c15l;
+		while ( true )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				final long offset = ( counts[ d ] < 2 ) ? 0 : index[ d ] * ( frame.dimension( d ) - 1 ) / ( counts[ d ] - 1 );
+				ra.setPosition( frame.min( d ) + offset, d );
+			}
+			final long bits = Double.doubleToLongBits( ra.get().getRealDouble() ) * 0xbf58476d1ce4e5b9l;
+			hash = Long.rotateLeft( hash ^ bits, 27 ) * 0x94d049bb133111ebl + 0x52dce729l;
+
+			int d = 0;
+			while ( d < n && ++index[ d ] == counts[ d ] )
+				index[ d++ ] = 0;
+			if ( d == n )
+				break;
+		}
+		// Final avalanche, as in MurmurHash3.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdl;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53l;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	static String digest( final CharSequence str )
+	{
+		try
+		{
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+			final byte[] hash = digest.digest( str.toString().getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( int i = 0; i < 16; i++ )
+				hex.append( String.format( "%02x", hash[ i ] ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// SHA-256 is always available.
+			throw new RuntimeException( e );
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import fiji.plugin.trackmate.Logger;
+import ij.Prefs;
+
+/**
+ * Limits the number of YOLO inferences that run at the same time on this
+ * machine, across all the Fiji instances and scripts of the user.
+ * <p>
+ * Each running inference holds an exclusive lock on one of a fixed number of
+ * slot files, in the ImageJ preferences folder. Other inferences wait until
+ * a slot is free. The operating system releases the lock when a process
+ * dies, so a crashed job cannot keep its slot. Within a JVM, each detector
+ * or batch worker takes its own slot, the same way.
+ * <p>
+ * File locks belong to the process, and on POSIX systems closing any channel
+ * on a file releases all the locks the process holds on it. So the slot
+ * files are opened once, and their channels are kept open for the lifetime
+ * of the JVM. Slots taken by this JVM are tracked in memory and never
+ * probed.
+ * <p>
+ * The cores of the machine are split evenly between the slots, and each
+ * inference is told to use its share, so that inferences running together
+ * do not oversubscribe the CPU. The number of slots is stored in the ImageJ
+ * preferences.
+ */
+public class InferenceArbiter
+{
+
+	private static final String MAX_SLOTS_PREF_KEY = "trackmate.yolo.maxConcurrentInferences";
+
+	/** Default max number of inferences running at the same time. */
+	public static final int DEFAULT_MAX_SLOTS = 2;
+
+	private static final String SLOT_FOLDER = "TrackMate-YOLO/slots";
+
+	/** Time between two attempts to get a free slot, in ms. */
+	private static final long POLL_DELAY = 250;
+
+	/**
+	 * The environment variables that set the number of threads of the
+	 * numerical libraries used by YOLO.
+	 */
+	private static final String[] THREAD_VARIABLES = new String[] {
+			"OMP_NUM_THREADS",
+			"MKL_NUM_THREADS",
+			"OPENBLAS_NUM_THREADS" };
+
+	/** One channel per slot file, never closed. Guarded by itself. */
+	private static final Map< Path, FileChannel > CHANNELS = new HashMap<>();
+
+	/** Slot files locked by this JVM. Guarded by {@link #CHANNELS}. */
+	private static final Set< Path > HELD = new HashSet<>();
+
+	private InferenceArbiter()
+	{}
+
+	/**
+	 * Returns the max number of YOLO inferences that can run at the same time
+	 * on this machine.
+	 *
+	 * @return the number of slots.
+	 */
+	public static int getMaxSlots()
+	{
+		return Math.max( 1, Prefs.getInt( MAX_SLOTS_PREF_KEY, DEFAULT_MAX_SLOTS ) );
+	}
+
+	/**
+	 * Sets the max number of YOLO inferences that can run at the same time on
+	 * this machine, and saves it in the ImageJ preferences. All the Fiji
+	 * instances of the user should use the same value.
+	 *
+	 * @param maxSlots
+	 *            the number of slots.
+	 */
+	public static void setMaxSlots( final int maxSlots )
+	{
+		Prefs.set( MAX_SLOTS_PREF_KEY, Math.max( 1, maxSlots ) );
+	}
+
+	/**
+	 * Returns the number of threads each inference should use.
+	 *
+	 * @return the number of cores divided by the number of slots.
+	 */
+	public static int getThreadsPerSlot()
+	{
+		return Math.max( 1, Runtime.getRuntime().availableProcessors() / getMaxSlots() );
+	}
+
+	/**
+	 * Waits for a free inference slot, and takes it.
+	 *
+	 * @param logger
+	 *            a logger to report that we are waiting.
+	 * @return the slot, to close once inference is done.
+	 * @throws IOException
+	 *             if the slot files cannot be created.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public static Slot acquire( final Logger logger ) throws IOException, InterruptedException
+	{
+		final int maxSlots = getMaxSlots();
+		final Path folder = Paths.get( Prefs.getPrefsDir(), SLOT_FOLDER );
+		Files.createDirectories( folder );
+
+		final long start = System.currentTimeMillis();
+		boolean waiting = false;
+		while ( true )
+		{
+			for ( int i = 0; i < maxSlots; i++ )
+			{
+				final Slot slot = tryLock( folder.resolve( "slot-" + i + ".lock" ), System.currentTimeMillis() - start );
+				if ( slot != null )
+					return slot;
+			}
+			if ( !waiting )
+			{
+				logger.setStatus( "Waiting for a free YOLO slot" );
+				waiting = true;
+			}
+			Thread.sleep( POLL_DELAY );
+		}
+	}
+
+	/**
+	 * Returns the number of inferences running on this machine, in this JVM
+	 * and others. Slots held by this JVM are counted from memory. The others
+	 * are probed on their persistent channels, so that probing never
+	 * releases a lock of this JVM.
+	 *
+	 * @return the number of slots taken.
+	 */
+	public static int getNBusy()
+	{
+		final int maxSlots = getMaxSlots();
+		final Path folder = Paths.get( Prefs.getPrefsDir(), SLOT_FOLDER );
+		int busy = 0;
+		synchronized ( CHANNELS )
+		{
+			for ( int i = 0; i < maxSlots; i++ )
+			{
+				final Path path = folder.resolve( "slot-" + i + ".lock" );
+				if ( HELD.contains( path ) )
+				{
+					busy++;
+					continue;
+				}
+				if ( !Files.exists( path ) )
+					continue;
+				try
+				{
+					final FileLock lock = tryLock( channel( path ) );
+					if ( lock == null )
+						busy++;
+					else
+						lock.release();
+				}
+				catch ( final IOException e )
+				{
+					// Cannot tell: count it as free.
+				}
+			}
+		}
+		return busy;
+	}
+
+	private static Slot tryLock( final Path path, final long waitTime ) throws IOException
+	{
+		synchronized ( CHANNELS )
+		{
+			if ( HELD.contains( path ) )
+				return null;
+			final FileLock lock = tryLock( channel( path ) );
+			if ( lock == null )
+				return null;
+			HELD.add( path );
+			return new Slot( path, lock, getThreadsPerSlot(), waitTime );
+		}
+	}
+
+	/**
+	 * Returns the channel of a slot file, opening it the first time.
+	 */
+	private static FileChannel channel( final Path path ) throws IOException
+	{
+		FileChannel channel = CHANNELS.get( path );
+		if ( channel == null || !channel.isOpen() )
+		{
+			channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+			CHANNELS.put( path, channel );
+		}
+		return channel;
+	}
+
+	private static FileLock tryLock( final FileChannel channel ) throws IOException
+	{
+		try
+		{
+			return channel.tryLock();
+		}
+		catch ( final OverlappingFileLockException e )
+		{
+			// Should not happen: held slots are not probed.
+			return null;
+		}
+	}
+
+	/**
+	 * A slot taken by an inference. The slot is freed when it is closed.
+	 */
+	public static class Slot implements AutoCloseable
+	{
+
+		private final Path path;
+
+		private final FileLock lock;
+
+		private final int threads;
+
+		private final long waitTime;
+
+		/** Guarded by {@link InferenceArbiter#CHANNELS}. */
+		private boolean closed = false;
+
+		private Slot( final Path path, final FileLock lock, final int threads, final long waitTime )
+		{
+			this.path = path;
+			this.lock = lock;
+			this.threads = threads;
+			this.waitTime = waitTime;
+		}
+
+		/**
+		 * Returns the number of threads the inference should use.
+		 *
+		 * @return the number of threads.
+		 */
+		public int getThreads()
+		{
+			return threads;
+		}
+
+		/**
+		 * Returns how long we waited for this slot.
+		 *
+		 * @return the wait time, in ms.
+		 */
+		public long getWaitTime()
+		{
+			return waitTime;
+		}
+
+		/**
+		 * Sets the number of threads in the environment variables of a
+		 * process that will run YOLO.
+		 *
+		 * @param environment
+		 *            the process environment, as returned by
+		 *            {@link ProcessBuilder#environment()}.
+		 * @param threads
+		 *            the number of threads, at most the one of this slot.
+		 */
+		public void configure( final Map< String, String > environment, final int threads )
+		{
+			for ( final String var : THREAD_VARIABLES )
+				environment.put( var, Integer.toString( Math.min( threads, this.threads ) ) );
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized ( CHANNELS )
+			{
+				if ( closed )
+					return;
+				closed = true;
+				HELD.remove( path );
+				try
+				{
+					// Keep the channel open: closing it would release the
+					// other locks of this process on the file.
+					lock.release();
+				}
+				catch ( final IOException e )
+				{
+					// The lock goes away with the JVM anyway.
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_BATCH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_HALF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_IMGSZ;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_THREADS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_BATCH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_HALF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IMGSZ;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_THREADS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The performance parameters of a YOLO inference: image size, batch size,
+ * number of CPU threads and half precision. They do not change what is
+ * detected much, but can change the inference time a lot.
+ * <p>
+ * A value of 0 means that the ultralytics default is used, or for the
+ * threads, the share given by the {@link InferenceArbiter}.
+ */
+public class InferenceProfile
+{
+
+	private final int imgsz;
+
+	private final int batch;
+
+	private final int threads;
+
+	private final boolean half;
+
+	public InferenceProfile( final int imgsz, final int batch, final int threads, final boolean half )
+	{
+		this.imgsz = imgsz;
+		this.batch = batch;
+		this.threads = threads;
+		this.half = half;
+	}
+
+	/**
+	 * Reads a profile from the detector settings. Missing parameters take
+	 * their default value.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 * @return a new profile.
+	 */
+	public static InferenceProfile fromSettings( final Map< String, Object > settings )
+	{
+		return new InferenceProfile(
+				( ( Number ) settings.getOrDefault( KEY_YOLO_IMGSZ, DEFAULT_YOLO_IMGSZ ) ).intValue(),
+				( ( Number ) settings.getOrDefault( KEY_YOLO_BATCH, DEFAULT_YOLO_BATCH ) ).intValue(),
+				( ( Number ) settings.getOrDefault( KEY_YOLO_THREADS, DEFAULT_YOLO_THREADS ) ).intValue(),
+				( Boolean ) settings.getOrDefault( KEY_YOLO_HALF, DEFAULT_YOLO_HALF ) );
+	}
+
+	/**
+	 * Puts this profile in the detector settings.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 */
+	public void toSettings( final Map< String, Object > settings )
+	{
+		settings.put( KEY_YOLO_IMGSZ, Integer.valueOf( imgsz ) );
+		settings.put( KEY_YOLO_BATCH, Integer.valueOf( batch ) );
+		settings.put( KEY_YOLO_THREADS, Integer.valueOf( threads ) );
+		settings.put( KEY_YOLO_HALF, Boolean.valueOf( half ) );
+	}
+
+	public int getImgsz()
+	{
+		return imgsz;
+	}
+
+	public int getBatch()
+	{
+		return batch;
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public boolean isHalf()
+	{
+		return half;
+	}
+
+	/**
+	 * Returns the number of threads to use when the inference was given
+	 * the specified number of threads by the {@link InferenceArbiter}.
+	 *
+	 * @param available
+	 *            the number of threads available.
+	 * @return the number of threads of this profile, if set and not larger
+	 *         than what is available. Otherwise, the number of threads
+	 *         available.
+	 */
+	public int getThreads( final int available )
+	{
+		return ( threads > 0 ) ? Math.min( threads, available ) : available;
+	}
+
+	public InferenceProfile imgsz( final int value )
+	{
+		return new InferenceProfile( value, batch, threads, half );
+	}
+
+	public InferenceProfile batch( final int value )
+	{
+		return new InferenceProfile( imgsz, value, threads, half );
+	}
+
+	public InferenceProfile threads( final int value )
+	{
+		return new InferenceProfile( imgsz, batch, value, half );
+	}
+
+	public InferenceProfile half( final boolean value )
+	{
+		return new InferenceProfile( imgsz, batch, threads, value );
+	}
+
+	/**
+	 * Returns the <code>yolo</code> command line arguments of the parameters
+	 * of this profile that are set. The number of threads is not an argument,
+	 * it is set by environment variables.
+	 *
+	 * @return a new list of arguments.
+	 */
+	public List< String > toArguments()
+	{
+		final List< String > args = new ArrayList<>();
+		if ( imgsz > 0 )
+			args.add( "imgsz=" + imgsz );
+		if ( batch > 0 )
+			args.add( "batch=" + batch );
+		if ( half )
+			args.add( "half=True" );
+		return args;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "imgsz=%s, batch=%s, threads=%s, half=%b",
+				imgsz > 0 ? Integer.toString( imgsz ) : "default",
+				batch > 0 ? Integer.toString( batch ) : "default",
+				threads > 0 ? Integer.toString( threads ) : "auto",
+				half );
+	}
+}
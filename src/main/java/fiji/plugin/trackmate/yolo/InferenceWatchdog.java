@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Watches the progress of a YOLO run, and stops it when no frame was
+ * processed for too long.
+ * <p>
+ * A YOLO process can hang without dying, for instance when the GPU driver
+ * locks up or when the process waits on a full pipe. Waiting for it to exit
+ * would then block the detection forever. The watchdog polls the time of
+ * the last progress reported by the run, and calls its stall handler once
+ * this time is older than the stall timeout. The handler typically kills
+ * the process, so that the run can be restarted on the frames not processed
+ * yet.
+ */
+public class InferenceWatchdog implements AutoCloseable
+{
+
+	private static final long POLL_INTERVAL = 1000;
+
+	private final long stallTimeout;
+
+	private final LongSupplier lastProgress;
+
+	private final Runnable onStall;
+
+	private final Thread thread;
+
+	private volatile boolean stalled;
+
+	private volatile long stalledFor;
+
+	/**
+	 * Starts watching a run.
+	 *
+	 * @param stallTimeout
+	 *            the time without progress after which the run is stalled, in
+	 *            milliseconds. 0 or less disables the watchdog.
+	 * @param lastProgress
+	 *            supplies the time of the last progress of the run, as
+	 *            returned by {@link System#currentTimeMillis()}.
+	 * @param onStall
+	 *            called once, from the watchdog thread, when the run stalls.
+	 */
+	public InferenceWatchdog( final long stallTimeout, final LongSupplier lastProgress, final Runnable onStall )
+	{
+		this.stallTimeout = stallTimeout;
+		this.lastProgress = lastProgress;
+		this.onStall = onStall;
+		if ( stallTimeout <= 0 )
+		{
+			this.thread = null;
+			return;
+		}
+		this.thread = new Thread( this::watch, "TrackMate-YOLO-watchdog" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	private void watch()
+	{
+		try
+		{
+			while ( !Thread.currentThread().isInterrupted() )
+			{
+				Thread.sleep( POLL_INTERVAL );
+				final long idle = System.currentTimeMillis() - lastProgress.getAsLong();
+				if ( idle > stallTimeout )
+				{
+					stalledFor = idle;
+					stalled = true;
+					onStall.run();
+					return;
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// Closed.
+		}
+	}
+
+	/**
+	 * Returns whether the run stalled, and the stall handler was called.
+	 *
+	 * @return <code>true</code> if the run stalled.
+	 */
+	public boolean isStalled()
+	{
+		return stalled;
+	}
+
+	/**
+	 * Returns how long the run went without progress before it was declared
+	 * stalled, in milliseconds. This is the time lost by the stall, not
+	 * counting the time needed to restart.
+	 *
+	 * @return the stall duration, or 0 if the run did not stall.
+	 */
+	public long getStalledFor()
+	{
+		return stalledFor;
+	}
+
+	/**
+	 * Stops watching the run.
+	 */
+	@Override
+	public void close()
+	{
+		if ( thread != null )
+			thread.interrupt();
+	}
+}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FORMAT;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.io.FileUtils;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.yolo.CondaEnvironmentCache.ResolvedEnvironment;
+import ij.Prefs;
+
+/**
+ * Converts YOLO models to formats that run faster on CPU, once, and keeps the
+ * converted models on disk.
+ * <p>
+ * Converted models are stored in the ImageJ preferences folder, in one folder
+ * per source model content, format and precision. The folder name starts
+ * with the SHA-256 hash of the source model file, and the folder contains a
+ * properties file with the full hash and the path to the converted model.
+ * The same model at another path, or copied to another machine with the same
+ * preferences, reuses the conversion. A modified model is converted again.
+ * <p>
+ * Conversion runs the ultralytics exporter in the conda environment of the
+ * model. If it fails, or if the environment cannot be resolved, the original
+ * model is used. Failures are remembered for the session, so that conversion
+ * is not attempted on every run.
+ */
+public class ModelConverter
+{
+
+	/** No conversion. */
+	public static final String FORMAT_NONE = "none";
+
+	public static final String FORMAT_ONNX = "onnx";
+
+	public static final String FORMAT_OPENVINO = "openvino";
+
+	public static final List< String > FORMATS = Arrays.asList( FORMAT_NONE, FORMAT_ONNX, FORMAT_OPENVINO );
+
+	private static final String SCRIPT_NAME = "trackmate_yolo_export.py";
+
+	private static final String CACHE_FOLDER = "TrackMate-YOLO/models";
+
+	private static final String INFO_FILE = "conversion.properties";
+
+	/** Source model hashes, by path, size and modification time. */
+	private static final Map< String, String > HASHES = new HashMap<>();
+
+	private static final Map< String, CompletableFuture< String > > CONVERSIONS = new HashMap<>();
+
+	private static final Set< String > FAILED = new HashSet<>();
+
+	private ModelConverter()
+	{}
+
+	/**
+	 * Returns the path to the model to use for the specified detector
+	 * settings, converting it if needed. Blocks until conversion is done.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 * @param logger
+	 *            a logger to report conversion.
+	 * @return the path to the converted model, or the source model path if
+	 *         no conversion is requested or if conversion failed.
+	 */
+	public static String resolve( final Map< String, Object > settings, final Logger logger )
+	{
+		return resolve(
+				( String ) settings.get( KEY_CONDA_ENV ),
+				( String ) settings.get( KEY_YOLO_MODEL_FILEPATH ),
+				( String ) settings.getOrDefault( KEY_YOLO_MODEL_FORMAT, DEFAULT_YOLO_MODEL_FORMAT ),
+				( Boolean ) settings.getOrDefault( KEY_YOLO_INT8, DEFAULT_YOLO_INT8 ),
+				logger );
+	}
+
+	/**
+	 * Returns the path to the model to use for the specified source model and
+	 * format, converting it if needed. Blocks until conversion is done.
+	 *
+	 * @param condaEnv
+	 *            the conda environment in which YOLO is installed.
+	 * @param modelPath
+	 *            the path to the source model.
+	 * @param format
+	 *            the format to convert to, one of {@link #FORMATS}.
+	 * @param int8
+	 *            whether to quantize the converted model to INT8.
+	 * @param logger
+	 *            a logger to report conversion.
+	 * @return the path to the converted model, or the source model path if
+	 *         no conversion is requested or if conversion failed.
+	 */
+	public static String resolve( final String condaEnv, final String modelPath, final String format, final boolean int8, final Logger logger )
+	{
+		if ( format == null || FORMAT_NONE.equals( format ) )
+			return modelPath;
+		try
+		{
+			return convertAsync( condaEnv, modelPath, format, int8, logger ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return modelPath;
+		}
+		catch ( final Exception e )
+		{
+			return modelPath;
+		}
+	}
+
+	/**
+	 * Starts converting the specified model in the background, if it is not
+	 * converted or converting already.
+	 *
+	 * @param condaEnv
+	 *            the conda environment in which YOLO is installed.
+	 * @param modelPath
+	 *            the path to the source model.
+	 * @param format
+	 *            the format to convert to, one of {@link #FORMATS}.
+	 * @param int8
+	 *            whether to quantize the converted model to INT8.
+	 * @param logger
+	 *            a logger to report conversion.
+	 * @return a future that completes with the path to the model to use.
+	 */
+	public static synchronized CompletableFuture< String > convertAsync(
+			final String condaEnv,
+			final String modelPath,
+			final String format,
+			final boolean int8,
+			final Logger logger )
+	{
+		final String converted = getConverted( modelPath, format, int8 );
+		if ( converted != null )
+			return CompletableFuture.completedFuture( converted );
+		final String key = key( modelPath, format, int8 );
+		if ( key == null || FAILED.contains( key ) )
+			return CompletableFuture.completedFuture( modelPath );
+
+		return CONVERSIONS.computeIfAbsent( key, k -> CompletableFuture.supplyAsync( () -> {
+			try
+			{
+				logger.log( "Converting " + modelPath + " to " + format + ( int8 ? " INT8" : "" ) + ".\n" );
+				final String path = convert( condaEnv, modelPath, format, int8, cacheFolder( k ) );
+				logger.log( "Converted model saved to " + path + ".\n" );
+				return path;
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not convert the model, using the original one:\n" + e.getMessage() + '\n' );
+				synchronized ( ModelConverter.class )
+				{
+					FAILED.add( k );
+				}
+				return modelPath;
+			}
+			finally
+			{
+				synchronized ( ModelConverter.class )
+				{
+					CONVERSIONS.remove( k );
+				}
+			}
+		} ) );
+	}
+
+	/**
+	 * Returns the path to the converted model, if it was converted already.
+	 *
+	 * @param modelPath
+	 *            the path to the source model.
+	 * @param format
+	 *            the format to convert to.
+	 * @param int8
+	 *            whether the converted model is quantized to INT8.
+	 * @return the path to the converted model, or <code>null</code> if it is
+	 *         not converted.
+	 */
+	public static synchronized String getConverted( final String modelPath, final String format, final boolean int8 )
+	{
+		final String key = key( modelPath, format, int8 );
+		if ( key == null )
+			return null;
+
+		final Path info = cacheFolder( key ).resolve( INFO_FILE );
+		if ( !Files.isRegularFile( info ) )
+			return null;
+		final Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader( info, StandardCharsets.UTF_8 ))
+		{
+			properties.load( reader );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+		final String converted = properties.getProperty( "converted" );
+		if ( converted == null || !new File( converted ).exists() )
+			return null;
+		return converted;
+	}
+
+	/**
+	 * Returns whether conversion of the specified model failed in this
+	 * session.
+	 *
+	 * @param modelPath
+	 *            the path to the source model.
+	 * @param format
+	 *            the format to convert to.
+	 * @param int8
+	 *            whether to quantize the converted model to INT8.
+	 * @return <code>true</code> if the original model will be used.
+	 */
+	public static synchronized boolean hasFailed( final String modelPath, final String format, final boolean int8 )
+	{
+		final String key = key( modelPath, format, int8 );
+		return key == null || FAILED.contains( key );
+	}
+
+	private static String convert( final String condaEnv, final String modelPath, final String format, final boolean int8, final Path folder ) throws IOException
+	{
+		final ResolvedEnvironment env = CondaEnvironmentCache.get( condaEnv, Logger.VOID_LOGGER );
+		if ( env == null )
+			throw new IOException( "The conda environment " + condaEnv + " could not be resolved." );
+
+		final String script = YOLOUtils.extractScript( SCRIPT_NAME ).toString();
+		if ( Files.exists( folder ) )
+			FileUtils.deleteDirectory( folder.toFile() );
+		Files.createDirectories( folder );
+
+		// Ultralytics exports next to the source model, so work on a copy.
+		final Path source = folder.resolve( "source" ).resolve( Paths.get( modelPath ).getFileName() );
+		Files.createDirectories( source.getParent() );
+		Files.copy( Paths.get( modelPath ), source );
+
+		final List< String > cmd = Arrays.asList(
+				env.getPython(),
+				script,
+				"model=" + source,
+				"format=" + format,
+				"int8=" + int8,
+				"output=" + folder );
+		final Process process = env.processBuilder( cmd ).start();
+		final StringBuilder log = new StringBuilder();
+		final Thread errReader = new Thread( () -> readAll( process.getErrorStream(), log ) );
+		errReader.start();
+		String converted = null;
+		try (BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ))
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+				if ( line.startsWith( "EXPORTED\t" ) )
+					converted = line.substring( "EXPORTED\t".length() );
+		}
+		try
+		{
+			process.waitFor();
+			errReader.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while converting the model." );
+		}
+		FileUtils.deleteDirectory( source.getParent().toFile() );
+		if ( process.exitValue() != 0 || converted == null )
+			throw new IOException( log.toString() );
+
+		final Properties properties = new Properties();
+		properties.setProperty( "source", modelPath );
+		properties.setProperty( "sha256", hash( modelPath ) );
+		properties.setProperty( "format", format );
+		properties.setProperty( "int8", Boolean.toString( int8 ) );
+		properties.setProperty( "converted", converted );
+		try (Writer writer = Files.newBufferedWriter( folder.resolve( INFO_FILE ), StandardCharsets.UTF_8 ))
+		{
+			properties.store( writer, "TrackMate-YOLO converted model" );
+		}
+		return converted;
+	}
+
+	private static void readAll( final InputStream in, final StringBuilder log )
+	{
+		try (BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ) ))
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+				synchronized ( log )
+				{
+					log.append( line ).append( '\n' );
+				}
+		}
+		catch ( final IOException e )
+		{
+			// Process ended.
+		}
+	}
+
+	private static Path cacheFolder( final String key )
+	{
+		return Paths.get( Prefs.getPrefsDir(), CACHE_FOLDER, key );
+	}
+
+	/**
+	 * Returns the cache key of a conversion, or <code>null</code> if the
+	 * model file cannot be read.
+	 */
+	private static String key( final String modelPath, final String format, final boolean int8 )
+	{
+		final String hash = hash( modelPath );
+		if ( hash == null )
+			return null;
+		return hash.substring( 0, 16 ) + '-' + format + ( int8 ? "-int8" : "" );
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the model file, computed once per session
+	 * as long as the file size and modification time do not change.
+	 *
+	 * @return the hash, as lowercase hexadecimal, or <code>null</code> if
+	 *         the model is not a readable file.
+	 */
+	static synchronized String hash( final String modelPath )
+	{
+		final File file = new File( modelPath );
+		if ( !file.isFile() )
+			return null;
+
+		final String id = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+		final String cached = HASHES.get( id );
+		if ( cached != null )
+			return cached;
+
+		try (DigestInputStream in = new DigestInputStream( Files.newInputStream( file.toPath() ), MessageDigest.getInstance( "SHA-256" ) ))
+		{
+			final byte[] buffer = new byte[ 1 << 16 ];
+			while ( in.read( buffer ) >= 0 )
+			{}
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : in.getMessageDigest().digest() )
+				hex.append( String.format( "%02x", b ) );
+			final String hash = hex.toString();
+			HASHES.put( id, hash );
+			return hash;
+		}
+		catch ( final IOException | NoSuchAlgorithmException e )
+		{
+			return null;
+		}
+	}
+}
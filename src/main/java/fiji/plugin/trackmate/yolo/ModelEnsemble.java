@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Describes the extra models of an ensemble, run on the same frames as the
+ * main model of the detector, and merges their detections.
+ * <p>
+ * The extra models are specified as a single string, one model per entry,
+ * entries separated by semicolons. Each entry is made of the model path,
+ * optionally followed by its confidence threshold, IoU threshold and label,
+ * separated by commas. Empty or missing thresholds take the values of the
+ * main model, a missing label is the model file name. For instance:
+ *
+ * <pre>
+ * /models/division.pt, 0.4, , division; /models/debris.pt
+ * </pre>
+ *
+ * Model 0 is the main model of the detector, extra models are numbered from
+ * 1 in the order of the string.
+ */
+public class ModelEnsemble
+{
+
+	/**
+	 * An extra model of the ensemble.
+	 */
+	public static class Member
+	{
+
+		private final String modelPath;
+
+		private final double conf;
+
+		private final double iou;
+
+		private final String label;
+
+		public Member( final String modelPath, final double conf, final double iou, final String label )
+		{
+			this.modelPath = modelPath;
+			this.conf = conf;
+			this.iou = iou;
+			this.label = label;
+		}
+
+		public String getModelPath()
+		{
+			return modelPath;
+		}
+
+		public double getConf()
+		{
+			return conf;
+		}
+
+		public double getIou()
+		{
+			return iou;
+		}
+
+		public String getLabel()
+		{
+			return label;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "%s (%s, conf=%.2f, iou=%.2f)", label, modelPath, conf, iou );
+		}
+	}
+
+	private ModelEnsemble()
+	{}
+
+	/**
+	 * Parses the extra models of an ensemble.
+	 *
+	 * @param str
+	 *            the specification string. Can be <code>null</code> or empty.
+	 * @param defaultConf
+	 *            the confidence threshold of the main model.
+	 * @param defaultIou
+	 *            the IoU threshold of the main model.
+	 * @return a new list of extra models, empty if there is none.
+	 * @throws IllegalArgumentException
+	 *             if an entry cannot be parsed.
+	 */
+	public static List< Member > parse( final String str, final double defaultConf, final double defaultIou )
+	{
+		final List< Member > members = new ArrayList<>();
+		if ( str == null || str.trim().isEmpty() )
+			return members;
+		for ( final String entry : str.split( ";" ) )
+		{
+			if ( entry.trim().isEmpty() )
+				continue;
+			final String[] fields = entry.split( "," );
+			if ( fields.length > 4 )
+				throw new IllegalArgumentException( "Expected path, conf, iou, label, got '" + entry.trim() + "'." );
+			final String path = fields[ 0 ].trim();
+			if ( path.isEmpty() )
+				throw new IllegalArgumentException( "Missing model path in '" + entry.trim() + "'." );
+			final double conf = parseThreshold( fields, 1, defaultConf, entry );
+			final double iou = parseThreshold( fields, 2, defaultIou, entry );
+			final String label = ( fields.length > 3 && !fields[ 3 ].trim().isEmpty() )
+					? fields[ 3 ].trim()
+					: labelOf( path );
+			members.add( new Member( path, conf, iou, label ) );
+		}
+		return members;
+	}
+
+	private static double parseThreshold( final String[] fields, final int i, final double defaultValue, final String entry )
+	{
+		if ( fields.length <= i || fields[ i ].trim().isEmpty() )
+			return defaultValue;
+		final double val;
+		try
+		{
+			val = Double.parseDouble( fields[ i ].trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid threshold '" + fields[ i ].trim() + "' in '" + entry.trim() + "'." );
+		}
+		if ( val < 0. || val > 1. )
+			throw new IllegalArgumentException( "Threshold out of [0, 1] in '" + entry.trim() + "'." );
+		return val;
+	}
+
+	/**
+	 * Returns the default label of a model: its file name, without
+	 * extension.
+	 *
+	 * @param modelPath
+	 *            the model path.
+	 * @return the label.
+	 */
+	public static String labelOf( final String modelPath )
+	{
+		final Path fileName = Paths.get( modelPath ).getFileName();
+		final String name = ( fileName == null ) ? modelPath : fileName.toString();
+		final int dot = name.lastIndexOf( '.' );
+		return ( dot > 0 ) ? name.substring( 0, dot ) : name;
+	}
+
+	/**
+	 * Adds the detections of a model to the merged detections of the
+	 * ensemble.
+	 *
+	 * @param merged
+	 *            the merged detections, mapped by frame. Missing tables are
+	 *            created.
+	 * @param tables
+	 *            the detections of the model, mapped by frame.
+	 * @param model
+	 *            the index of the model.
+	 */
+	public static void merge( final Map< Integer, DetectionTable > merged, final Map< Integer, DetectionTable > tables, final int model )
+	{
+		for ( final Map.Entry< Integer, DetectionTable > entry : tables.entrySet() )
+			merged.computeIfAbsent( entry.getKey(), k -> new DetectionTable( entry.getValue().size() ) )
+					.addAll( entry.getValue(), model );
+	}
+
+	/**
+	 * Removes detections that overlap a more confident detection of another
+	 * model, in each frame. Detections of the same model are not compared:
+	 * YOLO already suppressed them with the IoU threshold of that model.
+	 *
+	 * @param tables
+	 *            the merged detections, mapped by frame. Tables are replaced
+	 *            by new tables.
+	 * @param iouThreshold
+	 *            the IoU of two boxes above which the least confident is
+	 *            removed.
+	 * @return the number of detections removed.
+	 */
+	public static int suppress( final Map< Integer, DetectionTable > tables, final double iouThreshold )
+	{
+		int nRemoved = 0;
+		for ( final Map.Entry< Integer, DetectionTable > entry : tables.entrySet() )
+		{
+			final DetectionTable table = entry.getValue();
+			final DetectionTable kept = suppress( table, iouThreshold );
+			nRemoved += table.size() - kept.size();
+			entry.setValue( kept );
+		}
+		return nRemoved;
+	}
+
+	private static DetectionTable suppress( final DetectionTable table, final double iouThreshold )
+	{
+		final int n = table.size();
+		final Integer[] order = new Integer[ n ];
+		for ( int i = 0; i < n; i++ )
+			order[ i ] = i;
+		Arrays.sort( order, ( a, b ) -> Double.compare( table.confidence( b ), table.confidence( a ) ) );
+
+		final List< Integer > kept = new ArrayList<>( n );
+		for ( final int i : order )
+		{
+			boolean suppressed = false;
+			for ( final int j : kept )
+			{
+				if ( table.modelId( i ) != table.modelId( j ) && iou( table, i, j ) > iouThreshold )
+				{
+					suppressed = true;
+					break;
+				}
+			}
+			if ( !suppressed )
+				kept.add( i );
+		}
+
+		Collections.sort( kept );
+		final DetectionTable out = new DetectionTable( kept.size() );
+		for ( final int i : kept )
+			out.add( table, i, table.modelId( i ) );
+		return out;
+	}
+
+	private static double iou( final DetectionTable table, final int i, final int j )
+	{
+		final double ix = Math.min( table.x( i ) + table.width( i ) / 2., table.x( j ) + table.width( j ) / 2. )
+				- Math.max( table.x( i ) - table.width( i ) / 2., table.x( j ) - table.width( j ) / 2. );
+		final double iy = Math.min( table.y( i ) + table.height( i ) / 2., table.y( j ) + table.height( j ) / 2. )
+				- Math.max( table.y( i ) - table.height( i ) / 2., table.y( j ) - table.height( j ) / 2. );
+		if ( ix <= 0. || iy <= 0. )
+			return 0.;
+		final double inter = ix * iy;
+		final double union = table.width( i ) * table.height( i ) + table.width( j ) * table.height( j ) - inter;
+		return inter / union;
+	}
+
+	/**
+	 * Makes the frames exported for the main model available to an extra
+	 * model in its own folder, so that each model can be restarted on its
+	 * own frames. Frames are hard-linked, and only copied if the file system
+	 * does not support links.
+	 *
+	 * @param imgFolder
+	 *            the folder the frames were exported to.
+	 * @param target
+	 *            the folder of the extra model. Created if needed.
+	 * @return the number of frames.
+	 * @throws IOException
+	 *             if the frames cannot be linked nor copied.
+	 */
+	public static int shareFrames( final Path imgFolder, final Path target ) throws IOException
+	{
+		Files.createDirectories( target );
+		int n = 0;
+		try (final Stream< Path > frames = Files.list( imgFolder ))
+		{
+			for ( final Path frame : ( Iterable< Path > ) frames.filter( p -> p.toString().endsWith( ".tif" ) )::iterator )
+			{
+				final Path link = target.resolve( frame.getFileName() );
+				try
+				{
+					Files.createLink( link, frame );
+				}
+				catch ( final IOException | UnsupportedOperationException e )
+				{
+					Files.copy( frame, link );
+				}
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Decides which frames need inference, by comparing each frame to the last
+ * frame that was sent to inference.
+ * <p>
+ * Frames are compared on downsampled versions, computed in parallel. The
+ * change metric is the mean absolute difference between the downsampled
+ * frames, divided by the mean intensity of the reference frame. When it is
+ * below the threshold, the frame is not inferred, and it will receive the
+ * detections of the reference frame.
+ */
+public class MotionGate
+{
+
+	/** Max size of the downsampled frames, in pixels along X and Y. */
+	private static final int THUMBNAIL_SIZE = 128;
+
+	private final double threshold;
+
+	private final Map< Long, Long > reused = new TreeMap<>();
+
+	private float[] reference;
+
+	private long referenceFrame;
+
+	private int nInferred;
+
+	/**
+	 * Creates a gate.
+	 *
+	 * @param threshold
+	 *            the relative change below which a frame reuses the
+	 *            detections of the last inferred frame.
+	 */
+	public MotionGate( final double threshold )
+	{
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Decides whether a frame must be inferred. Frames must be passed in
+	 * increasing time order.
+	 *
+	 * @param t
+	 *            the time-point of the frame.
+	 * @param frame
+	 *            the frame pixels, X and Y first.
+	 * @return <code>true</code> if the frame must be inferred,
+	 *         <code>false</code> if it can reuse the detections of the last
+	 *         inferred frame.
+	 */
+	public < T extends RealType< T > > boolean accept( final long t, final RandomAccessibleInterval< T > frame )
+	{
+		final float[] thumbnail = downsample( frame );
+		if ( reference != null && thumbnail.length == reference.length && change( reference, thumbnail ) < threshold )
+		{
+			reused.put( t, referenceFrame );
+			return false;
+		}
+		reference = thumbnail;
+		referenceFrame = t;
+		nInferred++;
+		return true;
+	}
+
+	/**
+	 * Restores the decisions this gate made on the same frames in a previous
+	 * run, instead of comparing the frames again.
+	 *
+	 * @param frames
+	 *            the frames the decisions were made on.
+	 * @param reusedFrames
+	 *            the frames that reused the detections of another frame, as
+	 *            returned by {@link #getReused()} after the previous run.
+	 */
+	public void replay( final long[] frames, final Map< Long, Long > reusedFrames )
+	{
+		reused.clear();
+		reused.putAll( reusedFrames );
+		nInferred = frames.length - reusedFrames.size();
+		// The next frame passed to the gate is inferred.
+		reference = null;
+	}
+
+	/**
+	 * Returns the relative change below which a frame is not inferred.
+	 *
+	 * @return the threshold.
+	 */
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Returns the frames that reuse the detections of another frame.
+	 *
+	 * @return a map from a skipped frame to the inferred frame whose
+	 *         detections it reuses.
+	 */
+	public Map< Long, Long > getReused()
+	{
+		return Collections.unmodifiableMap( reused );
+	}
+
+	/**
+	 * Returns the number of frames that were accepted for inference.
+	 *
+	 * @return the number of inferred frames.
+	 */
+	public int getNInferred()
+	{
+		return nInferred;
+	}
+
+	private static double change( final float[] ref, final float[] img )
+	{
+		double diff = 0.;
+		double sum = 0.;
+		for ( int i = 0; i < ref.length; i++ )
+		{
+			diff += Math.abs( img[ i ] - ref[ i ] );
+			sum += Math.abs( ref[ i ] );
+		}
+		if ( sum == 0. )
+			return diff == 0. ? 0. : Double.POSITIVE_INFINITY;
+		return diff / sum;
+	}
+
+	/**
+	 * Averages the frame in square bins, over all the dimensions after X and
+	 * Y. Rows of bins are computed in parallel.
+	 */
+	private static < T extends RealType< T > > float[] downsample( final RandomAccessibleInterval< T > frame )
+	{
+		final long width = frame.dimension( 0 );
+		final long height = frame.dimension( 1 );
+		final int bin = ( int ) Math.max( 1, ( Math.max( width, height ) + THUMBNAIL_SIZE - 1 ) / THUMBNAIL_SIZE );
+		final int tw = ( int ) ( ( width + bin - 1 ) / bin );
+		final int th = ( int ) ( ( height + bin - 1 ) / bin );
+		final float[] thumbnail = new float[ tw * th ];
+
+		final int n = frame.numDimensions();
+		long nOther = 1;
+		for ( int d = 2; d < n; d++ )
+			nOther *= frame.dimension( d );
+		final long others = nOther;
+
+		IntStream.range( 0, th ).parallel().forEach( by -> {
+			final RandomAccess< T > ra = frame.randomAccess();
+			final double[] sums = new double[ tw ];
+			final long[] counts = new long[ tw ];
+			final long y0 = frame.min( 1 ) + ( long ) by * bin;
+			final long y1 = Math.min( frame.max( 1 ), y0 + bin - 1 );
+			for ( long o = 0; o < others; o++ )
+			{
+				// Position along the dimensions after X and Y.
+				long rem = o;
+				for ( int d = 2; d < n; d++ )
+				{
+					ra.setPosition( frame.min( d ) + rem % frame.dimension( d ), d );
+					rem /= frame.dimension( d );
+				}
+				for ( long y = y0; y <= y1; y++ )
+				{
+					ra.setPosition( y, 1 );
+					for ( long x = 0; x < width; x++ )
+					{
+						ra.setPosition( frame.min( 0 ) + x, 0 );
+						final int bx = ( int ) ( x / bin );
+						sums[ bx ] += ra.get().getRealDouble();
+						counts[ bx ]++;
+					}
+				}
+			}
+			for ( int bx = 0; bx < tw; bx++ )
+				thumbnail[ by * tw + bx ] = ( float ) ( sums[ bx ] / counts[ bx ] );
+		} );
+		return thumbnail;
+	}
+}
@@ -0,0 +1,399 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.Logger;
+import net.imglib2.Interval;
+
+/**
+ * Reads the label files written by YOLO segmentation models, and appends
+ * their contours to detection tables.
+ * <p>
+ * Each row of these files is a class ID followed by the normalized X and Y
+ * coordinates of a variable number of contour vertices, and by the
+ * confidence if it was saved. Files can hold thousands of dense contours
+ * per frame, so rows are parsed straight from the bytes of the file into
+ * primitive arrays, without creating a string per row or per value.
+ * <p>
+ * Contours are simplified while they are parsed, with the Reumann-Witkam
+ * algorithm: a vertex is only kept when the contour leaves a strip of the
+ * tolerance width around the line through the last vertex kept. This needs
+ * a single pass over the vertices, and keeps every dropped vertex within
+ * the tolerance of the simplified contour.
+ * <p>
+ * A reader reuses its buffers between files, and is not thread-safe.
+ */
+public class PolygonLabelReader
+{
+
+	private static final double[] POW10 = new double[ 23 ];
+	static
+	{
+		POW10[ 0 ] = 1.;
+		for ( int i = 1; i < POW10.length; i++ )
+			POW10[ i ] = POW10[ i - 1 ] * 10.;
+	}
+
+	private final Interval interval;
+
+	private final double[] calibration;
+
+	private final double tolerance;
+
+	private final long width;
+
+	private final long height;
+
+	/** Vertices kept for the current row, in pixels. */
+	private double[] xp = new double[ 256 ];
+
+	private double[] yp = new double[ 256 ];
+
+	private int n;
+
+	/** Strip direction of the simplification, if set. */
+	private boolean hasDirection;
+
+	private double dx;
+
+	private double dy;
+
+	/** Last vertex read, kept or not. */
+	private double lastX;
+
+	private double lastY;
+
+	/** Bounding box of all the vertices of the current row. */
+	private double xmin;
+
+	private double xmax;
+
+	private double ymin;
+
+	private double ymax;
+
+	/** The value parsed by the last call to parseNumber. */
+	private double value;
+
+	/**
+	 * Creates a reader.
+	 *
+	 * @param interval
+	 *            the interval in the input image that was passed to YOLO.
+	 * @param calibration
+	 *            the physical calibration of the input image.
+	 * @param tolerance
+	 *            the max distance between a dropped vertex and the
+	 *            simplified contour, in pixels. 0 only drops vertices
+	 *            aligned with their neighbors.
+	 */
+	public PolygonLabelReader( final Interval interval, final double[] calibration, final double tolerance )
+	{
+		this.interval = interval;
+		this.calibration = calibration;
+		this.tolerance = Math.max( 0., tolerance );
+		this.width = interval.dimension( 0 );
+		this.height = interval.dimension( 1 );
+	}
+
+	/**
+	 * Reads a label file and appends its contours to a table. Contours
+	 * simplified to less than 3 vertices are added as boxes.
+	 *
+	 * @param path
+	 *            the path to the label file.
+	 * @param table
+	 *            the table to append the detections to.
+	 * @param logger
+	 *            a {@link Logger} to report error messages.
+	 * @return <code>false</code> if the file could not be read.
+	 */
+	public boolean read( final Path path, final DetectionTable table, final Logger logger )
+	{
+		final byte[] bytes;
+		try
+		{
+			bytes = Files.readAllBytes( path );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Error reading the file " + path + "\n" + e.getMessage() + '\n' );
+			return false;
+		}
+
+		int ln = 0;
+		int start = 0;
+		while ( start < bytes.length )
+		{
+			ln++;
+			int end = start;
+			while ( end < bytes.length && bytes[ end ] != '\n' )
+				end++;
+			if ( !readRow( bytes, start, end, table ) )
+				logger.error( "Line " + ln + " in file " + path + " is not a class ID followed by contour vertices.\n" );
+			start = end + 1;
+		}
+		return true;
+	}
+
+	private boolean readRow( final byte[] b, final int start, final int end, final DetectionTable table )
+	{
+		int pos = skipWhitespace( b, start, end );
+		if ( pos == end )
+			return true; // Empty line.
+
+		pos = parseNumber( b, pos, end );
+		if ( pos < 0 )
+			return false;
+		final int cls = ( int ) value;
+
+		n = 0;
+		hasDirection = false;
+		xmin = Double.POSITIVE_INFINITY;
+		xmax = Double.NEGATIVE_INFINITY;
+		ymin = Double.POSITIVE_INFINITY;
+		ymax = Double.NEGATIVE_INFINITY;
+		boolean hasX = false;
+		double x = 0.;
+		int nRead = 0;
+		while ( ( pos = skipWhitespace( b, pos, end ) ) < end )
+		{
+			pos = parseNumber( b, pos, end );
+			if ( pos < 0 )
+				return false;
+			if ( !hasX )
+			{
+				x = value;
+				hasX = true;
+			}
+			else
+			{
+				addVertex( x * width, value * height );
+				nRead++;
+				hasX = false;
+			}
+		}
+		if ( nRead == 0 )
+			return false;
+		// An odd number of values ends with the confidence.
+		final double conf = hasX ? x : 1.;
+		finishContour();
+
+		if ( n < 3 )
+		{
+			// Collapsed by the simplification: keep its box.
+			table.add( cls,
+					calibration[ 0 ] * ( interval.min( 0 ) + 0.5 * ( xmin + xmax ) ),
+					calibration[ 1 ] * ( interval.min( 1 ) + 0.5 * ( ymin + ymax ) ),
+					calibration[ 0 ] * ( xmax - xmin ),
+					calibration[ 1 ] * ( ymax - ymin ),
+					conf );
+			return true;
+		}
+		for ( int k = 0; k < n; k++ )
+		{
+			xp[ k ] = calibration[ 0 ] * ( interval.min( 0 ) + xp[ k ] );
+			yp[ k ] = calibration[ 1 ] * ( interval.min( 1 ) + yp[ k ] );
+		}
+		table.addPolygon( cls, xp, yp, n, conf, 0 );
+		return true;
+	}
+
+	/**
+	 * Feeds a vertex to the Reumann-Witkam simplification.
+	 */
+	private void addVertex( final double x, final double y )
+	{
+		xmin = Math.min( xmin, x );
+		xmax = Math.max( xmax, x );
+		ymin = Math.min( ymin, y );
+		ymax = Math.max( ymax, y );
+
+		if ( n == 0 )
+		{
+			keep( x, y );
+		}
+		else if ( !hasDirection )
+		{
+			// Wait for a vertex far enough from the key to set the strip.
+			final double ux = x - xp[ n - 1 ];
+			final double uy = y - yp[ n - 1 ];
+			final double d = Math.sqrt( ux * ux + uy * uy );
+			if ( d > tolerance && d > 0. )
+			{
+				dx = ux / d;
+				dy = uy / d;
+				hasDirection = true;
+			}
+		}
+		else
+		{
+			// Distance to the line through the key, along the strip.
+			final double dist = Math.abs( ( x - xp[ n - 1 ] ) * dy - ( y - yp[ n - 1 ] ) * dx );
+			if ( dist > tolerance )
+			{
+				// Left the strip: the previous vertex becomes the new key.
+				keep( lastX, lastY );
+				hasDirection = false;
+				addVertex( x, y );
+				return;
+			}
+		}
+		lastX = x;
+		lastY = y;
+	}
+
+	private void finishContour()
+	{
+		if ( n > 0 && ( lastX != xp[ n - 1 ] || lastY != yp[ n - 1 ] ) )
+			keep( lastX, lastY );
+	}
+
+	private void keep( final double x, final double y )
+	{
+		if ( n == xp.length )
+		{
+			xp = Arrays.copyOf( xp, 2 * n );
+			yp = Arrays.copyOf( yp, 2 * n );
+		}
+		xp[ n ] = x;
+		yp[ n ] = y;
+		n++;
+	}
+
+	private static int skipWhitespace( final byte[] b, int pos, final int end )
+	{
+		while ( pos < end && ( b[ pos ] == ' ' || b[ pos ] == '\t' || b[ pos ] == '\r' ) )
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Parses the decimal number at the specified position, stores it in
+	 * {@link #value} and returns the position after it, or -1 if there is no
+	 * number there. Numbers with up to 18 significant digits and a small
+	 * exponent, as YOLO writes them, are parsed without creating a string.
+	 */
+	private int parseNumber( final byte[] b, final int start, final int end )
+	{
+		int pos = start;
+		boolean negative = false;
+		if ( b[ pos ] == '-' || b[ pos ] == '+' )
+		{
+			negative = b[ pos ] == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		int nDigits = 0;
+		while ( pos < end && b[ pos ] >= '0' && b[ pos ] <= '9' )
+		{
+			if ( digits < 18 )
+			{
+				mantissa = 10 * mantissa + ( b[ pos ] - '0' );
+				if ( mantissa > 0 )
+					digits++;
+			}
+			else
+			{
+				exponent++;
+			}
+			nDigits++;
+			pos++;
+		}
+		if ( pos < end && b[ pos ] == '.' )
+		{
+			pos++;
+			while ( pos < end && b[ pos ] >= '0' && b[ pos ] <= '9' )
+			{
+				if ( digits < 18 )
+				{
+					mantissa = 10 * mantissa + ( b[ pos ] - '0' );
+					exponent--;
+					if ( mantissa > 0 )
+						digits++;
+				}
+				nDigits++;
+				pos++;
+			}
+		}
+		if ( nDigits > 0 && pos < end && ( b[ pos ] == 'e' || b[ pos ] == 'E' ) )
+		{
+			pos++;
+			boolean negativeExponent = false;
+			if ( pos < end && ( b[ pos ] == '-' || b[ pos ] == '+' ) )
+			{
+				negativeExponent = b[ pos ] == '-';
+				pos++;
+			}
+			int e = 0;
+			int eDigits = 0;
+			while ( pos < end && b[ pos ] >= '0' && b[ pos ] <= '9' )
+			{
+				e = Math.min( 10 * e + ( b[ pos ] - '0' ), 1000 );
+				eDigits++;
+				pos++;
+			}
+			if ( eDigits == 0 )
+				return parseSlow( b, start, end );
+			exponent += negativeExponent ? -e : e;
+		}
+		if ( nDigits == 0 || ( pos < end && b[ pos ] != ' ' && b[ pos ] != '\t' && b[ pos ] != '\r' ) )
+			return parseSlow( b, start, end );
+
+		double v = mantissa;
+		if ( exponent < 0 )
+			v = ( -exponent < POW10.length ) ? v / POW10[ -exponent ] : v * Math.pow( 10., exponent );
+		else if ( exponent > 0 )
+			v = ( exponent < POW10.length ) ? v * POW10[ exponent ] : v * Math.pow( 10., exponent );
+		value = negative ? -v : v;
+		return pos;
+	}
+
+	/**
+	 * Parses the token at the specified position with
+	 * {@link Double#parseDouble(String)}, for the rare values the fast path
+	 * does not handle.
+	 */
+	private int parseSlow( final byte[] b, final int start, final int end )
+	{
+		int pos = start;
+		while ( pos < end && b[ pos ] != ' ' && b[ pos ] != '\t' && b[ pos ] != '\r' )
+			pos++;
+		try
+		{
+			value = Double.parseDouble( new String( b, start, pos - start, StandardCharsets.US_ASCII ) );
+			return pos;
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.yolo.FrameStreamer.Frame;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Runs YOLO on downsampled frames first, then at full resolution only
+ * around the candidates found on the downsampled frames.
+ * <p>
+ * Detection happens in two passes, so that each pass is a single YOLO run on
+ * a folder of images:
+ * <ol>
+ * <li>All frames are downsampled by the pyramid factor, averaging blocks of
+ * pixels, and inferred. The detections of this pass are only used as
+ * candidates.
+ * <li>Each frame is cropped at full resolution around its candidates,
+ * expanded by a margin that covers the imprecision of the coarse boxes.
+ * Overlapping crops are merged. Frames without candidates are not inferred
+ * again.
+ * </ol>
+ * The detections of the crops replace the candidates. They are mapped back to
+ * global coordinates by
+ * {@link YOLOUtils#importResultFile(String, Interval, double[], DetectionTable, Logger)}
+ * with the crop interval.
+ * <p>
+ * This works best for large frames in which objects cover a small fraction
+ * of the field of view, and are still visible once downsampled.
+ *
+ * @see ROIGuidedInference
+ */
+public class PyramidInference
+{
+
+	private static final String CROP_PREFIX = "crop";
+
+	private final int factor;
+
+	private final long margin;
+
+	/** The crops exported for the second pass, by file name. */
+	private final Map< String, Crop > crops = new HashMap<>();
+
+	private final List< Long > frames = new ArrayList<>();
+
+	private long nPixelsInferred;
+
+	private long nPixelsFull;
+
+	/**
+	 * Creates a pyramid inference.
+	 *
+	 * @param factor
+	 *            the downsampling factor of the first pass. Must be at least
+	 *            2.
+	 */
+	public PyramidInference( final int factor )
+	{
+		this.factor = Math.max( 2, factor );
+		// Coarse boxes are off by up to a coarse pixel on each side.
+		this.margin = 2l * this.factor;
+	}
+
+	/**
+	 * Exports the downsampled frames of the first pass to the specified
+	 * folder.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval.
+	 * @param frames
+	 *            the frames to process, in increasing order.
+	 * @param folder
+	 *            the folder to save the downsampled frames in.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportCoarse(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final String folder,
+			final Logger logger )
+	{
+		try (final FrameStreamer< T > streamer = new FrameStreamer<>( img, interval, frames, FrameStreamer.DEFAULT_PREFETCH ))
+		{
+			int nDone = 0;
+			while ( streamer.hasNext() )
+			{
+				final Frame< T > frame = streamer.next();
+				final RandomAccessibleInterval< T > coarse = ROIGuidedInference.downsample( frame.img(), factor );
+				if ( !ROIGuidedInference.save( coarse, folder, YOLOUtils.nameGen.apply( frame.t() ) ) )
+					return false;
+				nPixelsInferred += coarse.dimension( 0 ) * coarse.dimension( 1 );
+				nPixelsFull += frame.img().dimension( 0 ) * frame.img().dimension( 1 );
+				logger.setProgress( ( double ) ++nDone / frames.length );
+			}
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while resaving downsampled frames.\n" );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Error reading image frames:\n" + e.getCause().getMessage() + '\n' );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Exports the full-resolution crops around the candidates of the first
+	 * pass to the specified folder.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval.
+	 * @param frames
+	 *            the frames to process, in increasing order.
+	 * @param candidates
+	 *            the detections of the first pass, mapped by frame.
+	 * @param calibration
+	 *            the physical calibration of the source image.
+	 * @param folder
+	 *            the folder to save the crops in.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportCrops(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final Map< Integer, DetectionTable > candidates,
+			final double[] calibration,
+			final String folder,
+			final Logger logger )
+	{
+		Arrays.stream( frames ).forEach( this.frames::add );
+		final long[] withCandidates = Arrays.stream( frames )
+				.filter( t -> candidates.get( ( int ) t ) != null && candidates.get( ( int ) t ).size() > 0 )
+				.toArray();
+		if ( withCandidates.length == 0 )
+			return true;
+
+		try (final FrameStreamer< T > streamer = new FrameStreamer<>( img, interval, withCandidates, FrameStreamer.DEFAULT_PREFETCH ))
+		{
+			int nDone = 0;
+			while ( streamer.hasNext() )
+			{
+				final Frame< T > frame = streamer.next();
+				final long t = frame.t();
+				final RandomAccessibleInterval< T > fimg = frame.img();
+
+				final List< Interval > boxes = new ArrayList<>();
+				ROIGuidedInference.addBoxes( candidates.get( ( int ) t ), calibration, interval, margin, boxes );
+				final List< Interval > merged = ROIGuidedInference.merge( boxes );
+				for ( int i = 0; i < merged.size(); i++ )
+				{
+					final Interval roi = merged.get( i );
+					final long[] min = Intervals.minAsLongArray( fimg );
+					final long[] max = Intervals.maxAsLongArray( fimg );
+					for ( int d = 0; d < 2; d++ )
+					{
+						min[ d ] = roi.min( d ) - interval.min( d );
+						max[ d ] = roi.max( d ) - interval.min( d );
+					}
+					final String name = CROP_PREFIX + i + '_' + YOLOUtils.nameGen.apply( t );
+					if ( !ROIGuidedInference.save( Views.zeroMin( Views.interval( fimg, new FinalInterval( min, max ) ) ), folder, name ) )
+						return false;
+					crops.put( name, new Crop( t, roi ) );
+					nPixelsInferred += roi.dimension( 0 ) * roi.dimension( 1 );
+				}
+				logger.setProgress( ( double ) ++nDone / withCandidates.length );
+			}
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while resaving image crops.\n" );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Error reading image frames:\n" + e.getCause().getMessage() + '\n' );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Imports the YOLO results on the crops exported by
+	 * {@link #exportCrops(ImgPlus, Interval, long[], Map, double[], String, Logger)}.
+	 * The table of each frame is replaced by the detections of its crops.
+	 *
+	 * @param labelsFolder
+	 *            the folder containing the label files.
+	 * @param calibration
+	 *            the physical calibration of the source image.
+	 * @param tables
+	 *            the detection tables, mapped by time-point.
+	 * @param logger
+	 *            a logger to report error messages.
+	 */
+	public void importCrops(
+			final Path labelsFolder,
+			final double[] calibration,
+			final Map< Integer, DetectionTable > tables,
+			final Logger logger )
+	{
+		for ( final Long t : frames )
+			tables.put( t.intValue(), new DetectionTable() );
+
+		for ( final Map.Entry< String, Crop > entry : crops.entrySet() )
+		{
+			final Path labelFile = labelsFolder.resolve( entry.getKey() + ".txt" );
+			if ( !Files.exists( labelFile ) )
+				continue; // No detections in this crop.
+
+			final Crop crop = entry.getValue();
+			YOLOUtils.importResultFile( labelFile.toString(), crop.interval, calibration, tables.get( ( int ) crop.t ), logger );
+		}
+	}
+
+	/**
+	 * Returns the number of crops exported for the second pass.
+	 *
+	 * @return the number of crops.
+	 */
+	public int getNCrops()
+	{
+		return crops.size();
+	}
+
+	/**
+	 * Returns the fraction of the pixels of the frames that were inferred,
+	 * counting the downsampled frames of the first pass.
+	 *
+	 * @return the fraction of pixels inferred.
+	 */
+	public double getPixelFraction()
+	{
+		return nPixelsFull == 0 ? 0. : ( double ) nPixelsInferred / nPixelsFull;
+	}
+
+	/**
+	 * Returns the fraction of the pixels of the frames that were inferred at
+	 * full resolution, in the second pass.
+	 *
+	 * @return the fraction of pixels inferred at full resolution.
+	 */
+	public double getFullResolutionFraction()
+	{
+		if ( nPixelsFull == 0 )
+			return 0.;
+		long n = 0;
+		for ( final Crop crop : crops.values() )
+			n += crop.interval.dimension( 0 ) * crop.interval.dimension( 1 );
+		return ( double ) n / nPixelsFull;
+	}
+
+	private static class Crop
+	{
+
+		private final long t;
+
+		private final Interval interval;
+
+		private Crop( final long t, final Interval interval )
+		{
+			this.t = t;
+			this.interval = interval;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.yolo.FrameStreamer.Frame;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Runs YOLO on full frames only for keyframes, and on crops around known
+ * objects for the frames in between.
+ * <p>
+ * Detection happens in two passes, so that each pass is a single YOLO run on
+ * a folder of images:
+ * <ol>
+ * <li>Keyframes, taken every few frames, are inferred on the full frame.
+ * <li>Each frame between two keyframes is cropped around the detections of
+ * these two keyframes, expanded by a margin so that objects that moved are
+ * still in the crop. Overlapping crops are merged. Optionally, a downsampled
+ * copy of the full frame is added, to find objects that appeared since the
+ * last keyframe.
+ * </ol>
+ * Crop detections are mapped back to global coordinates by
+ * {@link YOLOUtils#importResultFile(String, Interval, double[], DetectionTable, Logger)}
+ * with the crop interval. Detections of the coarse copy are kept only if
+ * they are outside all the crops of their frame.
+ * <p>
+ * This works best for sparse scenes, where crops cover a small fraction of
+ * the field of view.
+ */
+public class ROIGuidedInference
+{
+
+	/**
+	 * Crops smaller than this in X or Y are enlarged to this size, so that
+	 * YOLO does not get images smaller than its stride.
+	 */
+	static final long MIN_CROP_SIZE = 32;
+
+	private static final String CROP_PREFIX = "roi";
+
+	private static final String COARSE_PREFIX = "coarse";
+
+	private final int keyframeInterval;
+
+	private final long margin;
+
+	private final int coarseFactor;
+
+	/** The crops exported for the second pass, by file name. */
+	private final Map< String, Crop > crops = new HashMap<>();
+
+	/** The crop intervals of each frame of the second pass. */
+	private final Map< Long, List< Interval > > rois = new HashMap<>();
+
+	private long nPixelsInferred;
+
+	private long nPixelsFull;
+
+	/**
+	 * Creates a ROI-guided inference.
+	 *
+	 * @param keyframeInterval
+	 *            the number of frames between two keyframes. Must be at least
+	 *            2.
+	 * @param margin
+	 *            the margin, in pixels, added around the detections of
+	 *            keyframes to build the crops of the frames in between.
+	 * @param coarseFactor
+	 *            the downsampling factor of the full-frame copy used to find
+	 *            new objects between keyframes. A value smaller than 2 skips
+	 *            this check.
+	 */
+	public ROIGuidedInference( final int keyframeInterval, final long margin, final int coarseFactor )
+	{
+		this.keyframeInterval = Math.max( 2, keyframeInterval );
+		this.margin = Math.max( 0, margin );
+		this.coarseFactor = coarseFactor;
+	}
+
+	/**
+	 * Returns the keyframes among the specified frames: the first one, every
+	 * keyframe interval after it, and the last one.
+	 *
+	 * @param frames
+	 *            the frames to process, in increasing order.
+	 * @return a new array.
+	 */
+	public long[] keyframes( final long[] frames )
+	{
+		if ( frames.length == 0 )
+			return frames;
+
+		final List< Long > keys = new ArrayList<>();
+		for ( int i = 0; i < frames.length; i += keyframeInterval )
+			keys.add( frames[ i ] );
+		final long last = frames[ frames.length - 1 ];
+		if ( keys.get( keys.size() - 1 ) != last )
+			keys.add( last );
+		return keys.stream().mapToLong( Long::longValue ).toArray();
+	}
+
+	/**
+	 * Exports the crops of the frames between keyframes to the specified
+	 * folder.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval.
+	 * @param frames
+	 *            the frames to process, in increasing order, including the
+	 *            keyframes.
+	 * @param keyTables
+	 *            the detections of the keyframes, mapped by frame.
+	 * @param calibration
+	 *            the physical calibration of the source image.
+	 * @param folder
+	 *            the folder to save the crops in.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportCrops(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final Map< Integer, DetectionTable > keyTables,
+			final double[] calibration,
+			final String folder,
+			final Logger logger )
+	{
+		final long[] keys = keyframes( frames );
+		final long[] between = Arrays.stream( frames )
+				.filter( t -> Arrays.binarySearch( keys, t ) < 0 )
+				.toArray();
+		if ( between.length == 0 )
+			return true;
+
+		try (final FrameStreamer< T > streamer = new FrameStreamer<>( img, interval, between, FrameStreamer.DEFAULT_PREFETCH ))
+		{
+			int nDone = 0;
+			while ( streamer.hasNext() )
+			{
+				final Frame< T > frame = streamer.next();
+				final long t = frame.t();
+				final RandomAccessibleInterval< T > fimg = frame.img();
+				nPixelsFull += fimg.dimension( 0 ) * fimg.dimension( 1 );
+
+				// Previous and next keyframes.
+				final int k = -Arrays.binarySearch( keys, t ) - 1;
+				final List< Interval > boxes = new ArrayList<>();
+				addBoxes( keyTables.get( ( int ) keys[ k - 1 ] ), calibration, interval, margin, boxes );
+				addBoxes( keyTables.get( ( int ) keys[ k ] ), calibration, interval, margin, boxes );
+				final List< Interval > merged = merge( boxes );
+				rois.put( t, merged );
+
+				for ( int i = 0; i < merged.size(); i++ )
+				{
+					final Interval roi = merged.get( i );
+					final long[] min = Intervals.minAsLongArray( fimg );
+					final long[] max = Intervals.maxAsLongArray( fimg );
+					for ( int d = 0; d < 2; d++ )
+					{
+						min[ d ] = roi.min( d ) - interval.min( d );
+						max[ d ] = roi.max( d ) - interval.min( d );
+					}
+					final String name = CROP_PREFIX + i + '_' + YOLOUtils.nameGen.apply( t );
+					if ( !save( Views.zeroMin( Views.interval( fimg, new FinalInterval( min, max ) ) ), folder, name ) )
+						return false;
+					crops.put( name, new Crop( t, roi, false ) );
+					nPixelsInferred += roi.dimension( 0 ) * roi.dimension( 1 );
+				}
+
+				if ( coarseFactor > 1 )
+				{
+					final RandomAccessibleInterval< T > coarse = downsample( fimg, coarseFactor );
+					final String name = COARSE_PREFIX + '_' + YOLOUtils.nameGen.apply( t );
+					if ( !save( coarse, folder, name ) )
+						return false;
+					crops.put( name, new Crop( t, frameInterval( interval ), true ) );
+					nPixelsInferred += coarse.dimension( 0 ) * coarse.dimension( 1 );
+				}
+
+				logger.setProgress( ( double ) ++nDone / between.length );
+			}
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while resaving image crops.\n" );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Error reading image frames:\n" + e.getCause().getMessage() + '\n' );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Imports the YOLO results on the crops exported by
+	 * {@link #exportCrops(ImgPlus, Interval, long[], Map, double[], String, Logger)}.
+	 *
+	 * @param labelsFolder
+	 *            the folder containing the label files.
+	 * @param calibration
+	 *            the physical calibration of the source image.
+	 * @param tables
+	 *            the detection tables, mapped by time-point. A table is
+	 *            created for each frame between keyframes.
+	 * @param logger
+	 *            a logger to report error messages.
+	 */
+	public void importCrops(
+			final Path labelsFolder,
+			final double[] calibration,
+			final Map< Integer, DetectionTable > tables,
+			final Logger logger )
+	{
+		for ( final Long t : rois.keySet() )
+			tables.computeIfAbsent( t.intValue(), k -> new DetectionTable() );
+
+		for ( final Map.Entry< String, Crop > entry : crops.entrySet() )
+		{
+			final Path labelFile = labelsFolder.resolve( entry.getKey() + ".txt" );
+			if ( !Files.exists( labelFile ) )
+				continue; // No detections in this crop.
+
+			final Crop crop = entry.getValue();
+			final DetectionTable table = tables.get( ( int ) crop.t );
+			if ( !crop.coarse )
+			{
+				YOLOUtils.importResultFile( labelFile.toString(), crop.interval, calibration, table, logger );
+				continue;
+			}
+
+			// Only keep new objects from the coarse check.
+			final DetectionTable coarse = new DetectionTable();
+			YOLOUtils.importResultFile( labelFile.toString(), crop.interval, calibration, coarse, logger );
+			final List< Interval > frameRois = rois.get( crop.t );
+			for ( int i = 0; i < coarse.size(); i++ )
+			{
+				final long x = Math.round( coarse.x( i ) / calibration[ 0 ] );
+				final long y = Math.round( coarse.y( i ) / calibration[ 1 ] );
+				if ( frameRois.stream().anyMatch( r -> x >= r.min( 0 ) && x <= r.max( 0 ) && y >= r.min( 1 ) && y <= r.max( 1 ) ) )
+					continue;
+				table.add( coarse.classId( i ), coarse.x( i ), coarse.y( i ), coarse.width( i ), coarse.height( i ), coarse.confidence( i ) );
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of images exported for the second pass.
+	 *
+	 * @return the number of images.
+	 */
+	public int getNCrops()
+	{
+		return crops.size();
+	}
+
+	/**
+	 * Returns the fraction of the pixels of the frames between keyframes
+	 * that were sent to YOLO.
+	 *
+	 * @return the fraction of pixels inferred, between 0 and 1 or more.
+	 */
+	public double getPixelFraction()
+	{
+		return nPixelsFull == 0 ? 0. : ( double ) nPixelsInferred / nPixelsFull;
+	}
+
+	/**
+	 * Adds the boxes of the specified detections, in pixel coordinates,
+	 * expanded by the margin and clipped to the detection interval.
+	 */
+	static void addBoxes( final DetectionTable table, final double[] calibration, final Interval interval, final long margin, final List< Interval > boxes )
+	{
+		if ( table == null )
+			return;
+
+		for ( int i = 0; i < table.size(); i++ )
+		{
+			final double xc = table.x( i ) / calibration[ 0 ];
+			final double yc = table.y( i ) / calibration[ 1 ];
+			final double hw = Math.max( table.width( i ) / calibration[ 0 ] / 2., MIN_CROP_SIZE / 2. );
+			final double hh = Math.max( table.height( i ) / calibration[ 1 ] / 2., MIN_CROP_SIZE / 2. );
+			final long xmin = Math.max( interval.min( 0 ), ( long ) Math.floor( xc - hw ) - margin );
+			final long ymin = Math.max( interval.min( 1 ), ( long ) Math.floor( yc - hh ) - margin );
+			final long xmax = Math.min( interval.max( 0 ), ( long ) Math.ceil( xc + hw ) + margin );
+			final long ymax = Math.min( interval.max( 1 ), ( long ) Math.ceil( yc + hh ) + margin );
+			if ( xmax < xmin || ymax < ymin )
+				continue;
+			boxes.add( new FinalInterval( new long[] { xmin, ymin }, new long[] { xmax, ymax } ) );
+		}
+	}
+
+	/**
+	 * Merges the boxes that overlap, until all boxes are disjoint.
+	 */
+	static List< Interval > merge( final List< Interval > boxes )
+	{
+		final List< Interval > merged = new ArrayList<>( boxes );
+		boolean changed = true;
+		while ( changed )
+		{
+			changed = false;
+			for ( int i = 0; i < merged.size() && !changed; i++ )
+			{
+				for ( int j = i + 1; j < merged.size(); j++ )
+				{
+					if ( Intervals.isEmpty( Intervals.intersect( merged.get( i ), merged.get( j ) ) ) )
+						continue;
+					merged.set( i, Intervals.union( merged.get( i ), merged.get( j ) ) );
+					merged.remove( j );
+					changed = true;
+					break;
+				}
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the X and Y part of the detection interval.
+	 */
+	static Interval frameInterval( final Interval interval )
+	{
+		return new FinalInterval(
+				new long[] { interval.min( 0 ), interval.min( 1 ) },
+				new long[] { interval.max( 0 ), interval.max( 1 ) } );
+	}
+
+	/**
+	 * Downsamples a frame in X and Y by averaging the pixels of each block of
+	 * <code>factor x factor</code> pixels, so that objects smaller than a
+	 * block are dimmed rather than skipped, as they would be by picking one
+	 * pixel per block. Blocks cut by the frame border average the pixels they
+	 * hold.
+	 *
+	 * @param frame
+	 *            the frame to downsample.
+	 * @param factor
+	 *            the downsampling factor.
+	 * @return a new image, of the same pixel type as the frame.
+	 */
+	static < T extends RealType< T > & NativeType< T > > Img< T > downsample( final RandomAccessibleInterval< T > frame, final int factor )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( frame );
+		final long[] coarseDims = dims.clone();
+		for ( int d = 0; d < 2; d++ )
+			coarseDims[ d ] = ( dims[ d ] + factor - 1 ) / factor;
+		final Img< T > coarse = new PlanarImgFactory<>( Util.getTypeFromInterval( frame ) ).create( coarseDims );
+
+		final double[] sums = new double[ ( int ) Intervals.numElements( coarseDims ) ];
+		final int[] counts = new int[ sums.length ];
+		final long[] position = new long[ dims.length ];
+		final Cursor< T > cursor = Views.flatIterable( Views.zeroMin( frame ) ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+			position[ 0 ] /= factor;
+			position[ 1 ] /= factor;
+			final int i = ( int ) IntervalIndexer.positionToIndex( position, coarseDims );
+			sums[ i ] += cursor.get().getRealDouble();
+			counts[ i ]++;
+		}
+
+		// Flat iteration follows the same order as the indexer.
+		final Cursor< T > out = Views.flatIterable( coarse ).cursor();
+		for ( int i = 0; out.hasNext(); i++ )
+			out.next().setReal( sums[ i ] / counts[ i ] );
+		return coarse;
+	}
+
+	static < T extends RealType< T > & NativeType< T > > boolean save( final RandomAccessibleInterval< T > crop, final String folder, final String name )
+	{
+		final String path = folder + File.separator + name + ".tif";
+		final ImagePlus imp = ImageJFunctions.wrap( crop, name );
+		return IJ.saveAsTiff( imp, path );
+	}
+
+	private static class Crop
+	{
+
+		private final long t;
+
+		private final Interval interval;
+
+		private final boolean coarse;
+
+		private Crop( final long t, final Interval interval, final boolean coarse )
+		{
+			this.t = t;
+			this.interval = interval;
+			this.coarse = coarse;
+		}
+	}
+}
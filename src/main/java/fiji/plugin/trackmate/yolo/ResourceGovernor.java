@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import fiji.plugin.trackmate.Logger;
+import ij.Prefs;
+
+/**
+ * Adapts the resources a detection run takes to what the machine has left.
+ * <p>
+ * While the run goes on, the governor checks the free Java heap, the room
+ * left in the {@link FramePool}s, the free space in the folder frames are
+ * exported to, and the number of YOLO inferences running on the machine, as
+ * seen by the {@link InferenceArbiter}. From these, it sizes the number of
+ * frames copied ahead of the export, the number of frames in a chunk, and the
+ * number of workers that run inference at the same time, each within the
+ * limit the run was started with. Every change is logged, with its reason.
+ * Callers check the prefetch depth once per chunk, or every
+ * {@link #CHECK_INTERVAL} frames when frames are not exported in chunks.
+ * <p>
+ * The heap and disk space to leave free, and the max prefetch depth, are
+ * stored in the ImageJ preferences.
+ */
+public class ResourceGovernor
+{
+
+	private static final String MIN_FREE_HEAP_PREF_KEY = "trackmate.yolo.minFreeHeap";
+
+	private static final String MIN_FREE_DISK_PREF_KEY = "trackmate.yolo.minFreeDisk";
+
+	private static final String MAX_PREFETCH_PREF_KEY = "trackmate.yolo.maxPrefetch";
+
+	/** Default heap to leave free, in MB. */
+	public static final int DEFAULT_MIN_FREE_HEAP = 256;
+
+	/** Default space to leave free in the export folder, in MB. */
+	public static final int DEFAULT_MIN_FREE_DISK = 1024;
+
+	/** Default max number of frames copied ahead of the export. */
+	public static final int DEFAULT_MAX_PREFETCH = 4;
+
+	private static final long MB = 1024l * 1024l;
+
+	/**
+	 * Number of frames between two checks of the prefetch depth, when frames
+	 * are not exported in chunks.
+	 */
+	public static final int CHECK_INTERVAL = 32;
+
+	private final Path folder;
+
+	private final int maxChunkSize;
+
+	private final int maxWorkers;
+
+	private final Logger logger;
+
+	private final long minFreeHeap;
+
+	private final long minFreeDisk;
+
+	private final int maxPrefetch;
+
+	private int prefetch = -1;
+
+	private int chunkSize = -1;
+
+	private int workers = -1;
+
+	/**
+	 * Creates a governor for one run.
+	 *
+	 * @param folder
+	 *            the folder frames are exported to.
+	 * @param maxChunkSize
+	 *            the max number of frames in a chunk.
+	 * @param maxWorkers
+	 *            the max number of workers running inference together.
+	 * @param logger
+	 *            a logger to report adjustments.
+	 */
+	public ResourceGovernor( final Path folder, final int maxChunkSize, final int maxWorkers, final Logger logger )
+	{
+		this.folder = folder;
+		this.maxChunkSize = Math.max( 1, maxChunkSize );
+		this.maxWorkers = Math.max( 1, maxWorkers );
+		this.logger = logger;
+		this.minFreeHeap = getMinFreeHeap() * MB;
+		this.minFreeDisk = getMinFreeDisk() * MB;
+		this.maxPrefetch = getMaxPrefetch();
+	}
+
+	/**
+	 * Returns the number of frames to copy ahead of the export.
+	 *
+	 * @param frameBytes
+	 *            the size of one frame in memory, in bytes.
+	 * @return the prefetch depth, between 0 and the max prefetch depth.
+	 */
+	public synchronized int prefetch( final long frameBytes )
+	{
+		final long heap = freeHeap();
+		// The frame being consumed takes its share too.
+		final long n = ( heap - minFreeHeap ) / Math.max( 1, frameBytes ) - 1;
+		return setPrefetch( n, String.format( "%d MB free heap", heap / MB ) );
+	}
+
+	/**
+	 * Returns the number of frames a streamer should copy ahead of the
+	 * export. Frames copied in pooled buffers take direct memory, and are
+	 * budgeted against the room left in the frame pools. Other frames take
+	 * heap.
+	 *
+	 * @param streamer
+	 *            the streamer.
+	 * @return the prefetch depth, between 0 and the max prefetch depth.
+	 */
+	public synchronized int prefetch( final FrameStreamer< ? > streamer )
+	{
+		final FramePool pool = streamer.getPool();
+		if ( pool == null )
+			return prefetch( streamer.getFrameBytes() );
+
+		// The frames this streamer holds already are part of its share.
+		final long available = FramePool.getAvailableBytes();
+		final long n = available / pool.getBufferSize() + streamer.getNAhead() - 1;
+		return setPrefetch( n, String.format( "%d MB free in the frame pools", available / MB ) );
+	}
+
+	private int setPrefetch( final long n, final String reason )
+	{
+		final int value = ( int ) Math.max( 0, Math.min( maxPrefetch, n ) );
+		if ( value != prefetch )
+			log( "prefetch depth", prefetch, value, reason );
+		prefetch = value;
+		return value;
+	}
+
+	/**
+	 * Returns the number of frames to put in the next chunk. Chunks waiting
+	 * for a worker and chunks being processed are all on disk together, so
+	 * the free space is shared between them.
+	 *
+	 * @param frameBytes
+	 *            the size of one exported frame, in bytes.
+	 * @param nChunks
+	 *            the max number of chunks on disk at the same time.
+	 * @return the chunk size, between 1 and the max chunk size.
+	 */
+	public synchronized int chunkSize( final long frameBytes, final int nChunks )
+	{
+		final long disk = freeDisk();
+		final long n = ( disk - minFreeDisk ) / Math.max( 1, frameBytes ) / Math.max( 1, nChunks );
+		final int value = ( int ) Math.max( 1, Math.min( maxChunkSize, n ) );
+		if ( value != chunkSize )
+			log( "chunk size", chunkSize, value, String.format( "%d MB free in %s", disk / MB, folder ) );
+		chunkSize = value;
+		return value;
+	}
+
+	/**
+	 * Returns the number of workers that may run inference together. Slots
+	 * taken by other jobs of the machine are left to them, and a single
+	 * worker runs when the heap is low.
+	 *
+	 * @param active
+	 *            the number of workers of this run currently holding an
+	 *            inference slot.
+	 * @return the number of workers, between 1 and the max number of workers.
+	 */
+	public synchronized int workers( final int active )
+	{
+		final long heap = freeHeap();
+		final int others = Math.max( 0, InferenceArbiter.getNBusy() - active );
+		final int free = InferenceArbiter.getMaxSlots() - others;
+		int value = Math.max( 1, Math.min( maxWorkers, free ) );
+		String reason = String.format( "%d of %d inference slots taken by other jobs", others, InferenceArbiter.getMaxSlots() );
+		if ( heap < minFreeHeap )
+		{
+			value = 1;
+			reason = String.format( "%d MB free heap", heap / MB );
+		}
+		if ( value != workers )
+			log( "concurrent workers", workers, value, reason );
+		workers = value;
+		return value;
+	}
+
+	private void log( final String what, final int from, final int to, final String reason )
+	{
+		if ( from < 0 )
+			logger.log( String.format( "Resources: %s set to %d (%s).\n", what, to, reason ) );
+		else
+			logger.log( String.format( "Resources: %s changed from %d to %d (%s).\n", what, from, to, reason ) );
+	}
+
+	private long freeDisk()
+	{
+		try
+		{
+			return Files.getFileStore( folder ).getUsableSpace();
+		}
+		catch ( final IOException e )
+		{
+			// Cannot tell: do not restrict.
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Returns the heap that can still be allocated, in bytes.
+	 *
+	 * @return the free heap.
+	 */
+	public static long freeHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+
+	/**
+	 * Returns the heap a run should leave free.
+	 *
+	 * @return the free heap, in MB.
+	 */
+	public static int getMinFreeHeap()
+	{
+		return Math.max( 0, Prefs.getInt( MIN_FREE_HEAP_PREF_KEY, DEFAULT_MIN_FREE_HEAP ) );
+	}
+
+	/**
+	 * Sets the heap a run should leave free, and saves it in the ImageJ
+	 * preferences.
+	 *
+	 * @param mb
+	 *            the free heap, in MB.
+	 */
+	public static void setMinFreeHeap( final int mb )
+	{
+		Prefs.set( MIN_FREE_HEAP_PREF_KEY, Math.max( 0, mb ) );
+	}
+
+	/**
+	 * Returns the space a run should leave free in the export folder.
+	 *
+	 * @return the free space, in MB.
+	 */
+	public static int getMinFreeDisk()
+	{
+		return Math.max( 0, Prefs.getInt( MIN_FREE_DISK_PREF_KEY, DEFAULT_MIN_FREE_DISK ) );
+	}
+
+	/**
+	 * Sets the space a run should leave free in the export folder, and saves
+	 * it in the ImageJ preferences.
+	 *
+	 * @param mb
+	 *            the free space, in MB.
+	 */
+	public static void setMinFreeDisk( final int mb )
+	{
+		Prefs.set( MIN_FREE_DISK_PREF_KEY, Math.max( 0, mb ) );
+	}
+
+	/**
+	 * Returns the max number of frames copied ahead of the export.
+	 *
+	 * @return the max prefetch depth.
+	 */
+	public static int getMaxPrefetch()
+	{
+		return Math.max( 0, Prefs.getInt( MAX_PREFETCH_PREF_KEY, DEFAULT_MAX_PREFETCH ) );
+	}
+
+	/**
+	 * Sets the max number of frames copied ahead of the export, and saves it
+	 * in the ImageJ preferences.
+	 *
+	 * @param maxPrefetch
+	 *            the max prefetch depth.
+	 */
+	public static void setMaxPrefetch( final int maxPrefetch )
+	{
+		Prefs.set( MAX_PREFETCH_PREF_KEY, Math.max( 0, maxPrefetch ) );
+	}
+}
@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_TUNE_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_TUNE_TOLERANCE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+import fiji.plugin.trackmate.yolo.InferenceArbiter.Slot;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Finds the fastest {@link InferenceProfile} for a model on this machine.
+ * <p>
+ * A few frames sampled from the detection interval are inferred with a
+ * reference profile, that uses the ultralytics defaults and all the threads
+ * given by the {@link InferenceArbiter}. Then each parameter of the profile
+ * is tuned in turn: image size, batch size, threads, then half precision if
+ * the worker runs on a CUDA device.
+ * For each parameter, every candidate value is timed on the sample frames,
+ * and the fastest one is kept if its detections match the ones of the
+ * reference well enough. The match is measured by the F1 score of the
+ * pairing of detections of the same class with an IoU larger than 0.5, and
+ * must be larger than 1 minus the tolerance.
+ */
+public class YOLOAutoTuner
+{
+
+	private static final int N_SAMPLE_FRAMES = 8;
+
+	private static final int[] IMGSZ_CANDIDATES = new int[] { 320, 480, 640, 800 };
+
+	private static final int[] BATCH_CANDIDATES = new int[] { 1, 4, 8 };
+
+	private static final double MATCH_IOU = 0.5;
+
+	private YOLOAutoTuner()
+	{}
+
+	/**
+	 * Benchmarks candidate profiles on frames of the specified image, and
+	 * returns the fastest one that stays within the tolerance.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the detection interval, to sample frames in.
+	 * @param settings
+	 *            the detector settings. The tolerance is read from them.
+	 * @param logger
+	 *            a logger to report progress and the benchmark results.
+	 * @return the fastest profile.
+	 * @throws IOException
+	 *             if the sample frames cannot be saved, or if the model fails.
+	 * @throws InterruptedException
+	 *             if interrupted while benchmarking.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > InferenceProfile tune(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final Map< String, Object > settings,
+			final Logger logger ) throws IOException, InterruptedException
+	{
+		final double tolerance = ( ( Number ) settings.getOrDefault( KEY_YOLO_TUNE_TOLERANCE, DEFAULT_YOLO_TUNE_TOLERANCE ) ).doubleValue();
+		final double conf = ( ( Number ) settings.get( KEY_YOLO_CONF ) ).doubleValue();
+		final double iou = ( ( Number ) settings.get( KEY_YOLO_IOU ) ).doubleValue();
+
+		// Sample frames.
+		final long[] all = FrameStreamer.timePoints( img, interval );
+		final int n = Math.min( N_SAMPLE_FRAMES, all.length );
+		final long[] frames = new long[ n ];
+		for ( int i = 0; i < n; i++ )
+			frames[ i ] = all[ ( int ) ( ( long ) i * all.length / n ) ];
+		final Path folder = Files.createTempDirectory( "TrackMate-YOLO-tune_" );
+		CLIUtils.recursiveDeleteOnShutdownHook( folder );
+		final Path imgFolder = Files.createDirectories( folder.resolve( "imgs" ) );
+		logger.log( "Auto-tuning on " + n + " frames.\n" );
+		if ( !YOLOUtils.resaveSingleTimePoints( img, interval, frames, imgFolder.toString(), logger ) )
+			throw new IOException( "Problem saving image frames to " + imgFolder );
+
+		// Model.
+		final String condaEnv = ( String ) settings.get( KEY_CONDA_ENV );
+		final String modelPath = ModelConverter.resolve( settings, logger );
+		YOLOWorkerCache.warmUp( condaEnv, modelPath );
+		final YOLOWorker worker = YOLOWorkerCache.get( condaEnv, modelPath );
+		if ( worker == null )
+			throw new IOException( "Could not load the model " + modelPath + ":\n"
+					+ YOLOWorkerCache.getErrorMessage( condaEnv, modelPath ) );
+
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		try (final Slot slot = InferenceArbiter.acquire( logger ))
+		{
+			final Bench bench = new Bench( worker, imgFolder, folder, interval, calibration, conf, iou, logger );
+			final int maxThreads = slot.getThreads();
+
+			// Reference, after a warm-up run.
+			InferenceProfile best = new InferenceProfile( 0, 0, maxThreads, false );
+			bench.run( best );
+			final Result reference = bench.run( best );
+			logger.log( String.format( " - %s: %.0f ms (reference)\n", best, reference.time ) );
+			double bestTime = reference.time;
+
+			// Tune one parameter at a time.
+			final List< InferenceProfile > candidates = new ArrayList<>();
+			// Half precision only applies to CUDA devices.
+			final int nStages = worker.hasCuda() ? 4 : 3;
+			for ( int stage = 0; stage < nStages; stage++ )
+			{
+				candidates.clear();
+				switch ( stage )
+				{
+				case 0:
+					for ( final int v : IMGSZ_CANDIDATES )
+						candidates.add( best.imgsz( v ) );
+					break;
+				case 1:
+					for ( final int v : BATCH_CANDIDATES )
+						candidates.add( best.batch( v ) );
+					break;
+				case 2:
+					for ( int v = maxThreads / 2; v >= 1; v /= 2 )
+						candidates.add( best.threads( v ) );
+					break;
+				default:
+					candidates.add( best.half( true ) );
+					break;
+				}
+
+				InferenceProfile stageBest = best;
+				for ( final InferenceProfile candidate : candidates )
+				{
+					final Result result = bench.run( candidate );
+					final double score = agreement( reference.tables, result.tables );
+					final boolean ok = score >= 1. - tolerance;
+					logger.log( String.format( " - %s: %.0f ms, agreement %.3f%s\n",
+							candidate, result.time, score, ok ? "" : " (rejected)" ) );
+					if ( ok && result.time < bestTime )
+					{
+						bestTime = result.time;
+						stageBest = candidate;
+					}
+				}
+				best = stageBest;
+			}
+
+			logger.log( String.format( "Auto-tuning picked %s: %.0f ms instead of %.0f ms for %d frames.\n",
+					best, bestTime, reference.time, n ) );
+			// Do not store the number of threads if it is all we are given.
+			return best.getThreads() == maxThreads ? best.threads( 0 ) : best;
+		}
+	}
+
+	/**
+	 * Returns the F1 score of the match between the detections of two runs,
+	 * pooled over all frames.
+	 */
+	private static double agreement( final Map< Integer, DetectionTable > reference, final Map< Integer, DetectionTable > other )
+	{
+		int nRef = 0;
+		int nOther = 0;
+		int nMatches = 0;
+		for ( final Integer t : reference.keySet() )
+			nRef += reference.get( t ).size();
+		for ( final Integer t : other.keySet() )
+		{
+			final DetectionTable b = other.get( t );
+			nOther += b.size();
+			final DetectionTable a = reference.get( t );
+			if ( a != null )
+				nMatches += countMatches( a, b );
+		}
+		if ( nRef + nOther == 0 )
+			return 1.;
+		return 2. * nMatches / ( nRef + nOther );
+	}
+
+	/**
+	 * Greedily pairs detections of the same class, by decreasing IoU.
+	 */
+	private static int countMatches( final DetectionTable a, final DetectionTable b )
+	{
+		final List< double[] > pairs = new ArrayList<>();
+		for ( int i = 0; i < a.size(); i++ )
+			for ( int j = 0; j < b.size(); j++ )
+			{
+				if ( a.classId( i ) != b.classId( j ) )
+					continue;
+				final double iou = iou( a, i, b, j );
+				if ( iou >= MATCH_IOU )
+					pairs.add( new double[] { iou, i, j } );
+			}
+		Collections.sort( pairs, ( p1, p2 ) -> Double.compare( p2[ 0 ], p1[ 0 ] ) );
+
+		final boolean[] usedA = new boolean[ a.size() ];
+		final boolean[] usedB = new boolean[ b.size() ];
+		int n = 0;
+		for ( final double[] pair : pairs )
+		{
+			final int i = ( int ) pair[ 1 ];
+			final int j = ( int ) pair[ 2 ];
+			if ( usedA[ i ] || usedB[ j ] )
+				continue;
+			usedA[ i ] = true;
+			usedB[ j ] = true;
+			n++;
+		}
+		return n;
+	}
+
+	private static double iou( final DetectionTable a, final int i, final DetectionTable b, final int j )
+	{
+		final double ix = overlap( a.x( i ), a.width( i ), b.x( j ), b.width( j ) );
+		final double iy = overlap( a.y( i ), a.height( i ), b.y( j ), b.height( j ) );
+		final double inter = ix * iy;
+		final double union = a.width( i ) * a.height( i ) + b.width( j ) * b.height( j ) - inter;
+		return union <= 0. ? 0. : inter / union;
+	}
+
+	private static double overlap( final double c1, final double s1, final double c2, final double s2 )
+	{
+		final double min = Math.max( c1 - s1 / 2., c2 - s2 / 2. );
+		final double max = Math.min( c1 + s1 / 2., c2 + s2 / 2. );
+		return Math.max( 0., max - min );
+	}
+
+	private static class Result
+	{
+
+		private final double time;
+
+		private final Map< Integer, DetectionTable > tables;
+
+		private Result( final double time, final Map< Integer, DetectionTable > tables )
+		{
+			this.time = time;
+			this.tables = tables;
+		}
+	}
+
+	/**
+	 * Runs the sample frames through the worker with a given profile.
+	 */
+	private static class Bench
+	{
+
+		private final YOLOWorker worker;
+
+		private final Path imgFolder;
+
+		private final Path folder;
+
+		private final Interval interval;
+
+		private final double[] calibration;
+
+		private final double conf;
+
+		private final double iou;
+
+		private final Logger logger;
+
+		private int nRuns = 0;
+
+		private Bench(
+				final YOLOWorker worker,
+				final Path imgFolder,
+				final Path folder,
+				final Interval interval,
+				final double[] calibration,
+				final double conf,
+				final double iou,
+				final Logger logger )
+		{
+			this.worker = worker;
+			this.imgFolder = imgFolder;
+			this.folder = folder;
+			this.interval = interval;
+			this.calibration = calibration;
+			this.conf = conf;
+			this.iou = iou;
+			this.logger = logger;
+		}
+
+		private Result run( final InferenceProfile profile ) throws IOException, InterruptedException
+		{
+			if ( Thread.interrupted() )
+				throw new InterruptedException();
+
+			logger.setStatus( "Auto-tuning: " + profile );
+			final Path output = Files.createDirectories( folder.resolve( "run-" + nRuns++ ) );
+			final Path stream = output.resolve( DetectionStream.FILE_NAME );
+			final long start = System.nanoTime();
+			worker.predict( imgFolder, output, conf, iou, profile, stream, null );
+			final double time = ( System.nanoTime() - start ) / 1e6;
+			return new Result( time, new DetectionStream( stream, interval, calibration ).readNew() );
+		}
+	}
+}
@@ -0,0 +1,742 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_LOGGER;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+import fiji.plugin.trackmate.yolo.FrameStreamer.Frame;
+import fiji.plugin.trackmate.yolo.InferenceArbiter.Slot;
+import fiji.plugin.trackmate.yolo.YOLOEvents.InferenceEvent;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs YOLO detection headless on a list of movies, with one set of detector
+ * settings, and writes one TrackMate XML file per movie.
+ * <p>
+ * The frames of all movies are split in chunks and scheduled on a shared pool
+ * of YOLO workers, each with the model loaded once for the whole batch. Movies
+ * are exported one after the other while the workers process the chunks of
+ * the previous ones. Completed movies are recorded in a manifest file in the
+ * output folder, so that a batch that was interrupted resumes where it
+ * stopped when it is run again.
+ * <p>
+ * A {@link ResourceGovernor} sizes the chunks, the number of frames read
+ * ahead, and the number of workers running inference at the same time, from
+ * the free heap, the free temporary disk space and the other YOLO jobs of
+ * the machine. The chunk size and number of workers given here are upper
+ * limits.
+ * <p>
+ * Example use from a script:
+ *
+ * <pre>
+ * settings = YOLODetectorFactory().getDefaultSettings()
+ * settings.put('CONDA_ENV', 'yolo')
+ * settings.put('YOLO_MODEL_FILEPATH', '/path/to/model.pt')
+ * images = YOLOBatchRunner.listImages('/path/to/movies')
+ * runner = YOLOBatchRunner(images, settings, '/path/to/output', 4)
+ * if not runner.checkInput() or not runner.process():
+ *     print(runner.getErrorMessage())
+ * </pre>
+ */
+public class YOLOBatchRunner implements Algorithm, Benchmark
+{
+
+	private static final String BASE_ERROR_MESSAGE = YOLODetector.BASE_ERROR_MESSAGE;
+
+	public static final String MANIFEST_FILENAME = "yolo-batch-manifest.txt";
+
+	private static final String MANIFEST_DONE = "DONE";
+
+	/** Max number of frames sent to a worker in one request. */
+	private static final int CHUNK_SIZE = 32;
+
+	/** Time between two checks of whether a worker may run, in ms. */
+	private static final long TURN_POLL_DELAY = 250;
+
+	private final List< String > imagePaths;
+
+	private final Map< String, Object > settings;
+
+	private final Path outputFolder;
+
+	private final int nWorkers;
+
+	private final Logger logger;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private final AtomicLong nFramesDone = new AtomicLong();
+
+	/** Number of workers currently running inference. */
+	private final AtomicInteger nRunning = new AtomicInteger();
+
+	private ResourceGovernor governor;
+
+	/** Name of the TrackMate file of each movie. */
+	private Map< String, String > xmlNames;
+
+	/**
+	 * Creates a batch runner.
+	 *
+	 * @param imagePaths
+	 *            the paths to the movies to process.
+	 * @param settings
+	 *            the YOLO detector settings, used for all movies.
+	 * @param outputFolder
+	 *            the folder in which to write the TrackMate files and the
+	 *            manifest.
+	 * @param nWorkers
+	 *            the max number of YOLO workers to run in parallel.
+	 */
+	public YOLOBatchRunner( final List< String > imagePaths, final Map< String, Object > settings, final String outputFolder, final int nWorkers )
+	{
+		this.imagePaths = imagePaths;
+		this.settings = settings;
+		this.outputFolder = Paths.get( outputFolder );
+		this.nWorkers = Math.max( 1, nWorkers );
+		final Object loggerObj = settings.get( KEY_LOGGER );
+		this.logger = ( loggerObj == null ) ? Logger.DEFAULT_LOGGER : ( Logger ) loggerObj;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		final YOLODetectorFactory< ? > factory = new YOLODetectorFactory<>();
+		if ( !factory.checkSettings( settings ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + factory.getErrorMessage();
+			return false;
+		}
+		if ( imagePaths == null || imagePaths.isEmpty() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "No images to process.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		errorMessage = null;
+		final long startTime = System.currentTimeMillis();
+		nFramesDone.set( 0 );
+
+		final Path manifest = outputFolder.resolve( MANIFEST_FILENAME );
+		xmlNames = xmlNames( imagePaths );
+		final Set< String > done;
+		final Path tmpFolder;
+		try
+		{
+			Files.createDirectories( outputFolder );
+			done = readManifest( manifest );
+			tmpFolder = Files.createTempDirectory( "TrackMate-YOLO-batch_" );
+			CLIUtils.recursiveDeleteOnShutdownHook( tmpFolder );
+			governor = new ResourceGovernor( tmpFolder, CHUNK_SIZE, nWorkers, logger );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Could not prepare the output folder:\n" + e.getMessage();
+			processingTime = System.currentTimeMillis() - startTime;
+			return false;
+		}
+
+		final List< String > todo = imagePaths.stream()
+				.filter( p -> !done.contains( p ) )
+				.collect( Collectors.toList() );
+		if ( todo.size() < imagePaths.size() )
+			logger.log( "Resuming batch: " + ( imagePaths.size() - todo.size() ) + " movies already processed.\n" );
+		if ( todo.isEmpty() )
+		{
+			processingTime = System.currentTimeMillis() - startTime;
+			return true;
+		}
+
+		/*
+		 * Start the workers.
+		 */
+
+		final String condaEnv = ( String ) settings.get( KEY_CONDA_ENV );
+		final String modelPath = ModelConverter.resolve( settings, logger );
+		logger.log( "Starting " + nWorkers + " YOLO workers.\n" );
+		final List< CompletableFuture< YOLOWorker > > starting = new ArrayList<>();
+		for ( int i = 0; i < nWorkers; i++ )
+			starting.add( CompletableFuture.supplyAsync( () -> {
+				try
+				{
+					return YOLOWorker.start( condaEnv, modelPath );
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( e.getMessage(), e );
+				}
+			} ) );
+		final List< YOLOWorker > workers = new ArrayList<>();
+		try
+		{
+			for ( final CompletableFuture< YOLOWorker > future : starting )
+				workers.add( future.join() );
+		}
+		catch ( final Exception e )
+		{
+			starting.forEach( f -> f.thenAccept( YOLOWorker::close ) );
+			errorMessage = BASE_ERROR_MESSAGE + "Could not start the YOLO workers:\n" + e.getMessage();
+			processingTime = System.currentTimeMillis() - startTime;
+			return false;
+		}
+
+		/*
+		 * Workers take chunks from a bounded queue, so that the export does
+		 * not run too far ahead of inference.
+		 */
+
+		final BlockingQueue< Chunk > queue = new ArrayBlockingQueue<>( queueSize() );
+		final List< Thread > threads = new ArrayList<>();
+		final long inferenceStart = System.currentTimeMillis();
+		for ( int i = 0; i < workers.size(); i++ )
+		{
+			final int index = i;
+			final Thread thread = new Thread( () -> serve( workers, index, condaEnv, modelPath, queue, manifest, inferenceStart ), "TrackMate-YOLO-batch-worker" );
+			thread.start();
+			threads.add( thread );
+		}
+
+		int nFramesTotal = 0;
+		boolean ok = true;
+		try
+		{
+			for ( int i = 0; i < todo.size(); i++ )
+			{
+				final String path = todo.get( i );
+				logger.log( "Exporting movie " + ( i + 1 ) + "/" + todo.size() + ": " + path + '\n' );
+				final int nFrames = export( path, tmpFolder.resolve( "movie-" + i ), queue );
+				if ( nFrames < 0 )
+					ok = false;
+				else
+					nFramesTotal += nFrames;
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			ok = false;
+		}
+		finally
+		{
+			// Poison pills.
+			try
+			{
+				for ( int i = 0; i < threads.size(); i++ )
+					queue.put( Chunk.POISON );
+				for ( final Thread thread : threads )
+					thread.join();
+			}
+			catch ( final InterruptedException e )
+			{
+				threads.forEach( Thread::interrupt );
+				Thread.currentThread().interrupt();
+			}
+			synchronized ( workers )
+			{
+				workers.forEach( YOLOWorker::close );
+			}
+		}
+
+		processingTime = System.currentTimeMillis() - startTime;
+		final double seconds = processingTime / 1000.;
+		logger.log( String.format( "Batch finished: %d frames in %d movies in %.1f s, %.2f frames/s.\n",
+				nFramesDone.get(), todo.size(), seconds, nFramesDone.get() / seconds ) );
+		if ( nFramesDone.get() < nFramesTotal )
+			ok = false;
+		if ( !ok && errorMessage == null )
+			errorMessage = BASE_ERROR_MESSAGE + "Some movies could not be processed. Run the batch again to retry them.";
+		YOLOMetrics.RUNS.increment( 1 );
+		if ( !ok )
+			YOLOMetrics.FAILURES.increment( 1 );
+		YOLOMetrics.RUN_TIME.observe( seconds );
+		YOLOMetrics.FRAMES_PER_SECOND.observe( nFramesDone.get() / seconds );
+		YOLOMetrics.flush();
+		return ok;
+	}
+
+	/**
+	 * Exports the frames of one movie in chunk folders, and queues the
+	 * chunks as they are ready.
+	 *
+	 * @return the number of frames exported, or -1 if the movie could not be
+	 *         opened or exported.
+	 */
+	private < T extends RealType< T > & NativeType< T > > int export( final String path, final Path folder, final BlockingQueue< Chunk > queue ) throws InterruptedException
+	{
+		ImagePlus imp = IJ.openVirtual( path );
+		if ( imp == null )
+			imp = IJ.openImage( path );
+		if ( imp == null )
+		{
+			logger.error( BASE_ERROR_MESSAGE + "Could not open " + path + ". Skipping.\n" );
+			return -1;
+		}
+
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+		final Settings tmSettings = new Settings( imp );
+		final Interval interval = TMUtils.getIntervalWithTime( img, tmSettings );
+		final Movie movie = new Movie( path, tmSettings, interval, TMUtils.getSpatialCalibration( img ) );
+
+		// Pool sized for the deepest prefetch the governor may ask for.
+		final long[] frames = FrameStreamer.timePoints( img, interval );
+		// The chunk being filled, not queued yet.
+		Path chunkFolder = null;
+		try (final FrameStreamer< T > streamer = new FrameStreamer<>( img, interval, frames, ResourceGovernor.getMaxPrefetch(), true ))
+		{
+			final long frameBytes = streamer.getFrameBytes();
+			int nFrames = 0;
+			int inChunk = 0;
+			int chunkSize = 0;
+			while ( streamer.hasNext() )
+			{
+				if ( chunkFolder == null )
+				{
+					chunkFolder = Files.createDirectories( folder.resolve( "chunk-" + nFrames ) );
+					inChunk = 0;
+					// Queued chunks, chunks being processed, and this one.
+					chunkSize = governor.chunkSize( frameBytes, queueSize() + nWorkers + 1 );
+					streamer.setPrefetch( governor.prefetch( streamer ) );
+				}
+				try (final Frame< T > frame = streamer.next())
+				{
+					final String name = YOLOUtils.nameGen.apply( frame.t() );
+					if ( !YOLOUtils.saveFrame( frame, name, chunkFolder.resolve( name + ".tif" ).toString() ) )
+						throw new IOException( "Could not save frame " + frame.t() + " to " + chunkFolder );
+				}
+				nFrames++;
+				inChunk++;
+				if ( inChunk == chunkSize || !streamer.hasNext() )
+				{
+					movie.pending.incrementAndGet();
+					queue.put( new Chunk( movie, chunkFolder, inChunk ) );
+					chunkFolder = null;
+				}
+			}
+			movie.nFrames = nFrames;
+			if ( streamer.getPool() != null )
+				logger.log( "Exported " + streamer.getPool() + ".\n" );
+			return nFrames;
+		}
+		catch ( final IOException | ExecutionException e )
+		{
+			logger.error( BASE_ERROR_MESSAGE + "Problem exporting " + path + ":\n" + e.getMessage() + '\n' );
+			movie.failed = true;
+			return -1;
+		}
+		finally
+		{
+			if ( chunkFolder != null )
+			{
+				movie.failed = true;
+				FrameExportCache.delete( chunkFolder );
+			}
+			// Release the export token. The last one out writes the results.
+			if ( movie.pending.decrementAndGet() == 0 )
+				movie.finish( outputFolder.resolve( MANIFEST_FILENAME ) );
+		}
+	}
+
+	/**
+	 * Processes chunks from the queue with one of the workers until the
+	 * poison pill. A worker that died is started again, and the chunk it
+	 * failed is retried once with the new worker.
+	 */
+	private void serve(
+			final List< YOLOWorker > workers,
+			final int index,
+			final String condaEnv,
+			final String modelPath,
+			final BlockingQueue< Chunk > queue,
+			final Path manifest,
+			final long inferenceStart )
+	{
+		final double conf = ( ( Number ) settings.get( KEY_YOLO_CONF ) ).doubleValue();
+		final double iou = ( ( Number ) settings.get( KEY_YOLO_IOU ) ).doubleValue();
+		final InferenceProfile profile = InferenceProfile.fromSettings( settings );
+		while ( true )
+		{
+			final Chunk chunk;
+			try
+			{
+				chunk = queue.take();
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			if ( chunk == Chunk.POISON )
+				return;
+
+			final Movie movie = chunk.movie;
+			final Path output = chunk.folder.resolve( "output" );
+			try
+			{
+				Files.createDirectories( output );
+				final Path streamPath = output.resolve( DetectionStream.FILE_NAME );
+				awaitTurn();
+				try (final Slot slot = InferenceArbiter.acquire( logger ))
+				{
+					YOLOMetrics.QUEUE_WAIT.observe( slot.getWaitTime() / 1000. );
+					final InferenceProfile p = profile.threads( profile.getThreads( slot.getThreads() ) );
+					final InferenceEvent event = new InferenceEvent();
+					event.mode = "batch";
+					event.frames = chunk.nFrames;
+					event.batch = p.getBatch();
+					event.imgsz = p.getImgsz();
+					event.begin();
+					YOLOWorker worker;
+					synchronized ( workers )
+					{
+						worker = workers.get( index );
+					}
+					try
+					{
+						worker.predict( chunk.folder, output, conf, iou, p, streamPath, null );
+					}
+					catch ( final IOException e )
+					{
+						if ( worker.isAlive() )
+							throw e;
+						logger.log( "A YOLO worker died, restarting it: " + e.getMessage() + '\n' );
+						worker = YOLOWorker.start( condaEnv, modelPath );
+						synchronized ( workers )
+						{
+							workers.set( index, worker );
+						}
+						worker.predict( chunk.folder, output, conf, iou, p, streamPath, null );
+					}
+					event.commit();
+				}
+				finally
+				{
+					nRunning.decrementAndGet();
+				}
+				final Map< Integer, DetectionTable > tables = new DetectionStream( streamPath, movie.interval, movie.calibration ).readNew();
+				synchronized ( movie.tables )
+				{
+					movie.tables.putAll( tables );
+				}
+				YOLOMetrics.FRAMES.increment( chunk.nFrames );
+				for ( final DetectionTable table : tables.values() )
+				{
+					YOLOMetrics.DETECTIONS.increment( table.size() );
+					YOLOMetrics.DETECTIONS_PER_FRAME.observe( table.size() );
+				}
+				final long n = nFramesDone.addAndGet( chunk.nFrames );
+				final double seconds = ( System.currentTimeMillis() - inferenceStart ) / 1000.;
+				logger.setStatus( String.format( "YOLO batch: %d frames, %.2f frames/s", n, n / seconds ) );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				movie.failed = true;
+				return;
+			}
+			catch ( final IOException e )
+			{
+				logger.error( BASE_ERROR_MESSAGE + "Problem running YOLO on " + chunk.folder + " of " + movie.path + ":\n" + e.getMessage() + '\n' );
+				movie.failed = true;
+			}
+			finally
+			{
+				try
+				{
+					FileUtils.deleteDirectory( chunk.folder.toFile() );
+				}
+				catch ( final IOException e )
+				{
+					// Will be deleted at shutdown.
+				}
+				if ( movie.pending.decrementAndGet() == 0 )
+					movie.finish( manifest );
+			}
+		}
+	}
+
+	/**
+	 * Max number of chunks waiting for a worker.
+	 */
+	private int queueSize()
+	{
+		return 2 * nWorkers;
+	}
+
+	/**
+	 * Waits until the governor lets one more worker run inference, and counts
+	 * it as running. At least one worker can always run, so chunks taken from
+	 * the queue are never stuck.
+	 */
+	private void awaitTurn() throws InterruptedException
+	{
+		while ( true )
+		{
+			final int running = nRunning.get();
+			if ( running < governor.workers( running ) && nRunning.compareAndSet( running, running + 1 ) )
+				return;
+			Thread.sleep( TURN_POLL_DELAY );
+		}
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * Lists the TIFF files in a folder, sorted by name.
+	 *
+	 * @param folder
+	 *            the folder.
+	 * @return a new list of paths.
+	 * @throws IOException
+	 *             if the folder cannot be listed.
+	 */
+	public static List< String > listImages( final String folder ) throws IOException
+	{
+		try (Stream< Path > paths = Files.list( Paths.get( folder ) ))
+		{
+			return paths
+					.filter( Files::isRegularFile )
+					.map( Path::toString )
+					.filter( p -> p.toLowerCase().endsWith( ".tif" ) || p.toLowerCase().endsWith( ".tiff" ) )
+					.sorted()
+					.collect( Collectors.toList() );
+		}
+	}
+
+	private static Set< String > readManifest( final Path manifest ) throws IOException
+	{
+		if ( !Files.exists( manifest ) )
+			return Collections.emptySet();
+
+		final Set< String > done = new HashSet<>();
+		for ( final String line : Files.readAllLines( manifest, StandardCharsets.UTF_8 ) )
+		{
+			final String[] tokens = line.split( "\t" );
+			if ( tokens.length >= 2 && tokens[ 0 ].equals( MANIFEST_DONE ) )
+				done.add( tokens[ 1 ] );
+		}
+		return done;
+	}
+
+	/**
+	 * Names the TrackMate file of each movie after the movie file. Movies
+	 * with the same name in different folders get a suffix made from the
+	 * hash of their folder, so that their files do not overwrite each other
+	 * and keep the same names when the batch is resumed.
+	 */
+	private static Map< String, String > xmlNames( final List< String > imagePaths )
+	{
+		final Map< String, Integer > counts = new HashMap<>();
+		for ( final String path : imagePaths )
+			counts.merge( baseName( path ).toLowerCase(), 1, Integer::sum );
+
+		final Map< String, String > names = new HashMap<>();
+		for ( final String path : imagePaths )
+		{
+			final String name = baseName( path );
+			if ( counts.get( name.toLowerCase() ) > 1 )
+			{
+				final String folder = new File( path ).getAbsoluteFile().getParent();
+				names.put( path, String.format( "%s_%08x.xml", name, Objects.hashCode( folder ) ) );
+			}
+			else
+			{
+				names.put( path, name + ".xml" );
+			}
+		}
+		return names;
+	}
+
+	private static String baseName( final String imagePath )
+	{
+		final String name = new File( imagePath ).getName();
+		final int dot = name.lastIndexOf( '.' );
+		return dot > 0 ? name.substring( 0, dot ) : name;
+	}
+
+	/**
+	 * A movie of the batch, and the detections collected for it.
+	 */
+	private class Movie
+	{
+
+		private final String path;
+
+		private final Settings tmSettings;
+
+		private final Interval interval;
+
+		private final double[] calibration;
+
+		private final String spaceUnits;
+
+		private final String timeUnits;
+
+		private final Map< Integer, DetectionTable > tables = new TreeMap<>();
+
+		/**
+		 * Chunks queued and not yet processed, plus one while the movie is
+		 * being exported.
+		 */
+		private final AtomicInteger pending = new AtomicInteger( 1 );
+
+		private volatile boolean failed = false;
+
+		private volatile int nFrames;
+
+		private Movie( final String path, final Settings tmSettings, final Interval interval, final double[] calibration )
+		{
+			this.path = path;
+			this.tmSettings = tmSettings;
+			this.interval = interval;
+			this.calibration = calibration;
+			this.spaceUnits = tmSettings.imp.getCalibration().getUnit();
+			this.timeUnits = tmSettings.imp.getCalibration().getTimeUnit();
+		}
+
+		/**
+		 * Writes the TrackMate file of this movie and records it in the
+		 * manifest.
+		 */
+		private void finish( final Path manifest )
+		{
+			if ( failed )
+				return;
+
+			final SpotCollection spots = DetectionTable.toSpotCollection( tables );
+			spots.setVisible( true );
+			final Model model = new Model();
+			model.setPhysicalUnits( spaceUnits, timeUnits );
+			model.setSpots( spots, false );
+
+			final Map< String, Object > detectorSettings = new HashMap<>( settings );
+			detectorSettings.remove( KEY_LOGGER );
+			tmSettings.detectorFactory = new YOLODetectorFactory<>();
+			tmSettings.detectorSettings = detectorSettings;
+
+			final File file = outputFolder.resolve( xmlNames.get( path ) ).toFile();
+			final TmXmlWriter writer = new TmXmlWriter( file, logger );
+			writer.appendModel( model );
+			writer.appendSettings( tmSettings );
+			try
+			{
+				writer.writeToFile();
+				synchronized ( YOLOBatchRunner.this )
+				{
+					try (Writer w = Files.newBufferedWriter( manifest, StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND ))
+					{
+						w.write( MANIFEST_DONE + '\t' + path + '\t' + file + '\t' + nFrames + '\t' + spots.getNSpots( false ) + '\n' );
+					}
+				}
+				logger.log( "Wrote " + spots.getNSpots( false ) + " detections of " + path + " to " + file + '\n' );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( BASE_ERROR_MESSAGE + "Could not write " + file + ":\n" + e.getMessage() + '\n' );
+			}
+		}
+	}
+
+	/**
+	 * A folder of frames of one movie, processed in one worker request.
+	 */
+	private static class Chunk
+	{
+
+		private static final Chunk POISON = new Chunk( null, null, 0 );
+
+		private final Movie movie;
+
+		private final Path folder;
+
+		private final int nFrames;
+
+		private Chunk( final Movie movie, final Path folder, final int nFrames )
+		{
+			this.movie = movie;
+			this.folder = folder;
+			this.nFrames = nFrames;
+		}
+	}
+}
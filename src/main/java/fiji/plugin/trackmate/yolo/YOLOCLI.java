@@ -28,13 +28,20 @@ import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
 import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
 import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import fiji.plugin.trackmate.util.cli.CliGuiBuilder;
 import fiji.plugin.trackmate.util.cli.CliGuiBuilder.CliConfigPanel;
+import fiji.plugin.trackmate.util.cli.CommandBuilder;
 import fiji.plugin.trackmate.util.cli.CondaExecutableCLIConfigurator;
 
 public class YOLOCLI extends CondaExecutableCLIConfigurator
 {
 
+	private static final String MODEL_ARGUMENT = "model=";
+
 	private final PathArgument modelPath;
 
 	private final PathArgument imageFolder;
@@ -45,11 +52,13 @@ public class YOLOCLI extends CondaExecutableCLIConfigurator
 
 	private final DoubleArgument conf;
 
+	private String task = "detect";
+
 	public YOLOCLI()
 	{
 		this.modelPath = addPathArgument()
 				.name( "Path to a YOLO model" )
-				.argument( "model=" )
+				.argument( MODEL_ARGUMENT )
 				.help( "The path to a YOLO model." )
 				.defaultValue( DEFAULT_YOLO_MODEL_FILEPATH )
 				.key( KEY_YOLO_MODEL_FILEPATH )
@@ -126,12 +135,67 @@ public class YOLOCLI extends CondaExecutableCLIConfigurator
 				.visible( false )
 				.key( null )
 				.get();
+
+		addFlag()
+				.name( "Reuse output folder" )
+				.help( "Whether a restarted run writes to the same output folder as the first one." )
+				.argument( "exist_ok=" )
+				.defaultValue( true )
+				.required( true )
+				.visible( false )
+				.key( null )
+				.get();
 	}
 
 	@Override
 	protected String getCommand()
 	{
-		return "yolo detect predict";
+		return "yolo " + task + " predict";
+	}
+
+	/**
+	 * Sets the YOLO task: <code>detect</code> for box models, or
+	 * <code>segment</code> for segmentation models.
+	 *
+	 * @param task
+	 *            the task.
+	 */
+	public void setTask( final String task )
+	{
+		this.task = task;
+	}
+
+	/**
+	 * Returns the command that launches the specified <code>yolo</code>
+	 * executable directly with the arguments of this CLI, bypassing conda
+	 * activation.
+	 *
+	 * @param yoloPath
+	 *            the path to the <code>yolo</code> entry point.
+	 * @return a new command, or <code>null</code> if the arguments could not
+	 *         be separated from the conda activation command.
+	 */
+	public List< String > buildDirectCommand( final String yoloPath )
+	{
+		final List< String > cmd = CommandBuilder.build( this );
+		// Our arguments start with the model path.
+		int start = -1;
+		for ( int i = 0; i < cmd.size(); i++ )
+		{
+			if ( cmd.get( i ).startsWith( MODEL_ARGUMENT ) )
+			{
+				start = i;
+				break;
+			}
+		}
+		if ( start < 0 )
+			return null;
+
+		final String[] command = getCommand().split( " " );
+		command[ 0 ] = yoloPath;
+		final List< String > direct = new ArrayList<>( Arrays.asList( command ) );
+		direct.addAll( cmd.subList( start, cmd.size() ) );
+		return direct;
 	}
 
 	public PathArgument modelPath()
@@ -1,33 +1,95 @@
 package fiji.plugin.trackmate.yolo;
 
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ENSEMBLE_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ENSEMBLE_MODELS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MAX_RESTARTS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MOTION_THRESHOLD;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_PYRAMID_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_COARSE_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_REMOTE_WORKERS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_MARGIN;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_SEGMENTATION;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_STALL_TIMEOUT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_DETECTIONS_FILE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_MODELS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MAX_RESTARTS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MOTION_THRESHOLD;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_PYRAMID_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_REMOTE_WORKERS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_COARSE_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_MARGIN;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SEGMENTATION;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_STALL_TIMEOUT;
+import static fiji.plugin.trackmate.yolo.YOLOSpotFeatureAnalyzerFactory.YOLO_MODEL_ID;
+
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.io.input.Tailer;
+import org.scijava.Cancelable;
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
 import fiji.plugin.trackmate.util.TMUtils;
-import fiji.plugin.trackmate.util.cli.CLIUtils;
 import fiji.plugin.trackmate.util.cli.CommandBuilder;
+import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
+import fiji.plugin.trackmate.yolo.CondaEnvironmentCache.ResolvedEnvironment;
+import fiji.plugin.trackmate.yolo.InferenceArbiter.Slot;
+import fiji.plugin.trackmate.yolo.ModelEnsemble.Member;
+import fiji.plugin.trackmate.yolo.YOLOEvents.ExportEvent;
+import fiji.plugin.trackmate.yolo.YOLOEvents.ImportEvent;
+import fiji.plugin.trackmate.yolo.YOLOEvents.InferenceEvent;
+import fiji.plugin.trackmate.yolo.YOLOEvents.ProcessStartEvent;
+import fiji.plugin.trackmate.yolo.YOLOEvents.SpotCreationEvent;
 import fiji.plugin.trackmate.yolo.YOLOUtils.YOLOTailerListener;
+import ij.IJ;
 import net.imagej.ImgPlus;
-import net.imagej.axis.Axes;
 import net.imglib2.Interval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
-public class YOLODetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >
+public class YOLODetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >, Cancelable
 {
 
 	final static String BASE_ERROR_MESSAGE = "[YOLO] ";
@@ -36,6 +98,15 @@ public class YOLODetector< T extends RealType< T > & NativeType< T > > implement
 
 	private static final String YOLO_LOG_FILENAME = "yolo-predict.log";
 
+	private static final String ROI_FOLDER_NAME = "rois";
+
+	private static final String PYRAMID_FOLDER_NAME = "pyramid";
+
+	private static final String ENSEMBLE_FOLDER_PREFIX = "model-";
+
+	/** Max number of processes killed with a YOLO process. */
+	private static final int MAX_DESCENDANTS = 256;
+
 	private String errorMessage;
 
 	private long processingTime;
@@ -50,16 +121,123 @@ public class YOLODetector< T extends RealType< T > & NativeType< T > > implement
 
 	private final YOLOCLI cli;
 
+	private final double motionThreshold;
+
+	private final int keyframeInterval;
+
+	private final int roiMargin;
+
+	private final int roiCoarseFactor;
+
+	private final InferenceProfile profile;
+
+	private final String sourceModelPath;
+
+	private final String modelFormat;
+
+	private final boolean int8;
+
+	private final String remoteWorkers;
+
+	/** Seconds without progress after which YOLO is restarted. */
+	private final int stallTimeout;
+
+	private final int maxRestarts;
+
+	/** The extra models of the ensemble, empty for a single model. */
+	private final List< Member > ensemble;
+
+	private final String ensembleModels;
+
+	private final double ensembleIou;
+
+	/** Downsampling factor of the first pass of pyramid mode. */
+	private final int pyramidFactor;
+
+	/** Whether the model is a segmentation model, that yields contours. */
+	private final boolean segmentation;
+
+	/** Contour simplification tolerance, in pixels. */
+	private final double simplifyTolerance;
+
+	/** The detectors running the extra models, while they run. */
+	private final List< YOLODetector< T > > memberDetectors = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The detector settings, in which the path to the file with the raw
+	 * detections is stored after a run.
+	 */
+	private final Map< String, Object > detectorSettings;
+
+	private volatile boolean isCanceled;
+
+	private String cancelReason;
+
+	/** The YOLO process started by this detector, while it runs. */
+	private volatile Process yoloProcess;
+
+	/** The loaded worker serving this detector, while it runs. */
+	private volatile YOLOWorker yoloWorker;
+
+	/** The output folder of the request sent to the worker. */
+	private volatile Path yoloProject;
+
 	public YOLODetector(
 			final ImgPlus< T > img,
 			final Interval interval,
 			final YOLOCLI cli,
 			final Logger logger )
+	{
+		this( img, interval, cli, Collections.emptyMap(), logger );
+	}
+
+	/**
+	 * Creates a YOLO detector.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to run detection in.
+	 * @param cli
+	 *            the YOLO command line, configured with the model and the
+	 *            YOLO parameters.
+	 * @param settings
+	 *            the detector settings, to read the optional parameters that
+	 *            are not passed to YOLO from. Missing parameters take their
+	 *            default value.
+	 * @param logger
+	 *            a logger to report progress.
+	 */
+	public YOLODetector(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final YOLOCLI cli,
+			final Map< String, Object > settings,
+			final Logger logger )
 	{
 		this.img = img;
 		this.interval = interval;
 		this.cli = cli;
 		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+		this.motionThreshold = ( ( Number ) settings.getOrDefault( KEY_YOLO_MOTION_THRESHOLD, DEFAULT_YOLO_MOTION_THRESHOLD ) ).doubleValue();
+		this.keyframeInterval = ( ( Number ) settings.getOrDefault( KEY_YOLO_ROI_KEYFRAME_INTERVAL, DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL ) ).intValue();
+		this.roiMargin = ( ( Number ) settings.getOrDefault( KEY_YOLO_ROI_MARGIN, DEFAULT_YOLO_ROI_MARGIN ) ).intValue();
+		this.roiCoarseFactor = ( ( Number ) settings.getOrDefault( KEY_YOLO_ROI_COARSE_FACTOR, DEFAULT_YOLO_ROI_COARSE_FACTOR ) ).intValue();
+		this.profile = InferenceProfile.fromSettings( settings );
+		this.sourceModelPath = cli.modelPath().getValue();
+		this.modelFormat = ( String ) settings.getOrDefault( KEY_YOLO_MODEL_FORMAT, DEFAULT_YOLO_MODEL_FORMAT );
+		this.int8 = ( Boolean ) settings.getOrDefault( KEY_YOLO_INT8, DEFAULT_YOLO_INT8 );
+		this.remoteWorkers = ( String ) settings.getOrDefault( KEY_YOLO_REMOTE_WORKERS, DEFAULT_YOLO_REMOTE_WORKERS );
+		this.stallTimeout = ( ( Number ) settings.getOrDefault( KEY_YOLO_STALL_TIMEOUT, DEFAULT_YOLO_STALL_TIMEOUT ) ).intValue();
+		this.maxRestarts = ( ( Number ) settings.getOrDefault( KEY_YOLO_MAX_RESTARTS, DEFAULT_YOLO_MAX_RESTARTS ) ).intValue();
+		this.ensembleModels = ( String ) settings.getOrDefault( KEY_YOLO_ENSEMBLE_MODELS, DEFAULT_YOLO_ENSEMBLE_MODELS );
+		this.ensembleIou = ( ( Number ) settings.getOrDefault( KEY_YOLO_ENSEMBLE_IOU, DEFAULT_YOLO_ENSEMBLE_IOU ) ).doubleValue();
+		this.ensemble = ModelEnsemble.parse( ensembleModels, cli.confidenceThreshold().getValue(), cli.iouThreshold().getValue() );
+		this.segmentation = ( Boolean ) settings.getOrDefault( KEY_YOLO_SEGMENTATION, DEFAULT_YOLO_SEGMENTATION );
+		this.simplifyTolerance = ( ( Number ) settings.getOrDefault( KEY_YOLO_SIMPLIFY_TOLERANCE, DEFAULT_YOLO_SIMPLIFY_TOLERANCE ) ).doubleValue();
+		cli.setTask( segmentation ? "segment" : "detect" );
+		this.pyramidFactor = ( ( Number ) settings.getOrDefault( KEY_YOLO_PYRAMID_FACTOR, DEFAULT_YOLO_PYRAMID_FACTOR ) ).intValue();
+		this.detectorSettings = settings;
 	}
 
 	@Override
@@ -76,152 +254,301 @@ public class YOLODetector< T extends RealType< T > & NativeType< T > > implement
 
 	@Override
 	public boolean process()
+	{
+		YOLOMetrics.RUNS.increment( 1 );
+		final boolean ok = detect();
+		if ( ok )
+		{
+			final int nFrames = output.keySet().size();
+			final int nSpots = output.getNSpots( false );
+			YOLOMetrics.FRAMES.increment( nFrames );
+			YOLOMetrics.DETECTIONS.increment( nSpots );
+			for ( final Integer t : output.keySet() )
+				YOLOMetrics.DETECTIONS_PER_FRAME.observe( output.getNSpots( t.intValue(), false ) );
+			if ( processingTime > 0 )
+				YOLOMetrics.FRAMES_PER_SECOND.observe( nFrames * 1000. / processingTime );
+		}
+		else
+		{
+			YOLOMetrics.FAILURES.increment( 1 );
+		}
+		YOLOMetrics.RUN_TIME.observe( processingTime / 1000. );
+		YOLOMetrics.flush();
+		return ok;
+	}
+
+	private boolean detect()
 	{
 		errorMessage = null;
 		final long startTime = System.currentTimeMillis();
 
 		/*
-		 * Resave input image.
+		 * Resume from a checkpoint of a previous run with the same settings.
 		 */
 
+		// All the detector settings, with the model and thresholds actually used.
+		final Map< String, Object > settings = new HashMap<>( detectorSettings );
+		TrackMateSettingsBuilder.toTrackMateSettings( settings, cli );
+		final double conf = cli.confidenceThreshold().getValue();
+		// Identify the image once, for the checkpoint and the export cache.
+		final ImageFingerprint fingerprint = ImageFingerprint.of( img, interval );
+		final String key = DetectionCheckpoint.key( fingerprint, settings );
+
+		/*
+		 * Reload the detections of a previous run with the same settings.
+		 */
+
+		final Map< Integer, DetectionTable > reloaded = reloadDetections( fingerprint, key, conf );
+		if ( reloaded != null )
+		{
+			output = toSpots( reloaded );
+			processingTime = System.currentTimeMillis() - startTime;
+			return true;
+		}
+
+		DetectionCheckpoint checkpoint;
+		try
+		{
+			checkpoint = DetectionCheckpoint.open( key, conf );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not open a checkpoint for this run, it will not be resumable:\n" + e.getMessage() + '\n' );
+			checkpoint = null;
+		}
+		final long[] frames = remainingFrames( checkpoint );
+		if ( checkpoint != null && checkpoint.size() > 0 )
+			logger.log( "Resuming from a checkpoint: " + checkpoint.size() + " frames already processed, "
+					+ frames.length + " left.\n" );
+		if ( frames.length == 0 )
+		{
+			final Map< Integer, DetectionTable > all = checkpoint.getTables();
+			output = toSpots( all );
+			saveDetections( fingerprint, key, conf, all );
+			checkpoint.delete();
+			processingTime = System.currentTimeMillis() - startTime;
+			return true;
+		}
+
+		/*
+		 * Resave input image, possibly skipping frames that did not change,
+		 * or only keyframes in ROI-guided mode, or downsampled in pyramid
+		 * mode.
+		 */
+
+		final PyramidInference pyramid = ( pyramidFactor > 1 && ensemble.isEmpty() && !segmentation )
+				? new PyramidInference( pyramidFactor )
+				: null;
+		if ( pyramidFactor > 1 && !ensemble.isEmpty() )
+			logger.log( "Pyramid mode is not used with an ensemble of models.\n" );
+		else if ( pyramidFactor > 1 && segmentation )
+			logger.log( "Pyramid mode is not used with a segmentation model.\n" );
+		final ROIGuidedInference roiGuide = ( keyframeInterval > 1 && frames.length > 2 && ensemble.isEmpty() && !segmentation && pyramid == null )
+				? new ROIGuidedInference( keyframeInterval, roiMargin, roiCoarseFactor )
+				: null;
+		if ( keyframeInterval > 1 && !ensemble.isEmpty() )
+			logger.log( "ROI-guided mode is not used with an ensemble of models.\n" );
+		else if ( keyframeInterval > 1 && segmentation )
+			logger.log( "ROI-guided mode is not used with a segmentation model.\n" );
+		else if ( keyframeInterval > 1 && pyramid != null )
+			logger.log( "ROI-guided mode is not used in pyramid mode.\n" );
+		final long[] framesToExport = ( roiGuide == null ) ? frames : roiGuide.keyframes( frames );
+		if ( ( roiGuide != null || pyramid != null ) && motionThreshold > 0. )
+			logger.log( "Motion gating is not used in " + ( pyramid != null ? "pyramid" : "ROI-guided" ) + " mode.\n" );
+		final MotionGate gate = ( roiGuide == null && pyramid == null && motionThreshold > 0. ) ? new MotionGate( motionThreshold ) : null;
+
+		// The main model plus the other models of the ensemble.
+		final ResourceGovernor governor = new ResourceGovernor( FrameExportCache.getFolder(), framesToExport.length, ensemble.size() + 1, logger );
+
 		final Path imgTmpFolder;
-		final Path outputTmpFolder;
 		try
 		{
-			// Tmp image folder.
-			imgTmpFolder = Files.createTempDirectory( "TrackMate-YOLO-imgs_" );
-			CLIUtils.recursiveDeleteOnShutdownHook( imgTmpFolder );
+			// Tmp image folder, with the frames cached by previous runs.
+			imgTmpFolder = FrameExportCache.createRunFolder();
 			logger.setStatus( "Resaving source image" );
-			logger.log( "Saving source image to " + imgTmpFolder + "\n" );
 
-			final boolean ok = YOLOUtils.resaveSingleTimePoints( img, interval, imgTmpFolder.toString(), logger );
+			final ExportEvent exportEvent = new ExportEvent();
+			exportEvent.begin();
+			final boolean ok = ( pyramid == null )
+					? FrameExportCache.export( img, interval, fingerprint, framesToExport, imgTmpFolder, gate, governor, logger )
+					: pyramid.exportCoarse( img, interval, framesToExport, imgTmpFolder.toString(), logger );
+			exportEvent.end();
+			if ( exportEvent.shouldCommit() )
+			{
+				exportEvent.frames = ( gate == null ) ? framesToExport.length : gate.getNInferred();
+				exportEvent.bytes = folderSize( imgTmpFolder );
+				exportEvent.commit();
+			}
 			if ( !ok )
 			{
 				errorMessage = BASE_ERROR_MESSAGE + "Problem saving image frames to " + imgTmpFolder + "\n";
+				FrameExportCache.delete( imgTmpFolder );
+				if ( checkpoint != null )
+					checkpoint.close();
 				processingTime = System.currentTimeMillis() - startTime;
 				return false;
 			}
-
-			// Tmp output folder.
-			outputTmpFolder = imgTmpFolder.resolve( OUTPUT_FOLDER_NAME );
 		}
 		catch ( final IOException e )
 		{
 			errorMessage = BASE_ERROR_MESSAGE + "Could not create temp folder to save input image:\n" + e.getMessage();
+			if ( checkpoint != null )
+				checkpoint.close();
 			processingTime = System.currentTimeMillis() - startTime;
 			return false;
 		}
 
-		cli.imageFolder().set( imgTmpFolder.toString() );
-		cli.outputFolder().set( outputTmpFolder.toString() );
-
-		// Check validity of the CLI.
-		final String error = cli.check();
-		final boolean ok = error == null;
-		if ( !ok )
-		{
-			errorMessage = BASE_ERROR_MESSAGE + error;
-			processingTime = System.currentTimeMillis() - startTime;
-			return false;
-		}
+		// Use the model converted to a faster format, if requested.
+		final String modelPath = ModelConverter.resolve( ( String ) settings.get( KEY_CONDA_ENV ), sourceModelPath, modelFormat, int8, logger );
+		cli.modelPath().set( modelPath );
+		settings.put( KEY_YOLO_MODEL_FILEPATH, modelPath );
 
+		// Redirect log to logger, and save each frame to the checkpoint
+		// as soon as YOLO is done with it.
 		final String executableName = cli.getCommand();
-
-		// Redirect log to logger.
-		final int timeIndex = img.dimensionIndex( Axes.TIME );
-		final int nFrames;
-		if ( timeIndex < 0 )
-		{
-			nFrames = 1;
-		}
-		else
-		{
-			// In the interval, time is always the last.
-			final long minT = interval.min( interval.numDimensions() - 1 );
-			final long maxT = interval.max( interval.numDimensions() - 1 );
-			nFrames = ( int ) ( maxT - minT + 1 );
-		}
-		final YOLOTailerListener tailerListener = new YOLOTailerListener( logger, nFrames );
-		final File logFile = imgTmpFolder.resolve( YOLO_LOG_FILENAME ).toFile();
-		final Tailer tailer = Tailer.builder()
-				.setFile( logFile )
-				.setTailerListener( tailerListener )
-				.setDelayDuration( Duration.ofMillis( 200 ) )
-				.get();
-		Process process;
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final Path outputTmpFolder = imgTmpFolder.resolve( OUTPUT_FOLDER_NAME );
+		final Path labelsFolder = outputTmpFolder.resolve( YOLOUtils.LABELS_FOLDER );
+		// Contours are read from the label files, not from the stream.
+		final Path streamPath = segmentation ? null : outputTmpFolder.resolve( DetectionStream.FILE_NAME );
+		final DetectionStream checkpointStream = ( streamPath == null ) ? null : new DetectionStream( streamPath, interval, calibration );
+		final DetectionCheckpoint ckpt = checkpoint;
+		final int nToInfer = ( gate == null ) ? framesToExport.length : gate.getNInferred();
+		// With an ensemble, a frame is only done once all the models are. In
+		// pyramid mode, once its crops are.
+		final YOLOTailerListener tailerListener = new YOLOTailerListener( logger, nToInfer,
+				( ckpt == null || !ensemble.isEmpty() || pyramid != null ) ? null : path -> saveToCheckpoint( path, labelsFolder, checkpointStream, calibration, ckpt ) );
+		File logFile = imgTmpFolder.resolve( YOLO_LOG_FILENAME ).toFile();
 		try
 		{
 
 			/*
-			 * Run YOLO.
+			 * Run YOLO, on a loaded worker if there is one for these settings.
 			 */
 
-			final List< String > cmd = CommandBuilder.build( cli );
-			logger.setStatus( "Running " + executableName );
-			logger.log( "Running " + executableName + " with args:\n" );
-			cmd.forEach( t -> {
-				if ( t.contains( File.separator ) )
-					logger.log( t + ' ' );
-				else
-					logger.log( t + ' ', Logger.GREEN_COLOR.darker() );
-			} );
-			logger.log( "\n" );
-
-			final ProcessBuilder pb = new ProcessBuilder( cmd );
-			pb.redirectOutput( ProcessBuilder.Redirect.appendTo( logFile ) );
-			pb.redirectError( ProcessBuilder.Redirect.appendTo( logFile ) );
-
-			// Go!
-			process = pb.start();
-			process.waitFor();
+			final long inferenceStart = System.currentTimeMillis();
+			final List< Future< Map< Integer, DetectionTable > > > memberResults = startEnsemble( imgTmpFolder, nToInfer, governor );
+			if ( !runYOLO( imgTmpFolder, outputTmpFolder, streamPath, nToInfer, settings, tailerListener, logFile ) )
+			{
+				processingTime = System.currentTimeMillis() - startTime;
+				return false;
+			}
 
 			/*
-			 * Get results back and store them in the spot collection.
+			 * Get results back.
 			 */
 
-			this.output = new SpotCollection();
-			final double[] calibration = TMUtils.getSpatialCalibration( img );
+			final long inferenceTime = System.currentTimeMillis() - inferenceStart;
 
-			// Regular expression to extract the time-point in the filename:
-			// last integer.
-			final String patternString = "(\\d+)(?=\\.[^.]+$)";
-			final Pattern pattern = Pattern.compile( patternString );
+			final Map< Integer, DetectionTable > tables = importResults( streamPath, labelsFolder, calibration );
 
-			final Path txtFilesFolder = outputTmpFolder.resolve( "predict/labels" );
-			try (final Stream< Path > paths = Files.list( txtFilesFolder ))
+			// Merge the detections of the other models of the ensemble.
+			if ( !ensemble.isEmpty() && !mergeEnsemble( memberResults, tables ) )
 			{
-				// Get all the txt files
-				final List< Path > txtFiles = paths
-						.filter( Files::isRegularFile )
-						.filter( p -> p.toString().endsWith( ".txt" ) )
-						.collect( Collectors.toList() );
+				processingTime = System.currentTimeMillis() - startTime;
+				return false;
+			}
+
+			// Frames skipped by the motion gate get the detections of the
+			// frame they were compared to.
+			if ( gate != null && !gate.getReused().isEmpty() )
+			{
+				for ( final Map.Entry< Long, Long > entry : gate.getReused().entrySet() )
+				{
+					final DetectionTable ref = tables.get( entry.getValue().intValue() );
+					if ( ref != null )
+						tables.put( entry.getKey().intValue(), ref );
+				}
+				final int nReused = gate.getReused().size();
+				final double saved = ( double ) inferenceTime / Math.max( 1, gate.getNInferred() ) * nReused / 1000.;
+				logger.log( String.format( "Motion gating: reused detections for %d of %d frames, saving about %.1f s of inference.\n",
+						nReused, frames.length, saved ) );
+			}
 
-				for ( final Path txtFile : txtFiles )
+			/*
+			 * Second pass of ROI-guided mode: crops between keyframes.
+			 */
+
+			if ( roiGuide != null )
+			{
+				final Path roiTmpFolder = imgTmpFolder.resolve( ROI_FOLDER_NAME );
+				Files.createDirectories( roiTmpFolder );
+				logger.setStatus( "Resaving crops around keyframe detections" );
+				if ( !roiGuide.exportCrops( img, interval, frames, tables, calibration, roiTmpFolder.toString(), logger ) )
 				{
-					// Create a matcher for the filename
-					final Matcher matcher = pattern.matcher( txtFile.toString() );
-					if ( !matcher.find() )
+					errorMessage = BASE_ERROR_MESSAGE + "Problem saving image crops to " + roiTmpFolder + "\n";
+					processingTime = System.currentTimeMillis() - startTime;
+					return false;
+				}
+				if ( roiGuide.getNCrops() > 0 )
+				{
+					final Path roiOutputFolder = roiTmpFolder.resolve( OUTPUT_FOLDER_NAME );
+					logFile = roiTmpFolder.resolve( YOLO_LOG_FILENAME ).toFile();
+					final YOLOTailerListener roiListener = new YOLOTailerListener( logger, roiGuide.getNCrops() );
+					if ( !runYOLO( roiTmpFolder, roiOutputFolder, null, roiGuide.getNCrops(), settings, roiListener, logFile ) )
 					{
-						logger.error( BASE_ERROR_MESSAGE + "Could not find the time-point indication in the filename of file: "
-								+ txtFile + ". Skipping.\n" );
-						continue;
+						processingTime = System.currentTimeMillis() - startTime;
+						return false;
 					}
-					final String tStr = matcher.group( 1 );
-					// Images are suffixed with 1-index.
-					final int t = Integer.parseInt( tStr );
-					final List< Spot > spots = YOLOUtils.importResultFile( txtFile.toString(), interval, calibration, logger );
+					roiGuide.importCrops( roiOutputFolder.resolve( YOLOUtils.LABELS_FOLDER ), calibration, tables, logger );
+				}
+				logger.log( String.format( "ROI-guided mode: %d keyframes, %.1f%% of the pixels of the %d other frames inferred.\n",
+						framesToExport.length, 100. * roiGuide.getPixelFraction(), frames.length - framesToExport.length ) );
+			}
+
+			/*
+			 * Second pass of pyramid mode: full-resolution crops around the
+			 * candidates.
+			 */
 
-					synchronized ( output )
+			if ( pyramid != null )
+			{
+				final Path cropTmpFolder = imgTmpFolder.resolve( PYRAMID_FOLDER_NAME );
+				Files.createDirectories( cropTmpFolder );
+				logger.setStatus( "Resaving crops around candidates" );
+				if ( !pyramid.exportCrops( img, interval, frames, tables, calibration, cropTmpFolder.toString(), logger ) )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Problem saving image crops to " + cropTmpFolder + "\n";
+					processingTime = System.currentTimeMillis() - startTime;
+					return false;
+				}
+				final Path cropOutputFolder = cropTmpFolder.resolve( OUTPUT_FOLDER_NAME );
+				if ( pyramid.getNCrops() > 0 )
+				{
+					logFile = cropTmpFolder.resolve( YOLO_LOG_FILENAME ).toFile();
+					final YOLOTailerListener cropListener = new YOLOTailerListener( logger, pyramid.getNCrops() );
+					if ( !runYOLO( cropTmpFolder, cropOutputFolder, null, pyramid.getNCrops(), settings, cropListener, logFile ) )
 					{
-						output.put( t, spots );
+						processingTime = System.currentTimeMillis() - startTime;
+						return false;
 					}
 				}
+				pyramid.importCrops( cropOutputFolder.resolve( YOLOUtils.LABELS_FOLDER ), calibration, tables, logger );
+				logger.log( String.format( "Pyramid mode: %d crops, %.1f%% of the pixels inferred at full resolution, %.1f%% in total.\n",
+						pyramid.getNCrops(), 100. * pyramid.getFullResolutionFraction(), 100. * pyramid.getPixelFraction() ) );
+			}
 
+			/*
+			 * Create spots and store them in the spot collection.
+			 */
+
+			// Frames without detections have no label file.
+			for ( final long t : frames )
+				tables.putIfAbsent( ( int ) t, new DetectionTable( 0 ) );
+			final Map< Integer, DetectionTable > all;
+			if ( checkpoint == null )
+			{
+				all = tables;
 			}
-			catch ( final IOException e )
+			else
 			{
-				e.printStackTrace();
+				for ( final long t : frames )
+					checkpoint.append( ( int ) t, tables.get( ( int ) t ) );
+				all = checkpoint.getTables();
+				checkpoint.delete();
 			}
+			this.output = toSpots( all );
+			saveDetections( fingerprint, key, conf, all );
 		}
 		catch ( final IOException e )
 		{
@@ -260,14 +587,814 @@ public class YOLODetector< T extends RealType< T > & NativeType< T > > implement
 		}
 		finally
 		{
-			tailer.close();
-			process = null;
+			if ( checkpoint != null )
+				checkpoint.close();
+			// Extra models still running if the main one failed.
+			memberDetectors.forEach( d -> d.cancel( "Detection failed" ) );
+			FrameExportCache.delete( imgTmpFolder );
 		}
 
 		processingTime = System.currentTimeMillis() - startTime;
 		return true;
 	}
 
+	/**
+	 * Runs YOLO on all the images of a folder, and restarts it on the images
+	 * it did not process yet when it stalls, up to the max number of
+	 * restarts. Returns <code>false</code> and sets the error message if
+	 * YOLO could not be run, or if it stalled too many times.
+	 */
+	private boolean runYOLO(
+			final Path imgFolder,
+			final Path outputFolder,
+			final Path streamPath,
+			final int nImages,
+			final Map< String, Object > settings,
+			final YOLOTailerListener tailerListener,
+			final File logFile ) throws IOException, InterruptedException
+	{
+		long timeLost = 0;
+		int nLeft = nImages;
+		for ( int restart = 0;; restart++ )
+		{
+			tailerListener.resetProgress();
+			final RunStatus status = runYOLOOnce( imgFolder, outputFolder, streamPath, nLeft, settings, tailerListener, logFile, restart > 0 );
+			if ( status != RunStatus.STALLED )
+				return status == RunStatus.DONE;
+
+			timeLost += System.currentTimeMillis() - tailerListener.getLastProgress();
+			YOLOMetrics.RESTARTS.increment( 1 );
+			nLeft = removeProcessed( imgFolder, streamPath, tailerListener );
+			if ( nLeft == 0 )
+				return true;
+			if ( restart >= maxRestarts )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + String.format( "YOLO stalled %d times, giving up with %d of %d images left. "
+						+ "%.1f s lost waiting for it.\n", restart + 1, nLeft, nImages, timeLost / 1000. );
+				return false;
+			}
+			logger.log( String.format( "YOLO processed no image for %d s. Restarting it on the %d images left "
+					+ "(restart %d of %d, %.1f s lost so far).\n", stallTimeout, nLeft, restart + 1, maxRestarts, timeLost / 1000. ) );
+		}
+	}
+
+	/**
+	 * The outcome of one YOLO run.
+	 */
+	private enum RunStatus
+	{
+		DONE, FAILED, STALLED;
+	}
+
+	/**
+	 * Runs YOLO once on all the images of a folder, on remote workers if
+	 * some are configured, on a loaded worker if there is one for these
+	 * settings, or else with the command line. Remote workers are only used
+	 * when a stream file is given. When there is a stream file and no loaded
+	 * worker, a worker is started for this run only, so that the results go
+	 * to the stream file and not to one label file per image. The command
+	 * line, used when the worker cannot start or for segmentation models,
+	 * always writes label files. A local run is killed if it stalls. Sets
+	 * the error message if the command line is not valid.
+	 */
+	private RunStatus runYOLOOnce(
+			final Path imgFolder,
+			final Path outputFolder,
+			final Path streamPath,
+			final int nImages,
+			final Map< String, Object > settings,
+			final YOLOTailerListener tailerListener,
+			final File logFile,
+			final boolean resume ) throws IOException, InterruptedException
+	{
+		final ProcessStartEvent startEvent = new ProcessStartEvent();
+		startEvent.begin();
+		final InferenceEvent inferenceEvent = new InferenceEvent();
+		inferenceEvent.frames = nImages;
+		inferenceEvent.batch = profile.getBatch();
+		inferenceEvent.imgsz = profile.getImgsz();
+
+		cli.imageFolder().set( imgFolder.toString() );
+		cli.outputFolder().set( outputFolder.toString() );
+
+		// Check validity of the CLI.
+		final String error = cli.check();
+		if ( error != null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + error;
+			return RunStatus.FAILED;
+		}
+
+		// Distribute the frames over remote workers, if any. They handle
+		// their own failures.
+		if ( streamPath != null && !remoteWorkers.trim().isEmpty() )
+		{
+			logger.setStatus( "Running YOLO on remote workers" );
+			final DistributedInference distributed = new DistributedInference( DistributedInference.parseHosts( remoteWorkers ),
+					Arrays.asList( sourceModelPath, cli.modelPath().getValue() ), logger );
+			commit( startEvent, inferenceEvent, "remote", remoteWorkers );
+			distributed.run(
+					imgFolder,
+					outputFolder,
+					streamPath,
+					cli.confidenceThreshold().getValue(),
+					cli.iouThreshold().getValue(),
+					profile );
+			inferenceEvent.commit();
+			return RunStatus.DONE;
+		}
+
+		final String executableName = cli.getCommand();
+		final Tailer tailer = Tailer.builder()
+				.setFile( logFile )
+				.setTailerListener( tailerListener )
+				.setTailFromEnd( resume )
+				.setDelayDuration( Duration.ofMillis( 200 ) )
+				.get();
+
+		// Wait for our turn among the inferences running on this machine.
+		try (final Slot slot = InferenceArbiter.acquire( logger ))
+		{
+			final InferenceProfile p = profile.threads( profile.getThreads( slot.getThreads() ) );
+			logger.log( String.format( "Waited %.1f s for a free YOLO slot, running with %s.\n",
+					slot.getWaitTime() / 1000., p ) );
+			YOLOMetrics.QUEUE_WAIT.observe( slot.getWaitTime() / 1000. );
+			inferenceEvent.batch = p.getBatch();
+
+			YOLOWorker loaded = YOLOWorkerCache.get( settings );
+			final boolean oneShot = ( loaded == null && streamPath != null );
+			if ( oneShot )
+			{
+				// No loaded model: run the worker script for this run only,
+				// so that the detections go to the stream and not to one
+				// label file per frame.
+				logger.setStatus( "Loading YOLO model" );
+				try
+				{
+					loaded = YOLOWorker.start( ( String ) settings.get( KEY_CONDA_ENV ), cli.modelPath().getValue() );
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Could not start the YOLO worker, running " + executableName + " instead:\n" + e.getMessage() + "\n" );
+				}
+			}
+			final YOLOWorker worker = loaded;
+			if ( worker != null )
+			{
+				logger.setStatus( "Running YOLO" );
+				logger.log( ( oneShot ? "Running YOLO with the model " : "Running YOLO with the already loaded model " )
+						+ worker.getModelPath() + "\n" );
+				yoloProject = outputFolder;
+				yoloWorker = worker;
+				tailerListener.resetProgress();
+				try (final InferenceWatchdog watchdog = new InferenceWatchdog( stallTimeout * 1000L, tailerListener::getLastProgress, worker::kill ))
+				{
+					if ( isCanceled )
+						return canceled();
+					if ( streamPath != null )
+						Files.createDirectories( outputFolder );
+					commit( startEvent, inferenceEvent, "worker", worker.getModelPath() );
+					try
+					{
+						worker.predict(
+								imgFolder,
+								outputFolder,
+								cli.confidenceThreshold().getValue(),
+								cli.iouThreshold().getValue(),
+								p,
+								streamPath,
+								resume,
+								tailerListener::handle );
+						inferenceEvent.commit();
+						return RunStatus.DONE;
+					}
+					catch ( final IOException e )
+					{
+						if ( isCanceled )
+							return canceled();
+						if ( watchdog.isStalled() )
+						{
+							// Load the model again while we clean up.
+							if ( !oneShot )
+								YOLOWorkerCache.warmUp( ( String ) settings.get( KEY_CONDA_ENV ), worker.getModelPath() );
+							return RunStatus.STALLED;
+						}
+						logger.log( "The YOLO worker failed, running " + executableName + " instead:\n" + e.getMessage() + "\n" );
+						removeProcessed( imgFolder, streamPath, tailerListener );
+					}
+				}
+				finally
+				{
+					yoloWorker = null;
+					if ( oneShot )
+						worker.close();
+				}
+			}
+
+			// Launch yolo directly if we could resolve the conda env.
+			final ResolvedEnvironment env = CondaEnvironmentCache.get( ( String ) settings.get( KEY_CONDA_ENV ), logger );
+			final List< String > directCmd = ( env == null || env.getYolo() == null )
+					? null
+					: cli.buildDirectCommand( env.getYolo() );
+			final List< String > cmd = new ArrayList<>( ( directCmd == null ) ? CommandBuilder.build( cli ) : directCmd );
+			// Half precision only applies to CUDA devices.
+			cmd.addAll( ( env != null && env.hasCuda() ) ? p.toArguments() : p.half( false ).toArguments() );
+			logger.setStatus( "Running " + executableName );
+			logger.log( "Running " + executableName + " with args:\n" );
+			cmd.forEach( t -> {
+				if ( t.contains( File.separator ) )
+					logger.log( t + ' ' );
+				else
+					logger.log( t + ' ', Logger.GREEN_COLOR.darker() );
+			} );
+			logger.log( "\n" );
+
+			final ProcessBuilder pb = ( directCmd == null ) ? new ProcessBuilder( cmd ) : env.processBuilder( cmd );
+			slot.configure( pb.environment(), p.getThreads() );
+			pb.redirectOutput( ProcessBuilder.Redirect.appendTo( logFile ) );
+			pb.redirectError( ProcessBuilder.Redirect.appendTo( logFile ) );
+
+			// Go!
+			if ( isCanceled )
+				return canceled();
+			final Process process = pb.start();
+			commit( startEvent, inferenceEvent, "command line", cli.modelPath().getValue() );
+			yoloProcess = process;
+			tailerListener.resetProgress();
+			try (final InferenceWatchdog watchdog = new InferenceWatchdog( stallTimeout * 1000L, tailerListener::getLastProgress, () -> kill( process ) ))
+			{
+				if ( isCanceled )
+					kill( process );
+				process.waitFor();
+				if ( isCanceled )
+					return canceled();
+				if ( watchdog.isStalled() )
+					return RunStatus.STALLED;
+				inferenceEvent.commit();
+			}
+			finally
+			{
+				yoloProcess = null;
+			}
+			return RunStatus.DONE;
+		}
+		finally
+		{
+			tailer.close();
+		}
+	}
+
+	/**
+	 * Deletes the images YOLO is done with from the image folder, so that a
+	 * new run only processes the others. When YOLO writes a detection
+	 * stream, the images done are the ones with a complete record in the
+	 * stream, and an incomplete last record is dropped. Otherwise they are
+	 * the ones YOLO reported in its log, which it does after writing their
+	 * label file.
+	 *
+	 * @return the number of images left in the image folder.
+	 */
+	private int removeProcessed( final Path imgFolder, final Path streamPath, final YOLOTailerListener tailerListener ) throws IOException
+	{
+		final DetectionStream stream = ( streamPath == null )
+				? null
+				: new DetectionStream( streamPath, interval, TMUtils.getSpatialCalibration( img ) );
+		if ( stream != null && stream.exists() )
+		{
+			for ( final Integer t : stream.truncateIncomplete() )
+				Files.deleteIfExists( imgFolder.resolve( YOLOUtils.nameGen.apply( t.longValue() ) + ".tif" ) );
+		}
+		else
+		{
+			for ( final String path : tailerListener.getDonePaths() )
+				Files.deleteIfExists( Paths.get( path ) );
+		}
+		try (final Stream< Path > images = Files.list( imgFolder ))
+		{
+			return ( int ) images.filter( path -> path.toString().endsWith( ".tif" ) ).count();
+		}
+	}
+
+	/**
+	 * Returns the detections of a previous run with the same inputs and a
+	 * confidence threshold not higher than this one, filtered with this
+	 * threshold. They are read from the file referenced in the settings, from
+	 * a file of the same name next to the source image in case the project
+	 * and the image were moved together, or from the file of this run.
+	 * Returns <code>null</code> if there is none.
+	 */
+	private Map< Integer, DetectionTable > reloadDetections( final ImageFingerprint fingerprint, final String key, final double conf )
+	{
+		final Object referenced = detectorSettings.get( KEY_YOLO_DETECTIONS_FILE );
+		final Path own = DetectionSidecar.pathFor( fingerprint, key );
+		final List< Path > candidates = new ArrayList<>();
+		if ( referenced != null && !referenced.toString().isEmpty() )
+		{
+			try
+			{
+				final Path path = Paths.get( referenced.toString() );
+				candidates.add( path );
+				if ( own != null && path.getFileName() != null )
+					candidates.add( own.resolveSibling( path.getFileName() ) );
+			}
+			catch ( final InvalidPathException e )
+			{
+				logger.log( "Invalid path to the raw detections: " + referenced + '\n' );
+			}
+		}
+		if ( own != null )
+			candidates.add( own );
+
+		final long[] all = FrameStreamer.timePoints( img, interval );
+		for ( final Path path : candidates )
+		{
+			try
+			{
+				final DetectionSidecar sidecar = DetectionSidecar.open( path );
+				if ( sidecar == null || !sidecar.getKey().equals( key ) || sidecar.getConf() > conf || !sidecar.covers( all ) )
+					continue;
+				final Map< Integer, DetectionTable > tables = new TreeMap<>();
+				for ( final long t : all )
+				{
+					final DetectionTable table = sidecar.getTable( ( int ) t );
+					if ( table == null )
+						break; // Closed meanwhile.
+					tables.put( ( int ) t, table.filter( conf ) );
+				}
+				if ( tables.size() < all.length )
+					continue;
+				logger.log( "Reloaded the detections of a previous run with the same settings from " + path + "\n" );
+				return tables;
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not reload detections from " + path + ": " + e.getMessage() + '\n' );
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the raw detections of a complete run next to the source image,
+	 * and stores the path of the file in the detector settings so that it is
+	 * saved with the project.
+	 */
+	private void saveDetections( final ImageFingerprint fingerprint, final String key, final double conf, final Map< Integer, DetectionTable > tables )
+	{
+		final Path path = DetectionSidecar.pathFor( fingerprint, key );
+		if ( path == null )
+		{
+			logger.log( "The raw detections are not saved, as the source image is not saved to a file.\n" );
+			return;
+		}
+		try
+		{
+			DetectionSidecar.write( path, key, conf, tables );
+			detectorSettings.put( KEY_YOLO_DETECTIONS_FILE, path.toString() );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not save the raw detections: " + e.getMessage() + '\n' );
+		}
+		catch ( final UnsupportedOperationException e )
+		{
+			// Read-only settings: the file is still found next to the image.
+		}
+	}
+
+	/**
+	 * Commits the process start event, and starts timing the inference.
+	 */
+	private static void commit( final ProcessStartEvent startEvent, final InferenceEvent inferenceEvent, final String mode, final String model )
+	{
+		startEvent.end();
+		if ( startEvent.shouldCommit() )
+		{
+			startEvent.mode = mode;
+			startEvent.model = model;
+			startEvent.commit();
+		}
+		inferenceEvent.mode = mode;
+		inferenceEvent.begin();
+	}
+
+	/**
+	 * Reads the results of a YOLO run. Loaded workers write a single stream,
+	 * the command line one label file per frame. A run restarted with the
+	 * command line after a worker failed has both. Detections are kept in
+	 * compact tables until all files are read.
+	 */
+	private Map< Integer, DetectionTable > importResults( final Path streamPath, final Path labelsFolder, final double[] calibration ) throws IOException
+	{
+		final ImportEvent importEvent = new ImportEvent();
+		importEvent.begin();
+		final Map< Integer, DetectionTable > tables = new TreeMap<>();
+		final DetectionStream stream = ( streamPath == null ) ? null : new DetectionStream( streamPath, interval, calibration );
+		final boolean hasStream = stream != null && stream.exists();
+		if ( hasStream )
+			tables.putAll( stream.readNew() );
+		YOLOUtils.importResultFolder( labelsFolder, interval, calibration, tables, segmentation, simplifyTolerance, logger );
+		importEvent.end();
+		if ( importEvent.shouldCommit() )
+		{
+			importEvent.frames = tables.size();
+			importEvent.detections = tables.values().stream().mapToInt( DetectionTable::size ).sum();
+			importEvent.bytes = ( hasStream ? Files.size( streamPath ) : 0 ) + folderSize( labelsFolder );
+			importEvent.commit();
+		}
+		return tables;
+	}
+
+	/**
+	 * Starts running the extra models of the ensemble on the exported
+	 * frames, each in its own folder of links to the frames, while the main
+	 * model runs on the export folder. The governor sets how many of them
+	 * run at the same time as the main model.
+	 */
+	private List< Future< Map< Integer, DetectionTable > > > startEnsemble( final Path imgFolder, final int nImages, final ResourceGovernor governor ) throws IOException
+	{
+		final List< Future< Map< Integer, DetectionTable > > > results = new ArrayList<>();
+		if ( ensemble.isEmpty() )
+			return results;
+
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, governor.workers( 0 ) - 1 ) );
+		for ( int i = 0; i < ensemble.size(); i++ )
+		{
+			final Member member = ensemble.get( i );
+			final Path memberFolder = imgFolder.resolve( ENSEMBLE_FOLDER_PREFIX + ( i + 1 ) );
+			ModelEnsemble.shareFrames( imgFolder, memberFolder );
+
+			// Same settings, other model. Remote workers serve the main
+			// model only.
+			final Map< String, Object > memberSettings = new HashMap<>( detectorSettings );
+			memberSettings.put( KEY_YOLO_MODEL_FILEPATH, member.getModelPath() );
+			memberSettings.put( KEY_YOLO_CONF, member.getConf() );
+			memberSettings.put( KEY_YOLO_IOU, member.getIou() );
+			memberSettings.put( KEY_YOLO_ENSEMBLE_MODELS, "" );
+			memberSettings.put( KEY_YOLO_REMOTE_WORKERS, "" );
+			memberSettings.remove( KEY_YOLO_DETECTIONS_FILE );
+			final YOLOCLI memberCli = new YOLOCLI();
+			TrackMateSettingsBuilder.fromTrackMateSettings( memberSettings, memberCli );
+			final YOLODetector< T > detector = new YOLODetector<>( img, interval, memberCli, memberSettings, logger );
+			memberDetectors.add( detector );
+			if ( isCanceled )
+				detector.cancel( cancelReason );
+
+			logger.log( "Running model " + ( i + 1 ) + " of the ensemble: " + member + "\n" );
+			results.add( executor.submit( () -> {
+				try
+				{
+					return detector.inferExported( memberFolder, nImages );
+				}
+				finally
+				{
+					memberDetectors.remove( detector );
+				}
+			} ) );
+		}
+		executor.shutdown();
+		return results;
+	}
+
+	/**
+	 * Runs the model of this detector on frames already exported, for an
+	 * extra model of an ensemble. Returns the detections, or
+	 * <code>null</code> and sets the error message if YOLO failed.
+	 */
+	private Map< Integer, DetectionTable > inferExported( final Path imgFolder, final int nImages ) throws IOException, InterruptedException
+	{
+		final Map< String, Object > settings = new HashMap<>();
+		TrackMateSettingsBuilder.toTrackMateSettings( settings, cli );
+		final String modelPath = ModelConverter.resolve( ( String ) settings.get( KEY_CONDA_ENV ), sourceModelPath, modelFormat, int8, logger );
+		cli.modelPath().set( modelPath );
+		settings.put( KEY_YOLO_MODEL_FILEPATH, modelPath );
+
+		final Path outputFolder = imgFolder.resolve( OUTPUT_FOLDER_NAME );
+		final Path streamPath = segmentation ? null : outputFolder.resolve( DetectionStream.FILE_NAME );
+		final File logFile = imgFolder.resolve( YOLO_LOG_FILENAME ).toFile();
+		// The main model reports the progress.
+		final YOLOTailerListener listener = new YOLOTailerListener( Logger.VOID_LOGGER, nImages );
+		if ( !runYOLO( imgFolder, outputFolder, streamPath, nImages, settings, listener, logFile ) )
+			return null;
+		return importResults( streamPath, outputFolder.resolve( YOLOUtils.LABELS_FOLDER ), TMUtils.getSpatialCalibration( img ) );
+	}
+
+	/**
+	 * Waits for the extra models of the ensemble, and merges their
+	 * detections with the ones of the main model. Returns
+	 * <code>false</code> and sets the error message if one of them failed.
+	 */
+	private boolean mergeEnsemble( final List< Future< Map< Integer, DetectionTable > > > results, final Map< Integer, DetectionTable > tables ) throws InterruptedException
+	{
+		final Map< Integer, DetectionTable > merged = new TreeMap<>();
+		ModelEnsemble.merge( merged, tables, 0 );
+		for ( int i = 0; i < results.size(); i++ )
+		{
+			final Map< Integer, DetectionTable > memberTables;
+			try
+			{
+				memberTables = results.get( i ).get();
+			}
+			catch ( final ExecutionException e )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Problem running model " + ( i + 1 ) + " of the ensemble:\n" + e.getCause().getMessage();
+				return false;
+			}
+			if ( isCanceled )
+			{
+				canceled();
+				return false;
+			}
+			if ( memberTables == null )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Model " + ( i + 1 ) + " of the ensemble failed: " + ensemble.get( i ).getLabel() + "\n";
+				return false;
+			}
+			ModelEnsemble.merge( merged, memberTables, i + 1 );
+		}
+
+		if ( ensembleIou > 0. )
+		{
+			final int nRemoved = ModelEnsemble.suppress( merged, ensembleIou );
+			logger.log( "Ensemble: removed " + nRemoved + " detections overlapping a more confident detection of another model.\n" );
+		}
+		tables.clear();
+		tables.putAll( merged );
+		return true;
+	}
+
+	/**
+	 * Converts detection tables to spots, recording the conversion. With an
+	 * ensemble, spots are named after the model that detected them.
+	 */
+	private SpotCollection toSpots( final Map< Integer, DetectionTable > tables )
+	{
+		final SpotCreationEvent event = new SpotCreationEvent();
+		event.begin();
+		final SpotCollection spots = DetectionTable.toSpotCollection( tables );
+		if ( !ensemble.isEmpty() )
+		{
+			final List< String > labels = new ArrayList<>();
+			labels.add( ModelEnsemble.labelOf( sourceModelPath ) );
+			ensemble.forEach( m -> labels.add( m.getLabel() ) );
+			for ( final Spot spot : spots.iterable( false ) )
+			{
+				final int model = spot.getFeature( YOLO_MODEL_ID ).intValue();
+				if ( model < labels.size() )
+					spot.setName( labels.get( model ) );
+			}
+		}
+		event.end();
+		if ( event.shouldCommit() )
+		{
+			event.frames = tables.size();
+			event.spots = spots.getNSpots( false );
+			event.commit();
+		}
+		return spots;
+	}
+
+	private static long folderSize( final Path folder )
+	{
+		try (Stream< Path > files = Files.walk( folder ))
+		{
+			return files.filter( Files::isRegularFile ).mapToLong( f -> f.toFile().length() ).sum();
+		}
+		catch ( final IOException e )
+		{
+			return -1l;
+		}
+	}
+
+	private RunStatus canceled()
+	{
+		errorMessage = BASE_ERROR_MESSAGE + "Canceled: " + cancelReason;
+		return RunStatus.FAILED;
+	}
+
+	/**
+	 * Kills a YOLO process and all the processes it started. When YOLO runs
+	 * through <code>conda run</code>, the process we started is a shell,
+	 * whose child or grandchild is Python, which would keep running if only
+	 * the shell or its direct children were killed. On Unix, the whole tree
+	 * is collected before any process is killed, as orphaned processes are
+	 * moved away from their parent.
+	 */
+	private static void kill( final Process process )
+	{
+		final long pid = pid( process );
+		if ( pid > 0 )
+		{
+			final List< String > cmd = new ArrayList<>();
+			if ( IJ.isWindows() )
+			{
+				cmd.addAll( Arrays.asList( "taskkill", "/F", "/T", "/PID", Long.toString( pid ) ) );
+			}
+			else
+			{
+				final List< Long > descendants = descendants( pid );
+				if ( !descendants.isEmpty() )
+				{
+					cmd.addAll( Arrays.asList( "kill", "-KILL" ) );
+					descendants.forEach( id -> cmd.add( id.toString() ) );
+				}
+			}
+			if ( !cmd.isEmpty() )
+			{
+				try
+				{
+					new ProcessBuilder( cmd ).start().waitFor( 5, TimeUnit.SECONDS );
+				}
+				catch ( final IOException e )
+				{
+					// Tool not available: kill the parent only.
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		process.destroyForcibly();
+	}
+
+	/**
+	 * Returns the ids of all the descendants of a process, found with
+	 * <code>pgrep -P</code> level by level. Returns an empty list if
+	 * <code>pgrep</code> is not available.
+	 */
+	private static List< Long > descendants( final long pid )
+	{
+		final List< Long > descendants = new ArrayList<>();
+		final Deque< Long > parents = new ArrayDeque<>();
+		parents.add( pid );
+		while ( !parents.isEmpty() && descendants.size() < MAX_DESCENDANTS )
+		{
+			final String parent = parents.poll().toString();
+			try
+			{
+				final Process pgrep = new ProcessBuilder( "pgrep", "-P", parent ).redirectErrorStream( true ).start();
+				try (BufferedReader reader = new BufferedReader( new InputStreamReader( pgrep.getInputStream(), StandardCharsets.UTF_8 ) ))
+				{
+					String line;
+					while ( ( line = reader.readLine() ) != null )
+					{
+						try
+						{
+							final long child = Long.parseLong( line.trim() );
+							descendants.add( child );
+							parents.add( child );
+						}
+						catch ( final NumberFormatException e )
+						{
+							// Not a process id.
+						}
+					}
+				}
+				pgrep.waitFor( 5, TimeUnit.SECONDS );
+			}
+			catch ( final IOException e )
+			{
+				break;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Returns the id of a process, or -1 if it cannot be determined. Uses
+	 * <code>Process.pid()</code> when the JVM has it, and the private field
+	 * of the Unix process implementation of Java 8 otherwise.
+	 */
+	private static long pid( final Process process )
+	{
+		try
+		{
+			return ( ( Number ) Process.class.getMethod( "pid" ).invoke( process ) ).longValue();
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Java 8.
+		}
+		try
+		{
+			final Field field = process.getClass().getDeclaredField( "pid" );
+			field.setAccessible( true );
+			return field.getLong( process );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return -1l;
+		}
+	}
+
+	/**
+	 * Returns the frames of the interval that are not in the checkpoint.
+	 */
+	private long[] remainingFrames( final DetectionCheckpoint checkpoint )
+	{
+		final long[] all = FrameStreamer.timePoints( img, interval );
+		if ( checkpoint == null )
+			return all;
+		return Arrays.stream( all )
+				.filter( t -> !checkpoint.isDone( ( int ) t ) )
+				.toArray();
+	}
+
+	/**
+	 * Reads the label file of an image YOLO is done with, and saves it to the
+	 * checkpoint. If YOLO writes a detection stream, saves the frames
+	 * completed in the stream instead.
+	 */
+	private void saveToCheckpoint(
+			final String imagePath,
+			final Path labelsFolder,
+			final DetectionStream stream,
+			final double[] calibration,
+			final DetectionCheckpoint checkpoint )
+	{
+		if ( stream != null && stream.exists() )
+		{
+			try
+			{
+				for ( final Map.Entry< Integer, DetectionTable > entry : stream.readNew().entrySet() )
+					checkpoint.append( entry.getKey().intValue(), entry.getValue() );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not save frames to the checkpoint: " + e.getMessage() + '\n' );
+			}
+			return;
+		}
+
+		final String name = Paths.get( imagePath ).getFileName().toString();
+		final Matcher matcher = YOLOUtils.TIME_POINT_PATTERN.matcher( name );
+		if ( !matcher.find() )
+			return;
+
+		final int t = Integer.parseInt( matcher.group( 1 ) );
+		final DetectionTable table = new DetectionTable();
+		final Path labelFile = labelsFolder.resolve( name.substring( 0, name.lastIndexOf( '.' ) ) + ".txt" );
+		if ( Files.exists( labelFile ) && !readLabelFile( labelFile, calibration, table ) )
+			return;
+		try
+		{
+			checkpoint.append( t, table );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not save frame " + t + " to the checkpoint: " + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Reads one label file to a table, with the contours of the objects for a
+	 * segmentation model.
+	 */
+	private boolean readLabelFile( final Path labelFile, final double[] calibration, final DetectionTable table )
+	{
+		if ( segmentation )
+			return new PolygonLabelReader( interval, calibration, simplifyTolerance ).read( labelFile, table, logger );
+		return YOLOUtils.importResultFile( labelFile.toString(), interval, calibration, table, logger );
+	}
+
+	/**
+	 * Cancels this detection. A YOLO process started by this detector is
+	 * killed. A request sent to a loaded worker is stopped, without unloading
+	 * the model.
+	 */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason;
+		isCanceled = true;
+		final Process process = yoloProcess;
+		if ( process != null )
+			kill( process );
+		final YOLOWorker worker = yoloWorker;
+		final Path project = yoloProject;
+		if ( worker != null && project != null )
+			worker.cancel( project );
+		memberDetectors.forEach( d -> d.cancel( reason ) );
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return isCanceled;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
@@ -23,20 +23,69 @@ package fiji.plugin.trackmate.yolo;
 
 import static fiji.plugin.trackmate.gui.Fonts.BIG_FONT;
 import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DOC_YOLO_URL;
+import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
 import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_LOGGER;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_BATCH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ENSEMBLE_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ENSEMBLE_MODELS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_HALF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_IMGSZ;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MAX_RESTARTS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MOTION_THRESHOLD;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_REMOTE_WORKERS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_PYRAMID_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_COARSE_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_ROI_MARGIN;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_SEGMENTATION;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_STALL_TIMEOUT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_THREADS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_TUNE_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_BATCH;
 import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_DETECTIONS_FILE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ENSEMBLE_MODELS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_HALF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IMGSZ;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MAX_RESTARTS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MOTION_THRESHOLD;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_REMOTE_WORKERS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_PYRAMID_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_COARSE_FACTOR;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_ROI_MARGIN;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SEGMENTATION;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_STALL_TIMEOUT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_THREADS;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_TUNE_TOLERANCE;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JEditorPane;
 import javax.swing.JLabel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
@@ -46,8 +95,16 @@ import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
 import fiji.plugin.trackmate.util.DetectionPreview;
 import fiji.plugin.trackmate.util.DetectionPreviewPanel;
+import fiji.plugin.trackmate.util.TMUtils;
 import fiji.plugin.trackmate.util.cli.CliGuiBuilder.CliConfigPanel;
 import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
+import fiji.plugin.trackmate.yolo.YOLOWorkerCache.State;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
 
 public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 {
@@ -62,8 +119,44 @@ public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 
 	private final CliConfigPanel mainPanel;
 
+	private final YOLOOptionsPanel optionsPanel;
+
 	private final Logger logger;
 
+	private final JLabel lblModelState;
+
+	private final JButton btnAutoTune;
+
+	/**
+	 * Periodically checks whether the model path changed, to start loading
+	 * it in the background, and refreshes the model state label. Also
+	 * requests a live preview when the settings changed.
+	 */
+	private final Timer warmUpTimer;
+
+	private final YOLOPreviewer previewer;
+
+	private final JCheckBox chkboxLivePreview;
+
+	private final RoiListener roiListener;
+
+	private final ImageListener imageListener;
+
+	/** The detector settings of the last live preview request. */
+	private Map< String, Object > lastPreviewSettings;
+
+	private int lastPreviewFrame = -1;
+
+	/**
+	 * The file with the raw detections of the last run, kept so that it is
+	 * saved again with the project.
+	 */
+	private String detectionsFile;
+
+	private String lastCondaEnv;
+
+	private String lastModelPath;
+
 	public YOLODetectorConfigurationPanel( final Model model, final Settings settings )
 	{
 		this.cli = new YOLOCLI();
@@ -97,6 +190,109 @@ public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 		add( Box.createVerticalStrut( 20 ) );
 		add( mainPanel );
 
+		this.optionsPanel = new YOLOOptionsPanel();
+		optionsPanel.addChoice( KEY_YOLO_MODEL_FORMAT, "Convert model to",
+				"<html>Convert the model once to a format that runs faster on CPU. "
+						+ "<br>Converted models are cached, and the original model is "
+						+ "<br>used if conversion fails.</html>",
+				ModelConverter.FORMATS,
+				DEFAULT_YOLO_MODEL_FORMAT );
+		optionsPanel.addBoolean( KEY_YOLO_SEGMENTATION, "Segmentation model",
+				"<html>Whether the model is a segmentation model. Spots then get "
+						+ "<br>the contours of the objects instead of circles.</html>",
+				DEFAULT_YOLO_SEGMENTATION );
+		optionsPanel.addDouble( KEY_YOLO_SIMPLIFY_TOLERANCE, "Contour simplification (pixels)",
+				"<html>Max distance between the contour found by the segmentation "
+						+ "<br>model and the simplified contour of the spot.</html>",
+				DEFAULT_YOLO_SIMPLIFY_TOLERANCE );
+		optionsPanel.addBoolean( KEY_YOLO_INT8, "INT8 quantization",
+				"Quantize the converted model to INT8. Only for OpenVINO.",
+				DEFAULT_YOLO_INT8 );
+		optionsPanel.addDouble( KEY_YOLO_MOTION_THRESHOLD, "Motion gating threshold",
+				"<html>Frames that changed less than this fraction of the intensity "
+						+ "<br>since the last frame sent to YOLO reuse its detections."
+						+ "<br>0 sends all frames to YOLO.</html>",
+				DEFAULT_YOLO_MOTION_THRESHOLD );
+		optionsPanel.addInteger( KEY_YOLO_ROI_KEYFRAME_INTERVAL, "ROI-guided keyframe interval",
+				"<html>Run YOLO on full frames every this many frames only, and on crops "
+						+ "<br>around the objects found in keyframes for the frames in between."
+						+ "<br>0 runs YOLO on full frames for all frames.</html>",
+				DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL );
+		optionsPanel.addInteger( KEY_YOLO_ROI_MARGIN, "ROI-guided crop margin (pixels)",
+				"Margin added around the objects found in keyframes to build the crops.",
+				DEFAULT_YOLO_ROI_MARGIN );
+		optionsPanel.addInteger( KEY_YOLO_ROI_COARSE_FACTOR, "ROI-guided coarse check downsampling",
+				"<html>Downsampling factor of the full frame inferred between keyframes "
+						+ "<br>to find new objects. 0 or 1 skips this check.</html>",
+				DEFAULT_YOLO_ROI_COARSE_FACTOR );
+		optionsPanel.addInteger( KEY_YOLO_PYRAMID_FACTOR, "Pyramid downsampling",
+				"<html>If larger than 1, frames are first inferred downsampled by this "
+						+ "<br>factor, then at full resolution only around the objects found. "
+						+ "<br>For large frames with few objects.</html>",
+				DEFAULT_YOLO_PYRAMID_FACTOR );
+		optionsPanel.addInteger( KEY_YOLO_IMGSZ, "Image size",
+				"Size of the images fed to the model. 0 uses the YOLO default.",
+				DEFAULT_YOLO_IMGSZ );
+		optionsPanel.addInteger( KEY_YOLO_BATCH, "Batch size",
+				"Number of images inferred together. 0 uses the YOLO default.",
+				DEFAULT_YOLO_BATCH );
+		optionsPanel.addInteger( KEY_YOLO_THREADS, "Max CPU threads",
+				"<html>Max number of CPU threads used by the inference. "
+						+ "<br>0 uses the share of the cores given to each YOLO run.</html>",
+				DEFAULT_YOLO_THREADS );
+		optionsPanel.addBoolean( KEY_YOLO_HALF, "Half precision",
+				"Whether to run the inference in half precision, on CUDA devices only.",
+				DEFAULT_YOLO_HALF );
+		optionsPanel.addDouble( KEY_YOLO_TUNE_TOLERANCE, "Auto-tune tolerance",
+				"<html>How much the detections of a faster configuration can differ "
+						+ "<br>from the ones with the YOLO defaults, as 1 - F1 score.</html>",
+				DEFAULT_YOLO_TUNE_TOLERANCE );
+		optionsPanel.addString( KEY_YOLO_REMOTE_WORKERS, "Remote workers",
+				"<html>Workers to distribute the frames over, as host:port separated by "
+						+ "<br>commas. They must see the images at the same paths as this "
+						+ "<br>machine. Empty runs YOLO on this machine.</html>",
+				DEFAULT_YOLO_REMOTE_WORKERS );
+		optionsPanel.addInteger( KEY_YOLO_STALL_TIMEOUT, "Stall timeout (s)",
+				"<html>Restart YOLO if it processes no frame for this many seconds."
+						+ "<br>0 waits forever.</html>",
+				DEFAULT_YOLO_STALL_TIMEOUT );
+		optionsPanel.addInteger( KEY_YOLO_MAX_RESTARTS, "Max restarts",
+				"Number of times a stalled YOLO is restarted on the remaining frames.",
+				DEFAULT_YOLO_MAX_RESTARTS );
+		optionsPanel.addString( KEY_YOLO_ENSEMBLE_MODELS, "Ensemble models",
+				"<html>Extra models run on the same frames, separated by semicolons, as "
+						+ "<br><code>path, conf, iou, label</code>. Empty thresholds use the ones "
+						+ "<br>above, an empty label the model file name.</html>",
+				DEFAULT_YOLO_ENSEMBLE_MODELS );
+		optionsPanel.addDouble( KEY_YOLO_ENSEMBLE_IOU, "Ensemble suppression IoU",
+				"<html>Remove detections that overlap a more confident detection of "
+						+ "<br>another model by more than this IoU. 0 keeps them all.</html>",
+				DEFAULT_YOLO_ENSEMBLE_IOU );
+		optionsPanel.setAlignmentX( JLabel.LEFT_ALIGNMENT );
+		add( Box.createVerticalStrut( 5 ) );
+		add( optionsPanel );
+
+		this.btnAutoTune = new JButton( "Auto-tune" );
+		btnAutoTune.setFont( SMALL_FONT );
+		btnAutoTune.setToolTipText( "<html>Benchmark a few frames to find the fastest image size, "
+				+ "<br>batch size, threads and precision for this model.</html>" );
+		btnAutoTune.setAlignmentX( JLabel.LEFT_ALIGNMENT );
+		btnAutoTune.addActionListener( e -> autoTune( settings ) );
+		add( Box.createVerticalStrut( 5 ) );
+		add( btnAutoTune );
+
+		/*
+		 * MODEL STATE
+		 */
+
+		this.lblModelState = new JLabel( " " );
+		lblModelState.setFont( SMALL_FONT );
+		lblModelState.setAlignmentX( JLabel.LEFT_ALIGNMENT );
+		add( Box.createVerticalStrut( 5 ) );
+		add( lblModelState );
+		this.warmUpTimer = new Timer( 1000, e -> warmUp() );
+		warmUpTimer.start();
+
 		/*
 		 * PREVIEW
 		 */
@@ -117,6 +313,75 @@ public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 
 		add( Box.createVerticalStrut( 10 ) );
 		add( p );
+
+		/*
+		 * LIVE PREVIEW
+		 */
+
+		this.chkboxLivePreview = new JCheckBox( "Live preview" );
+		chkboxLivePreview.setFont( SMALL_FONT );
+		chkboxLivePreview.setToolTipText( "<html>Preview the current frame in the background whenever "
+				+ "<br>the ROI, the frame or a parameter changes.</html>" );
+		chkboxLivePreview.setAlignmentX( JLabel.LEFT_ALIGNMENT );
+		final JLabel lblPreviewStatus = new JLabel( " " );
+		lblPreviewStatus.setFont( SMALL_FONT );
+		lblPreviewStatus.setAlignmentX( JLabel.LEFT_ALIGNMENT );
+		add( Box.createVerticalStrut( 5 ) );
+		add( chkboxLivePreview );
+		add( lblPreviewStatus );
+
+		this.previewer = new YOLOPreviewer( model, settings, () -> getSettings(), lblPreviewStatus::setText );
+		chkboxLivePreview.addActionListener( e -> {
+			if ( chkboxLivePreview.isSelected() )
+			{
+				requestLivePreview();
+			}
+			else
+			{
+				previewer.cancel();
+				lastPreviewSettings = null;
+				lblPreviewStatus.setText( " " );
+			}
+		} );
+		this.roiListener = ( imp, id ) -> {
+			if ( imp != null && imp == settings.imp )
+				requestLivePreview();
+		};
+		Roi.addRoiListener( roiListener );
+		this.imageListener = new ImageListener()
+		{
+			@Override
+			public void imageUpdated( final ImagePlus imp )
+			{
+				// Drawing the preview updates the image too.
+				if ( imp == settings.imp && imp.getT() - 1 != lastPreviewFrame )
+				{
+					lastPreviewFrame = imp.getT() - 1;
+					SwingUtilities.invokeLater( () -> requestLivePreview() );
+				}
+			}
+
+			@Override
+			public void imageOpened( final ImagePlus imp )
+			{}
+
+			@Override
+			public void imageClosed( final ImagePlus imp )
+			{}
+		};
+		ImagePlus.addImageListener( imageListener );
+	}
+
+	/**
+	 * Requests a new preview if live preview is on. Must be called on the
+	 * EDT.
+	 */
+	private void requestLivePreview()
+	{
+		if ( !chkboxLivePreview.isSelected() )
+			return;
+		lastPreviewSettings = getSettings();
+		previewer.request();
 	}
 
 	protected SpotDetectorFactoryBase< ? > getDetectorFactory()
@@ -128,6 +393,8 @@ public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 	public void setSettings( final Map< String, Object > settings )
 	{
 		TrackMateSettingsBuilder.fromTrackMateSettings( settings, cli );
+		optionsPanel.setSettings( settings );
+		detectionsFile = ( String ) settings.get( KEY_YOLO_DETECTIONS_FILE );
 		mainPanel.refresh();
 	}
 
@@ -136,11 +403,132 @@ public class YOLODetectorConfigurationPanel extends ConfigurationPanel
 	{
 		final Map< String, Object > map = new HashMap<>();
 		TrackMateSettingsBuilder.toTrackMateSettings( map, cli );
+		optionsPanel.getSettings( map );
+		if ( detectionsFile != null )
+			map.put( KEY_YOLO_DETECTIONS_FILE, detectionsFile );
 		map.put( KEY_LOGGER, logger );
 		return map;
 	}
 
+	/**
+	 * Runs the auto-tuner in the background on the current image, and shows
+	 * the profile it found.
+	 */
+	private void autoTune( final Settings tmSettings )
+	{
+		if ( tmSettings.imp == null )
+			return;
+
+		btnAutoTune.setEnabled( false );
+		final Map< String, Object > settings = getSettings();
+		new Thread( "TrackMate-YOLO auto-tuner" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					@SuppressWarnings( "rawtypes" )
+					final ImgPlus img = TMUtils.rawWraps( tmSettings.imp );
+					final Interval interval = TMUtils.getIntervalWithTime( img, tmSettings );
+					@SuppressWarnings( "unchecked" )
+					final InferenceProfile profile = YOLOAutoTuner.tune( img, interval, settings, logger );
+					SwingUtilities.invokeLater( () -> {
+						final Map< String, Object > current = getSettings();
+						profile.toSettings( current );
+						optionsPanel.setSettings( current );
+					} );
+				}
+				catch ( final Exception e )
+				{
+					logger.error( "Auto-tuning failed: " + e.getMessage() + '\n' );
+				}
+				finally
+				{
+					logger.setStatus( "" );
+					SwingUtilities.invokeLater( () -> btnAutoTune.setEnabled( true ) );
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Starts loading the model in the background once the model path
+	 * points to a file and has not changed for one timer tick, then shows
+	 * whether it is loaded.
+	 */
+	private void warmUp()
+	{
+		final Map< String, Object > settings = getSettings();
+		if ( lastPreviewSettings != null && !settings.equals( lastPreviewSettings ) )
+			requestLivePreview();
+		final String condaEnv = ( String ) settings.get( KEY_CONDA_ENV );
+		final String sourcePath = ( String ) settings.get( KEY_YOLO_MODEL_FILEPATH );
+		final String format = ( String ) settings.get( KEY_YOLO_MODEL_FORMAT );
+		final boolean int8 = ( Boolean ) settings.get( KEY_YOLO_INT8 );
+		final boolean stable = Objects.equals( condaEnv, lastCondaEnv ) && Objects.equals( sourcePath, lastModelPath );
+		lastCondaEnv = condaEnv;
+		lastModelPath = sourcePath;
+		lblModelState.setToolTipText( null );
+
+		if ( sourcePath == null || !new File( sourcePath ).isFile() || condaEnv == null || condaEnv.isEmpty() )
+		{
+			lblModelState.setText( "Model: not loaded." );
+			lblModelState.setForeground( Color.GRAY );
+			return;
+		}
+
+		// Load the converted model, once converted.
+		String modelPath = sourcePath;
+		if ( !ModelConverter.FORMAT_NONE.equals( format ) && !ModelConverter.hasFailed( sourcePath, format, int8 ) )
+		{
+			final String converted = ModelConverter.getConverted( sourcePath, format, int8 );
+			if ( converted == null )
+			{
+				if ( stable )
+					ModelConverter.convertAsync( condaEnv, sourcePath, format, int8, logger );
+				lblModelState.setText( "Model: converting to " + format + " in the background..." );
+				lblModelState.setForeground( Color.ORANGE.darker() );
+				return;
+			}
+			modelPath = converted;
+		}
+
+		State state = YOLOWorkerCache.getState( condaEnv, modelPath );
+		if ( state == State.NONE && stable )
+		{
+			YOLOWorkerCache.warmUp( condaEnv, modelPath );
+			state = State.LOADING;
+		}
+
+		switch ( state )
+		{
+		case LOADING:
+			lblModelState.setText( "Model: loading in the background..." );
+			lblModelState.setForeground( Color.ORANGE.darker() );
+			break;
+		case READY:
+			lblModelState.setText( "Model: ready." );
+			lblModelState.setForeground( Logger.GREEN_COLOR.darker() );
+			break;
+		case FAILED:
+			lblModelState.setText( "Model: failed to load." );
+			lblModelState.setToolTipText( YOLOWorkerCache.getErrorMessage( condaEnv, modelPath ) );
+			lblModelState.setForeground( Logger.ERROR_COLOR );
+			break;
+		default:
+			lblModelState.setText( "Model: not loaded." );
+			lblModelState.setForeground( Color.GRAY );
+			break;
+		}
+	}
+
 	@Override
 	public void clean()
-	{}
+	{
+		warmUpTimer.stop();
+		previewer.cancel();
+		Roi.removeRoiListener( roiListener );
+		ImagePlus.removeImageListener( imageListener );
+	}
 }
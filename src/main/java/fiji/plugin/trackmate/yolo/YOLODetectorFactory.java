@@ -22,11 +22,14 @@
 package fiji.plugin.trackmate.yolo;
 
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.io.IOUtils.readBooleanAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readStringAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
+import static fiji.plugin.trackmate.util.TMUtils.checkOptionalParameter;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
 
@@ -89,6 +92,210 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 
 	public static final double DEFAULT_YOLO_IOU = 0.7;
 
+	/**
+	 * Key for the parameter that sets the relative change between frames
+	 * below which a frame is not sent to YOLO, but reuses the detections of
+	 * the last frame that was. The change is measured on downsampled frames,
+	 * as the mean absolute difference divided by the mean intensity. A value
+	 * of 0 disables motion gating. This parameter is optional.
+	 */
+	public static final String KEY_YOLO_MOTION_THRESHOLD = "YOLO_MOTION_THRESHOLD";
+
+	public static final double DEFAULT_YOLO_MOTION_THRESHOLD = 0.;
+
+	/**
+	 * Key for the parameter that sets the number of frames between two
+	 * keyframes in ROI-guided mode. Keyframes are inferred on the full frame,
+	 * and the frames in between only on crops around the detections of the
+	 * keyframes. A value smaller than 2 disables ROI-guided mode. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_YOLO_ROI_KEYFRAME_INTERVAL = "YOLO_ROI_KEYFRAME_INTERVAL";
+
+	public static final int DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL = 0;
+
+	/**
+	 * Key for the parameter that sets the margin, in pixels, added around the
+	 * detections of keyframes to build the crops of the frames in between, in
+	 * ROI-guided mode. This parameter is optional.
+	 */
+	public static final String KEY_YOLO_ROI_MARGIN = "YOLO_ROI_MARGIN";
+
+	public static final int DEFAULT_YOLO_ROI_MARGIN = 16;
+
+	/**
+	 * Key for the parameter that sets the downsampling factor of the
+	 * full-frame copy inferred between keyframes to find new objects, in
+	 * ROI-guided mode. A value smaller than 2 skips this check. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_YOLO_ROI_COARSE_FACTOR = "YOLO_ROI_COARSE_FACTOR";
+
+	public static final int DEFAULT_YOLO_ROI_COARSE_FACTOR = 4;
+
+	/**
+	 * Key for the parameter that sets the downsampling factor of the first
+	 * pass of pyramid mode. Frames are first inferred downsampled, then at
+	 * full resolution only around the objects found. A value smaller than 2
+	 * disables pyramid mode. This parameter is optional.
+	 *
+	 * @see PyramidInference
+	 */
+	public static final String KEY_YOLO_PYRAMID_FACTOR = "YOLO_PYRAMID_FACTOR";
+
+	public static final int DEFAULT_YOLO_PYRAMID_FACTOR = 1;
+
+	/**
+	 * Key for the parameter that sets the size of the images fed to the
+	 * model. A value of 0 uses the ultralytics default. This parameter is
+	 * optional, and is typically set by the auto-tuner.
+	 */
+	public static final String KEY_YOLO_IMGSZ = "YOLO_IMGSZ";
+
+	public static final int DEFAULT_YOLO_IMGSZ = 0;
+
+	/**
+	 * Key for the parameter that sets the number of images inferred together.
+	 * A value of 0 uses the ultralytics default. This parameter is optional,
+	 * and is typically set by the auto-tuner.
+	 */
+	public static final String KEY_YOLO_BATCH = "YOLO_BATCH";
+
+	public static final int DEFAULT_YOLO_BATCH = 0;
+
+	/**
+	 * Key for the parameter that sets the max number of CPU threads used by
+	 * the inference. A value of 0 uses the share of the cores given by the
+	 * {@link InferenceArbiter}. This parameter is optional, and is typically
+	 * set by the auto-tuner.
+	 */
+	public static final String KEY_YOLO_THREADS = "YOLO_THREADS";
+
+	public static final int DEFAULT_YOLO_THREADS = 0;
+
+	/**
+	 * Key for the parameter that sets whether the inference runs in half
+	 * precision. It is ignored when no CUDA device is available. This
+	 * parameter is optional, and is typically set by the auto-tuner.
+	 */
+	public static final String KEY_YOLO_HALF = "YOLO_HALF";
+
+	public static final boolean DEFAULT_YOLO_HALF = false;
+
+	/**
+	 * Key for the parameter that sets how much the detections of a
+	 * configuration tested by the auto-tuner can differ from the reference
+	 * configuration, as 1 minus the F1 score of the match between the two.
+	 * This parameter is optional.
+	 */
+	public static final String KEY_YOLO_TUNE_TOLERANCE = "YOLO_TUNE_TOLERANCE";
+
+	public static final double DEFAULT_YOLO_TUNE_TOLERANCE = 0.02;
+
+	/**
+	 * Key for the parameter that sets the format the model is converted to
+	 * before inference, one of {@link ModelConverter#FORMATS}. Converted
+	 * models are cached on disk, and the original model is used if
+	 * conversion fails. This parameter is optional.
+	 */
+	public static final String KEY_YOLO_MODEL_FORMAT = "YOLO_MODEL_FORMAT";
+
+	public static final String DEFAULT_YOLO_MODEL_FORMAT = ModelConverter.FORMAT_NONE;
+
+	/**
+	 * Key for the parameter that sets whether the converted model is
+	 * quantized to INT8. Only supported by the OpenVINO format. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_YOLO_INT8 = "YOLO_INT8";
+
+	public static final boolean DEFAULT_YOLO_INT8 = false;
+
+	/**
+	 * Key for the parameter that sets the addresses of remote inference
+	 * workers, as <code>host:port</code> separated by commas. When not empty,
+	 * the frames are split in shards distributed over these workers instead
+	 * of running YOLO on this machine. This parameter is optional.
+	 *
+	 * @see DistributedInference
+	 */
+	public static final String KEY_YOLO_REMOTE_WORKERS = "YOLO_REMOTE_WORKERS";
+
+	public static final String DEFAULT_YOLO_REMOTE_WORKERS = "";
+
+	/**
+	 * Key for the parameter that sets after how many seconds without a frame
+	 * processed the YOLO process is considered stalled, and killed. 0
+	 * disables the watchdog. This parameter is optional.
+	 *
+	 * @see InferenceWatchdog
+	 */
+	public static final String KEY_YOLO_STALL_TIMEOUT = "YOLO_STALL_TIMEOUT";
+
+	public static final int DEFAULT_YOLO_STALL_TIMEOUT = 300;
+
+	/**
+	 * Key for the parameter that sets how many times a stalled YOLO process
+	 * is restarted on the frames it did not process, before giving up. This
+	 * parameter is optional.
+	 */
+	public static final String KEY_YOLO_MAX_RESTARTS = "YOLO_MAX_RESTARTS";
+
+	public static final int DEFAULT_YOLO_MAX_RESTARTS = 2;
+
+	/**
+	 * Key for the parameter that sets extra models run on the same frames as
+	 * the main model, with their own thresholds and labels. Their detections
+	 * are merged with the ones of the main model, and the index of the model
+	 * is stored on each spot. This parameter is optional.
+	 *
+	 * @see ModelEnsemble
+	 */
+	public static final String KEY_YOLO_ENSEMBLE_MODELS = "YOLO_ENSEMBLE_MODELS";
+
+	public static final String DEFAULT_YOLO_ENSEMBLE_MODELS = "";
+
+	/**
+	 * Key for the parameter that sets the IoU above which a detection that
+	 * overlaps a more confident detection of another model of the ensemble
+	 * is removed. 0 keeps all the detections. This parameter is optional.
+	 */
+	public static final String KEY_YOLO_ENSEMBLE_IOU = "YOLO_ENSEMBLE_IOU";
+
+	public static final double DEFAULT_YOLO_ENSEMBLE_IOU = 0.;
+
+	/**
+	 * Key for the parameter that sets whether the model is a segmentation
+	 * model. If <code>true</code>, spots are created with the contours of
+	 * the objects instead of their boxes. This parameter is optional.
+	 */
+	public static final String KEY_YOLO_SEGMENTATION = "YOLO_SEGMENTATION";
+
+	public static final boolean DEFAULT_YOLO_SEGMENTATION = false;
+
+	/**
+	 * Key for the parameter that sets the tolerance, in pixels, of the
+	 * simplification of the contours of a segmentation model. This parameter
+	 * is optional.
+	 *
+	 * @see PolygonLabelReader
+	 */
+	public static final String KEY_YOLO_SIMPLIFY_TOLERANCE = "YOLO_SIMPLIFY_TOLERANCE";
+
+	public static final double DEFAULT_YOLO_SIMPLIFY_TOLERANCE = 0.5;
+
+	/**
+	 * Key for the parameter that stores the path to the file with the raw
+	 * detections of the last run, written by the detector next to the source
+	 * image. When the image and the settings that change the detections did
+	 * not change, and the confidence threshold was not lowered, the detector
+	 * reloads the detections from this file instead of running YOLO. This
+	 * parameter is optional.
+	 *
+	 * @see DetectionSidecar
+	 */
+	public static final String KEY_YOLO_DETECTIONS_FILE = "YOLO_DETECTIONS_FILE";
+
 	/**
 	 * The key to the parameter that stores the logger instance, to which
 	 * Cellpose messages wil be sent. Values must be implementing
@@ -155,6 +362,7 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 				img,
 				interval,
 				cli,
+				settings,
 				logger );
 		return detector;
 	}
@@ -188,6 +396,46 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 		ok = ok & writeAttribute( settings, element, KEY_YOLO_MODEL_FILEPATH, String.class, errorHolder );
 		ok = ok & writeAttribute( settings, element, KEY_YOLO_CONF, Double.class, errorHolder );
 		ok = ok & writeAttribute( settings, element, KEY_YOLO_IOU, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_MOTION_THRESHOLD ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_MOTION_THRESHOLD, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_ROI_KEYFRAME_INTERVAL ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_ROI_KEYFRAME_INTERVAL, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_ROI_MARGIN ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_ROI_MARGIN, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_ROI_COARSE_FACTOR ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_ROI_COARSE_FACTOR, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_PYRAMID_FACTOR ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_PYRAMID_FACTOR, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_IMGSZ ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_IMGSZ, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_BATCH ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_BATCH, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_THREADS ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_THREADS, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_HALF ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_HALF, Boolean.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_TUNE_TOLERANCE ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_TUNE_TOLERANCE, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_MODEL_FORMAT ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_MODEL_FORMAT, String.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_INT8 ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_INT8, Boolean.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_REMOTE_WORKERS ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_REMOTE_WORKERS, String.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_STALL_TIMEOUT ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_STALL_TIMEOUT, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_MAX_RESTARTS ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_MAX_RESTARTS, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_ENSEMBLE_MODELS ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_ENSEMBLE_MODELS, String.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_ENSEMBLE_IOU ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_ENSEMBLE_IOU, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_SEGMENTATION ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_SEGMENTATION, Boolean.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_SIMPLIFY_TOLERANCE ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_SIMPLIFY_TOLERANCE, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_YOLO_DETECTIONS_FILE ) )
+			ok = ok & writeAttribute( settings, element, KEY_YOLO_DETECTIONS_FILE, String.class, errorHolder );
 
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -205,6 +453,46 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 		ok = ok & readStringAttribute( element, settings, KEY_YOLO_MODEL_FILEPATH, errorHolder );
 		ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_CONF, errorHolder );
 		ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_IOU, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_MOTION_THRESHOLD ) != null )
+			ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_MOTION_THRESHOLD, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_ROI_KEYFRAME_INTERVAL ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_ROI_KEYFRAME_INTERVAL, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_ROI_MARGIN ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_ROI_MARGIN, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_ROI_COARSE_FACTOR ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_ROI_COARSE_FACTOR, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_PYRAMID_FACTOR ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_PYRAMID_FACTOR, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_IMGSZ ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_IMGSZ, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_BATCH ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_BATCH, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_THREADS ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_THREADS, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_HALF ) != null )
+			ok = ok & readBooleanAttribute( element, settings, KEY_YOLO_HALF, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_TUNE_TOLERANCE ) != null )
+			ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_TUNE_TOLERANCE, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_MODEL_FORMAT ) != null )
+			ok = ok & readStringAttribute( element, settings, KEY_YOLO_MODEL_FORMAT, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_INT8 ) != null )
+			ok = ok & readBooleanAttribute( element, settings, KEY_YOLO_INT8, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_REMOTE_WORKERS ) != null )
+			ok = ok & readStringAttribute( element, settings, KEY_YOLO_REMOTE_WORKERS, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_STALL_TIMEOUT ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_STALL_TIMEOUT, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_MAX_RESTARTS ) != null )
+			ok = ok & readIntegerAttribute( element, settings, KEY_YOLO_MAX_RESTARTS, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_ENSEMBLE_MODELS ) != null )
+			ok = ok & readStringAttribute( element, settings, KEY_YOLO_ENSEMBLE_MODELS, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_ENSEMBLE_IOU ) != null )
+			ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_ENSEMBLE_IOU, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_SEGMENTATION ) != null )
+			ok = ok & readBooleanAttribute( element, settings, KEY_YOLO_SEGMENTATION, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_SIMPLIFY_TOLERANCE ) != null )
+			ok = ok & readDoubleAttribute( element, settings, KEY_YOLO_SIMPLIFY_TOLERANCE, errorHolder );
+		if ( element.getAttribute( KEY_YOLO_DETECTIONS_FILE ) != null )
+			ok = ok & readStringAttribute( element, settings, KEY_YOLO_DETECTIONS_FILE, errorHolder );
 
 		return checkSettings( settings );
 	}
@@ -223,6 +511,25 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 		settings.put( KEY_YOLO_MODEL_FILEPATH, DEFAULT_YOLO_MODEL_FILEPATH );
 		settings.put( KEY_YOLO_CONF, DEFAULT_YOLO_CONF );
 		settings.put( KEY_YOLO_IOU, DEFAULT_YOLO_IOU );
+		settings.put( KEY_YOLO_MOTION_THRESHOLD, DEFAULT_YOLO_MOTION_THRESHOLD );
+		settings.put( KEY_YOLO_ROI_KEYFRAME_INTERVAL, DEFAULT_YOLO_ROI_KEYFRAME_INTERVAL );
+		settings.put( KEY_YOLO_ROI_MARGIN, DEFAULT_YOLO_ROI_MARGIN );
+		settings.put( KEY_YOLO_ROI_COARSE_FACTOR, DEFAULT_YOLO_ROI_COARSE_FACTOR );
+		settings.put( KEY_YOLO_PYRAMID_FACTOR, DEFAULT_YOLO_PYRAMID_FACTOR );
+		settings.put( KEY_YOLO_IMGSZ, DEFAULT_YOLO_IMGSZ );
+		settings.put( KEY_YOLO_BATCH, DEFAULT_YOLO_BATCH );
+		settings.put( KEY_YOLO_THREADS, DEFAULT_YOLO_THREADS );
+		settings.put( KEY_YOLO_HALF, DEFAULT_YOLO_HALF );
+		settings.put( KEY_YOLO_TUNE_TOLERANCE, DEFAULT_YOLO_TUNE_TOLERANCE );
+		settings.put( KEY_YOLO_MODEL_FORMAT, DEFAULT_YOLO_MODEL_FORMAT );
+		settings.put( KEY_YOLO_INT8, DEFAULT_YOLO_INT8 );
+		settings.put( KEY_YOLO_REMOTE_WORKERS, DEFAULT_YOLO_REMOTE_WORKERS );
+		settings.put( KEY_YOLO_STALL_TIMEOUT, DEFAULT_YOLO_STALL_TIMEOUT );
+		settings.put( KEY_YOLO_MAX_RESTARTS, DEFAULT_YOLO_MAX_RESTARTS );
+		settings.put( KEY_YOLO_ENSEMBLE_MODELS, DEFAULT_YOLO_ENSEMBLE_MODELS );
+		settings.put( KEY_YOLO_ENSEMBLE_IOU, DEFAULT_YOLO_ENSEMBLE_IOU );
+		settings.put( KEY_YOLO_SEGMENTATION, DEFAULT_YOLO_SEGMENTATION );
+		settings.put( KEY_YOLO_SIMPLIFY_TOLERANCE, DEFAULT_YOLO_SIMPLIFY_TOLERANCE );
 		settings.put( KEY_LOGGER, Logger.DEFAULT_LOGGER );
 		return settings;
 	}
@@ -236,6 +543,52 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 		ok = ok & checkParameter( settings, KEY_YOLO_MODEL_FILEPATH, String.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_YOLO_CONF, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_YOLO_IOU, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_MOTION_THRESHOLD, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_ROI_KEYFRAME_INTERVAL, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_ROI_MARGIN, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_ROI_COARSE_FACTOR, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_PYRAMID_FACTOR, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_IMGSZ, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_BATCH, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_THREADS, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_HALF, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_TUNE_TOLERANCE, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_MODEL_FORMAT, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_INT8, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_REMOTE_WORKERS, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_STALL_TIMEOUT, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_MAX_RESTARTS, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_ENSEMBLE_MODELS, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_ENSEMBLE_IOU, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_SEGMENTATION, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_SIMPLIFY_TOLERANCE, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_YOLO_DETECTIONS_FILE, String.class, errorHolder );
+		final Object remoteWorkers = settings.get( KEY_YOLO_REMOTE_WORKERS );
+		if ( remoteWorkers instanceof String )
+		{
+			try
+			{
+				DistributedInference.parseHosts( ( String ) remoteWorkers );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorHolder.append( "Invalid remote workers: " + e.getMessage() + '\n' );
+				ok = false;
+			}
+		}
+		final Object ensemble = settings.get( KEY_YOLO_ENSEMBLE_MODELS );
+		if ( ensemble instanceof String )
+		{
+			try
+			{
+				ModelEnsemble.parse( ( String ) ensemble, DEFAULT_YOLO_CONF, DEFAULT_YOLO_IOU );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorHolder.append( "Invalid ensemble models: " + e.getMessage() + '\n' );
+				ok = false;
+			}
+		}
 
 		// If we have a logger, test it is of the right class.
 		final Object loggerObj = settings.get( KEY_LOGGER );
@@ -247,7 +600,29 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 		}
 
 		final List< String > mandatoryKeys = Arrays.asList( KEY_CONDA_ENV, KEY_YOLO_MODEL_FILEPATH, KEY_YOLO_CONF, KEY_YOLO_IOU );
-		final List< String > optionalKeys = Arrays.asList( KEY_LOGGER, KEY_TARGET_CHANNEL );
+		final List< String > optionalKeys = Arrays.asList(
+				KEY_LOGGER,
+				KEY_TARGET_CHANNEL,
+				KEY_YOLO_MOTION_THRESHOLD,
+				KEY_YOLO_ROI_KEYFRAME_INTERVAL,
+				KEY_YOLO_ROI_MARGIN,
+				KEY_YOLO_ROI_COARSE_FACTOR,
+				KEY_YOLO_PYRAMID_FACTOR,
+				KEY_YOLO_IMGSZ,
+				KEY_YOLO_BATCH,
+				KEY_YOLO_THREADS,
+				KEY_YOLO_HALF,
+				KEY_YOLO_TUNE_TOLERANCE,
+				KEY_YOLO_MODEL_FORMAT,
+				KEY_YOLO_INT8,
+				KEY_YOLO_REMOTE_WORKERS,
+				KEY_YOLO_STALL_TIMEOUT,
+				KEY_YOLO_MAX_RESTARTS,
+				KEY_YOLO_ENSEMBLE_MODELS,
+				KEY_YOLO_ENSEMBLE_IOU,
+				KEY_YOLO_SEGMENTATION,
+				KEY_YOLO_SIMPLIFY_TOLERANCE,
+				KEY_YOLO_DETECTIONS_FILE );
 
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
@@ -283,7 +658,9 @@ public class YOLODetectorFactory< T extends RealType< T > & NativeType< T > > im
 	@Override
 	public boolean has2Dsegmentation()
 	{
-		return false;
+		if ( settings == null )
+			return DEFAULT_YOLO_SEGMENTATION;
+		return ( Boolean ) settings.getOrDefault( KEY_YOLO_SEGMENTATION, DEFAULT_YOLO_SEGMENTATION );
 	}
 
 	@Override
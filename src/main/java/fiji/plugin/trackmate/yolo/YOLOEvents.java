@@ -0,0 +1,397 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events emitted by the phases of a YOLO detection run.
+ * <p>
+ * Events are only recorded while a recording with them enabled is running,
+ * for instance after starting the JVM with
+ * <code>-XX:StartFlightRecording</code>, and cost close to nothing
+ * otherwise. They are all in the <code>TrackMate / YOLO</code> category.
+ * <p>
+ * The plugin is built for Java 8, which has no <code>jdk.jfr</code> API.
+ * The event types are therefore defined at runtime, by reflection, when the
+ * JVM provides it. On older JVMs, the events of this class do nothing.
+ */
+public final class YOLOEvents
+{
+
+	private static final String[] CATEGORY = new String[] { "TrackMate", "YOLO" };
+
+	private static final Jfr JFR = Jfr.load();
+
+	private static final Object EXPORT = type( "Export", "YOLO Frame Export",
+			"Frames of the source image saved for YOLO.",
+			field( int.class, "frames", "Frames", false ),
+			field( long.class, "bytes", "Bytes", true ) );
+
+	private static final Object PROCESS_START = type( "ProcessStart", "YOLO Process Start",
+			"Start of the YOLO inference: slot wait, and process or worker start.",
+			field( String.class, "mode", "Mode", false ),
+			field( String.class, "model", "Model", false ) );
+
+	private static final Object INFERENCE = type( "Inference", "YOLO Inference",
+			"Inference of one batch of frames sent to YOLO at once.",
+			field( String.class, "mode", "Mode", false ),
+			field( int.class, "frames", "Frames", false ),
+			field( int.class, "batch", "Batch Size", false ),
+			field( int.class, "imgsz", "Image Size", false ) );
+
+	private static final Object IMPORT = type( "Import", "YOLO Label Import",
+			"Reading of the YOLO results back.",
+			field( int.class, "frames", "Frames", false ),
+			field( int.class, "detections", "Detections", false ),
+			field( long.class, "bytes", "Bytes", true ) );
+
+	private static final Object SPOT_CREATION = type( "SpotCreation", "YOLO Spot Creation",
+			"Conversion of the detections to TrackMate spots.",
+			field( int.class, "frames", "Frames", false ),
+			field( int.class, "spots", "Spots", false ) );
+
+	private YOLOEvents()
+	{}
+
+	/**
+	 * Returns whether the events of this class are sent to the flight
+	 * recorder, that is, whether the JVM provides it.
+	 *
+	 * @return <code>true</code> if events are recorded.
+	 */
+	public static boolean isAvailable()
+	{
+		return JFR != null;
+	}
+
+	/**
+	 * Base class for the events. The field values are copied to the flight
+	 * recorder event when it is committed.
+	 */
+	public static abstract class YOLOEvent
+	{
+
+		private final Object event;
+
+		protected YOLOEvent( final Object type )
+		{
+			this.event = ( JFR == null || type == null ) ? null : JFR.newEvent( type );
+		}
+
+		/**
+		 * Starts timing the event.
+		 */
+		public void begin()
+		{
+			if ( event != null )
+				JFR.invoke( JFR.begin, event );
+		}
+
+		/**
+		 * Ends timing the event. Otherwise the timing ends on commit.
+		 */
+		public void end()
+		{
+			if ( event != null )
+				JFR.invoke( JFR.end, event );
+		}
+
+		/**
+		 * Returns whether the event would be recorded, so that its fields are
+		 * only computed when needed.
+		 *
+		 * @return <code>true</code> if a recording with this event enabled
+		 *         is running.
+		 */
+		public boolean shouldCommit()
+		{
+			return event != null && Boolean.TRUE.equals( JFR.invoke( JFR.shouldCommit, event ) );
+		}
+
+		/**
+		 * Ends timing the event and records it, if a recording is running.
+		 */
+		public void commit()
+		{
+			if ( event == null )
+				return;
+			final Object[] values = values();
+			for ( int i = 0; i < values.length; i++ )
+				JFR.invoke( JFR.set, event, i, values[ i ] );
+			JFR.invoke( JFR.commit, event );
+		}
+
+		/**
+		 * Returns the field values, in the order of the event type fields.
+		 */
+		protected abstract Object[] values();
+	}
+
+	public static class ExportEvent extends YOLOEvent
+	{
+		public int frames;
+
+		public long bytes;
+
+		public ExportEvent()
+		{
+			super( EXPORT );
+		}
+
+		@Override
+		protected Object[] values()
+		{
+			return new Object[] { frames, bytes };
+		}
+	}
+
+	public static class ProcessStartEvent extends YOLOEvent
+	{
+		/** worker, command line or remote. */
+		public String mode;
+
+		public String model;
+
+		public ProcessStartEvent()
+		{
+			super( PROCESS_START );
+		}
+
+		@Override
+		protected Object[] values()
+		{
+			return new Object[] { mode, model };
+		}
+	}
+
+	public static class InferenceEvent extends YOLOEvent
+	{
+		public String mode;
+
+		public int frames;
+
+		public int batch;
+
+		public int imgsz;
+
+		public InferenceEvent()
+		{
+			super( INFERENCE );
+		}
+
+		@Override
+		protected Object[] values()
+		{
+			return new Object[] { mode, frames, batch, imgsz };
+		}
+	}
+
+	public static class ImportEvent extends YOLOEvent
+	{
+		public int frames;
+
+		public int detections;
+
+		public long bytes;
+
+		public ImportEvent()
+		{
+			super( IMPORT );
+		}
+
+		@Override
+		protected Object[] values()
+		{
+			return new Object[] { frames, detections, bytes };
+		}
+	}
+
+	public static class SpotCreationEvent extends YOLOEvent
+	{
+		public int frames;
+
+		public int spots;
+
+		public SpotCreationEvent()
+		{
+			super( SPOT_CREATION );
+		}
+
+		@Override
+		protected Object[] values()
+		{
+			return new Object[] { frames, spots };
+		}
+	}
+
+	private static Object[] field( final Class< ? > type, final String name, final String label, final boolean bytes )
+	{
+		return new Object[] { type, name, label, bytes };
+	}
+
+	/**
+	 * Creates an event factory, or returns <code>null</code> if the flight
+	 * recorder is not available.
+	 */
+	private static Object type( final String name, final String label, final String description, final Object[]... fields )
+	{
+		if ( JFR == null )
+			return null;
+		try
+		{
+			return JFR.createFactory( "fiji.plugin.trackmate.yolo." + name, label, description, fields );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * The reflective entry points of the <code>jdk.jfr</code> API.
+	 */
+	private static final class Jfr
+	{
+
+		private final Constructor< ? > annotationElement;
+
+		private final Constructor< ? > valueDescriptor;
+
+		private final Method create;
+
+		private final Method newEvent;
+
+		private final Method begin;
+
+		private final Method end;
+
+		private final Method shouldCommit;
+
+		private final Method set;
+
+		private final Method commit;
+
+		private final Class< ? extends Annotation > nameAnnotation;
+
+		private final Class< ? extends Annotation > labelAnnotation;
+
+		private final Class< ? extends Annotation > descriptionAnnotation;
+
+		private final Class< ? extends Annotation > categoryAnnotation;
+
+		private final Class< ? extends Annotation > stackTraceAnnotation;
+
+		private final Class< ? extends Annotation > dataAmountAnnotation;
+
+		private Jfr() throws ReflectiveOperationException
+		{
+			final Class< ? > ae = Class.forName( "jdk.jfr.AnnotationElement" );
+			this.annotationElement = ae.getConstructor( Class.class, Object.class );
+			this.valueDescriptor = Class.forName( "jdk.jfr.ValueDescriptor" ).getConstructor( Class.class, String.class, List.class );
+			final Class< ? > factory = Class.forName( "jdk.jfr.EventFactory" );
+			this.create = factory.getMethod( "create", List.class, List.class );
+			this.newEvent = factory.getMethod( "newEvent" );
+			final Class< ? > event = Class.forName( "jdk.jfr.Event" );
+			this.begin = event.getMethod( "begin" );
+			this.end = event.getMethod( "end" );
+			this.shouldCommit = event.getMethod( "shouldCommit" );
+			this.set = event.getMethod( "set", int.class, Object.class );
+			this.commit = event.getMethod( "commit" );
+			this.nameAnnotation = annotation( "jdk.jfr.Name" );
+			this.labelAnnotation = annotation( "jdk.jfr.Label" );
+			this.descriptionAnnotation = annotation( "jdk.jfr.Description" );
+			this.categoryAnnotation = annotation( "jdk.jfr.Category" );
+			this.stackTraceAnnotation = annotation( "jdk.jfr.StackTrace" );
+			this.dataAmountAnnotation = annotation( "jdk.jfr.DataAmount" );
+		}
+
+		private static Jfr load()
+		{
+			try
+			{
+				return new Jfr();
+			}
+			catch ( final ReflectiveOperationException | LinkageError e )
+			{
+				return null;
+			}
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private static Class< ? extends Annotation > annotation( final String name ) throws ClassNotFoundException
+		{
+			return ( Class< ? extends Annotation > ) Class.forName( name );
+		}
+
+		private Object createFactory( final String name, final String label, final String description, final Object[][] fields ) throws ReflectiveOperationException
+		{
+			final List< Object > annotations = Arrays.asList(
+					annotationElement.newInstance( nameAnnotation, name ),
+					annotationElement.newInstance( labelAnnotation, label ),
+					annotationElement.newInstance( descriptionAnnotation, description ),
+					annotationElement.newInstance( categoryAnnotation, CATEGORY ),
+					annotationElement.newInstance( stackTraceAnnotation, false ) );
+			final List< Object > descriptors = new ArrayList<>();
+			for ( final Object[] field : fields )
+			{
+				final List< Object > fieldAnnotations = new ArrayList<>();
+				fieldAnnotations.add( annotationElement.newInstance( labelAnnotation, field[ 2 ] ) );
+				if ( ( Boolean ) field[ 3 ] )
+					fieldAnnotations.add( annotationElement.newInstance( dataAmountAnnotation, "BYTES" ) );
+				descriptors.add( valueDescriptor.newInstance( field[ 0 ], field[ 1 ], Collections.unmodifiableList( fieldAnnotations ) ) );
+			}
+			return create.invoke( null, annotations, descriptors );
+		}
+
+		private Object newEvent( final Object factory )
+		{
+			try
+			{
+				return newEvent.invoke( factory );
+			}
+			catch ( final ReflectiveOperationException | RuntimeException e )
+			{
+				return null;
+			}
+		}
+
+		private Object invoke( final Method method, final Object event, final Object... args )
+		{
+			try
+			{
+				return method.invoke( event, args );
+			}
+			catch ( final ReflectiveOperationException | RuntimeException e )
+			{
+				// Recording is best effort.
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.SpotGlobalDetector;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs several YOLO detection jobs, each with its own image, interval and
+ * settings, so that the model start-up cost is paid once per model instead
+ * of once per job.
+ * <p>
+ * Jobs are grouped by conda environment and model, after conversion if one
+ * is requested. For each group, one YOLO worker is loaded, then the jobs of
+ * the group are detected one after the other on this worker. Each job keeps
+ * its own settings otherwise, including the thresholds, motion gating,
+ * ROI-guided mode and checkpoints, and gets its own spot collection.
+ * <p>
+ * Example use from a script, over stage positions:
+ *
+ * <pre>
+ * queue = YOLOJobQueue(logger)
+ * jobs = [queue.add(img, interval, settings) for img, interval in positions]
+ * queue.process()
+ * for job in jobs:
+ *     spots = job.getResult()
+ * </pre>
+ */
+public class YOLOJobQueue implements Algorithm, Benchmark
+{
+
+	private static final String BASE_ERROR_MESSAGE = YOLODetector.BASE_ERROR_MESSAGE;
+
+	private final List< Job< ? > > jobs = new ArrayList<>();
+
+	private final Logger logger;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	public YOLOJobQueue( final Logger logger )
+	{
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	/**
+	 * Queues a detection job.
+	 *
+	 * @param img
+	 *            the image to detect in.
+	 * @param interval
+	 *            the interval to detect in, with time last if present.
+	 * @param settings
+	 *            the YOLO detector settings for this job.
+	 * @return the job, to retrieve its results after processing.
+	 */
+	public < T extends RealType< T > & NativeType< T > > Job< T > add( final ImgPlus< T > img, final Interval interval, final Map< String, Object > settings )
+	{
+		final Job< T > job = new Job<>( img, interval, settings );
+		jobs.add( job );
+		return job;
+	}
+
+	public List< Job< ? > > getJobs()
+	{
+		return jobs;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		final YOLODetectorFactory< ? > factory = new YOLODetectorFactory<>();
+		for ( int i = 0; i < jobs.size(); i++ )
+		{
+			if ( !factory.checkSettings( jobs.get( i ).settings ) )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Job " + i + ": " + factory.getErrorMessage();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		errorMessage = null;
+		final long startTime = System.currentTimeMillis();
+
+		// Group jobs by environment and model.
+		final Map< String, List< Job< ? > > > groups = new LinkedHashMap<>();
+		for ( final Job< ? > job : jobs )
+		{
+			if ( job.result != null )
+				continue;
+			final String condaEnv = ( String ) job.settings.get( KEY_CONDA_ENV );
+			final String modelPath = ModelConverter.resolve( job.settings, logger );
+			job.condaEnv = condaEnv;
+			job.modelPath = modelPath;
+			groups.computeIfAbsent( condaEnv + '\n' + modelPath, k -> new ArrayList<>() ).add( job );
+		}
+
+		boolean ok = true;
+		int nDone = 0;
+		for ( final List< Job< ? > > group : groups.values() )
+		{
+			final Job< ? > first = group.get( 0 );
+			logger.log( "Loading " + first.modelPath + " for " + group.size() + " jobs.\n" );
+			YOLOWorkerCache.warmUp( first.condaEnv, first.modelPath );
+			if ( YOLOWorkerCache.get( first.condaEnv, first.modelPath ) == null )
+				logger.log( "Could not load the model, each job will start YOLO:\n"
+						+ YOLOWorkerCache.getErrorMessage( first.condaEnv, first.modelPath ) + '\n' );
+
+			for ( final Job< ? > job : group )
+			{
+				logger.setStatus( "YOLO job " + ( nDone + 1 ) + " / " + jobs.size() );
+				ok = job.run( logger ) & ok;
+				logger.setProgress( ( double ) ++nDone / jobs.size() );
+			}
+		}
+
+		if ( !ok )
+			errorMessage = BASE_ERROR_MESSAGE + "Some jobs failed. See their error messages.";
+		processingTime = System.currentTimeMillis() - startTime;
+		logger.log( String.format( "Processed %d jobs in %.1f s.\n", nDone, processingTime / 1000. ) );
+		return ok;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * A detection job: an image, an interval, and the detector settings to
+	 * use on them.
+	 */
+	public static class Job< T extends RealType< T > & NativeType< T > >
+	{
+
+		private final ImgPlus< T > img;
+
+		private final Interval interval;
+
+		private final Map< String, Object > settings;
+
+		private String condaEnv;
+
+		private String modelPath;
+
+		private SpotCollection result;
+
+		private String errorMessage;
+
+		private Job( final ImgPlus< T > img, final Interval interval, final Map< String, Object > settings )
+		{
+			this.img = img;
+			this.interval = interval;
+			this.settings = settings;
+		}
+
+		private boolean run( final Logger logger )
+		{
+			final YOLODetectorFactory< T > factory = new YOLODetectorFactory<>();
+			if ( !factory.setTarget( img, settings ) )
+			{
+				errorMessage = factory.getErrorMessage();
+				return false;
+			}
+			final SpotGlobalDetector< T > detector = factory.getDetector( interval );
+			if ( !detector.checkInput() || !detector.process() )
+			{
+				errorMessage = detector.getErrorMessage();
+				logger.error( errorMessage + '\n' );
+				return false;
+			}
+			result = detector.getResult();
+			return true;
+		}
+
+		public ImgPlus< T > getImg()
+		{
+			return img;
+		}
+
+		public Interval getInterval()
+		{
+			return interval;
+		}
+
+		public Map< String, Object > getSettings()
+		{
+			return settings;
+		}
+
+		/**
+		 * Returns the spots detected by this job.
+		 *
+		 * @return the spots, or <code>null</code> if the job was not processed
+		 *         or failed.
+		 */
+		public SpotCollection getResult()
+		{
+			return result;
+		}
+
+		public String getErrorMessage()
+		{
+			return errorMessage;
+		}
+	}
+}
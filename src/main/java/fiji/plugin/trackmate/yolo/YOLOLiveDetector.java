@@ -0,0 +1,650 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MODEL_FORMAT;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_CONF;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_INT8;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_IOU;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FORMAT;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.yolo.InferenceArbiter.Slot;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Runs YOLO on an acquisition while it grows, and appends the spots of each
+ * new time-point to a spot collection as soon as they are detected.
+ * <p>
+ * The source, an {@link ImagePlus} whose stack grows or a folder in which
+ * frames are saved, is polled for new time-points. The frames that arrived
+ * while YOLO was busy are sent together in the next request, so that the
+ * detector keeps pace with the acquisition when frames arrive faster than
+ * a single request takes. Requests go to a YOLO worker that stays loaded
+ * for the whole acquisition. Each request takes an inference slot only while
+ * it runs, so that a long acquisition does not keep other jobs waiting.
+ * <p>
+ * The latency of each frame, from the moment it was seen in the source to
+ * the moment its spots were added, is reported to the listeners and to
+ * {@link YOLOMetrics#LIVE_LATENCY}.
+ */
+public class YOLOLiveDetector implements AutoCloseable
+{
+
+	/** Delay between two polls of the source, in ms. */
+	public static final long DEFAULT_POLL_DELAY = 50;
+
+	private static final String BATCH_FOLDER_PREFIX = "batch-";
+
+	private final FrameSource source;
+
+	private final Map< String, Object > settings;
+
+	private final SpotCollection spots;
+
+	private final Logger logger;
+
+	private final long pollDelay;
+
+	private final List< FrameListener > listeners = new CopyOnWriteArrayList<>();
+
+	/** Time at which each pending frame was seen, by time-point. */
+	private final Map< Long, Long > arrivals = new TreeMap<>();
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	private volatile String errorMessage;
+
+	private int nFrames;
+
+	private double totalLatency;
+
+	private long maxLatency;
+
+	/**
+	 * Creates a live detector.
+	 *
+	 * @param source
+	 *            the growing acquisition.
+	 * @param settings
+	 *            the detector settings: conda environment, model, thresholds
+	 *            and inference parameters.
+	 * @param spots
+	 *            the spot collection to append spots to. Spots are added
+	 *            while holding its lock.
+	 * @param logger
+	 *            a logger to report progress.
+	 */
+	public YOLOLiveDetector( final FrameSource source, final Map< String, Object > settings, final SpotCollection spots, final Logger logger )
+	{
+		this( source, settings, spots, logger, DEFAULT_POLL_DELAY );
+	}
+
+	public YOLOLiveDetector( final FrameSource source, final Map< String, Object > settings, final SpotCollection spots, final Logger logger, final long pollDelay )
+	{
+		this.source = source;
+		this.settings = new HashMap<>( settings );
+		this.spots = spots;
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+		this.pollDelay = pollDelay;
+	}
+
+	public void addListener( final FrameListener listener )
+	{
+		listeners.add( listener );
+	}
+
+	public void removeListener( final FrameListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Starts watching the source in a background thread. The model is loaded
+	 * in the meantime, and frames that arrive before it is ready are
+	 * detected as soon as it is.
+	 */
+	public synchronized void start()
+	{
+		if ( running )
+			return;
+		running = true;
+		errorMessage = null;
+		thread = new Thread( this::run, "TrackMate-YOLO-live" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the source. The frames that already arrived are
+	 * detected before this method returns.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the last frames.
+	 */
+	public void stop() throws InterruptedException
+	{
+		final Thread t;
+		synchronized ( this )
+		{
+			running = false;
+			t = thread;
+		}
+		if ( t != null )
+			t.join();
+	}
+
+	@Override
+	public void close() throws InterruptedException
+	{
+		stop();
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Returns the error that stopped the detector, or <code>null</code>.
+	 *
+	 * @return the error message.
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the number of frames detected so far.
+	 *
+	 * @return the number of frames.
+	 */
+	public synchronized int getNFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Returns the mean latency of the frames detected so far.
+	 *
+	 * @return the mean latency, in ms.
+	 */
+	public synchronized double getMeanLatency()
+	{
+		return nFrames == 0 ? 0. : totalLatency / nFrames;
+	}
+
+	/**
+	 * Returns the max latency of the frames detected so far.
+	 *
+	 * @return the max latency, in ms.
+	 */
+	public synchronized long getMaxLatency()
+	{
+		return maxLatency;
+	}
+
+	private void run()
+	{
+		final String condaEnv = ( String ) settings.get( KEY_CONDA_ENV );
+		final String sourceModelPath = ( String ) settings.get( KEY_YOLO_MODEL_FILEPATH );
+		final String modelFormat = ( String ) settings.getOrDefault( KEY_YOLO_MODEL_FORMAT, DEFAULT_YOLO_MODEL_FORMAT );
+		final boolean int8 = ( Boolean ) settings.getOrDefault( KEY_YOLO_INT8, DEFAULT_YOLO_INT8 );
+		final double conf = ( ( Number ) settings.getOrDefault( KEY_YOLO_CONF, DEFAULT_YOLO_CONF ) ).doubleValue();
+		final double iou = ( ( Number ) settings.getOrDefault( KEY_YOLO_IOU, DEFAULT_YOLO_IOU ) ).doubleValue();
+		final InferenceProfile profile = InferenceProfile.fromSettings( settings );
+
+		Path runFolder = null;
+		try
+		{
+			final String modelPath = ModelConverter.resolve( condaEnv, sourceModelPath, modelFormat, int8, logger );
+			logger.log( "Loading " + modelPath + " for live detection.\n" );
+			YOLOWorker worker = YOLOWorkerCache.warmUp( condaEnv, modelPath ).join();
+
+			runFolder = FrameExportCache.createRunFolder();
+			final Path outputFolder = runFolder.resolve( "output" );
+			Files.createDirectories( outputFolder );
+			final Path streamPath = outputFolder.resolve( DetectionStream.FILE_NAME );
+			DetectionStream stream = null;
+			logger.log( "Live detection started with " + profile + ".\n" );
+			logger.setStatus( "Live YOLO detection" );
+
+			int nBatches = 0;
+			while ( true )
+			{
+				// Read the flag before polling, to detect the frames that
+				// arrived before stop() was called.
+				final boolean stopping = !running;
+				final long[] frames = poll();
+				if ( frames.length == 0 )
+				{
+					if ( stopping )
+						break;
+					Thread.sleep( pollDelay );
+					continue;
+				}
+
+				final Path batchFolder = runFolder.resolve( BATCH_FOLDER_PREFIX + nBatches++ );
+				Files.createDirectories( batchFolder );
+				for ( final long t : frames )
+					source.export( t, batchFolder );
+				if ( stream == null )
+					stream = new DetectionStream( streamPath, source.interval(), source.calibration() );
+
+				final Map< Integer, DetectionTable > tables = new HashMap<>();
+				// Hold a slot for this batch only, not for the acquisition.
+				try (final Slot slot = InferenceArbiter.acquire( logger ))
+				{
+					logger.setStatus( "Live YOLO detection" );
+					final InferenceProfile p = profile.threads( profile.getThreads( slot.getThreads() ) );
+					try
+					{
+						worker.predict( batchFolder, outputFolder, conf, iou, p, streamPath, true, null );
+					}
+					catch ( final IOException e )
+					{
+						// Try once more with a fresh worker, on the frames it
+						// did not complete.
+						logger.log( "The YOLO worker failed, restarting it: " + e.getMessage() + '\n' );
+						stream.truncateIncomplete();
+						tables.putAll( stream.readNew() );
+						for ( final Integer t : tables.keySet() )
+							Files.deleteIfExists( batchFolder.resolve( YOLOUtils.nameGen.apply( t.longValue() ) + ".tif" ) );
+						worker = YOLOWorkerCache.warmUp( condaEnv, modelPath ).join();
+						if ( tables.size() < frames.length )
+							worker.predict( batchFolder, outputFolder, conf, iou, p, streamPath, true, null );
+					}
+				}
+				tables.putAll( stream.readNew() );
+				publish( frames, tables );
+				FrameExportCache.delete( batchFolder );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			errorMessage = "Live detection was interrupted.";
+		}
+		catch ( final Exception e )
+		{
+			errorMessage = "Live detection stopped: " + e.getMessage();
+			logger.error( errorMessage + '\n' );
+			e.printStackTrace();
+		}
+		finally
+		{
+			running = false;
+			FrameExportCache.delete( runFolder );
+			YOLOMetrics.flush();
+			logger.log( String.format( "Live detection stopped after %d frames, mean latency %.0f ms, max latency %d ms.\n",
+					getNFrames(), getMeanLatency(), getMaxLatency() ) );
+		}
+	}
+
+	/**
+	 * Returns the frames that arrived since the last poll, and records when
+	 * they were seen.
+	 */
+	private long[] poll() throws IOException
+	{
+		final long[] frames = source.poll();
+		final long now = System.currentTimeMillis();
+		for ( final long t : frames )
+			arrivals.put( t, now );
+		return frames;
+	}
+
+	/**
+	 * Adds the spots of a batch of frames to the spot collection, and
+	 * reports their latency.
+	 */
+	private void publish( final long[] frames, final Map< Integer, DetectionTable > tables )
+	{
+		final double frameInterval = source.frameInterval();
+		final long now = System.currentTimeMillis();
+		int nSpots = 0;
+		long batchMax = 0;
+		for ( final long t : frames )
+		{
+			final DetectionTable table = tables.get( ( int ) t );
+			final List< Spot > frameSpots = ( table == null ) ? new ArrayList<>() : table.toSpots();
+			for ( final Spot spot : frameSpots )
+				spot.putFeature( Spot.POSITION_T, Double.valueOf( t * frameInterval ) );
+			synchronized ( spots )
+			{
+				for ( final Spot spot : frameSpots )
+					spots.add( spot, Integer.valueOf( ( int ) t ) );
+			}
+
+			final Long arrival = arrivals.remove( t );
+			final long latency = ( arrival == null ) ? 0 : now - arrival.longValue();
+			synchronized ( this )
+			{
+				nFrames++;
+				totalLatency += latency;
+				maxLatency = Math.max( maxLatency, latency );
+			}
+			batchMax = Math.max( batchMax, latency );
+			nSpots += frameSpots.size();
+			YOLOMetrics.FRAMES.increment( 1 );
+			YOLOMetrics.DETECTIONS.increment( frameSpots.size() );
+			YOLOMetrics.DETECTIONS_PER_FRAME.observe( frameSpots.size() );
+			YOLOMetrics.LIVE_LATENCY.observe( latency / 1000. );
+			for ( final FrameListener listener : listeners )
+				listener.frameDetected( ( int ) t, frameSpots, latency );
+		}
+		logger.log( String.format( "Frame%s %s: %d spots, latency %d ms (mean %.0f ms).\n",
+				frames.length > 1 ? "s" : "",
+				frames.length > 1 ? frames[ 0 ] + "-" + frames[ frames.length - 1 ] : Long.toString( frames[ 0 ] ),
+				nSpots, batchMax, getMeanLatency() ) );
+	}
+
+	/**
+	 * Receives the spots of each frame detected by a live detector.
+	 */
+	@FunctionalInterface
+	public interface FrameListener
+	{
+
+		/**
+		 * Called after the spots of a frame were added to the spot
+		 * collection, on the thread of the live detector.
+		 *
+		 * @param frame
+		 *            the time-point.
+		 * @param spots
+		 *            the spots of this frame.
+		 * @param latency
+		 *            the time between the frame arrival and now, in ms.
+		 */
+		public void frameDetected( int frame, List< Spot > spots, long latency );
+	}
+
+	/**
+	 * A growing acquisition.
+	 */
+	public interface FrameSource
+	{
+
+		/**
+		 * Returns the time-points that became available since the last call,
+		 * in increasing order. A time-point is returned once it is complete.
+		 *
+		 * @return the new time-points, possibly empty.
+		 * @throws IOException
+		 *             if the source cannot be read.
+		 */
+		public long[] poll() throws IOException;
+
+		/**
+		 * Saves a time-point in the specified folder, as a TIFF file named
+		 * after the time-point.
+		 *
+		 * @param t
+		 *            the time-point.
+		 * @param folder
+		 *            the folder to save to.
+		 * @throws IOException
+		 *             if the frame cannot be saved.
+		 */
+		public void export( long t, Path folder ) throws IOException;
+
+		/**
+		 * Returns the X and Y extent of the frames, in pixels. Only valid
+		 * after the first time-point was polled.
+		 *
+		 * @return the frame interval.
+		 */
+		public Interval interval();
+
+		/**
+		 * Returns the pixel size along X and Y. Only valid after the first
+		 * time-point was polled.
+		 *
+		 * @return the calibration.
+		 */
+		public double[] calibration();
+
+		/**
+		 * Returns the time between two time-points, in physical units.
+		 *
+		 * @return the frame interval.
+		 */
+		public double frameInterval();
+	}
+
+	/**
+	 * Returns a source that watches an image whose stack grows, for
+	 * instance an acquisition displayed while it runs. A time-point is
+	 * available once all its channels and Z-slices are in the stack.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @return a new source.
+	 */
+	public static FrameSource ofImage( final ImagePlus imp )
+	{
+		return new ImageSource( imp );
+	}
+
+	/**
+	 * Returns a source that watches a folder in which an acquisition saves
+	 * one TIFF file per time-point. The time-point is read from the last
+	 * integer in the file name. A file is available once its size did not
+	 * change between two polls.
+	 *
+	 * @param folder
+	 *            the folder.
+	 * @return a new source.
+	 */
+	public static FrameSource ofFolder( final Path folder )
+	{
+		return new FolderSource( folder );
+	}
+
+	private static final class ImageSource implements FrameSource
+	{
+
+		private final ImagePlus imp;
+
+		private long nDone;
+
+		private ImageSource( final ImagePlus imp )
+		{
+			this.imp = imp;
+		}
+
+		@Override
+		public long[] poll()
+		{
+			final int planesPerFrame = imp.getNChannels() * imp.getNSlices();
+			final long nAvailable = imp.getStackSize() / Math.max( 1, planesPerFrame );
+			final long[] frames = new long[ ( int ) Math.max( 0, nAvailable - nDone ) ];
+			for ( int i = 0; i < frames.length; i++ )
+				frames[ i ] = nDone + i;
+			nDone = Math.max( nDone, nAvailable );
+			return frames;
+		}
+
+		@Override
+		public void export( final long t, final Path folder ) throws IOException
+		{
+			// The stack may still grow: address planes directly, not through
+			// the hyperstack dimensions.
+			final int planesPerFrame = imp.getNChannels() * imp.getNSlices();
+			final int first = ( int ) ( t * planesPerFrame ) + 1;
+			final ImagePlus frame = new Duplicator().run( imp, first, first + planesPerFrame - 1 );
+			frame.setDimensions( imp.getNChannels(), imp.getNSlices(), 1 );
+			final String path = folder.resolve( YOLOUtils.nameGen.apply( t ) + ".tif" ).toString();
+			if ( !IJ.saveAsTiff( frame, path ) )
+				throw new IOException( "Could not save frame " + t + " to " + path );
+		}
+
+		@Override
+		public Interval interval()
+		{
+			return new FinalInterval( imp.getWidth(), imp.getHeight() );
+		}
+
+		@Override
+		public double[] calibration()
+		{
+			return new double[] { imp.getCalibration().pixelWidth, imp.getCalibration().pixelHeight };
+		}
+
+		@Override
+		public double frameInterval()
+		{
+			final double dt = imp.getCalibration().frameInterval;
+			return dt > 0 ? dt : 1.;
+		}
+	}
+
+	private static final class FolderSource implements FrameSource
+	{
+
+		private final Path folder;
+
+		/** Size of each file at the last poll, by path. */
+		private final Map< Path, Long > sizes = new HashMap<>();
+
+		/** Files already returned, by time-point. */
+		private final Map< Long, Path > done = new HashMap<>();
+
+		private Interval interval;
+
+		private double[] calibration;
+
+		private double frameInterval = 1.;
+
+		private FolderSource( final Path folder )
+		{
+			this.folder = folder;
+		}
+
+		@Override
+		public long[] poll() throws IOException
+		{
+			if ( !Files.isDirectory( folder ) )
+				return new long[ 0 ];
+
+			final Map< Long, Path > ready = new TreeMap<>();
+			try (Stream< Path > files = Files.list( folder ))
+			{
+				for ( final Path file : ( Iterable< Path > ) files::iterator )
+				{
+					final String name = file.getFileName().toString().toLowerCase();
+					if ( !name.endsWith( ".tif" ) && !name.endsWith( ".tiff" ) )
+						continue;
+					final Matcher matcher = YOLOUtils.TIME_POINT_PATTERN.matcher( file.getFileName().toString() );
+					if ( !matcher.find() )
+						continue;
+					final long t = Long.parseLong( matcher.group( 1 ) );
+					if ( done.containsKey( t ) )
+						continue;
+
+					final long size = Files.size( file );
+					final Long previous = sizes.put( file, size );
+					if ( size > 0 && previous != null && previous.longValue() == size )
+						ready.put( t, file );
+				}
+			}
+
+			if ( interval == null && !ready.isEmpty() )
+			{
+				final ImagePlus first = IJ.openImage( ready.values().iterator().next().toString() );
+				if ( first == null )
+					return new long[ 0 ];
+				interval = new FinalInterval( first.getWidth(), first.getHeight() );
+				calibration = new double[] { first.getCalibration().pixelWidth, first.getCalibration().pixelHeight };
+				if ( first.getCalibration().frameInterval > 0 )
+					frameInterval = first.getCalibration().frameInterval;
+			}
+
+			for ( final Map.Entry< Long, Path > entry : ready.entrySet() )
+			{
+				done.put( entry.getKey(), entry.getValue() );
+				sizes.remove( entry.getValue() );
+			}
+			return ready.keySet().stream().mapToLong( Long::longValue ).toArray();
+		}
+
+		@Override
+		public void export( final long t, final Path target ) throws IOException
+		{
+			final Path file = done.get( t );
+			final Path link = target.resolve( YOLOUtils.nameGen.apply( t ) + ".tif" );
+			try
+			{
+				Files.createLink( link, file );
+			}
+			catch ( final IOException | UnsupportedOperationException e )
+			{
+				Files.copy( file, link );
+			}
+		}
+
+		@Override
+		public Interval interval()
+		{
+			return interval;
+		}
+
+		@Override
+		public double[] calibration()
+		{
+			return calibration;
+		}
+
+		@Override
+		public double frameInterval()
+		{
+			return frameInterval;
+		}
+	}
+}
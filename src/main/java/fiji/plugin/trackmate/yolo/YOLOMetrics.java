@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * An optional registry of counters and histograms about the YOLO detection
+ * runs of this JVM, to follow throughput across many runs.
+ * <p>
+ * The registry is off by default, and recording costs nothing then. When
+ * it is on, the metrics can be written to a file in the Prometheus text
+ * format, after each run if a file is set, and can be scraped from a HTTP
+ * endpoint on the loopback interface if a port is set. These three settings
+ * are stored in the ImageJ preferences.
+ */
+public class YOLOMetrics
+{
+
+	private static final String ENABLED_PREF_KEY = "trackmate.yolo.metrics.enabled";
+
+	private static final String FILE_PREF_KEY = "trackmate.yolo.metrics.file";
+
+	private static final String PORT_PREF_KEY = "trackmate.yolo.metrics.port";
+
+	private static final List< Object > METRICS = new ArrayList<>();
+
+	public static final Counter RUNS = new Counter( "trackmate_yolo_runs_total", "Number of detection runs." );
+
+	public static final Counter FAILURES = new Counter( "trackmate_yolo_failures_total", "Number of detection runs that failed." );
+
+	public static final Counter FRAMES = new Counter( "trackmate_yolo_frames_total", "Number of frames detected." );
+
+	public static final Counter DETECTIONS = new Counter( "trackmate_yolo_detections_total", "Number of detections." );
+
+	public static final Counter RESTARTS = new Counter( "trackmate_yolo_restarts_total", "Number of times a stalled YOLO process was killed." );
+
+	public static final Histogram FRAMES_PER_SECOND = new Histogram( "trackmate_yolo_frames_per_second",
+			"Frames detected per second, per run.",
+			0.5, 1, 2, 5, 10, 20, 50, 100, 200 );
+
+	public static final Histogram DETECTIONS_PER_FRAME = new Histogram( "trackmate_yolo_detections_per_frame",
+			"Detections per frame.",
+			0, 1, 2, 5, 10, 20, 50, 100, 200, 500 );
+
+	public static final Histogram QUEUE_WAIT = new Histogram( "trackmate_yolo_queue_wait_seconds",
+			"Time waited for a free inference slot, in seconds.",
+			0.01, 0.1, 0.5, 1, 5, 10, 30, 60, 300 );
+
+	public static final Histogram RUN_TIME = new Histogram( "trackmate_yolo_run_seconds",
+			"Duration of detection runs, in seconds.",
+			1, 5, 10, 30, 60, 300, 600, 1800, 3600 );
+
+	public static final Histogram LIVE_LATENCY = new Histogram( "trackmate_yolo_live_latency_seconds",
+			"Time from the arrival of a frame to its spots, in live detection, in seconds.",
+			0.05, 0.1, 0.2, 0.5, 1, 2, 5, 10, 30 );
+
+	private static volatile boolean enabled = Prefs.getBoolean( ENABLED_PREF_KEY, false );
+
+	private static HttpServer server;
+
+	private YOLOMetrics()
+	{}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Turns recording on or off, and saves the setting in the ImageJ
+	 * preferences.
+	 *
+	 * @param enabled
+	 *            whether to record metrics.
+	 */
+	public static void setEnabled( final boolean enabled )
+	{
+		YOLOMetrics.enabled = enabled;
+		Prefs.set( ENABLED_PREF_KEY, enabled );
+		if ( enabled )
+			startEndpoint();
+	}
+
+	/**
+	 * Returns the file metrics are written to after each run.
+	 *
+	 * @return the path to the file, or an empty string if none.
+	 */
+	public static String getFile()
+	{
+		return Prefs.get( FILE_PREF_KEY, "" );
+	}
+
+	public static void setFile( final String file )
+	{
+		Prefs.set( FILE_PREF_KEY, file == null ? "" : file );
+	}
+
+	/**
+	 * Returns the port of the HTTP endpoint metrics can be scraped from.
+	 *
+	 * @return the port, or 0 if there is no endpoint.
+	 */
+	public static int getPort()
+	{
+		return Prefs.getInt( PORT_PREF_KEY, 0 );
+	}
+
+	/**
+	 * Sets the port of the HTTP endpoint, and restarts it if recording is
+	 * on.
+	 *
+	 * @param port
+	 *            the port, or 0 for no endpoint.
+	 */
+	public static void setPort( final int port )
+	{
+		Prefs.set( PORT_PREF_KEY, Math.max( 0, port ) );
+		stopEndpoint();
+		if ( enabled )
+			startEndpoint();
+	}
+
+	/**
+	 * Writes the metrics to the file set in the preferences, if recording is
+	 * on and a file is set. To call at the end of a run.
+	 */
+	public static void flush()
+	{
+		if ( !enabled )
+			return;
+		startEndpoint();
+		final String file = getFile();
+		if ( file.isEmpty() )
+			return;
+		try
+		{
+			writeTo( Paths.get( file ) );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not write TrackMate-YOLO metrics to " + file + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes the metrics to a file, in the Prometheus text format.
+	 *
+	 * @param path
+	 *            the file to write.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public static void writeTo( final Path path ) throws IOException
+	{
+		final Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+		Files.write( tmp, format().getBytes( StandardCharsets.UTF_8 ) );
+		Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * Returns all the metrics, in the Prometheus text format.
+	 *
+	 * @return the metrics.
+	 */
+	public static String format()
+	{
+		final StringBuilder str = new StringBuilder();
+		synchronized ( METRICS )
+		{
+			for ( final Object metric : METRICS )
+			{
+				if ( metric instanceof Counter )
+					( ( Counter ) metric ).format( str );
+				else
+					( ( Histogram ) metric ).format( str );
+			}
+		}
+		return str.toString();
+	}
+
+	private static synchronized void startEndpoint()
+	{
+		final int port = getPort();
+		if ( server != null || port <= 0 )
+			return;
+		try
+		{
+			server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+			server.createContext( "/metrics", exchange -> {
+				final byte[] body = format().getBytes( StandardCharsets.UTF_8 );
+				exchange.getResponseHeaders().set( "Content-Type", "text/plain; version=0.0.4; charset=utf-8" );
+				exchange.sendResponseHeaders( 200, body.length );
+				try (OutputStream os = exchange.getResponseBody())
+				{
+					os.write( body );
+				}
+			} );
+			server.start();
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not start the TrackMate-YOLO metrics endpoint on port " + port + ": " + e.getMessage() );
+			server = null;
+		}
+	}
+
+	private static synchronized void stopEndpoint()
+	{
+		if ( server == null )
+			return;
+		server.stop( 0 );
+		server = null;
+	}
+
+	private static String format( final double value )
+	{
+		if ( value == Double.POSITIVE_INFINITY )
+			return "+Inf";
+		return String.format( Locale.US, "%s", Double.valueOf( value ) );
+	}
+
+	/**
+	 * A counter that only goes up.
+	 */
+	public static class Counter
+	{
+
+		private final String name;
+
+		private final String help;
+
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter( final String name, final String help )
+		{
+			this.name = name;
+			this.help = help;
+			synchronized ( METRICS )
+			{
+				METRICS.add( this );
+			}
+		}
+
+		public void increment( final long delta )
+		{
+			if ( enabled )
+				value.addAndGet( delta );
+		}
+
+		public long get()
+		{
+			return value.get();
+		}
+
+		private void format( final StringBuilder str )
+		{
+			str.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+			str.append( "# TYPE " ).append( name ).append( " counter\n" );
+			str.append( name ).append( ' ' ).append( value.get() ).append( '\n' );
+		}
+	}
+
+	/**
+	 * A histogram of observed values, with fixed buckets.
+	 */
+	public static class Histogram
+	{
+
+		private final String name;
+
+		private final String help;
+
+		private final double[] bounds;
+
+		private final AtomicLong[] counts;
+
+		private final DoubleAdder sum = new DoubleAdder();
+
+		private Histogram( final String name, final String help, final double... bounds )
+		{
+			this.name = name;
+			this.help = help;
+			this.bounds = bounds;
+			this.counts = new AtomicLong[ bounds.length + 1 ];
+			for ( int i = 0; i < counts.length; i++ )
+				counts[ i ] = new AtomicLong();
+			synchronized ( METRICS )
+			{
+				METRICS.add( this );
+			}
+		}
+
+		public void observe( final double value )
+		{
+			if ( !enabled || Double.isNaN( value ) )
+				return;
+			int i = 0;
+			while ( i < bounds.length && value > bounds[ i ] )
+				i++;
+			counts[ i ].incrementAndGet();
+			sum.add( value );
+		}
+
+		private void format( final StringBuilder str )
+		{
+			str.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+			str.append( "# TYPE " ).append( name ).append( " histogram\n" );
+			long cumulated = 0;
+			for ( int i = 0; i < counts.length; i++ )
+			{
+				cumulated += counts[ i ].get();
+				final double le = ( i < bounds.length ) ? bounds[ i ] : Double.POSITIVE_INFINITY;
+				str.append( name ).append( "_bucket{le=\"" ).append( YOLOMetrics.format( le ) ).append( "\"} " ).append( cumulated ).append( '\n' );
+			}
+			str.append( name ).append( "_sum " ).append( YOLOMetrics.format( sum.sum() ) ).append( '\n' );
+			str.append( name ).append( "_count " ).append( cumulated ).append( '\n' );
+		}
+	}
+}
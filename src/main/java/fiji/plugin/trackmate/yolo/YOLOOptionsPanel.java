@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JFormattedTextField;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import fiji.plugin.trackmate.gui.GuiUtils;
+
+/**
+ * A panel to edit the detector parameters that are not passed to YOLO
+ * itself, and are therefore not part of the {@link YOLOCLI}.
+ */
+public class YOLOOptionsPanel extends JPanel
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final Map< String, JComponent > fields = new LinkedHashMap<>();
+
+	private final Map< String, Object > defaults = new LinkedHashMap<>();
+
+	private int row = 0;
+
+	public YOLOOptionsPanel()
+	{
+		setLayout( new GridBagLayout() );
+	}
+
+	/**
+	 * Adds a field for a floating-point parameter.
+	 *
+	 * @param key
+	 *            the settings key of the parameter.
+	 * @param name
+	 *            the name to display.
+	 * @param help
+	 *            the tooltip text.
+	 * @param defaultValue
+	 *            the value to use when the settings do not have one.
+	 */
+	public void addDouble( final String key, final String name, final String help, final double defaultValue )
+	{
+		final JFormattedTextField ftf = new JFormattedTextField( new DecimalFormat( "0.###" ) );
+		ftf.setHorizontalAlignment( JTextField.RIGHT );
+		ftf.setValue( Double.valueOf( defaultValue ) );
+		GuiUtils.selectAllOnFocus( ftf );
+		addRow( key, name, help, ftf, Double.valueOf( defaultValue ) );
+	}
+
+	/**
+	 * Adds a field for an integer parameter.
+	 *
+	 * @param key
+	 *            the settings key of the parameter.
+	 * @param name
+	 *            the name to display.
+	 * @param help
+	 *            the tooltip text.
+	 * @param defaultValue
+	 *            the value to use when the settings do not have one.
+	 */
+	public void addInteger( final String key, final String name, final String help, final int defaultValue )
+	{
+		final JFormattedTextField ftf = new JFormattedTextField( new DecimalFormat( "0" ) );
+		ftf.setHorizontalAlignment( JTextField.RIGHT );
+		ftf.setValue( Integer.valueOf( defaultValue ) );
+		GuiUtils.selectAllOnFocus( ftf );
+		addRow( key, name, help, ftf, Integer.valueOf( defaultValue ) );
+	}
+
+	/**
+	 * Adds a check box for a boolean parameter.
+	 *
+	 * @param key
+	 *            the settings key of the parameter.
+	 * @param name
+	 *            the name to display.
+	 * @param help
+	 *            the tooltip text.
+	 * @param defaultValue
+	 *            the value to use when the settings do not have one.
+	 */
+	public void addBoolean( final String key, final String name, final String help, final boolean defaultValue )
+	{
+		final JCheckBox checkBox = new JCheckBox();
+		checkBox.setSelected( defaultValue );
+		addRow( key, name, help, checkBox, Boolean.valueOf( defaultValue ) );
+	}
+
+	/**
+	 * Adds a text field for a string parameter.
+	 *
+	 * @param key
+	 *            the settings key of the parameter.
+	 * @param name
+	 *            the name to display.
+	 * @param help
+	 *            the tooltip text.
+	 * @param defaultValue
+	 *            the value to use when the settings do not have one.
+	 */
+	public void addString( final String key, final String name, final String help, final String defaultValue )
+	{
+		final JTextField tf = new JTextField( defaultValue );
+		addRow( key, name, help, tf, defaultValue );
+	}
+
+	/**
+	 * Adds a combo box for a string parameter that takes one of a few values.
+	 *
+	 * @param key
+	 *            the settings key of the parameter.
+	 * @param name
+	 *            the name to display.
+	 * @param help
+	 *            the tooltip text.
+	 * @param choices
+	 *            the possible values.
+	 * @param defaultValue
+	 *            the value to use when the settings do not have one.
+	 */
+	public void addChoice( final String key, final String name, final String help, final List< String > choices, final String defaultValue )
+	{
+		final JComboBox< String > cmb = new JComboBox<>( choices.toArray( new String[ 0 ] ) );
+		cmb.setSelectedItem( defaultValue );
+		addRow( key, name, help, cmb, defaultValue );
+	}
+
+	private void addRow( final String key, final String name, final String help, final JComponent field, final Object defaultValue )
+	{
+		final JLabel lbl = new JLabel( name );
+		lbl.setFont( SMALL_FONT );
+		lbl.setToolTipText( help );
+		field.setFont( SMALL_FONT );
+		field.setToolTipText( help );
+
+		final GridBagConstraints c = new GridBagConstraints();
+		c.gridy = row++;
+		c.insets = new Insets( 2, 0, 2, 5 );
+		c.anchor = GridBagConstraints.LINE_START;
+		c.gridx = 0;
+		c.weightx = 1.;
+		add( lbl, c );
+		c.gridx = 1;
+		c.weightx = 0.;
+		c.fill = GridBagConstraints.HORIZONTAL;
+		c.ipadx = 60;
+		add( field, c );
+
+		fields.put( key, field );
+		defaults.put( key, defaultValue );
+	}
+
+	/**
+	 * Sets the fields from the specified settings.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 */
+	public void setSettings( final Map< String, Object > settings )
+	{
+		for ( final String key : fields.keySet() )
+		{
+			final Object value = settings.getOrDefault( key, defaults.get( key ) );
+			final JComponent field = fields.get( key );
+			if ( field instanceof JCheckBox )
+				( ( JCheckBox ) field ).setSelected( ( Boolean ) value );
+			else if ( field instanceof JComboBox )
+				( ( JComboBox< ? > ) field ).setSelectedItem( value );
+			else if ( field instanceof JFormattedTextField )
+				( ( JFormattedTextField ) field ).setValue( value );
+			else
+				( ( JTextField ) field ).setText( value == null ? "" : value.toString() );
+		}
+	}
+
+	/**
+	 * Puts the values of the fields in the specified settings.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 */
+	public void getSettings( final Map< String, Object > settings )
+	{
+		for ( final String key : fields.keySet() )
+		{
+			final JComponent field = fields.get( key );
+			final Object defaultValue = defaults.get( key );
+			if ( field instanceof JCheckBox )
+			{
+				settings.put( key, Boolean.valueOf( ( ( JCheckBox ) field ).isSelected() ) );
+			}
+			else if ( field instanceof JComboBox )
+			{
+				settings.put( key, ( ( JComboBox< ? > ) field ).getSelectedItem() );
+			}
+			else if ( field instanceof JFormattedTextField )
+			{
+				final Number value = ( Number ) ( ( JFormattedTextField ) field ).getValue();
+				if ( defaultValue instanceof Integer )
+					settings.put( key, Integer.valueOf( value.intValue() ) );
+				else
+					settings.put( key, Double.valueOf( value.doubleValue() ) );
+			}
+			else
+			{
+				settings.put( key, ( ( JTextField ) field ).getText() );
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+
+/**
+ * Runs YOLO detection previews on the current frame in the background.
+ * <p>
+ * Requests are debounced: a preview starts only once no new request came
+ * for {@link #DEBOUNCE_DELAY} milliseconds. Starting a preview cancels the
+ * one in flight, which kills the YOLO process it started or stops its
+ * request to the loaded worker. Only the result of the latest preview is
+ * drawn, with the latency between the last request and the result.
+ */
+public class YOLOPreviewer
+{
+
+	/**
+	 * Delay, in milliseconds, without new request after which a preview
+	 * starts.
+	 */
+	public static final int DEBOUNCE_DELAY = 400;
+
+	private final Model model;
+
+	private final Settings tmSettings;
+
+	private final Supplier< Map< String, Object > > settingsSupplier;
+
+	private final Consumer< String > statusUpdater;
+
+	private final Timer debouncer;
+
+	/** Generation of the latest preview started. */
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile YOLODetector< ? > current;
+
+	private volatile long requestTime;
+
+	/**
+	 * Creates a previewer.
+	 *
+	 * @param model
+	 *            the model to draw the detected spots in.
+	 * @param tmSettings
+	 *            the TrackMate settings, to get the image from.
+	 * @param settingsSupplier
+	 *            supplies the detector settings to preview with.
+	 * @param statusUpdater
+	 *            receives a one-line status of the preview, on the EDT.
+	 */
+	public YOLOPreviewer(
+			final Model model,
+			final Settings tmSettings,
+			final Supplier< Map< String, Object > > settingsSupplier,
+			final Consumer< String > statusUpdater )
+	{
+		this.model = model;
+		this.tmSettings = tmSettings;
+		this.settingsSupplier = settingsSupplier;
+		this.statusUpdater = statusUpdater;
+		this.debouncer = new Timer( DEBOUNCE_DELAY, e -> launch() );
+		debouncer.setRepeats( false );
+	}
+
+	/**
+	 * Requests a preview with the current settings, on the current frame and
+	 * ROI. Must be called on the EDT.
+	 */
+	public void request()
+	{
+		requestTime = System.currentTimeMillis();
+		debouncer.restart();
+	}
+
+	/**
+	 * Cancels the pending and in-flight previews.
+	 */
+	public void cancel()
+	{
+		debouncer.stop();
+		supersede();
+	}
+
+	/**
+	 * Starts a new generation of previews, and cancels the preview in flight.
+	 */
+	private synchronized long supersede()
+	{
+		final long gen = generation.incrementAndGet();
+		if ( current != null )
+			current.cancel( "Superseded by a newer preview." );
+		current = null;
+		return gen;
+	}
+
+	/*
+	 * Called on the EDT once the requests stopped for the debounce delay.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private void launch()
+	{
+		final ImagePlus imp = tmSettings.imp;
+		if ( imp == null )
+			return;
+
+		final long gen = supersede();
+
+		// Read the image state on the EDT.
+		final long start = requestTime;
+		final Map< String, Object > settings = settingsSupplier.get();
+		final int frame = imp.getT() - 1;
+		final Roi roi = imp.getRoi();
+		final Settings s = tmSettings.copyOn( imp );
+		s.setRoi( roi );
+		s.tstart = frame;
+		s.tend = frame;
+		statusUpdater.accept( "Preview: running..." );
+
+		new Thread( "TrackMate-YOLO preview" )
+		{
+			@Override
+			public void run()
+			{
+				final ImgPlus img = TMUtils.rawWraps( imp );
+				final Interval interval = TMUtils.getIntervalWithTime( img, s );
+				final YOLODetectorFactory factory = new YOLODetectorFactory<>();
+				if ( !factory.setTarget( img, settings ) )
+				{
+					publish( gen, "Preview: " + factory.getErrorMessage() );
+					return;
+				}
+				final YOLODetector< ? > detector = ( YOLODetector ) factory.getDetector( interval );
+				synchronized ( YOLOPreviewer.this )
+				{
+					if ( gen != generation.get() )
+						return;
+					current = detector;
+				}
+				final boolean ok = detector.checkInput() && detector.process();
+				synchronized ( YOLOPreviewer.this )
+				{
+					if ( gen != generation.get() )
+						return;
+					current = null;
+				}
+				if ( !ok )
+				{
+					publish( gen, "Preview: " + detector.getErrorMessage() );
+					return;
+				}
+
+				// Only keep the spots inside the ROI.
+				final double[] calibration = TMUtils.getSpatialCalibration( img );
+				final List< Spot > kept = new ArrayList<>();
+				for ( final Spot spot : detector.getResult().iterable( frame, false ) )
+				{
+					if ( roi == null || roi.contains(
+							( int ) Math.round( spot.getDoublePosition( 0 ) / calibration[ 0 ] ),
+							( int ) Math.round( spot.getDoublePosition( 1 ) / calibration[ 1 ] ) ) )
+						kept.add( spot );
+				}
+				final SpotCollection spots = new SpotCollection();
+				spots.put( frame, kept );
+				spots.setVisible( true );
+
+				SwingUtilities.invokeLater( () -> {
+					if ( gen != generation.get() )
+						return;
+					model.setSpots( spots, true );
+					final long latency = System.currentTimeMillis() - start;
+					statusUpdater.accept( String.format( "Preview: %d spots in frame %d, latency %d ms.",
+							kept.size(), frame + 1, latency ) );
+				} );
+			}
+		}.start();
+	}
+
+	private void publish( final long gen, final String status )
+	{
+		SwingUtilities.invokeLater( () -> {
+			if ( gen == generation.get() )
+				statusUpdater.accept( status );
+		} );
+	}
+}
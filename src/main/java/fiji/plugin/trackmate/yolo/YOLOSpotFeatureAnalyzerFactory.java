@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Declares the spot features set by the YOLO detector.
+ * <p>
+ * The values are not computed by this analyzer, but stored on the spots by
+ * the detector when it imports YOLO results. This factory only registers
+ * them in the feature model so that they can be displayed, filtered on and
+ * saved. Spots created by other detectors have no value for these features.
+ */
+@Plugin( type = SpotAnalyzerFactory.class )
+public class YOLOSpotFeatureAnalyzerFactory< T extends RealType< T > & NativeType< T > > implements SpotAnalyzerFactory< T >
+{
+
+	public static final String YOLO_CLASS_ID = "YOLO_CLASS_ID";
+
+	public static final String YOLO_BOX_WIDTH = "YOLO_BOX_WIDTH";
+
+	public static final String YOLO_BOX_HEIGHT = "YOLO_BOX_HEIGHT";
+
+	public static final String YOLO_CONFIDENCE = "YOLO_CONFIDENCE";
+
+	public static final String YOLO_MODEL_ID = "YOLO_MODEL_ID";
+
+	public static final String KEY = "YOLO_DETECTION_FEATURES";
+
+	private static final List< String > FEATURES = Arrays.asList( YOLO_CLASS_ID, YOLO_BOX_WIDTH, YOLO_BOX_HEIGHT, YOLO_CONFIDENCE, YOLO_MODEL_ID );
+
+	private static final Map< String, String > FEATURE_NAMES = new HashMap<>();
+
+	private static final Map< String, String > FEATURE_SHORT_NAMES = new HashMap<>();
+
+	private static final Map< String, Dimension > FEATURE_DIMENSIONS = new HashMap<>();
+
+	private static final Map< String, Boolean > IS_INT = new HashMap<>();
+
+	static
+	{
+		FEATURE_NAMES.put( YOLO_CLASS_ID, "YOLO class ID" );
+		FEATURE_NAMES.put( YOLO_BOX_WIDTH, "YOLO box width" );
+		FEATURE_NAMES.put( YOLO_BOX_HEIGHT, "YOLO box height" );
+		FEATURE_NAMES.put( YOLO_CONFIDENCE, "YOLO confidence" );
+		FEATURE_NAMES.put( YOLO_MODEL_ID, "YOLO model ID" );
+
+		FEATURE_SHORT_NAMES.put( YOLO_CLASS_ID, "Class" );
+		FEATURE_SHORT_NAMES.put( YOLO_BOX_WIDTH, "Box W" );
+		FEATURE_SHORT_NAMES.put( YOLO_BOX_HEIGHT, "Box H" );
+		FEATURE_SHORT_NAMES.put( YOLO_CONFIDENCE, "Conf." );
+		FEATURE_SHORT_NAMES.put( YOLO_MODEL_ID, "Model" );
+
+		FEATURE_DIMENSIONS.put( YOLO_CLASS_ID, Dimension.NONE );
+		FEATURE_DIMENSIONS.put( YOLO_BOX_WIDTH, Dimension.LENGTH );
+		FEATURE_DIMENSIONS.put( YOLO_BOX_HEIGHT, Dimension.LENGTH );
+		FEATURE_DIMENSIONS.put( YOLO_CONFIDENCE, Dimension.QUALITY );
+		FEATURE_DIMENSIONS.put( YOLO_MODEL_ID, Dimension.NONE );
+
+		IS_INT.put( YOLO_CLASS_ID, Boolean.TRUE );
+		IS_INT.put( YOLO_BOX_WIDTH, Boolean.FALSE );
+		IS_INT.put( YOLO_BOX_HEIGHT, Boolean.FALSE );
+		IS_INT.put( YOLO_CONFIDENCE, Boolean.FALSE );
+		IS_INT.put( YOLO_MODEL_ID, Boolean.TRUE );
+	}
+
+	@Override
+	public SpotAnalyzer< T > getAnalyzer( final ImgPlus< T > img, final int frame, final int channel )
+	{
+		// Values are set by the detector.
+		return SpotAnalyzer.dummyAnalyzer();
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return FEATURES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return Collections.unmodifiableMap( FEATURE_SHORT_NAMES );
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return Collections.unmodifiableMap( FEATURE_NAMES );
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return Collections.unmodifiableMap( FEATURE_DIMENSIONS );
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return Collections.unmodifiableMap( IS_INT );
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return true;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return null;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "YOLO detection features";
+	}
+}
@@ -4,32 +4,47 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.input.TailerListenerAdapter;
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.cli.CLIUtils;
+import fiji.plugin.trackmate.yolo.FrameStreamer.Frame;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.Interval;
+import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.CalibrationUtils;
 import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.img.display.imagej.ImgPlusViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
 public class YOLOUtils
 {
@@ -63,6 +78,11 @@ public class YOLOUtils
 	 * Single imte-points will be resaved as ImageJ TIFFs, in the specified
 	 * folder, with a name ending with the time-point value (0-based). Examples:
 	 * "0.tif", "20.tif".
+	 * <p>
+	 * Frames are read with a {@link FrameStreamer}, so the next frame is
+	 * copied from the source image while the current one is written, and
+	 * only a few frames are resident in memory at any time. This matters for
+	 * virtual stacks and disk-backed cell images.
 	 *
 	 * @param img
 	 *            the image to save.
@@ -82,82 +102,289 @@ public class YOLOUtils
 			final String folder,
 			final Logger logger )
 	{
-		final int zIndex = img.dimensionIndex( Axes.Z );
-		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
-		final Interval cropInterval;
-		if ( zIndex < 0 )
+		return resaveSingleTimePoints( img, interval, FrameStreamer.timePoints( img, interval ), folder, logger );
+	}
+
+	/**
+	 * Resaves the specified time-points of an image, one file per
+	 * time-point.
+	 *
+	 * @param img
+	 *            the image to save.
+	 * @param interval
+	 *            the interval that specifies how to crop the image before
+	 *            saving.
+	 * @param frames
+	 *            the time-points to save.
+	 * @param folder
+	 *            the folder in which to save
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 * @see #resaveSingleTimePoints(ImgPlus, Interval, String, Logger)
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean resaveSingleTimePoints(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final String folder,
+			final Logger logger )
+	{
+		return resaveSingleTimePoints( img, interval, frames, folder, null, logger );
+	}
+
+	/**
+	 * Resaves the specified time-points of an image, one file per
+	 * time-point, skipping the frames that a motion gate rejects.
+	 *
+	 * @param img
+	 *            the image to save.
+	 * @param interval
+	 *            the interval that specifies how to crop the image before
+	 *            saving.
+	 * @param frames
+	 *            the time-points to save, in increasing order.
+	 * @param folder
+	 *            the folder in which to save
+	 * @param gate
+	 *            the motion gate that decides which frames are saved. If
+	 *            <code>null</code>, all frames are saved.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean resaveSingleTimePoints(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final String folder,
+			final MotionGate gate,
+			final Logger logger )
+	{
+		return resaveSingleTimePoints( img, interval, frames, folder, gate, null, logger );
+	}
+
+	/**
+	 * Resaves the specified time-points of an image, one file per
+	 * time-point, skipping the frames that a motion gate rejects, with a
+	 * prefetch depth adapted to the free memory.
+	 *
+	 * @param img
+	 *            the image to save.
+	 * @param interval
+	 *            the interval that specifies how to crop the image before
+	 *            saving.
+	 * @param frames
+	 *            the time-points to save, in increasing order.
+	 * @param folder
+	 *            the folder in which to save
+	 * @param gate
+	 *            the motion gate that decides which frames are saved. If
+	 *            <code>null</code>, all frames are saved.
+	 * @param governor
+	 *            the governor that sets the prefetch depth, checked every
+	 *            {@link ResourceGovernor#CHECK_INTERVAL} frames. If
+	 *            <code>null</code>, the default prefetch depth is used.
+	 * @param logger
+	 *            a logger to report progress.
+	 * @return <code>true</code> if resaving happened without issues.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean resaveSingleTimePoints(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final long[] frames,
+			final String folder,
+			final MotionGate gate,
+			final ResourceGovernor governor,
+			final Logger logger )
+	{
+		// The motion gate needs the frame pixels as an image.
+		try (final FrameStreamer< T > streamer = new FrameStreamer<>( img, interval, frames, FrameStreamer.DEFAULT_PREFETCH, gate == null ))
 		{
-			// 2D
-			if ( cIndex < 0 )
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ),
-						interval.max( 0 ), interval.max( 1 ) );
-			else
-				// Include all channels
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), img.min( cIndex ),
-						interval.max( 0 ), interval.max( 1 ), img.max( cIndex ) );
+			final int nFrames = streamer.size();
+			int nDone = 0;
+			while ( streamer.hasNext() )
+			{
+				if ( governor != null && nDone % ResourceGovernor.CHECK_INTERVAL == 0 )
+					streamer.setPrefetch( governor.prefetch( streamer ) );
+				try (final Frame< T > frame = streamer.next())
+				{
+					if ( gate != null && !gate.accept( frame.t(), frame.img() ) )
+					{
+						logger.setProgress( ( double ) ++nDone / nFrames );
+						continue;
+					}
+
+					final String name = nameGen.apply( frame.t() );
+					final String path = folder + File.separator + name + ".tif";
+					if ( !saveFrame( frame, name, path ) )
+						return false;
+				}
+				logger.setProgress( ( double ) ++nDone / nFrames );
+			}
+			if ( streamer.getPool() != null )
+				logger.log( "Exported " + streamer.getPool() + ".\n" );
+			return true;
 		}
-		else
+		catch ( final InterruptedException e )
 		{
-			if ( cIndex < 0 )
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), interval.min( 2 ),
-						interval.max( 0 ), interval.max( 1 ), interval.max( 2 ) );
-			else
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), interval.min( 2 ), img.min( cIndex ),
-						interval.max( 0 ), interval.max( 1 ), interval.max( 2 ), img.max( cIndex ) );
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while resaving image frames.\n" );
+			return false;
 		}
-
-		final int timeIndex = img.dimensionIndex( Axes.TIME );
-		if ( timeIndex < 0 )
+		catch ( final ExecutionException e )
 		{
-			// No time, just save the image.
-			final IntervalView< T > crop = Views.interval( img, cropInterval );
-			final String name = nameGen.apply( 0l );
-			final ImagePlus imp = ImageJFunctions.wrap( crop, name );
-			final String path = folder + File.separator + name + ".tif";
-			return IJ.saveAsTiff( imp, path );
+			logger.error( "Error reading image frames:\n" + e.getCause().getMessage() + '\n' );
+			e.printStackTrace();
+			return false;
 		}
-		else
+	}
+
+	/**
+	 * Saves a frame as a TIFF file. Frames copied in a pooled buffer are
+	 * written directly from it, one page per plane, without building an
+	 * {@link ImagePlus}.
+	 * <p>
+	 * The file is written under a hidden temporary name, then renamed. An
+	 * existing file at this path is replaced rather than rewritten, so that
+	 * hard links to it keep their content.
+	 *
+	 * @param frame
+	 *            the frame to save.
+	 * @param name
+	 *            the image name, used for frames copied in an image.
+	 * @param path
+	 *            the path of the file to write.
+	 * @return <code>true</code> if the file was written.
+	 */
+	public static boolean saveFrame( final Frame< ? > frame, final String name, final String path )
+	{
+		final Path target = Paths.get( path );
+		final Path tmp = target.resolveSibling( "." + target.getFileName() );
+		try
 		{
-			// In the interval, time is always the last.
-			final long minT = interval.min( interval.numDimensions() - 1 );
-			final long maxT = interval.max( interval.numDimensions() - 1 );
-			for ( long t = minT; t <= maxT; t++ )
+			if ( frame.buffer() == null )
 			{
-				final ImgPlus< T > tpTCZ = ImgPlusViews.hyperSlice( img, timeIndex, t );
-
-				// Put if necessary the channel axis as the last one (CellPose
-				// format)
-				final int chanDim = tpTCZ.dimensionIndex( Axes.CHANNEL );
-				ImgPlus< T > tp = tpTCZ;
-				if ( chanDim > 1 )
-					tp = ImgPlusViews.moveAxis( tpTCZ, chanDim, tpTCZ.numDimensions() - 1 );
-
-				// possibly 2D or 3D with or without channel.
-				final IntervalView< T > crop = Views.interval( tp, cropInterval );
-				final String name = nameGen.apply( t );
-				final String path = folder + File.separator + name + ".tif";
-				final ImagePlus imp = ImageJFunctions.wrap( crop, name );
-				final boolean ok = IJ.saveAsTiff( imp, path );
-				if ( !ok )
+				if ( !IJ.saveAsTiff( wrapFrame( frame, name ), tmp.toString() ) )
 					return false;
-
-				logger.setProgress( ( double ) ( t + 1 - minT ) / ( maxT - minT + 1 ) );
+			}
+			else
+			{
+				writeTiff( frame.buffer(), frame.pool(), tmp );
+			}
+			try
+			{
+				Files.move( tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp, target, StandardCopyOption.REPLACE_EXISTING );
 			}
 			return true;
 		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not write " + path + ": " + e.getMessage() );
+			try
+			{
+				Files.deleteIfExists( tmp );
+			}
+			catch ( final IOException e1 )
+			{
+				// Ignore.
+			}
+			return false;
+		}
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static ImagePlus wrapFrame( final Frame< ? > frame, final String name )
+	{
+		return ImageJFunctions.wrap( ( Img ) frame.img(), name );
+	}
+
+	/** Number of entries in the TIFF directory of a page. */
+	private static final int TIFF_ENTRIES = 10;
+
+	private static final int TIFF_IFD_SIZE = 2 + TIFF_ENTRIES * 12 + 4;
+
+	/**
+	 * Writes the planes of a pooled buffer as the pages of an uncompressed,
+	 * little-endian TIFF file. The pixels are written first, then the page
+	 * directories.
+	 */
+	private static void writeTiff( final ByteBuffer pixels, final FramePool pool, final Path path ) throws IOException
+	{
+		final int nPlanes = pool.getNPlanes();
+		final int bytesPerSample = pool.getBitsPerSample() / 8;
+		final long planeSize = ( long ) pool.getWidth() * pool.getHeight() * bytesPerSample;
+		// Directories start on a word boundary.
+		final long dataEnd = 8 + planeSize * nPlanes;
+		final long firstIFD = dataEnd + ( dataEnd & 1 );
+
+		final ByteBuffer header = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		header.put( ( byte ) 'I' ).put( ( byte ) 'I' ).putShort( ( short ) 42 ).putInt( ( int ) firstIFD );
+		header.flip();
+
+		final ByteBuffer ifds = ByteBuffer.allocate( ( int ) ( firstIFD - dataEnd ) + nPlanes * TIFF_IFD_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		ifds.position( ( int ) ( firstIFD - dataEnd ) );
+		for ( int p = 0; p < nPlanes; p++ )
+		{
+			final long next = ( p == nPlanes - 1 ) ? 0 : firstIFD + ( p + 1 ) * TIFF_IFD_SIZE;
+			ifds.putShort( ( short ) TIFF_ENTRIES );
+			putTiffEntry( ifds, 256, 4, pool.getWidth() ); // ImageWidth
+			putTiffEntry( ifds, 257, 4, pool.getHeight() ); // ImageLength
+			putTiffEntry( ifds, 258, 3, pool.getBitsPerSample() ); // BitsPerSample
+			putTiffEntry( ifds, 259, 3, 1 ); // Compression: none
+			putTiffEntry( ifds, 262, 3, 1 ); // Photometric: black is zero
+			putTiffEntry( ifds, 273, 4, 8 + p * planeSize ); // StripOffsets
+			putTiffEntry( ifds, 277, 3, 1 ); // SamplesPerPixel
+			putTiffEntry( ifds, 278, 4, pool.getHeight() ); // RowsPerStrip
+			putTiffEntry( ifds, 279, 4, planeSize ); // StripByteCounts
+			putTiffEntry( ifds, 339, 3, pool.isFloatSamples() ? 3 : 1 ); // SampleFormat
+			ifds.putInt( ( int ) next );
+		}
+		ifds.flip();
+
+		try (final FileChannel channel = FileChannel.open( path,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			final ByteBuffer data = pixels.duplicate();
+			data.rewind();
+			while ( header.hasRemaining() || data.hasRemaining() || ifds.hasRemaining() )
+				channel.write( new ByteBuffer[] { header, data, ifds } );
+		}
 	}
 
+	private static void putTiffEntry( final ByteBuffer ifd, final int tag, final int type, final long value )
+	{
+		ifd.putShort( ( short ) tag );
+		ifd.putShort( ( short ) type );
+		ifd.putInt( 1 );
+		if ( type == 3 )
+			ifd.putShort( ( short ) value ).putShort( ( short ) 0 );
+		else
+			ifd.putInt( ( int ) value );
+	}
 
 	public static final Function< Long, String > nameGen = ( frame ) -> String.format( "%d", frame );
 
+	/**
+	 * Regular expression to extract the time-point in a filename: last
+	 * integer.
+	 */
+	public static final Pattern TIME_POINT_PATTERN = Pattern.compile( "(\\d+)(?=\\.[^.]+$)" );
+
+	/**
+	 * Where YOLO writes the label files, relative to its output folder.
+	 */
+	public static final String LABELS_FOLDER = "predict/labels";
+
 
 	/**
 	 * A tailer listener that parse YOLO log to fetch when an image has been
-	 * processed, and increase the progress counter.
+	 * processed, and increase the progress counter. It can also notify a
+	 * callback with the path of each image processed.
 	 */
 	public static class YOLOTailerListener extends TailerListenerAdapter
 	{
@@ -165,17 +392,73 @@ public class YOLOUtils
 
 		private final int nTodos;
 
+		private final Consumer< String > imageDoneCallback;
+
 		private int nDone;
 
+		private final Set< String > donePaths = ConcurrentHashMap.newKeySet();
+
+		private volatile long lastProgress = System.currentTimeMillis();
+
 		private final static Pattern IMAGE_NUMBER_PATTERN = Pattern.compile( "^image \\d+/\\d+.*" );
 
+		private final static Pattern IMAGE_PATH_PATTERN = Pattern.compile( "^image \\d+/\\d+ (.+?\\.tiff?):.*", Pattern.CASE_INSENSITIVE );
+
 		public YOLOTailerListener( final Logger logger, final int nTodos )
+		{
+			this( logger, nTodos, null );
+		}
+
+		/**
+		 * Creates a listener that also reports each image processed.
+		 *
+		 * @param logger
+		 *            the logger to forward the log and progress to.
+		 * @param nTodos
+		 *            the number of images to process.
+		 * @param imageDoneCallback
+		 *            receives the path of each image once YOLO is done with
+		 *            it, and has written its label file. Can be
+		 *            <code>null</code>.
+		 */
+		public YOLOTailerListener( final Logger logger, final int nTodos, final Consumer< String > imageDoneCallback )
 		{
 			this.logger = logger;
 			this.nTodos = nTodos;
+			this.imageDoneCallback = imageDoneCallback;
 			this.nDone = 0;
 		}
 
+		/**
+		 * Returns the time at which YOLO last reported an image processed, or
+		 * at which {@link #resetProgress()} was last called.
+		 *
+		 * @return a time in milliseconds, as returned by
+		 *         {@link System#currentTimeMillis()}.
+		 */
+		public long getLastProgress()
+		{
+			return lastProgress;
+		}
+
+		/**
+		 * Restarts the stall clock, for instance when YOLO is restarted.
+		 */
+		public void resetProgress()
+		{
+			lastProgress = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the paths of the images YOLO reported as processed so far.
+		 *
+		 * @return an unmodifiable view of the paths.
+		 */
+		public Set< String > getDonePaths()
+		{
+			return Collections.unmodifiableSet( donePaths );
+		}
+
 		@Override
 		public void handle( final String line )
 		{
@@ -185,7 +468,16 @@ public class YOLOUtils
 			{
 				// Simply increment the 'done' counter.
 				nDone++;
+				lastProgress = System.currentTimeMillis();
 				logger.setProgress( ( double ) nDone / nTodos );
+
+				final Matcher pathMatcher = IMAGE_PATH_PATTERN.matcher( line );
+				if ( pathMatcher.matches() )
+				{
+					donePaths.add( pathMatcher.group( 1 ) );
+					if ( imageDoneCallback != null )
+						imageDoneCallback.accept( pathMatcher.group( 1 ) );
+				}
 			}
 			else
 			{
@@ -195,6 +487,105 @@ public class YOLOUtils
 		}
 	}
 
+	/**
+	 * Imports all the YOLO results text files in a folder, and appends their
+	 * detections to the table of the time-point they belong to. The
+	 * time-point is read from the last integer in the file name.
+	 *
+	 * @param labelsFolder
+	 *            the folder containing the label files.
+	 * @param interval
+	 *            the interval in the input image that was passed to YOLO.
+	 * @param calibration
+	 *            the physical calibration of the input image.
+	 * @param tables
+	 *            the detection tables, mapped by time-point. Missing tables
+	 *            are created.
+	 * @param logger
+	 *            a {@link Logger} to report error messages.
+	 */
+	public static void importResultFolder(
+			final Path labelsFolder,
+			final Interval interval,
+			final double[] calibration,
+			final Map< Integer, DetectionTable > tables,
+			final Logger logger )
+	{
+		importResultFolder( labelsFolder, interval, calibration, tables, false, 0., logger );
+	}
+
+	/**
+	 * Imports all the YOLO results text files in a folder, and appends their
+	 * detections to the table of the time-point they belong to. If
+	 * <code>segmentation</code> is <code>true</code>, the files are read as
+	 * the output of a segmentation model, and the contours they contain are
+	 * simplified with the specified tolerance.
+	 *
+	 * @param labelsFolder
+	 *            the folder containing the label files.
+	 * @param interval
+	 *            the interval in the input image that was passed to YOLO.
+	 * @param calibration
+	 *            the physical calibration of the input image.
+	 * @param tables
+	 *            the detection tables, mapped by time-point. Missing tables
+	 *            are created.
+	 * @param segmentation
+	 *            whether the files contain contours instead of boxes.
+	 * @param tolerance
+	 *            the contour simplification tolerance, in pixels.
+	 * @param logger
+	 *            a {@link Logger} to report error messages.
+	 * @see PolygonLabelReader
+	 */
+	public static void importResultFolder(
+			final Path labelsFolder,
+			final Interval interval,
+			final double[] calibration,
+			final Map< Integer, DetectionTable > tables,
+			final boolean segmentation,
+			final double tolerance,
+			final Logger logger )
+	{
+		if ( !Files.isDirectory( labelsFolder ) )
+			return; // No detections at all.
+
+		try (final Stream< Path > paths = Files.list( labelsFolder ))
+		{
+			// Get all the txt files
+			final List< Path > txtFiles = paths
+					.filter( Files::isRegularFile )
+					.filter( p -> p.toString().endsWith( ".txt" ) )
+					.collect( Collectors.toList() );
+
+			final PolygonLabelReader reader = segmentation
+					? new PolygonLabelReader( interval, calibration, tolerance )
+					: null;
+			for ( final Path txtFile : txtFiles )
+			{
+				// Create a matcher for the filename
+				final Matcher matcher = TIME_POINT_PATTERN.matcher( txtFile.toString() );
+				if ( !matcher.find() )
+				{
+					logger.error( "Could not find the time-point indication in the filename of file: "
+							+ txtFile + ". Skipping.\n" );
+					continue;
+				}
+				final int t = Integer.parseInt( matcher.group( 1 ) );
+				final DetectionTable table = tables.computeIfAbsent( t, k -> new DetectionTable() );
+				if ( reader != null )
+					reader.read( txtFile, table, logger );
+				else
+					importResultFile( txtFile.toString(), interval, calibration, table, logger );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Error listing the results folder " + labelsFolder + "\n" + e.getMessage() + '\n' );
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Import the text results files generated by the 'save_txt' option, and
 	 * returns them as a list of spots. The radius of the spots is the mean of
@@ -226,19 +617,48 @@ public class YOLOUtils
 	 * @param logger
 	 *            a {@link Logger} to report error messages.
 	 * @return a new list of spots.
+	 * @see #importResultFile(String, Interval, double[], DetectionTable,
+	 *      Logger)
 	 */
 	public static List< Spot > importResultFile(
 			final String path,
 			final Interval interval,
 			final double[] calibration,
 			final Logger logger )
+	{
+		final DetectionTable table = new DetectionTable();
+		if ( !importResultFile( path, interval, calibration, table, logger ) )
+			return Collections.emptyList();
+		return table.toSpots();
+	}
+
+	/**
+	 * Import the text results files generated by the 'save_txt' option, and
+	 * appends the detections it contains to the specified table, in global,
+	 * calibrated coordinates.
+	 *
+	 * @param path
+	 *            the path to the YOLO results file.
+	 * @param interval
+	 *            the interval in the input image that was passed to YOLO.
+	 * @param calibration
+	 *            the physical calibration of the input image.
+	 * @param table
+	 *            the table to append detections to.
+	 * @param logger
+	 *            a {@link Logger} to report error messages.
+	 * @return <code>true</code> if the file could be read.
+	 */
+	public static boolean importResultFile(
+			final String path,
+			final Interval interval,
+			final double[] calibration,
+			final DetectionTable table,
+			final Logger logger )
 	{
 		final long width = interval.dimension( 0 );
 		final long height = interval.dimension( 1 );
-		final long x0 = interval.min( 0 );
-		final long y0 = interval.min( 1 );
 
-		final List< Spot > spots = new ArrayList<>();
 		try (BufferedReader br = new BufferedReader( new FileReader( path ) ))
 		{
 			String line;
@@ -246,45 +666,94 @@ public class YOLOUtils
 			while ( ( line = br.readLine() ) != null )
 			{
 				ln++;
-				final String[] values = line.split( " " );
+				final String[] values = line.trim().split( " " );
 				if ( values.length < 5 )
 				{
 					logger.error( "Line " + ln + " in file " + path + " as unexpected number of values. Should be at least 5, but was " + values.length + "." );
 					continue;
 				}
+				// Class
+				final int cls = ( int ) Double.parseDouble( values[ 0 ] );
 				// Center
-				final double xr = Double.parseDouble( values[ 1 ].trim() );
-				final double yr = Double.parseDouble( values[ 2 ].trim() );
+				final double xr = Double.parseDouble( values[ 1 ] );
+				final double yr = Double.parseDouble( values[ 2 ] );
 				// Size
-				final double wr = Double.parseDouble( values[ 3 ].trim() );
-				final double hr = Double.parseDouble( values[ 4 ].trim() );
-
-				// Global coords
-				final double x = calibration[ 0 ] * ( x0 + xr * width );
-				final double y = calibration[ 1 ] * ( y0 + yr * height );
-				final double w = calibration[ 0 ] * wr * width;
-				final double h = calibration[ 1 ] * hr * height;
-				final double r = 0.5 * ( w + h ) / 2.;
+				final double wr = Double.parseDouble( values[ 3 ] );
+				final double hr = Double.parseDouble( values[ 4 ] );
 
 				// Do we have confidence?
 				final double quality;
-				if ( values.length >= 5 )
-					quality = Double.parseDouble( values[ 5 ].trim() );
+				if ( values.length > 5 )
+					quality = Double.parseDouble( values[ 5 ] );
 				else
 					quality = 1.;
 
-				final Spot spot = new Spot( x, y, 0., r, quality );
-				spots.add( spot );
+				addDetection( table, interval, calibration, width, height, cls, xr, yr, wr, hr, quality );
 			}
 		}
 		catch ( final IOException e )
 		{
 			logger.error( "Error reading the file " + path + "\n" + e.getMessage() + '\n' );
 			e.printStackTrace();
-			return Collections.emptyList();
+			return false;
 		}
+		return true;
+	}
+
+	/**
+	 * Appends a detection in normalized YOLO coordinates to a table, in
+	 * global, calibrated coordinates.
+	 */
+	static void addDetection(
+			final DetectionTable table,
+			final Interval interval,
+			final double[] calibration,
+			final long width,
+			final long height,
+			final int cls,
+			final double xr,
+			final double yr,
+			final double wr,
+			final double hr,
+			final double quality )
+	{
+		final double x = calibration[ 0 ] * ( interval.min( 0 ) + xr * width );
+		final double y = calibration[ 1 ] * ( interval.min( 1 ) + yr * height );
+		final double w = calibration[ 0 ] * wr * width;
+		final double h = calibration[ 1 ] * hr * height;
+		table.add( cls, x, y, w, h, quality );
+	}
+
+	private static Path scriptFolder;
 
-		return spots;
+	/**
+	 * Returns the path to a Python script shipped in the resources of this
+	 * plugin. Scripts are extracted once per session to a temporary folder.
+	 *
+	 * @param name
+	 *            the script file name.
+	 * @return the path to the extracted script.
+	 * @throws IOException
+	 *             if the script could not be found or extracted.
+	 */
+	public static synchronized Path extractScript( final String name ) throws IOException
+	{
+		if ( scriptFolder == null )
+		{
+			scriptFolder = Files.createTempDirectory( "TrackMate-YOLO-scripts_" );
+			CLIUtils.recursiveDeleteOnShutdownHook( scriptFolder );
+		}
+		final Path path = scriptFolder.resolve( name );
+		if ( !Files.exists( path ) )
+		{
+			try (InputStream is = YOLOUtils.class.getResourceAsStream( "/scripts/" + name ))
+			{
+				if ( is == null )
+					throw new IOException( "Could not find the script " + name + " in the resources." );
+				Files.copy( is, path, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		return path;
 	}
 
 	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args )
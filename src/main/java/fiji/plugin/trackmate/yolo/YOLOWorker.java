@@ -0,0 +1,630 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.util.cli.CommandBuilder;
+import fiji.plugin.trackmate.util.cli.TrackMateSettingsBuilder;
+import fiji.plugin.trackmate.yolo.CondaEnvironmentCache.ResolvedEnvironment;
+
+/**
+ * A persistent YOLO process, that loads a model once and serves prediction
+ * requests over its standard input and output.
+ * <p>
+ * Results are written to disk in the same layout as for the
+ * <code>yolo detect predict</code> command, so they can be imported the same
+ * way. Requests are served one at a time.
+ */
+public class YOLOWorker implements AutoCloseable
+{
+
+	private static final String SCRIPT_NAME = "trackmate_yolo_worker.py";
+
+	private static final int LOG_TAIL_LENGTH = 50;
+
+	/**
+	 * Name of the file which, once created in the output folder of a
+	 * request, makes the worker stop this request.
+	 */
+	private static final String CANCEL_FILE_NAME = "cancel";
+
+	/**
+	 * Max time without any message from a remote worker, in milliseconds.
+	 * Workers send a progress message after each image, so a longer silence
+	 * means the host stalled or the network is partitioned.
+	 */
+	public static final int REMOTE_READ_TIMEOUT = 120000;
+
+	private static final String READY = "READY";
+
+	private static final String PROGRESS = "PROGRESS";
+
+	private static final String HASH_FIELD = "sha256=";
+
+	private static final String CUDA_FIELD = "cuda=";
+
+	private final String condaEnv;
+
+	private final String modelPath;
+
+	/** The worker process, or <code>null</code> for a remote worker. */
+	private final Process process;
+
+	/** The connection to a remote worker, or <code>null</code>. */
+	private final Socket socket;
+
+	private final BufferedReader replies;
+
+	private final BufferedWriter requests;
+
+	private final Deque< String > logTail = new ArrayDeque<>();
+
+	private volatile Consumer< String > logListener;
+
+	private volatile long lastUsed;
+
+	private volatile boolean busy;
+
+	/** Whether to close the worker once its current request completes. */
+	private boolean closeWhenIdle;
+
+	/**
+	 * The SHA-256 hash of the model the worker loaded, as it reported it, or
+	 * <code>null</code>.
+	 */
+	private String modelHash;
+
+	/** Whether the worker runs on a CUDA device, as it reported it. */
+	private boolean cuda;
+
+	private YOLOWorker( final String condaEnv, final String modelPath, final Process process )
+	{
+		this.condaEnv = condaEnv;
+		this.modelPath = modelPath;
+		this.process = process;
+		this.socket = null;
+		this.replies = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) );
+		this.requests = new BufferedWriter( new OutputStreamWriter( process.getOutputStream(), StandardCharsets.UTF_8 ) );
+		this.lastUsed = System.currentTimeMillis();
+
+		final Thread logReader = new Thread( () -> readLog( process.getErrorStream() ), "TrackMate-YOLO-worker-log" );
+		logReader.setDaemon( true );
+		logReader.start();
+	}
+
+	private YOLOWorker( final String address, final Socket socket ) throws IOException
+	{
+		this.condaEnv = null;
+		this.modelPath = address;
+		this.process = null;
+		this.socket = socket;
+		this.replies = new BufferedReader( new InputStreamReader( socket.getInputStream(), StandardCharsets.UTF_8 ) );
+		this.requests = new BufferedWriter( new OutputStreamWriter( socket.getOutputStream(), StandardCharsets.UTF_8 ) );
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Connects to a worker started with a port, on this machine or another
+	 * one, and waits for it to be ready. Such a worker serves the same
+	 * requests as a local one. The paths in the requests must be valid on
+	 * the worker host, for instance on a shared file system. Reads time out
+	 * after {@link #REMOTE_READ_TIMEOUT} without a message from the worker.
+	 *
+	 * @param address
+	 *            the address of the worker.
+	 * @param timeout
+	 *            the connection timeout, in milliseconds.
+	 * @return a new, ready worker.
+	 * @throws IOException
+	 *             if the connection failed, or if the worker did not answer
+	 *             that it is ready.
+	 */
+	public static YOLOWorker connect( final InetSocketAddress address, final int timeout ) throws IOException
+	{
+		final Socket socket = new Socket();
+		try
+		{
+			socket.connect( address, timeout );
+			socket.setSoTimeout( REMOTE_READ_TIMEOUT );
+			final YOLOWorker worker = new YOLOWorker( address.getHostString() + ':' + address.getPort(), socket );
+			worker.awaitReady();
+			return worker;
+		}
+		catch ( final IOException e )
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts a worker that serves requests on a TCP port of this machine, and
+	 * waits for it to have loaded the model. Clients then use
+	 * {@link #connect(InetSocketAddress, int)}. Useful to run a distributed
+	 * inference with workers on localhost.
+	 *
+	 * @param condaEnv
+	 *            the name of the conda environment in which YOLO is
+	 *            installed. It must be resolvable.
+	 * @param modelPath
+	 *            the path to the YOLO model to load.
+	 * @param port
+	 *            the port to listen to, on the loopback interface.
+	 * @return the worker process. Destroy it to stop the worker. Its log is
+	 *         written to a temporary file.
+	 * @throws IOException
+	 *             if the environment cannot be resolved, or if the worker
+	 *             failed to start.
+	 */
+	public static Process startServer( final String condaEnv, final String modelPath, final int port ) throws IOException
+	{
+		final ResolvedEnvironment env = CondaEnvironmentCache.get( condaEnv, Logger.VOID_LOGGER );
+		if ( env == null )
+			throw new IOException( "Could not resolve the conda environment " + condaEnv );
+		final String scriptPath = YOLOUtils.extractScript( SCRIPT_NAME ).toString();
+		final ProcessBuilder pb = env.processBuilder( Arrays.asList( env.getPython(), scriptPath, "model=" + modelPath, "port=" + port ) );
+		final File log = File.createTempFile( "TrackMate-YOLO-worker-" + port + "_", ".log" );
+		log.deleteOnExit();
+		pb.redirectError( ProcessBuilder.Redirect.appendTo( log ) );
+		final Process process = pb.start();
+		final BufferedReader out = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) );
+		final String reply = out.readLine();
+		if ( reply == null || !reply.startsWith( READY ) )
+		{
+			process.destroyForcibly();
+			throw new IOException( "The YOLO worker failed to start on port " + port + ( reply == null ? "" : ":\n" + reply )
+					+ "\nSee its log in " + log );
+		}
+		return process;
+	}
+
+	/**
+	 * Starts a worker in the specified conda environment, and waits for it to
+	 * have loaded the model.
+	 *
+	 * @param condaEnv
+	 *            the name of the conda environment in which YOLO is
+	 *            installed.
+	 * @param modelPath
+	 *            the path to the YOLO model to load.
+	 * @return a new, ready worker.
+	 * @throws IOException
+	 *             if the worker process could not be started, or failed to
+	 *             load the model.
+	 */
+	public static YOLOWorker start( final String condaEnv, final String modelPath ) throws IOException
+	{
+		final String scriptPath = YOLOUtils.extractScript( SCRIPT_NAME ).toString();
+		final ProcessBuilder pb;
+		final ResolvedEnvironment env = CondaEnvironmentCache.get( condaEnv, Logger.VOID_LOGGER );
+		if ( env != null )
+		{
+			// Launch the interpreter directly.
+			pb = env.processBuilder( Arrays.asList( env.getPython(), scriptPath, "model=" + modelPath ) );
+		}
+		else
+		{
+			final YOLOWorkerCLI cli = new YOLOWorkerCLI( scriptPath );
+			final Map< String, Object > settings = new HashMap<>();
+			settings.put( KEY_CONDA_ENV, condaEnv );
+			settings.put( KEY_YOLO_MODEL_FILEPATH, modelPath );
+			TrackMateSettingsBuilder.fromTrackMateSettings( settings, cli );
+			final String error = cli.check();
+			if ( error != null )
+				throw new IOException( error );
+			final List< String > cmd = CommandBuilder.build( cli );
+			pb = new ProcessBuilder( cmd );
+		}
+		final Process process = pb.start();
+		final YOLOWorker worker = new YOLOWorker( condaEnv, modelPath, process );
+		worker.awaitReady();
+		return worker;
+	}
+
+	private void awaitReady() throws IOException
+	{
+		final String reply = replies.readLine();
+		if ( reply == null || !reply.startsWith( READY ) )
+		{
+			if ( process != null )
+				process.destroyForcibly();
+			throw new IOException( "The YOLO worker failed to load the model " + modelPath + ":\n"
+					+ ( reply == null ? "" : reply + '\n' )
+					+ getLogTail() );
+		}
+		for ( final String field : reply.split( "\t" ) )
+			if ( field.startsWith( HASH_FIELD ) )
+				modelHash = field.substring( HASH_FIELD.length() );
+			else if ( field.startsWith( CUDA_FIELD ) )
+				cuda = Boolean.parseBoolean( field.substring( CUDA_FIELD.length() ) );
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the model file the worker loaded, as it
+	 * reported it when it got ready.
+	 *
+	 * @return the hash, as lowercase hexadecimal, or <code>null</code> if the
+	 *         worker did not report it.
+	 */
+	public String getModelHash()
+	{
+		return modelHash;
+	}
+
+	/**
+	 * Returns whether the worker runs on a CUDA device. Half precision is
+	 * only used on a CUDA device.
+	 *
+	 * @return <code>true</code> if the worker reported a CUDA device.
+	 */
+	public boolean hasCuda()
+	{
+		return cuda;
+	}
+
+	/**
+	 * Runs YOLO on all the images in the source folder, and writes the
+	 * results as label files in the <code>predict/labels</code> subfolder of
+	 * the project folder.
+	 *
+	 * @param source
+	 *            the folder containing the images.
+	 * @param project
+	 *            the output folder.
+	 * @param conf
+	 *            the confidence threshold.
+	 * @param iou
+	 *            the IoU threshold for non-maximum suppression.
+	 * @param listener
+	 *            receives the lines of the YOLO log while the request runs.
+	 *            Can be <code>null</code>.
+	 * @throws IOException
+	 *             if the worker died or reported an error.
+	 */
+	public void predict(
+			final Path source,
+			final Path project,
+			final double conf,
+			final double iou,
+			final Consumer< String > listener ) throws IOException
+	{
+		predict( source, project, conf, iou, new InferenceProfile( 0, 0, 0, false ), null, listener );
+	}
+
+	/**
+	 * Runs YOLO on all the images in the source folder with the specified
+	 * performance parameters, and optionally writes the results to a single
+	 * {@link DetectionStream} file instead of one label file per image.
+	 *
+	 * @param source
+	 *            the folder containing the images.
+	 * @param project
+	 *            the output folder.
+	 * @param conf
+	 *            the confidence threshold.
+	 * @param iou
+	 *            the IoU threshold for non-maximum suppression.
+	 * @param profile
+	 *            the image size, batch size, number of threads and precision
+	 *            to use. Parameters equal to 0 take the ultralytics default,
+	 *            except the number of threads, for which the worker keeps its
+	 *            current setting.
+	 * @param stream
+	 *            the path of the detection stream file to write. Its folder
+	 *            must exist. If <code>null</code>, label files are written.
+	 * @param listener
+	 *            receives the lines of the YOLO log while the request runs.
+	 *            Can be <code>null</code>.
+	 * @throws IOException
+	 *             if the worker died, reported an error, or if the request
+	 *             was canceled with {@link #cancel(Path)}.
+	 * @see InferenceArbiter
+	 */
+	public void predict(
+			final Path source,
+			final Path project,
+			final double conf,
+			final double iou,
+			final InferenceProfile profile,
+			final Path stream,
+			final Consumer< String > listener ) throws IOException
+	{
+		predict( source, project, conf, iou, profile, stream, false, listener );
+	}
+
+	/**
+	 * Runs YOLO on all the images in the source folder, and optionally
+	 * appends the results to an existing {@link DetectionStream} file, for
+	 * instance to resume a request that was interrupted.
+	 *
+	 * @param source
+	 *            the folder containing the images.
+	 * @param project
+	 *            the output folder.
+	 * @param conf
+	 *            the confidence threshold.
+	 * @param iou
+	 *            the IoU threshold for non-maximum suppression.
+	 * @param profile
+	 *            the inference parameters.
+	 * @param stream
+	 *            the path of the detection stream file to write, or
+	 *            <code>null</code> to write label files.
+	 * @param append
+	 *            whether to append to the stream file if it exists, instead
+	 *            of overwriting it. The file must end with a complete record.
+	 * @param listener
+	 *            receives the lines of the YOLO log while the request runs.
+	 *            Can be <code>null</code>.
+	 * @throws IOException
+	 *             if the worker died, reported an error, or if the request
+	 *             was canceled with {@link #cancel(Path)}.
+	 */
+	public synchronized void predict(
+			final Path source,
+			final Path project,
+			final double conf,
+			final double iou,
+			final InferenceProfile profile,
+			final Path stream,
+			final boolean append,
+			final Consumer< String > listener ) throws IOException
+	{
+		if ( !isAlive() )
+			throw new IOException( "The YOLO worker is not running anymore." );
+		final Path cancelFile = project.resolve( CANCEL_FILE_NAME );
+		if ( Files.exists( cancelFile ) )
+			throw new IOException( "The request was canceled." );
+
+		this.logListener = listener;
+		synchronized ( this )
+		{
+			this.busy = true;
+		}
+		try
+		{
+			requests.write( "PREDICT"
+					+ "\tsource=" + source
+					+ "\tproject=" + project
+					+ "\tconf=" + conf
+					+ "\tiou=" + iou
+					+ "\tthreads=" + profile.getThreads()
+					+ "\timgsz=" + profile.getImgsz()
+					+ "\tbatch=" + profile.getBatch()
+					+ "\thalf=" + ( profile.isHalf() && cuda )
+					+ ( stream == null ? "" : "\tstream=" + stream + "\tappend=" + append )
+					+ "\tcancel=" + cancelFile
+					+ "\n" );
+			requests.flush();
+
+			String reply = replies.readLine();
+			while ( reply != null && reply.startsWith( PROGRESS ) )
+				reply = replies.readLine();
+			if ( reply == null )
+				throw new IOException( "The YOLO worker died:\n" + getLogTail() );
+			if ( reply.equals( "CANCELED" ) )
+				throw new IOException( "The request was canceled." );
+			if ( !reply.equals( "DONE" ) )
+				throw new IOException( "The YOLO worker reported an error: " + reply.replace( "ERROR\t", "" ) );
+		}
+		catch ( final SocketTimeoutException e )
+		{
+			// The connection is out of sync with the worker now.
+			kill();
+			throw new IOException( "No message from the YOLO worker " + modelPath + " for " + REMOTE_READ_TIMEOUT / 1000 + " s." );
+		}
+		finally
+		{
+			this.logListener = null;
+			this.lastUsed = System.currentTimeMillis();
+			synchronized ( this )
+			{
+				this.busy = false;
+				if ( closeWhenIdle )
+					close();
+			}
+		}
+	}
+
+	/**
+	 * Cancels the request writing to the specified output folder. The worker
+	 * stops after the image it is currently processing, and keeps its model
+	 * loaded. If the request is not started yet, it is canceled as soon as it
+	 * starts.
+	 *
+	 * @param project
+	 *            the output folder of the request to cancel.
+	 */
+	public void cancel( final Path project )
+	{
+		try
+		{
+			Files.createDirectories( project );
+			Files.createFile( project.resolve( CANCEL_FILE_NAME ) );
+		}
+		catch ( final FileAlreadyExistsException e )
+		{
+			// Already canceled.
+		}
+		catch ( final IOException e )
+		{
+			// Nothing to cancel.
+		}
+	}
+
+	public boolean isAlive()
+	{
+		return ( process == null ) ? !socket.isClosed() : process.isAlive();
+	}
+
+	/**
+	 * Returns whether this worker is currently serving a request.
+	 *
+	 * @return <code>true</code> if a request is running.
+	 */
+	public boolean isBusy()
+	{
+		return busy;
+	}
+
+	/**
+	 * Returns the time, in milliseconds since epoch, at which this worker
+	 * last completed a request.
+	 *
+	 * @return the last use time.
+	 */
+	public long getLastUsed()
+	{
+		return lastUsed;
+	}
+
+	public String getCondaEnv()
+	{
+		return condaEnv;
+	}
+
+	public String getModelPath()
+	{
+		return modelPath;
+	}
+
+	/**
+	 * Stops the worker at once, without waiting for the request it is
+	 * serving. The request fails with an {@link IOException}.
+	 */
+	public void kill()
+	{
+		if ( process == null )
+		{
+			try
+			{
+				socket.close();
+			}
+			catch ( final IOException e )
+			{
+				// Already closed.
+			}
+		}
+		else
+		{
+			process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * Closes the worker now if it is idle, or once the request it is serving
+	 * completes.
+	 */
+	public synchronized void closeWhenIdle()
+	{
+		if ( busy )
+			closeWhenIdle = true;
+		else
+			close();
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			requests.write( "QUIT\n" );
+			requests.flush();
+		}
+		catch ( final IOException e )
+		{
+			// Already gone.
+		}
+		if ( process == null )
+		{
+			try
+			{
+				socket.close();
+			}
+			catch ( final IOException e )
+			{
+				// Already closed.
+			}
+		}
+		else
+		{
+			process.destroy();
+		}
+	}
+
+	private void readLog( final InputStream stream )
+	{
+		try (final BufferedReader reader = new BufferedReader( new InputStreamReader( stream, StandardCharsets.UTF_8 ) ))
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				synchronized ( logTail )
+				{
+					logTail.addLast( line );
+					if ( logTail.size() > LOG_TAIL_LENGTH )
+						logTail.removeFirst();
+				}
+				final Consumer< String > listener = logListener;
+				if ( listener != null )
+					listener.accept( line );
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Process ended.
+		}
+	}
+
+	private String getLogTail()
+	{
+		synchronized ( logTail )
+		{
+			return String.join( "\n", logTail );
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.DEFAULT_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+
+/**
+ * Command line to start a persistent YOLO worker, a Python script that loads
+ * a model once and serves prediction requests.
+ *
+ * @see YOLOWorker
+ */
+public class YOLOWorkerCLI extends CondaPythonScriptCLI
+{
+
+	private final PathArgument modelPath;
+
+	public YOLOWorkerCLI( final String scriptPath )
+	{
+		super( scriptPath );
+		this.modelPath = addPathArgument()
+				.name( "Path to a YOLO model" )
+				.argument( "model=" )
+				.help( "The path to a YOLO model." )
+				.defaultValue( DEFAULT_YOLO_MODEL_FILEPATH )
+				.key( KEY_YOLO_MODEL_FILEPATH )
+				.get();
+	}
+
+	public PathArgument modelPath()
+	{
+		return modelPath;
+	}
+}
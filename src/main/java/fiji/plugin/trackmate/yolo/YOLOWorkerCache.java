@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2024 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ij.Prefs;
+
+/**
+ * Keeps the YOLO workers loaded during the session, so that successive
+ * previews and detections with the same conda environment and model do not
+ * pay the start-up cost again.
+ * <p>
+ * Workers are started in the background with
+ * {@link #warmUp(String, String)}. They are closed after they stay unused
+ * for longer than the idle timeout, or when too many models are loaded. The
+ * idle timeout is stored in the ImageJ preferences.
+ */
+public class YOLOWorkerCache
+{
+
+	/**
+	 * The state of the worker for a given conda environment and model.
+	 */
+	public enum State
+	{
+		NONE, LOADING, READY, FAILED;
+	}
+
+	private static final String IDLE_TIMEOUT_PREF_KEY = "trackmate.yolo.workerIdleTimeout";
+
+	/** Default idle timeout, in seconds. */
+	public static final int DEFAULT_IDLE_TIMEOUT = 300;
+
+	/** Max number of models kept loaded at the same time. */
+	private static final int MAX_WORKERS = 2;
+
+	private static final Map< String, CompletableFuture< YOLOWorker > > WORKERS = new LinkedHashMap<>();
+
+	private static ScheduledExecutorService evictor;
+
+	private YOLOWorkerCache()
+	{}
+
+	/**
+	 * Returns the time after which an unused worker is closed.
+	 *
+	 * @return the idle timeout, in seconds.
+	 */
+	public static int getIdleTimeout()
+	{
+		return Prefs.getInt( IDLE_TIMEOUT_PREF_KEY, DEFAULT_IDLE_TIMEOUT );
+	}
+
+	/**
+	 * Sets the time after which an unused worker is closed, and saves it in
+	 * the ImageJ preferences.
+	 *
+	 * @param seconds
+	 *            the idle timeout, in seconds.
+	 */
+	public static void setIdleTimeout( final int seconds )
+	{
+		Prefs.set( IDLE_TIMEOUT_PREF_KEY, seconds );
+	}
+
+	/**
+	 * Starts loading a worker for the specified conda environment and model
+	 * in the background, if it is not loaded or loading already.
+	 *
+	 * @param condaEnv
+	 *            the conda environment name.
+	 * @param modelPath
+	 *            the model path.
+	 * @return a future that completes when the worker is ready.
+	 */
+	public static synchronized CompletableFuture< YOLOWorker > warmUp( final String condaEnv, final String modelPath )
+	{
+		final String key = key( condaEnv, modelPath );
+		final CompletableFuture< YOLOWorker > existing = WORKERS.get( key );
+		if ( existing != null && !existing.isCompletedExceptionally() && ( !existing.isDone() || existing.join().isAlive() ) )
+		{
+			// Move to the end of the LRU order.
+			WORKERS.remove( key );
+			WORKERS.put( key, existing );
+			return existing;
+		}
+
+		final CompletableFuture< YOLOWorker > future = CompletableFuture.supplyAsync( () -> {
+			try
+			{
+				return YOLOWorker.start( condaEnv, modelPath );
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e.getMessage(), e );
+			}
+		} );
+		WORKERS.put( key, future );
+		trim();
+		startEvictor();
+		return future;
+	}
+
+	/**
+	 * Returns the worker loaded for the specified settings, waiting for it
+	 * if it is still loading. Returns <code>null</code> if no worker was
+	 * warmed up for these settings or if it failed to start.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 * @return a ready worker or <code>null</code>.
+	 */
+	public static YOLOWorker get( final Map< String, Object > settings )
+	{
+		return get( ( String ) settings.get( KEY_CONDA_ENV ), ( String ) settings.get( KEY_YOLO_MODEL_FILEPATH ) );
+	}
+
+	/**
+	 * Returns the worker for the specified conda environment and model, if
+	 * it is loaded or loading. Waits for a loading worker to be ready.
+	 *
+	 * @param condaEnv
+	 *            the name of the conda environment.
+	 * @param modelPath
+	 *            the path to the model.
+	 * @return the worker, or <code>null</code> if there is none, or if it
+	 *         failed to load.
+	 */
+	public static YOLOWorker get( final String condaEnv, final String modelPath )
+	{
+		final CompletableFuture< YOLOWorker > future;
+		synchronized ( YOLOWorkerCache.class )
+		{
+			future = WORKERS.get( key( condaEnv, modelPath ) );
+		}
+		if ( future == null )
+			return null;
+
+		try
+		{
+			final YOLOWorker worker = future.get();
+			return worker.isAlive() ? worker : null;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch ( final ExecutionException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the state of the worker for the specified conda environment and
+	 * model.
+	 *
+	 * @param condaEnv
+	 *            the conda environment name.
+	 * @param modelPath
+	 *            the model path.
+	 * @return the worker state.
+	 */
+	public static synchronized State getState( final String condaEnv, final String modelPath )
+	{
+		final CompletableFuture< YOLOWorker > future = WORKERS.get( key( condaEnv, modelPath ) );
+		if ( future == null )
+			return State.NONE;
+		if ( !future.isDone() )
+			return State.LOADING;
+		if ( future.isCompletedExceptionally() )
+			return State.FAILED;
+		return future.join().isAlive() ? State.READY : State.NONE;
+	}
+
+	/**
+	 * Returns the error message of a worker that failed to start.
+	 *
+	 * @param condaEnv
+	 *            the conda environment name.
+	 * @param modelPath
+	 *            the model path.
+	 * @return the error message, or <code>null</code> if the worker did not
+	 *         fail.
+	 */
+	public static synchronized String getErrorMessage( final String condaEnv, final String modelPath )
+	{
+		final CompletableFuture< YOLOWorker > future = WORKERS.get( key( condaEnv, modelPath ) );
+		if ( future == null || !future.isCompletedExceptionally() )
+			return null;
+		try
+		{
+			future.join();
+			return null;
+		}
+		catch ( final Exception e )
+		{
+			return e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+		}
+	}
+
+	/**
+	 * Closes all the workers.
+	 */
+	public static synchronized void clear()
+	{
+		WORKERS.values().forEach( YOLOWorkerCache::close );
+		WORKERS.clear();
+	}
+
+	/**
+	 * Removes the least recently used workers beyond the max number. A worker
+	 * serving a request is closed once the request completes.
+	 */
+	private static void trim()
+	{
+		final Iterator< CompletableFuture< YOLOWorker > > it = WORKERS.values().iterator();
+		while ( WORKERS.size() > MAX_WORKERS && it.hasNext() )
+		{
+			it.next().thenAccept( YOLOWorker::closeWhenIdle );
+			it.remove();
+		}
+	}
+
+	private static synchronized void evictIdle()
+	{
+		final long timeout = TimeUnit.SECONDS.toMillis( getIdleTimeout() );
+		final long now = System.currentTimeMillis();
+		final Iterator< CompletableFuture< YOLOWorker > > it = WORKERS.values().iterator();
+		while ( it.hasNext() )
+		{
+			final CompletableFuture< YOLOWorker > future = it.next();
+			if ( !future.isDone() )
+				continue;
+			if ( future.isCompletedExceptionally() )
+				continue;
+			final YOLOWorker worker = future.join();
+			if ( worker.isBusy() )
+				continue;
+			if ( !worker.isAlive() || now - worker.getLastUsed() > timeout )
+			{
+				worker.close();
+				it.remove();
+			}
+		}
+	}
+
+	private static void close( final CompletableFuture< YOLOWorker > future )
+	{
+		future.thenAccept( YOLOWorker::close );
+	}
+
+	private static void startEvictor()
+	{
+		if ( evictor != null )
+			return;
+		evictor = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "TrackMate-YOLO-worker-evictor" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		evictor.scheduleWithFixedDelay( YOLOWorkerCache::evictIdle, 10, 10, TimeUnit.SECONDS );
+	}
+
+	private static String key( final String condaEnv, final String modelPath )
+	{
+		return condaEnv + '\n' + modelPath;
+	}
+}
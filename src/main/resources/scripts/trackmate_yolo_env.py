@@ -0,0 +1,33 @@
+"""
+Describes the Python environment this script runs in, so that TrackMate-YOLO
+can later launch executables of this environment directly, without going
+through conda activation.
+
+Prints one KEY=VALUE line per item:
+    executable=<path to the Python interpreter>
+    yolo=<path to the yolo entry point, empty if not found>
+    cuda=<true if PyTorch can run on a CUDA device, false otherwise>
+    env.<NAME>=<value of the environment variable NAME>
+    keep.<NAME>=  for variables with line breaks in their value
+
+The environment variables are only read from the standard output of this
+script. TrackMate-YOLO compares them with its own environment, and keeps
+only the changes made by conda activation.
+"""
+import os
+import shutil
+import sys
+
+print('executable=' + sys.executable)
+print('yolo=' + (shutil.which('yolo') or ''))
+try:
+    import torch
+    cuda = torch.cuda.is_available()
+except Exception:
+    cuda = False
+print('cuda=' + ('true' if cuda else 'false'))
+for name, value in sorted(os.environ.items()):
+    if '\n' in value or '\r' in value:
+        print('keep.' + name + '=')
+    else:
+        print('env.' + name + '=' + value)
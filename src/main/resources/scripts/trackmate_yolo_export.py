@@ -0,0 +1,62 @@
+"""
+TrackMate-YOLO model conversion.
+
+Exports a YOLO model to a format that runs faster on CPU, and moves the
+exported model to an output folder.
+
+Usage:
+    python trackmate_yolo_export.py model=<path> format=<onnx|openvino>
+        int8=<true|false> output=<folder>
+
+Prints the path to the exported model on the standard output, as:
+    EXPORTED <path>
+Everything else, including the ultralytics log, goes to the standard error.
+Exits with a non-zero status if the export failed.
+"""
+import os
+import shutil
+import sys
+
+
+def parse(tokens):
+    args = {}
+    for token in tokens:
+        if '=' in token:
+            key, value = token.split('=', 1)
+            args[key.strip()] = value
+    return args
+
+
+def main(argv):
+    args = parse(argv[1:])
+
+    # Keep stdout for the result. Library output goes to stderr.
+    channel = sys.stdout
+    sys.stdout = sys.stderr
+
+    from ultralytics import YOLO
+    model = YOLO(args['model'])
+    int8 = args.get('int8', 'false').lower() == 'true'
+    # Dynamic input shapes, so that the image size can still be tuned.
+    exported = model.export(format=args['format'], int8=int8, dynamic=True)
+    if not exported:
+        print('The export returned no model.', file=sys.stderr)
+        return 1
+
+    output = args['output']
+    os.makedirs(output, exist_ok=True)
+    target = os.path.join(output, os.path.basename(os.path.normpath(exported)))
+    if os.path.exists(target):
+        if os.path.isdir(target):
+            shutil.rmtree(target)
+        else:
+            os.remove(target)
+    shutil.move(str(exported), target)
+
+    channel.write('EXPORTED\t' + target + '\n')
+    channel.flush()
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
@@ -0,0 +1,227 @@
+"""
+TrackMate-YOLO inference worker.
+
+Loads a YOLO model once, then serves prediction requests read from the
+standard input until it is told to quit. This saves the Python and model
+start-up cost on every detection after the first one.
+
+Usage:
+    python trackmate_yolo_worker.py model=/path/to/model.pt
+    python trackmate_yolo_worker.py model=/path/to/model.pt port=<int> [host=<address>]
+
+With a port, the worker serves the same protocol over TCP, to one client
+connection at a time, instead of over its standard input and output. It
+prints READY on its standard output once listening, and sends READY to
+each client that connects, with the hash of the model so that clients can
+check it is the one they expect. QUIT closes the connection, not the worker.
+Paths in requests must be valid on the worker host, for instance on a
+shared file system.
+
+Protocol, one request per line, fields separated by tabs:
+    PREDICT  source=<folder>  project=<folder>  conf=<float>  iou=<float>
+             threads=<int>  (optional, 0 keeps the current setting)
+             imgsz=<int>  batch=<int>  (optional, 0 for the defaults)
+             half=<true|false>  (optional)
+             stream=<file>  (optional)
+             append=<true|false>  (optional, append to the stream file)
+             cancel=<file>  (optional, the request stops once it exists)
+    QUIT
+
+The worker answers on the standard output, one line per message:
+    READY  sha256=<hex>  cuda=<true|false>
+                     once the model is loaded, with the SHA-256 hash of
+                     the model file (empty if it is not a file), and
+                     whether a CUDA device is available. Half precision
+                     is only used on a CUDA device.
+    PROGRESS         after each image of a request, so that clients can
+                     tell a slow request from a stalled one.
+    DONE             when a request completed. Results are written as
+                     YOLO label files in <project>/predict/labels, like the
+                     'yolo detect predict' command does with save_txt.
+                     If a stream file is given, they are appended to it
+                     instead, one binary record per image (see
+                     DetectionStream.java for the layout).
+    CANCELED         when a request stopped because its cancel file
+                     was created.
+    ERROR <message>  when a request failed.
+
+Everything else, including the ultralytics log, goes to the standard error.
+"""
+import hashlib
+import os
+import re
+import struct
+import sys
+
+STREAM_MAGIC = 0x544d5953
+STREAM_VERSION = 1
+TIME_POINT = re.compile(r'(\d+)(?=\.[^.]+$)')
+
+
+def parse(tokens):
+    args = {}
+    for token in tokens:
+        if '=' in token:
+            key, value = token.split('=', 1)
+            args[key.strip()] = value
+    return args
+
+
+def write_record(stream, result):
+    """Appends the detections of one image to the binary stream."""
+    match = TIME_POINT.search(os.path.basename(result.path))
+    t = int(match.group(1)) if match else -1
+    boxes = result.boxes
+    n = 0 if boxes is None else len(boxes)
+    record = [struct.pack('>ii', t, n)]
+    if n > 0:
+        xywhn = boxes.xywhn.cpu().numpy()
+        cls = boxes.cls.cpu().numpy()
+        conf = boxes.conf.cpu().numpy()
+        for i in range(n):
+            x, y, w, h = xywhn[i]
+            record.append(struct.pack('>i5f', int(cls[i]), x, y, w, h, conf[i]))
+    # One write per image, so that a reader never sees half a header.
+    stream.write(b''.join(record))
+    stream.flush()
+
+
+def model_hash(path):
+    """Returns the SHA-256 hash of the model file, or an empty string."""
+    if not os.path.isfile(path):
+        return ''
+    digest = hashlib.sha256()
+    with open(path, 'rb') as f:
+        for block in iter(lambda: f.read(1 << 16), b''):
+            digest.update(block)
+    return digest.hexdigest()
+
+
+def cuda_available():
+    """Returns whether PyTorch can run on a CUDA device."""
+    try:
+        import torch
+        return torch.cuda.is_available()
+    except Exception:
+        return False
+
+
+def serve(model, lines, reply, cuda):
+    """Serves requests read from lines until QUIT or the end of the input."""
+    for line in lines:
+        tokens = line.rstrip('\r\n').split('\t')
+        command = tokens[0]
+        if command == 'QUIT':
+            return
+        if command != 'PREDICT':
+            reply('ERROR\tUnknown command: ' + command)
+            continue
+
+        request = parse(tokens[1:])
+        try:
+            threads = int(request.get('threads', 0))
+            if threads > 0:
+                import torch
+                torch.set_num_threads(threads)
+            stream_path = request.get('stream')
+            cancel_path = request.get('cancel')
+            options = {}
+            if int(request.get('imgsz', 0)) > 0:
+                options['imgsz'] = int(request['imgsz'])
+            if int(request.get('batch', 0)) > 0:
+                options['batch'] = int(request['batch'])
+            if cuda and request.get('half', 'false').lower() == 'true':
+                options['half'] = True
+            results = model.predict(
+                source=request['source'],
+                project=request['project'],
+                name='predict',
+                exist_ok=True,
+                conf=float(request.get('conf', 0.25)),
+                iou=float(request.get('iou', 0.7)),
+                save=False,
+                save_txt=stream_path is None,
+                save_conf=True,
+                stream=True,
+                verbose=True,
+                **options)
+
+            def canceled():
+                return cancel_path is not None and os.path.exists(cancel_path)
+
+            completed = True
+            if stream_path is None:
+                for _ in results:
+                    if canceled():
+                        completed = False
+                        break
+                    reply('PROGRESS')
+            else:
+                append = request.get('append', 'false').lower() == 'true'
+                with open(stream_path, 'ab' if append else 'wb') as stream:
+                    if stream.tell() == 0:
+                        stream.write(struct.pack('>ii', STREAM_MAGIC, STREAM_VERSION))
+                        stream.flush()
+                    for result in results:
+                        if canceled():
+                            completed = False
+                            break
+                        write_record(stream, result)
+                        reply('PROGRESS')
+            reply('DONE' if completed else 'CANCELED')
+        except Exception as e:
+            reply('ERROR\t' + str(e).replace('\n', ' '))
+
+
+def main(argv):
+    args = parse(argv[1:])
+
+    # Keep stdout for the protocol. Library output goes to stderr.
+    channel = sys.stdout
+    sys.stdout = sys.stderr
+
+    def reply(message):
+        channel.write(message + '\n')
+        channel.flush()
+
+    try:
+        from ultralytics import YOLO
+        model = YOLO(args['model'])
+    except Exception as e:
+        reply('ERROR\t' + str(e).replace('\n', ' '))
+        return 1
+    cuda = cuda_available()
+    ready = 'READY\tsha256=' + model_hash(args['model']) \
+        + '\tcuda=' + ('true' if cuda else 'false')
+
+    port = int(args.get('port', 0))
+    if port <= 0:
+        reply(ready)
+        serve(model, sys.stdin, reply, cuda)
+        return 0
+
+    import socket
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    server.bind((args.get('host', '127.0.0.1'), port))
+    server.listen(1)
+    reply(ready)
+    while True:
+        connection, _ = server.accept()
+        with connection:
+            reader = connection.makefile('r', encoding='utf-8', newline='\n')
+            writer = connection.makefile('w', encoding='utf-8', newline='\n')
+
+            def remote_reply(message):
+                writer.write(message + '\n')
+                writer.flush()
+
+            try:
+                remote_reply(ready)
+                serve(model, reader, remote_reply, cuda)
+            except OSError as e:
+                print('Connection lost: ' + str(e), file=sys.stderr)
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
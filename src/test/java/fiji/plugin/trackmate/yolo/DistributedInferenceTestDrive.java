@@ -0,0 +1,96 @@
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_REMOTE_WORKERS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.SpotGlobalDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.patcher.LegacyInjector;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs the same detection on this machine and on several workers started on
+ * localhost, one of which is killed during the run, and compares the
+ * results.
+ */
+public class DistributedInferenceTestDrive
+{
+
+	private static final String CONDA_ENV = "yolo";
+
+	private static final String MODEL = "/Users/tinevez/Desktop/BacterialDynamicsDataset/SHichamDataset/models/best 1.pt";
+
+	private static final int[] PORTS = new int[] { 5701, 5702, 5703 };
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args ) throws IOException, InterruptedException
+	{
+		LegacyInjector.preinit();
+		final ImagePlus imp = IJ.openImage( "samples/SHicham_Video1_crop.tif" );
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+
+		final SpotCollection local = detect( img, "" );
+
+		final List< Process > workers = new ArrayList<>();
+		try
+		{
+			final StringBuilder hosts = new StringBuilder();
+			for ( final int port : PORTS )
+			{
+				workers.add( YOLOWorker.startServer( CONDA_ENV, MODEL, port ) );
+				hosts.append( hosts.length() == 0 ? "" : "," ).append( "localhost:" ).append( port );
+			}
+
+			// Kill one worker during the run, to check its shards are retried.
+			final Thread killer = new Thread( () -> {
+				try
+				{
+					Thread.sleep( 3000 );
+					workers.get( 0 ).destroyForcibly();
+				}
+				catch ( final InterruptedException e )
+				{}
+			} );
+			killer.start();
+			final SpotCollection distributed = detect( img, hosts.toString() );
+			killer.interrupt();
+
+			System.out.println( "Local:       " + local.getNSpots( false ) + " spots." );
+			System.out.println( "Distributed: " + distributed.getNSpots( false ) + " spots." );
+		}
+		finally
+		{
+			workers.forEach( Process::destroyForcibly );
+		}
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > SpotCollection detect( final ImgPlus< T > img, final String hosts )
+	{
+		final YOLODetectorFactory< T > factory = new YOLODetectorFactory<>();
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		settings.put( KEY_CONDA_ENV, CONDA_ENV );
+		settings.put( KEY_YOLO_MODEL_FILEPATH, MODEL );
+		settings.put( KEY_YOLO_REMOTE_WORKERS, hosts );
+		settings.put( YOLODetectorFactory.KEY_LOGGER, Logger.DEFAULT_LOGGER );
+		if ( !factory.setTarget( img, settings ) )
+			throw new IllegalArgumentException( factory.getErrorMessage() );
+
+		final SpotGlobalDetector< T > detector = factory.getDetector( img );
+		if ( !detector.checkInput() || !detector.process() )
+			throw new IllegalStateException( detector.getErrorMessage() );
+		System.out.println( String.format( "Finished in %.1f s.", detector.getProcessingTime() / 1000. ) );
+		return detector.getResult();
+	}
+}
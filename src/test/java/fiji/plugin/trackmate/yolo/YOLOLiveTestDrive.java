@@ -0,0 +1,58 @@
+package fiji.plugin.trackmate.yolo;
+
+import static fiji.plugin.trackmate.util.cli.CondaCLIConfigurator.KEY_CONDA_ENV;
+import static fiji.plugin.trackmate.yolo.YOLODetectorFactory.KEY_YOLO_MODEL_FILEPATH;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+import net.imagej.patcher.LegacyInjector;
+
+/**
+ * Simulates an acquisition that saves one frame every 200 ms to a folder,
+ * and runs live detection on this folder.
+ */
+public class YOLOLiveTestDrive
+{
+
+	private static final String CONDA_ENV = "yolo";
+
+	private static final String MODEL = "/Users/tinevez/Desktop/BacterialDynamicsDataset/SHichamDataset/models/best 1.pt";
+
+	private static final long FRAME_DELAY = 200;
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		LegacyInjector.preinit();
+		final ImagePlus imp = IJ.openImage( "samples/SHicham_Video1_crop.tif" );
+		final Path folder = Files.createTempDirectory( "TrackMate-YOLO-live-acquisition_" );
+
+		final Map< String, Object > settings = new YOLODetectorFactory<>().getDefaultSettings();
+		settings.put( KEY_CONDA_ENV, CONDA_ENV );
+		settings.put( KEY_YOLO_MODEL_FILEPATH, MODEL );
+
+		final SpotCollection spots = new SpotCollection();
+		final YOLOLiveDetector live = new YOLOLiveDetector( YOLOLiveDetector.ofFolder( folder ), settings, spots, Logger.DEFAULT_LOGGER );
+		live.addListener( ( frame, frameSpots, latency ) -> System.out.println( "Frame " + frame + ": " + frameSpots.size() + " spots in " + latency + " ms." ) );
+		live.start();
+
+		// The acquisition.
+		for ( int t = 0; t < imp.getNFrames(); t++ )
+		{
+			final ImagePlus frame = new Duplicator().run( imp, 1, 1, 1, 1, t + 1, t + 1 );
+			IJ.saveAsTiff( frame, folder.resolve( "img_" + t + ".tif" ).toString() );
+			Thread.sleep( FRAME_DELAY );
+		}
+
+		live.stop();
+		System.out.println( String.format( "%d frames, %d spots, mean latency %.0f ms, max latency %d ms.",
+				live.getNFrames(), spots.getNSpots( false ), live.getMeanLatency(), live.getMaxLatency() ) );
+	}
+}